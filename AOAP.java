@@ -4,29 +4,52 @@ import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.util.Log;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AOAP {
 
     private static final String TAG = "USB_SQLite_DB";
 
-    //vendor ID and product ID for Android
-    private static final int ANDROID_VENDOR_ID = 0x18D1;
-    private static final int ANDROID_PRODUCT_ID_ACCESSORY = 0x2D00;
-    private static final int ANDROID_PRODUCT_ID_ACCESSORY_ADB = 0x2D01;
-    private static final int ANDROID_PRODUCT_ID_ACCESSORY_AUDIO = 0x2D04;
-    private static final int ANDROID_PRODUCT_ID_ACCESSORY_AUDIO_ADB = 0x2D05;
-
-    //control request
-    private static final int ACCESSORY_GET_PROTOCOL = 51;
-    private static final int ACCESSORY_SEND_STRING = 52;
-    private static final int ACCESSORY_START = 53;
-    private static final int AOAP_TIMEOUT_MS = 2000;
+    //vendor ID and product ID for Android, package visible for the default DeviceClassifier rules
+    static final int ANDROID_VENDOR_ID = 0x18D1;
+    static final int ANDROID_PRODUCT_ID_ACCESSORY = 0x2D00;
+    static final int ANDROID_PRODUCT_ID_ACCESSORY_ADB = 0x2D01;
+    static final int ANDROID_PRODUCT_ID_ACCESSORY_AUDIO = 0x2D04;
+    static final int ANDROID_PRODUCT_ID_ACCESSORY_AUDIO_ADB = 0x2D05;
+
+    //control request, package visible for SimulatedAoapDevice
+    static final int ACCESSORY_GET_PROTOCOL = 51;
+    static final int ACCESSORY_SEND_STRING = 52;
+    static final int ACCESSORY_START = 53;
+    static final int AOAP_TIMEOUT_MS = 2000;
+
+    //protocol version 2 requests
+    static final int ACCESSORY_REGISTER_HID = 54;
+    static final int ACCESSORY_UNREGISTER_HID = 55;
+    static final int ACCESSORY_SET_HID_REPORT_DESC = 56;
+    static final int ACCESSORY_SEND_HID_EVENT = 57;
+    static final int ACCESSORY_SET_AUDIO_MODE = 58;
+
+    //values of ACCESSORY_SET_AUDIO_MODE
+    static final int AUDIO_MODE_NONE = 0;
+    static final int AUDIO_MODE_PCM_16BIT_44100_STEREO = 1;
+
+    //report descriptors are sent in pieces of this size with request 56
+    private static final int HID_DESCRIPTOR_CHUNK = 64;
+
+    //encoded request 52 payloads, the identifying strings are the same for every device
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_CACHED_STRINGS = 32;
+    private static final ConcurrentHashMap<String, byte[]> encodedStrings = new ConcurrentHashMap<>();
 
     //method to determine whether USB device is in AOAP mode.
     public static boolean isDeviceInAOAPMode(UsbDevice device) {
+        return isAccessoryProduct(device.getVendorId(), device.getProductId());
+    }
 
-        int vid = device.getVendorId();
-        int pid = device.getProductId();
+    //classification on plain ids, usable without a UsbDevice (benchmarks, cached identities)
+    public static boolean isAccessoryProduct(int vid, int pid) {
         return vid == ANDROID_VENDOR_ID &&
                 (pid == ANDROID_PRODUCT_ID_ACCESSORY ||
                         pid == ANDROID_PRODUCT_ID_ACCESSORY_ADB ||
@@ -34,59 +57,184 @@ public class AOAP {
                         pid == ANDROID_PRODUCT_ID_ACCESSORY_AUDIO_ADB);
     }
 
+    //accessory product with the audio interface, i.e. the device accepted ACCESSORY_SET_AUDIO_MODE
+    public static boolean isAudioProduct(int vid, int pid) {
+        return vid == ANDROID_VENDOR_ID &&
+                (pid == ANDROID_PRODUCT_ID_ACCESSORY_AUDIO || pid == ANDROID_PRODUCT_ID_ACCESSORY_AUDIO_ADB);
+    }
+
     //checks if protocol version is greater than or equal to 1
     public static boolean isSupported(UsbDeviceConnection conn) {
+        return isSupported(UsbConnectionTransport.wrap(conn));
+    }
+
+    public static boolean isSupported(AoapTransport conn) {
         return getProtocol(conn) >= 1;
     }
 
-    //sends a control request 51 to USB device to retrieve protocol version.
     public static int getProtocol(UsbDeviceConnection conn) {
+        return getProtocol(UsbConnectionTransport.wrap(conn));
+    }
+
+    //sends a control request 51 to USB device to retrieve protocol version.
+    public static int getProtocol(AoapTransport conn) {
 
-        Log.i(TAG, "Send Control Request 51 Get Protocol");
+        if (UsbLog.isInfoEnabled()) {
+            Log.i(TAG, "Send Control Request 51 Get Protocol");
+        }
 
         if (conn == null) {
             Log.e(TAG, "AOAPInterface.getProtocol(): Invalid handle");
             return 0;
         }
 
-        //receive a response of 2 bytes, which are stored in the buffer array
+        //a failed or short read leaves the buffer without a version, that is reported as 0
+        return Math.max(0, getProtocol(conn, AOAP_TIMEOUT_MS));
+    }
+
+    //request 51 with a caller supplied timeout. Returns -1 when the transfer fails or is short.
+    //The two bytes are little endian and unsigned.
+    static int getProtocol(AoapTransport conn, int timeout) {
+
         byte[] buffer = new byte[2];
 
-        int len = conn.controlTransfer(UsbConstants.USB_DIR_IN | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_GET_PROTOCOL, 0, 0, buffer, 2, AOAP_TIMEOUT_MS);
+        int len = transfer(conn, UsbConstants.USB_DIR_IN | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_GET_PROTOCOL, 0, 0, buffer, 2, timeout);
 
         if (len != 2) {
             Log.e(TAG, "Error occur during control transfer");
+            return -1;
         }
-
-        //combines two bytes in buffer to create a 16-bit value representing the protocol version.
-        //shifting second byte of buffer 8 bits to left
-        return (buffer[1] << 8) | buffer[0];
+        return ((buffer[1] & 0xFF) << 8) | (buffer[0] & 0xFF);
     }
 
 
-    //method to send a string to a USB device using control transfer
     public static void sendString(UsbDeviceConnection conn, int index, String string) {
+        sendString(UsbConnectionTransport.wrap(conn), index, string);
+    }
+
+    //method to send a string to a USB device using control transfer
+    public static void sendString(AoapTransport conn, int index, String string) {
+        if (conn == null) {
+            Log.e(TAG, "AOAPInterface.sendString(): Invalid handle");
+            return;
+        }
+        sendString(conn, index, encodeString(string), AOAP_TIMEOUT_MS);
+    }
 
-        //string is converted to byte array and appended with null terminator (\0).
-        byte[] buffer = (string + "\0").getBytes();
+    //sends an already encoded string, returns true when the whole buffer was transferred
+    static boolean sendString(AoapTransport conn, int index, byte[] buffer, int timeout) {
 
         //send control request to USB device
-        int len = conn.controlTransfer(UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_SEND_STRING, 0, index, buffer, buffer.length, AOAP_TIMEOUT_MS);
+        int len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_SEND_STRING, 0, index, buffer, buffer.length, timeout);
 
         if (len != buffer.length) {
             Log.e(TAG, "Failed to send string");
+            return false;
         }
         else {
-            Log.i(TAG, "String send");
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "String send");
+            }
+            return true;
+        }
+    }
+
+
+    //string is converted to UTF-8 byte array and appended with null terminator (\0).
+    //The array is cached and shared, callers must not modify it.
+    static byte[] encodeString(String string) {
+        byte[] buffer = encodedStrings.get(string);
+        if (buffer != null) {
+            return buffer;
+        }
+
+        byte[] bytes = string.getBytes(UTF_8);
+        buffer = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+
+        if (encodedStrings.size() < MAX_CACHED_STRINGS) {
+            encodedStrings.put(string, buffer);
+        }
+        return buffer;
+    }
+
+
+    //request 58, must be sent before ACCESSORY_START. Only devices with protocol version 2 accept it.
+    static boolean setAudioMode(AoapTransport conn, int mode, int timeout) {
+        int len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_SET_AUDIO_MODE, mode, 0, null, 0, timeout);
+
+        if (len < 0) {
+            Log.e(TAG, "Control transfer for audio mode failed: " + len);
+            return false;
+        }
+        return true;
+    }
+
+
+    //requests 54 and 56: registers HID device id and sends its report descriptor
+    static boolean registerHid(AoapTransport conn, int id, byte[] reportDescriptor, int timeout) {
+        int len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_REGISTER_HID, id, reportDescriptor.length, null, 0, timeout);
+        if (len < 0) {
+            Log.e(TAG, "Control transfer for HID registration failed: " + len);
+            return false;
+        }
+
+        byte[] chunk = new byte[Math.min(HID_DESCRIPTOR_CHUNK, reportDescriptor.length)];
+        for (int offset = 0; offset < reportDescriptor.length; offset += chunk.length) {
+            int length = Math.min(chunk.length, reportDescriptor.length - offset);
+            System.arraycopy(reportDescriptor, offset, chunk, 0, length);
+
+            len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_SET_HID_REPORT_DESC, id, offset, chunk, length, timeout);
+            if (len != length) {
+                Log.e(TAG, "Control transfer for HID report descriptor failed: " + len);
+                return false;
+            }
         }
+        return true;
+    }
+
+
+    //request 57
+    static boolean sendHidEvent(AoapTransport conn, int id, byte[] event, int timeout) {
+        int len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_SEND_HID_EVENT, id, 0, event, event.length, timeout);
+        return len == event.length;
+    }
+
+
+    //request 55
+    static boolean unregisterHid(AoapTransport conn, int id, int timeout) {
+        int len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_UNREGISTER_HID, id, 0, null, 0, timeout);
+        return len >= 0;
     }
 
 
     public static void sendAOAPStart(UsbDeviceConnection conn) {
-        int len = conn.controlTransfer(UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_START, 0, 0, null, 0, AOAP_TIMEOUT_MS);
+        sendAOAPStart(UsbConnectionTransport.wrap(conn));
+    }
+
+    public static void sendAOAPStart(AoapTransport conn) {
+        if (conn == null) {
+            Log.e(TAG, "AOAPInterface.sendAOAPStart(): Invalid handle");
+            return;
+        }
+        sendAOAPStart(conn, AOAP_TIMEOUT_MS);
+    }
+
+    static boolean sendAOAPStart(AoapTransport conn, int timeout) {
+        int len = transfer(conn, UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_VENDOR, ACCESSORY_START, 0, 0, null, 0, timeout);
 
         if (len < 0) {
             Log.e(TAG, "Control transfer for accessory start failed: " + len);
+            return false;
         }
+        return true;
+    }
+
+    //every control request goes through here, so its latency and failures end up in UsbMetrics
+    private static int transfer(AoapTransport conn, int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        long start = System.nanoTime();
+        int len = conn.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        UsbMetrics.recordControlRequest(request, System.nanoTime() - start, len >= 0);
+        return len;
     }
 }
@@ -0,0 +1,18 @@
+package com.example.usbdb;
+
+//the bulk IN and OUT endpoints of a device in accessory mode.
+//AccessoryChannel is written against this interface so it runs on a real connection
+//(UsbBulkTransport) or on a plain JVM against SimulatedAoapDevice.
+public interface AccessoryBulkTransport {
+
+    //same contract as UsbDeviceConnection.bulkTransfer on the IN endpoint: bytes read or negative on failure
+    int bulkRead(byte[] buffer, int offset, int length, int timeout);
+
+    //same contract as UsbDeviceConnection.bulkTransfer on the OUT endpoint: bytes written or negative on failure
+    int bulkWrite(byte[] buffer, int offset, int length, int timeout);
+
+    //largest packet of the endpoints, reads should use a multiple of it
+    int getMaxPacketSize();
+
+    void close();
+}
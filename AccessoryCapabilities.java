@@ -0,0 +1,87 @@
+package com.example.usbdb;
+
+//what a device in accessory mode was set up with: the AOAP protocol version it reported and the
+//optional features that both sides wanted and the protocol version allows. Only audio is negotiated:
+//protocol version 2 also has HID requests, but the app registers no HID device, so it is not offered.
+//Stored per DeviceIdentity, so a known device skips request 51 when it is plugged in again.
+public final class AccessoryCapabilities {
+
+    //feature flags
+    public static final int AUDIO = 1;
+    public static final int ALL = AUDIO;
+
+    //persisted capabilities, implemented by USBDevicesDatabaseHelper
+    public interface Store {
+        AccessoryCapabilities loadCapabilities(String deviceKey);
+
+        void saveCapabilities(String deviceKey, AccessoryCapabilities capabilities);
+
+        void deleteCapabilities(String deviceKey);
+    }
+
+    private final int protocolVersion;
+    private final int features;
+    private final long negotiatedAt;
+
+    public AccessoryCapabilities(int protocolVersion, int features, long negotiatedAt) {
+        this.protocolVersion = protocolVersion;
+        //rows stored by earlier versions may carry a HID flag (1 << 1) that was never set up on the device
+        this.features = features & ALL;
+        this.negotiatedAt = negotiatedAt;
+    }
+
+    //features a device with this protocol version can offer
+    public static int supportedBy(int protocolVersion) {
+        return protocolVersion >= 2 ? ALL : 0;
+    }
+
+    //richest set of the wanted features the device supports
+    public static AccessoryCapabilities negotiate(int protocolVersion, int wanted) {
+        return new AccessoryCapabilities(protocolVersion, supportedBy(protocolVersion) & wanted, System.currentTimeMillis());
+    }
+
+    //same protocol version with a feature removed, e.g. after the device rejected audio mode
+    public AccessoryCapabilities without(int feature) {
+        return new AccessoryCapabilities(protocolVersion, features & ~feature, negotiatedAt);
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public boolean has(int feature) {
+        return (features & feature) == feature;
+    }
+
+    //value for ACCESSORY_SET_AUDIO_MODE
+    public int getAudioMode() {
+        return has(AUDIO) ? AOAP.AUDIO_MODE_PCM_16BIT_44100_STEREO : AOAP.AUDIO_MODE_NONE;
+    }
+
+    public long getNegotiatedAt() {
+        return negotiatedAt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AccessoryCapabilities)) {
+            return false;
+        }
+        AccessoryCapabilities other = (AccessoryCapabilities) o;
+        return protocolVersion == other.protocolVersion && features == other.features;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * protocolVersion + features;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + protocolVersion + (has(AUDIO) ? "+audio" : "");
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.usbdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//data channel to a device in accessory mode over its bulk endpoints.
+//Writes are retried until the whole buffer is sent, reads return what one bulk transfer delivered.
+public class AccessoryChannel {
+
+    private final AccessoryBulkTransport transport;
+    private final AccessoryCapabilities capabilities;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong failedTransfers = new AtomicLong();
+    private volatile boolean closed;
+
+    //capabilities may be null when the device was not switched by this app
+    public AccessoryChannel(AccessoryBulkTransport transport, AccessoryCapabilities capabilities) {
+        this.transport = transport;
+        this.capabilities = capabilities;
+    }
+
+    public AccessoryCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    //returns false when a transfer failed or the channel is closed, part of the data may have been sent
+    public boolean write(byte[] data, int offset, int length, int timeout) {
+        int end = offset + length;
+        while (offset < end) {
+            if (closed) {
+                return false;
+            }
+
+            int sent = transport.bulkWrite(data, offset, end - offset, timeout);
+            if (sent <= 0) {
+                failedTransfers.incrementAndGet();
+                return false;
+            }
+            offset += sent;
+            bytesWritten.addAndGet(sent);
+        }
+        return true;
+    }
+
+    //returns the number of bytes read, or -1 when the transfer failed, timed out or the channel is closed
+    public int read(byte[] buffer, int offset, int length, int timeout) {
+        if (closed) {
+            return -1;
+        }
+
+        int received = transport.bulkRead(buffer, offset, length, timeout);
+        if (received < 0) {
+            failedTransfers.incrementAndGet();
+            return -1;
+        }
+        bytesRead.addAndGet(received);
+        return received;
+    }
+
+    //read buffers should be a multiple of this, a short packet ends a transfer
+    public int getMaxPacketSize() {
+        return transport.getMaxPacketSize();
+    }
+
+    public void close() {
+        closed = true;
+        transport.close();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getFailedTransferCount() {
+        return failedTransfers.get();
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.usbdb;
+
+import java.nio.ByteBuffer;
+
+//frames on the accessory data channel: a 4 byte big endian payload length followed by the payload.
+//Bulk transfers do not keep message boundaries, a frame can span transfers and a transfer can
+//carry several frames.
+public final class AccessoryFraming {
+
+    public static final int HEADER_LENGTH = 4;
+    //larger lengths can only come from a corrupt stream
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    public interface FrameListener {
+        //payload is only valid during the call, copy it to keep it
+        void onFrame(ByteBuffer payload);
+    }
+
+    private AccessoryFraming() {
+    }
+
+    public static void putHeader(ByteBuffer buffer, int payloadLength) {
+        buffer.putInt(payloadLength);
+    }
+
+    //splits transfers into frames. Frames that lie inside one transfer are handed out as a view of
+    //the transfer buffer, only frames spanning transfers are copied into the reassembly buffer.
+    //Used by one thread at a time.
+    public static class Decoder {
+
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private ByteBuffer reassembly = ByteBuffer.allocate(4096);
+        //remaining payload of the frame being reassembled, null while reading a header
+        private ByteBuffer partial;
+
+        //consumes all of data, returns the number of frames delivered or -1 when the stream is corrupt.
+        //After -1 the decoder starts over with the next transfer.
+        public int feed(ByteBuffer data, FrameListener listener) {
+            int frames = 0;
+
+            while (data.hasRemaining()) {
+                if (partial == null) {
+                    //whole frame inside this transfer, no copy
+                    if (header.position() == 0 && data.remaining() >= HEADER_LENGTH) {
+                        int length = data.getInt(data.position());
+                        if (length < 0 || length > MAX_FRAME_LENGTH) {
+                            return corrupt(data);
+                        }
+                        if (data.remaining() - HEADER_LENGTH >= length) {
+                            ByteBuffer payload = data.duplicate();
+                            payload.position(data.position() + HEADER_LENGTH);
+                            payload.limit(payload.position() + length);
+                            data.position(payload.limit());
+
+                            listener.onFrame(payload.slice());
+                            frames++;
+                            continue;
+                        }
+                    }
+
+                    while (header.hasRemaining() && data.hasRemaining()) {
+                        header.put(data.get());
+                    }
+                    if (header.hasRemaining()) {
+                        break;
+                    }
+
+                    int length = header.getInt(0);
+                    header.clear();
+                    if (length < 0 || length > MAX_FRAME_LENGTH) {
+                        return corrupt(data);
+                    }
+
+                    if (reassembly.capacity() < length) {
+                        reassembly = ByteBuffer.allocate(Math.max(length, reassembly.capacity() * 2));
+                    }
+                    reassembly.clear();
+                    reassembly.limit(length);
+                    partial = reassembly;
+                }
+
+                int count = Math.min(partial.remaining(), data.remaining());
+                ByteBuffer chunk = data.duplicate();
+                chunk.limit(chunk.position() + count);
+                partial.put(chunk);
+                data.position(data.position() + count);
+
+                if (!partial.hasRemaining()) {
+                    partial.flip();
+                    listener.onFrame(partial);
+                    partial = null;
+                    frames++;
+                }
+            }
+
+            //a zero length frame whose header was the last bytes of the transfer
+            if (partial != null && partial.limit() == 0) {
+                listener.onFrame(partial);
+                partial = null;
+                frames++;
+            }
+            return frames;
+        }
+
+        private int corrupt(ByteBuffer data) {
+            data.position(data.limit());
+            header.clear();
+            partial = null;
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.usbdb;
+
+import android.util.Log;
+
+//runs the AOAP handshake: get protocol (51), the six identifying strings (52), audio mode (58,
+//protocol version 2 only) and start (53). All transfers share one deadline instead of a fixed
+//timeout each, the first failing step aborts the remaining ones and the result reports how long
+//every step took. When the capabilities of the device are already known, request 51 is skipped.
+//With a ControlTimeouts.Profile the timeout of every transfer is learned from the product and every
+//transfer feeds the profile. An interrupt of the thread, e.g. the device was detached, stops the
+//handshake before its next transfer.
+public class AccessoryHandshake {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    //step indexes in HandshakeResult
+    public static final int STEP_GET_PROTOCOL = 0;
+    public static final int STEP_FIRST_STRING = 1;
+    public static final int STEP_AUDIO_MODE = STEP_FIRST_STRING + AccessoryIdentification.STRING_COUNT;
+    public static final int STEP_START = STEP_AUDIO_MODE + 1;
+    public static final int STEP_COUNT = STEP_START + 1;
+
+    public enum Status {
+        SUCCESS,
+        NOT_SUPPORTED,
+        TRANSFER_FAILED,
+        DEADLINE_EXCEEDED,
+        //the thread was interrupted
+        CANCELLED,
+        //not run, the device failed too many handshakes recently
+        QUARANTINED
+    }
+
+    public static class HandshakeResult {
+
+        private final Status status;
+        private final AccessoryCapabilities capabilities;
+        private final boolean negotiated;
+        private final int failedStep;
+        private final long[] stepNanos;
+        private final long totalNanos;
+
+        HandshakeResult(Status status, AccessoryCapabilities capabilities, boolean negotiated, int failedStep, long[] stepNanos, long totalNanos) {
+            this.status = status;
+            this.capabilities = capabilities;
+            this.negotiated = negotiated;
+            this.failedStep = failedStep;
+            this.stepNanos = stepNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isSuccess() {
+            return status == Status.SUCCESS;
+        }
+
+        public int getProtocolVersion() {
+            return capabilities != null ? capabilities.getProtocolVersion() : 0;
+        }
+
+        //null when the protocol version is unknown
+        public AccessoryCapabilities getCapabilities() {
+            return capabilities;
+        }
+
+        //false when known capabilities were used and request 51 was skipped
+        public boolean isNegotiated() {
+            return negotiated;
+        }
+
+        //step that failed, -1 on success
+        public int getFailedStep() {
+            return failedStep;
+        }
+
+        //time spent in a step, 0 for steps that did not run
+        public long getStepNanos(int step) {
+            return stepNanos[step];
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+    }
+
+    private volatile AccessoryIdentification identification;
+
+    public AccessoryHandshake(AccessoryIdentification identification) {
+        this.identification = identification;
+    }
+
+    public void setIdentification(AccessoryIdentification identification) {
+        this.identification = identification;
+    }
+
+    public AccessoryIdentification getIdentification() {
+        return identification;
+    }
+
+    //runs the handshake with a total budget of deadlineMillis for all transfers, without optional features
+    public HandshakeResult run(AoapTransport transport, long deadlineMillis) {
+        return run(transport, deadlineMillis, null, 0);
+    }
+
+    //known are the capabilities stored for the device or null, wanted the feature flags to ask for
+    public HandshakeResult run(AoapTransport transport, long deadlineMillis, AccessoryCapabilities known, int wanted) {
+        return run(transport, deadlineMillis, known, wanted, null);
+    }
+
+    //profile sets the per transfer timeouts and learns from them, null uses AOAP_TIMEOUT_MS
+    public HandshakeResult run(AoapTransport transport, long deadlineMillis, AccessoryCapabilities known, int wanted,
+                               ControlTimeouts.Profile profile) {
+
+        AccessoryIdentification strings = identification;
+        long[] stepNanos = new long[STEP_COUNT];
+        long start = System.nanoTime();
+        long deadline = start + deadlineMillis * 1000000L;
+
+        if (transport == null) {
+            Log.e(TAG, "AccessoryHandshake.run(): Invalid handle");
+            return new HandshakeResult(Status.NOT_SUPPORTED, null, false, STEP_GET_PROTOCOL, stepNanos, 0);
+        }
+
+        int timeout;
+        long stepStart;
+        AccessoryCapabilities capabilities;
+        boolean negotiated = known == null;
+
+        if (known != null) {
+            capabilities = AccessoryCapabilities.negotiate(known.getProtocolVersion(), wanted);
+        }
+        else {
+            //51: protocol version, 0 or a rejected request means accessory mode is not supported
+            timeout = nextTimeout(deadline, profile);
+            if (timeout <= 0 || isCancelled()) {
+                return finish(stopStatus(), null, true, STEP_GET_PROTOCOL, stepNanos, start);
+            }
+            stepStart = System.nanoTime();
+            int protocolVersion = AOAP.getProtocol(transport, timeout);
+            stepNanos[STEP_GET_PROTOCOL] = System.nanoTime() - stepStart;
+            observe(profile, stepNanos[STEP_GET_PROTOCOL], protocolVersion >= 0, timeout);
+
+            if (protocolVersion < 0 && (isTimeout(stepNanos[STEP_GET_PROTOCOL], timeout) || isCancelled())) {
+                //no answer at all is not the same as a device saying no
+                return finish(failureStatus(deadline), null, true, STEP_GET_PROTOCOL, stepNanos, start);
+            }
+            if (protocolVersion < 1) {
+                return finish(Status.NOT_SUPPORTED, null, true, STEP_GET_PROTOCOL, stepNanos, start);
+            }
+            capabilities = AccessoryCapabilities.negotiate(protocolVersion, wanted);
+        }
+
+        //52: identifying strings
+        for (int i = 0; i < AccessoryIdentification.STRING_COUNT; i++) {
+            int step = STEP_FIRST_STRING + i;
+
+            timeout = nextTimeout(deadline, profile);
+            if (timeout <= 0 || isCancelled()) {
+                return finish(stopStatus(), capabilities, negotiated, step, stepNanos, start);
+            }
+
+            stepStart = System.nanoTime();
+            boolean sent = AOAP.sendString(transport, i, strings.getEncoded(i), timeout);
+            stepNanos[step] = System.nanoTime() - stepStart;
+            observe(profile, stepNanos[step], sent, timeout);
+
+            if (!sent) {
+                return finish(failureStatus(deadline), capabilities, negotiated, step, stepNanos, start);
+            }
+        }
+
+        //58: audio mode, a device rejecting it still gets accessory mode without audio
+        if (capabilities.has(AccessoryCapabilities.AUDIO)) {
+            timeout = nextTimeout(deadline, profile);
+            if (timeout <= 0 || isCancelled()) {
+                return finish(stopStatus(), capabilities, negotiated, STEP_AUDIO_MODE, stepNanos, start);
+            }
+            stepStart = System.nanoTime();
+            boolean audio = AOAP.setAudioMode(transport, capabilities.getAudioMode(), timeout);
+            stepNanos[STEP_AUDIO_MODE] = System.nanoTime() - stepStart;
+            observe(profile, stepNanos[STEP_AUDIO_MODE], audio, timeout);
+
+            if (!audio) {
+                Log.i(TAG, "Audio mode rejected, starting accessory mode without audio");
+                capabilities = capabilities.without(AccessoryCapabilities.AUDIO);
+            }
+        }
+
+        //53: start accessory mode
+        timeout = nextTimeout(deadline, profile);
+        if (timeout <= 0 || isCancelled()) {
+            return finish(stopStatus(), capabilities, negotiated, STEP_START, stepNanos, start);
+        }
+        stepStart = System.nanoTime();
+        boolean started = AOAP.sendAOAPStart(transport, timeout);
+        stepNanos[STEP_START] = System.nanoTime() - stepStart;
+        observe(profile, stepNanos[STEP_START], started, timeout);
+
+        if (!started) {
+            return finish(failureStatus(deadline), capabilities, negotiated, STEP_START, stepNanos, start);
+        }
+
+        return finish(Status.SUCCESS, capabilities, negotiated, -1, stepNanos, start);
+    }
+
+    //result without any transfer, e.g. for a quarantined device
+    static HandshakeResult notRun(Status status) {
+        return new HandshakeResult(status, null, false, STEP_GET_PROTOCOL, new long[STEP_COUNT], 0);
+    }
+
+    //per transfer timeout: what is left of the deadline, but never more than the profile allows
+    private static int nextTimeout(long deadline, ControlTimeouts.Profile profile) {
+        long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+        int limit = profile != null ? profile.getTimeoutMillis() : AOAP.AOAP_TIMEOUT_MS;
+        return (int) Math.min(remainingMillis, limit);
+    }
+
+    private static boolean isCancelled() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    private static Status stopStatus() {
+        return isCancelled() ? Status.CANCELLED : Status.DEADLINE_EXCEEDED;
+    }
+
+    //a transfer failing after (nearly) its whole timeout got no answer
+    private static boolean isTimeout(long nanos, int timeout) {
+        return nanos >= timeout * 900000L;
+    }
+
+    private static void observe(ControlTimeouts.Profile profile, long nanos, boolean success, int timeout) {
+        if (profile == null) {
+            return;
+        }
+        if (success) {
+            profile.recordSuccess(nanos);
+        }
+        else if (isTimeout(nanos, timeout)) {
+            profile.recordTimeout();
+        }
+    }
+
+    //a transfer failing with less than a millisecond of the budget left most likely timed out
+    private static Status failureStatus(long deadline) {
+        if (isCancelled()) {
+            return Status.CANCELLED;
+        }
+        return deadline - System.nanoTime() < 1000000L ? Status.DEADLINE_EXCEEDED : Status.TRANSFER_FAILED;
+    }
+
+    private static HandshakeResult finish(Status status, AccessoryCapabilities capabilities, boolean negotiated,
+                                          int failedStep, long[] stepNanos, long start) {
+        if (status == Status.CANCELLED) {
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Accessory handshake cancelled at step " + failedStep);
+            }
+        }
+        else if (status != Status.SUCCESS && status != Status.NOT_SUPPORTED) {
+            Log.e(TAG, "Accessory handshake aborted at step " + failedStep + ": " + status);
+        }
+        return new HandshakeResult(status, capabilities, negotiated, failedStep, stepNanos, System.nanoTime() - start);
+    }
+}
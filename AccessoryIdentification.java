@@ -0,0 +1,44 @@
+package com.example.usbdb;
+
+//identifying strings sent to the device with control request 52 before accessory mode is started.
+//Each string is encoded once when the object is created and the buffers are reused for every handshake.
+public final class AccessoryIdentification {
+
+    //string indexes defined by the accessory protocol
+    public static final int MANUFACTURER_NAME = 0;
+    public static final int MODEL_NAME = 1;
+    public static final int DESCRIPTION = 2;
+    public static final int VERSION = 3;
+    public static final int URI = 4;
+    public static final int SERIAL_NUMBER = 5;
+    public static final int STRING_COUNT = 6;
+
+    public static final AccessoryIdentification DEFAULT = new AccessoryIdentification(
+            "Manufacturer", "Model", "Description", "1.0", "https://www.android.com/auto", "1234");
+
+    private final String[] strings;
+    private final byte[][] encoded;
+
+    public AccessoryIdentification(String manufacturerName, String modelName, String description,
+                                   String version, String uri, String serial) {
+
+        strings = new String[]{manufacturerName, modelName, description, version, uri, serial};
+        encoded = new byte[STRING_COUNT][];
+
+        for (int i = 0; i < STRING_COUNT; i++) {
+            if (strings[i] == null) {
+                throw new IllegalArgumentException("Accessory string " + i + " is null");
+            }
+            encoded[i] = AOAP.encodeString(strings[i]);
+        }
+    }
+
+    public String getString(int index) {
+        return strings[index];
+    }
+
+    //null terminated payload for request 52, shared between handshakes and must not be modified
+    byte[] getEncoded(int index) {
+        return encoded[index];
+    }
+}
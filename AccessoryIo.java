@@ -0,0 +1,323 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//framed, pipelined I/O over the bulk endpoints of a device in accessory mode.
+//readsInFlight IN transfers are always queued so the device never waits for the host, and up to
+//writesInFlight OUT transfers are queued before sendFrame blocks. All transfer buffers come from a
+//DirectBufferPool and go back to it. One thread collects completions, decodes frames and requeues reads.
+public class AccessoryIo {
+
+    private static final String TAG = "USB_SQLite_DB";
+    private static final long WAIT_SLICE_MS = 100;
+
+    //throughput and latency counters, updated without locks
+    public static class Stats {
+
+        private final long startedAt = System.nanoTime();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong framesIn = new AtomicLong();
+        private final AtomicLong framesOut = new AtomicLong();
+        private final AtomicLong transfersIn = new AtomicLong();
+        private final AtomicLong transfersOut = new AtomicLong();
+        private final AtomicLong failedTransfers = new AtomicLong();
+        private final AtomicLong corruptTransfers = new AtomicLong();
+        //OUT transfer latency from queue to completion, bucket i counts latencies below 2^(i+1) ns
+        private final AtomicLongArray writeLatency = new AtomicLongArray(64);
+
+        void recordWrite(long latencyNanos, int bytes) {
+            transfersOut.incrementAndGet();
+            bytesOut.addAndGet(bytes);
+            writeLatency.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, latencyNanos)));
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public long getFramesIn() {
+            return framesIn.get();
+        }
+
+        public long getFramesOut() {
+            return framesOut.get();
+        }
+
+        public long getTransfersIn() {
+            return transfersIn.get();
+        }
+
+        public long getTransfersOut() {
+            return transfersOut.get();
+        }
+
+        public long getFailedTransfers() {
+            return failedTransfers.get();
+        }
+
+        //IN transfers dropped because the length of a frame was invalid
+        public long getCorruptTransfers() {
+            return corruptTransfers.get();
+        }
+
+        public double getReadBytesPerSecond() {
+            return perSecond(bytesIn.get());
+        }
+
+        public double getWriteBytesPerSecond() {
+            return perSecond(bytesOut.get());
+        }
+
+        //upper bound of the latency bucket holding the given percentile (0..100) of OUT transfers
+        public long getWriteLatencyPercentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < writeLatency.length(); i++) {
+                total += writeLatency.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < writeLatency.length(); i++) {
+                seen += writeLatency.get(i);
+                if (seen >= rank) {
+                    return i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private double perSecond(long count) {
+            long elapsed = System.nanoTime() - startedAt;
+            return elapsed > 0 ? count * 1e9 / elapsed : 0;
+        }
+    }
+
+    private final AsyncBulkTransport transport;
+    private final DirectBufferPool pool;
+    private final int readsInFlight;
+    private final AccessoryFraming.FrameListener listener;
+    private final AccessoryFraming.Decoder decoder = new AccessoryFraming.Decoder();
+    private final Semaphore writePermits;
+    private final Object writeLock = new Object();
+    private final Stats stats = new Stats();
+
+    //buffers handed to the transport, returned to the pool on close
+    private final Set<ByteBuffer> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+    private Thread ioThread;
+    private volatile boolean closed;
+
+    public AccessoryIo(AsyncBulkTransport transport, DirectBufferPool pool, int readsInFlight, int writesInFlight,
+                       AccessoryFraming.FrameListener listener) {
+        this.transport = transport;
+        this.pool = pool;
+        this.readsInFlight = readsInFlight;
+        this.writePermits = new Semaphore(writesInFlight);
+        this.listener = listener;
+    }
+
+    //queues the reads and starts the completion thread
+    public void start() {
+        for (int i = 0; i < readsInFlight; i++) {
+            ByteBuffer buffer = pool.acquire();
+            if (buffer == null || !queue(true, buffer)) {
+                pool.release(buffer);
+                Log.e(TAG, "Could only queue " + i + " accessory reads");
+                break;
+            }
+        }
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                completionLoop();
+            }
+        }, "usb-accessory-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    //queues payload as one frame. Returns false when no transfer slot freed up within timeoutMillis
+    //or the channel failed. A frame is either queued completely or not at all.
+    public boolean sendFrame(ByteBuffer payload, long timeoutMillis) throws InterruptedException {
+        int length = payload.remaining();
+        if (length > AccessoryFraming.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Frame too long: " + length);
+        }
+
+        ByteBuffer source = payload.duplicate();
+        synchronized (writeLock) {
+            boolean headerQueued = false;
+
+            while (!headerQueued || source.hasRemaining()) {
+                //only the first transfer may give up, the rest of a started frame has to follow
+                if (!headerQueued) {
+                    if (!writePermits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                        return false;
+                    }
+                }
+                else {
+                    writePermits.acquire();
+                }
+
+                ByteBuffer buffer = closed ? null : pool.acquire();
+                if (buffer == null) {
+                    writePermits.release();
+                    return failWrite(headerQueued, "no transfer buffer");
+                }
+
+                if (!headerQueued) {
+                    AccessoryFraming.putHeader(buffer, length);
+                }
+                int count = Math.min(buffer.remaining(), source.remaining());
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + count);
+                buffer.put(chunk);
+                source.position(source.position() + count);
+                buffer.flip();
+
+                if (!queue(false, buffer)) {
+                    pool.release(buffer);
+                    writePermits.release();
+                    return failWrite(headerQueued, "transfer not queued");
+                }
+                headerQueued = true;
+            }
+        }
+
+        stats.framesOut.incrementAndGet();
+        return true;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    //stops the completion thread, closes the transport and returns all buffers to the pool
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        transport.close();
+
+        if (ioThread != null && ioThread != Thread.currentThread()) {
+            try {
+                ioThread.join(WAIT_SLICE_MS * 2);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (ByteBuffer buffer : inFlight) {
+            pool.release(buffer);
+        }
+        inFlight.clear();
+        writePermits.release(Integer.MAX_VALUE / 2);
+    }
+
+    private boolean queue(boolean in, ByteBuffer buffer) {
+        inFlight.add(buffer);
+        if (transport.queue(in, buffer, null)) {
+            return true;
+        }
+        inFlight.remove(buffer);
+        return false;
+    }
+
+    //part of a frame already queued means the stream can no longer be parsed by the device
+    private boolean failWrite(boolean partOfFrameQueued, String reason) {
+        stats.failedTransfers.incrementAndGet();
+        Log.e(TAG, "Accessory write failed: " + reason);
+        if (partOfFrameQueued) {
+            close();
+        }
+        return false;
+    }
+
+    private void completionLoop() {
+        while (!closed) {
+            AsyncBulkTransport.Completion completion;
+            try {
+                completion = transport.requestWait(WAIT_SLICE_MS);
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            if (completion == null) {
+                continue;
+            }
+
+            if (completion.isIn()) {
+                onReadComplete(completion);
+            }
+            else {
+                onWriteComplete(completion);
+            }
+        }
+    }
+
+    private void onReadComplete(AsyncBulkTransport.Completion completion) {
+        ByteBuffer buffer = completion.getBuffer();
+        stats.transfersIn.incrementAndGet();
+        stats.bytesIn.addAndGet(completion.getTransferred());
+
+        buffer.flip();
+        int frames = decoder.feed(buffer, listener);
+        if (frames < 0) {
+            stats.corruptTransfers.incrementAndGet();
+        }
+        else {
+            stats.framesIn.addAndGet(frames);
+        }
+
+        //the same buffer goes straight back to the device
+        buffer.clear();
+        inFlight.remove(buffer);
+        if (closed || !queue(true, buffer)) {
+            pool.release(buffer);
+            if (!closed) {
+                stats.failedTransfers.incrementAndGet();
+                Log.e(TAG, "Accessory read could not be requeued");
+            }
+        }
+    }
+
+    private void onWriteComplete(AsyncBulkTransport.Completion completion) {
+        ByteBuffer buffer = completion.getBuffer();
+        inFlight.remove(buffer);
+
+        //bulk OUT transfers complete fully unless the device failed
+        boolean complete = !buffer.hasRemaining();
+        stats.recordWrite(System.nanoTime() - completion.getQueuedAt(), completion.getTransferred());
+
+        pool.release(buffer);
+        writePermits.release();
+
+        if (!complete) {
+            stats.failedTransfers.incrementAndGet();
+            Log.e(TAG, "Accessory write transferred only part of a buffer, closing channel");
+            close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.util.concurrent.ConcurrentHashMap;
+
+//switches devices to accessory mode with the richest feature set both sides support and
+//remembers the outcome per device. A device seen before goes straight to the identifying strings,
+//its protocol version comes from memory or the Store instead of request 51.
+//Transfer timeouts are learned per VID/PID by ControlTimeouts, devices failing repeatedly are quarantined.
+public class AccessoryNegotiator {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    private final AccessoryHandshake handshake;
+    private final ControlTimeouts timeouts = new ControlTimeouts();
+    private final ConcurrentHashMap<String, AccessoryCapabilities> known = new ConcurrentHashMap<>();
+    private volatile AccessoryCapabilities.Store store;
+    private volatile int wantedFeatures;
+
+    public AccessoryNegotiator(AccessoryHandshake handshake, int wantedFeatures) {
+        this.handshake = handshake;
+        this.wantedFeatures = wantedFeatures;
+    }
+
+    //without a store the capabilities are only remembered for the life of the process
+    public void setStore(AccessoryCapabilities.Store store) {
+        this.store = store;
+    }
+
+    //feature flags of AccessoryCapabilities asked for in the next handshakes
+    public void setWantedFeatures(int wantedFeatures) {
+        this.wantedFeatures = wantedFeatures;
+    }
+
+    public ControlTimeouts getControlTimeouts() {
+        return timeouts;
+    }
+
+    //identity may be null, the device is then negotiated from scratch and nothing is stored
+    public AccessoryHandshake.HandshakeResult negotiate(DeviceIdentity identity, AoapTransport transport, long deadlineMillis) {
+
+        if (identity != null && timeouts.isQuarantined(identity)) {
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Handshake skipped, device quarantined: " + identity);
+            }
+            return AccessoryHandshake.notRun(AccessoryHandshake.Status.QUARANTINED);
+        }
+
+        boolean remember = identity != null && DeviceClassificationCache.isCacheable(identity);
+        AccessoryCapabilities previous = remember ? getCapabilities(identity) : null;
+        ControlTimeouts.Profile profile = identity != null
+                ? timeouts.getProfile(identity.getVendorId(), identity.getProductId())
+                : timeouts.getOverallProfile();
+
+        AccessoryHandshake.HandshakeResult result = handshake.run(transport, deadlineMillis, previous, wantedFeatures, profile);
+
+        if (identity != null) {
+            updateQuarantine(identity, result.getStatus());
+        }
+        if (!remember || result.getStatus() == AccessoryHandshake.Status.CANCELLED) {
+            return result;
+        }
+
+        if (result.isSuccess()) {
+            AccessoryCapabilities capabilities = result.getCapabilities();
+            if (!capabilities.equals(previous)) {
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Accessory capabilities of " + identity + ": " + capabilities);
+                }
+                putCapabilities(identity, capabilities);
+            }
+        }
+        else if (previous != null) {
+            //the stored protocol version may be stale (e.g. OS update), negotiate again next time
+            forget(identity);
+        }
+        return result;
+    }
+
+    private void updateQuarantine(DeviceIdentity identity, AccessoryHandshake.Status status) {
+        switch (status) {
+            case SUCCESS:
+            case NOT_SUPPORTED:
+                timeouts.onHandshakeSucceeded(identity);
+                break;
+            case TRANSFER_FAILED:
+            case DEADLINE_EXCEEDED:
+                timeouts.onHandshakeFailed(identity);
+                break;
+            default:
+                //a cancelled handshake says nothing about the device
+                break;
+        }
+    }
+
+    //null when the device was never switched to accessory mode
+    public AccessoryCapabilities getCapabilities(DeviceIdentity identity) {
+        String key = identity.getKey();
+        AccessoryCapabilities capabilities = known.get(key);
+        AccessoryCapabilities.Store currentStore = store;
+
+        if (capabilities == null && currentStore != null) {
+            capabilities = currentStore.loadCapabilities(key);
+            if (capabilities != null) {
+                known.put(key, capabilities);
+            }
+        }
+        return capabilities;
+    }
+
+    public void forget(DeviceIdentity identity) {
+        known.remove(identity.getKey());
+        AccessoryCapabilities.Store currentStore = store;
+        if (currentStore != null) {
+            currentStore.deleteCapabilities(identity.getKey());
+        }
+    }
+
+    //stores capabilities learned elsewhere, e.g. carried over to the accessory-mode identity of a device
+    public void putCapabilities(DeviceIdentity identity, AccessoryCapabilities capabilities) {
+        known.put(identity.getKey(), capabilities);
+        AccessoryCapabilities.Store currentStore = store;
+        if (currentStore != null) {
+            currentStore.saveCapabilities(identity.getKey(), capabilities);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.usbdb;
+
+//the part of a USB connection used by the AOAP handshake.
+//AOAP is written against this interface so the handshake can run on a real UsbDeviceConnection
+//(UsbConnectionTransport) or on a plain JVM against SimulatedAoapDevice.
+public interface AoapTransport {
+
+    //same contract as UsbDeviceConnection.controlTransfer: returns number of bytes transferred or negative on failure
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout);
+
+    void close();
+}
@@ -0,0 +1,60 @@
+package com.example.usbdb;
+
+import java.nio.ByteBuffer;
+
+//bulk endpoints with queued transfers, the UsbRequest.queue / UsbDeviceConnection.requestWait model.
+//Several transfers can be in flight per direction, completions are collected by one thread.
+//Implemented by UsbRequestTransport and by LoopbackBulkTransport for JVM benchmarks.
+public interface AsyncBulkTransport {
+
+    //a finished transfer. The buffer position has advanced by the number of bytes transferred.
+    final class Completion {
+
+        private final boolean in;
+        private final ByteBuffer buffer;
+        private final Object tag;
+        private final int startPosition;
+        private final long queuedAt;
+
+        public Completion(boolean in, ByteBuffer buffer, Object tag) {
+            this.in = in;
+            this.buffer = buffer;
+            this.tag = tag;
+            this.startPosition = buffer.position();
+            this.queuedAt = System.nanoTime();
+        }
+
+        //true for the IN (read) endpoint
+        public boolean isIn() {
+            return in;
+        }
+
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public Object getTag() {
+            return tag;
+        }
+
+        public int getTransferred() {
+            return buffer.position() - startPosition;
+        }
+
+        //System.nanoTime when the transfer was queued
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+    }
+
+    //queues a transfer of the remaining bytes of buffer (OUT) or into its remaining space (IN).
+    //The buffer must not be touched until its completion is returned. Returns false if it was not queued.
+    boolean queue(boolean in, ByteBuffer buffer, Object tag);
+
+    //next finished transfer, null when none finished within timeoutMillis or the transport was closed
+    Completion requestWait(long timeoutMillis) throws InterruptedException;
+
+    int getMaxPacketSize();
+
+    void close();
+}
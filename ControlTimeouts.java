@@ -0,0 +1,192 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//per transfer timeouts of the AOAP handshake learned from the devices themselves, instead of the fixed
+//AOAP_TIMEOUT_MS. Every VID/PID gets a Profile with the latency of its last successful control
+//transfers; the timeout is a multiple of their 99th percentile, so a phone that answers in 2 ms is
+//given up on after a few hundred milliseconds instead of two seconds. Products with too few samples
+//use the profile of all products, and a transfer that timed out doubles the timeout of its product
+//until a transfer succeeds again. AccessoryHandshake still caps every timeout at what is left of
+//the handshake deadline.
+//Devices whose handshake failed QUARANTINE_AFTER times in a row are not probed again until their
+//quarantine ends, which doubles with every further failure.
+public class ControlTimeouts {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    //latency samples kept per product, the percentile is taken over these
+    private static final int SAMPLE_COUNT = 64;
+    private static final int MIN_SAMPLES = 8;
+    private static final double PERCENTILE = 99;
+    private static final int MARGIN = 4;
+    //a loaded phone can take a few hundred milliseconds for a transfer that is usually instant
+    private static final int MIN_TIMEOUT_MS = 250;
+    private static final int MAX_BACKOFF_SHIFT = 3;
+    //bounds the memory of products seen, the rest share the overall profile
+    private static final int MAX_PROFILES = 64;
+
+    private static final int QUARANTINE_AFTER = 3;
+    private static final long QUARANTINE_MS = 30 * 1000L;
+    private static final long MAX_QUARANTINE_MS = 30 * 60 * 1000L;
+    private static final int MAX_QUARANTINE_ENTRIES = 256;
+
+    //latency of one product, fed by AccessoryHandshake
+    public static class Profile {
+
+        private final Profile fallback;
+        private final long[] samples = new long[SAMPLE_COUNT];
+        private int next;
+        private int count;
+        //consecutive timed out transfers, each doubles the timeout
+        private int backoffShift;
+        //-1 when a sample arrived since the timeout was computed
+        private int timeoutMillis = -1;
+
+        Profile(Profile fallback) {
+            this.fallback = fallback;
+        }
+
+        public void recordSuccess(long nanos) {
+            synchronized (this) {
+                samples[next] = nanos;
+                next = (next + 1) % SAMPLE_COUNT;
+                count = Math.min(count + 1, SAMPLE_COUNT);
+                backoffShift = 0;
+                timeoutMillis = -1;
+            }
+            if (fallback != null) {
+                fallback.recordSuccess(nanos);
+            }
+        }
+
+        public synchronized void recordTimeout() {
+            backoffShift = Math.min(backoffShift + 1, MAX_BACKOFF_SHIFT);
+            timeoutMillis = -1;
+        }
+
+        //timeout for the next control transfer of the product, at most AOAP_TIMEOUT_MS
+        public int getTimeoutMillis() {
+            int shift;
+            synchronized (this) {
+                if (timeoutMillis < 0 && count >= MIN_SAMPLES) {
+                    timeoutMillis = computeTimeout();
+                }
+                if (timeoutMillis >= 0) {
+                    return timeoutMillis;
+                }
+                shift = backoffShift;
+            }
+            //not enough samples of the product yet, take what all products have shown
+            if (fallback != null) {
+                long millis = (long) fallback.getTimeoutMillis() << shift;
+                return (int) Math.min(millis, AOAP.AOAP_TIMEOUT_MS);
+            }
+            return AOAP.AOAP_TIMEOUT_MS;
+        }
+
+        public synchronized int getSampleCount() {
+            return count;
+        }
+
+        private int computeTimeout() {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            long percentileNanos = sorted[Math.max(0, (int) Math.ceil(PERCENTILE / 100.0 * count) - 1)];
+
+            long millis = Math.max(MIN_TIMEOUT_MS, (percentileNanos * MARGIN + 999999L) / 1000000L);
+            return (int) Math.min(millis << backoffShift, AOAP.AOAP_TIMEOUT_MS);
+        }
+    }
+
+    private static class Quarantine {
+
+        private int failures;
+        private long until;
+    }
+
+    private final Profile overall = new Profile(null);
+    private final ConcurrentHashMap<Integer, Profile> profiles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Quarantine> quarantines = new ConcurrentHashMap<>();
+
+    //profile of the product, the overall one once MAX_PROFILES products are known
+    public Profile getProfile(int vendorId, int productId) {
+        Integer key = DeviceIndex.packId(vendorId, productId);
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            if (profiles.size() >= MAX_PROFILES) {
+                return overall;
+            }
+            Profile created = new Profile(overall);
+            profile = profiles.putIfAbsent(key, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        return profile;
+    }
+
+    //profile of every product together, used for devices without an identity
+    public Profile getOverallProfile() {
+        return overall;
+    }
+
+    public boolean isQuarantined(DeviceIdentity identity) {
+        Quarantine quarantine = quarantines.get(identity.getKey());
+        if (quarantine == null) {
+            return false;
+        }
+        synchronized (quarantine) {
+            return System.currentTimeMillis() < quarantine.until;
+        }
+    }
+
+    //the device answered, e.g. completed the handshake or told that it does not support accessory mode
+    public void onHandshakeSucceeded(DeviceIdentity identity) {
+        quarantines.remove(identity.getKey());
+    }
+
+    //the handshake failed or ran out of time
+    public void onHandshakeFailed(DeviceIdentity identity) {
+        String key = identity.getKey();
+        Quarantine quarantine = quarantines.get(key);
+        if (quarantine == null) {
+            if (quarantines.size() >= MAX_QUARANTINE_ENTRIES) {
+                removeExpired();
+            }
+            Quarantine created = new Quarantine();
+            quarantine = quarantines.putIfAbsent(key, created);
+            if (quarantine == null) {
+                quarantine = created;
+            }
+        }
+
+        synchronized (quarantine) {
+            quarantine.failures++;
+            if (quarantine.failures >= QUARANTINE_AFTER) {
+                int shift = Math.min(quarantine.failures - QUARANTINE_AFTER, 16);
+                long millis = Math.min(QUARANTINE_MS << shift, MAX_QUARANTINE_MS);
+                quarantine.until = System.currentTimeMillis() + millis;
+                Log.w(TAG, "Device " + identity + " failed " + quarantine.failures + " handshakes, not probed for " + millis + " ms");
+            }
+        }
+    }
+
+    //drops quarantines that ended, failures of those devices start counting from zero again
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Quarantine>> entries = quarantines.entrySet().iterator();
+        while (entries.hasNext()) {
+            Quarantine quarantine = entries.next().getValue();
+            synchronized (quarantine) {
+                if (quarantine.until <= now) {
+                    entries.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.usbdb;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//remembers the device type found by UsbUtils.checkDeviceType, so known devices are classified
+//without any AOAP control transfer. An in-memory LRU with TTL sits in front of a persisted table.
+public class DeviceClassificationCache {
+
+    //persisted backing store, implemented by USBDevicesDatabaseHelper
+    public interface Store {
+        Classification loadClassification(String deviceKey);
+
+        //most recently classified first
+        List<Classification> loadRecentClassifications(int limit);
+
+        void saveClassification(Classification classification);
+
+        void deleteClassification(String deviceKey);
+    }
+
+    public static class Classification {
+
+        private final DeviceIdentity identity;
+        private final int protocolVersion;
+        private final DeviceType deviceType;
+        private final long classifiedAt;
+
+        public Classification(DeviceIdentity identity, int protocolVersion, DeviceType deviceType, long classifiedAt) {
+            this.identity = identity;
+            this.protocolVersion = protocolVersion;
+            this.deviceType = deviceType;
+            this.classifiedAt = classifiedAt;
+        }
+
+        public DeviceIdentity getIdentity() {
+            return identity;
+        }
+
+        //AOAP protocol version reported by the device, 0 if the classification did not need it
+        public int getProtocolVersion() {
+            return protocolVersion;
+        }
+
+        public DeviceType getDeviceType() {
+            return deviceType;
+        }
+
+        public long getClassifiedAt() {
+            return classifiedAt;
+        }
+    }
+
+    private final Store store;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Classification> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DeviceClassificationCache(Store store, final int maxEntries, long ttlMillis) {
+        this.store = store;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+
+        //access order turns the map into an LRU
+        this.entries = new LinkedHashMap<String, Classification>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Classification> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    //only devices with a serial number have an identity that survives replugging into another port
+    public static boolean isCacheable(DeviceIdentity identity) {
+        return identity.getSerialNumber() != null;
+    }
+
+    //UNKNOWN means the device was switched to accessory mode and will come back with another identity,
+    //NOT_CLASSIFIED means it was never classified. Neither is worth remembering.
+    public static boolean isCacheable(DeviceType deviceType) {
+        return deviceType != null && deviceType.isFinal();
+    }
+
+    //returns the cached device type or null when the device must be probed
+    public DeviceType getDeviceType(DeviceIdentity identity) {
+        if (!isCacheable(identity)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        String key = identity.getKey();
+        long now = System.currentTimeMillis();
+
+        Classification classification;
+        synchronized (entries) {
+            classification = entries.get(key);
+        }
+
+        if (classification == null) {
+            classification = store.loadClassification(key);
+            if (classification != null) {
+                synchronized (entries) {
+                    entries.put(key, classification);
+                }
+            }
+        }
+
+        if (classification == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (now - classification.getClassifiedAt() > ttlMillis) {
+            invalidate(identity);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return classification.getDeviceType();
+    }
+
+    //fills the memory cache with the most recent classifications in one query, so the first attach
+    //of a known device does not wait for the table. Returns the number of entries loaded.
+    public int warmUp() {
+        List<Classification> recent = store.loadRecentClassifications(maxEntries);
+        long now = System.currentTimeMillis();
+
+        int loaded = 0;
+        synchronized (entries) {
+            //oldest first, so the most recent end up as the most recently used
+            for (int i = recent.size() - 1; i >= 0; i--) {
+                Classification classification = recent.get(i);
+                if (now - classification.getClassifiedAt() <= ttlMillis) {
+                    entries.put(classification.getIdentity().getKey(), classification);
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public void put(DeviceIdentity identity, int protocolVersion, DeviceType deviceType) {
+        if (!isCacheable(identity) || !isCacheable(deviceType)) {
+            return;
+        }
+
+        Classification classification = new Classification(identity, protocolVersion, deviceType, System.currentTimeMillis());
+        synchronized (entries) {
+            entries.put(identity.getKey(), classification);
+        }
+        store.saveClassification(classification);
+    }
+
+    public void invalidate(DeviceIdentity identity) {
+        synchronized (entries) {
+            entries.remove(identity.getKey());
+        }
+        store.deleteClassification(identity.getKey());
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,475 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//table driven classification of USB devices by vendor and product ID.
+//Rules are compiled into an immutable index. Product ranges are first split where they overlap, so the
+//later rule keeps the overlap. Exact VID/PID pairs and range pieces up to MAX_EXPANDED_RANGE IDs wide
+//live in one open addressing table keyed by the packed int VID<<16|PID, vendor wildcards in a second
+//one keyed by VID. Wider pieces are binary searched.
+//A lookup is a few probes of flat arrays and never allocates.
+//reload swaps the whole index at once, lookups on other threads see either the old or the new rules.
+public class DeviceClassifier {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    //matches every vendor or every product in a rule
+    public static final int ANY = -1;
+
+    //ranges up to this many product IDs are expanded into exact entries
+    static final int MAX_EXPANDED_RANGE = 1024;
+
+    //vendor ID and product ID for iPhone
+    private static final int VENDOR_ID_IPHONE = 1452;
+    private static final int PRODUCT_ID_IPHONE = 4776;
+
+    //persisted rules, implemented by USBDevicesDatabaseHelper
+    public interface Store {
+        //in the order they were saved
+        List<Rule> loadClassifierRules();
+
+        void replaceClassifierRules(List<Rule> rules);
+    }
+
+    //vendorId ANY needs productIdFrom ANY. A product range is inclusive on both ends.
+    public static class Rule {
+
+        private final int vendorId;
+        private final int productIdFrom;
+        private final int productIdTo;
+        private final DeviceType deviceType;
+
+        public Rule(int vendorId, int productIdFrom, int productIdTo, DeviceType deviceType) {
+            if (vendorId == ANY && productIdFrom != ANY) {
+                throw new IllegalArgumentException("A product rule needs a vendor");
+            }
+            if (productIdFrom != ANY && productIdTo < productIdFrom) {
+                throw new IllegalArgumentException("Empty product range " + productIdFrom + "-" + productIdTo);
+            }
+            this.vendorId = vendorId;
+            this.productIdFrom = productIdFrom;
+            this.productIdTo = productIdFrom == ANY ? ANY : productIdTo;
+            this.deviceType = deviceType;
+        }
+
+        public static Rule exact(int vendorId, int productId, DeviceType deviceType) {
+            return new Rule(vendorId, productId, productId, deviceType);
+        }
+
+        public static Rule vendor(int vendorId, DeviceType deviceType) {
+            return new Rule(vendorId, ANY, ANY, deviceType);
+        }
+
+        public int getVendorId() {
+            return vendorId;
+        }
+
+        public int getProductIdFrom() {
+            return productIdFrom;
+        }
+
+        public int getProductIdTo() {
+            return productIdTo;
+        }
+
+        public DeviceType getDeviceType() {
+            return deviceType;
+        }
+
+        @Override
+        public String toString() {
+            String product = productIdFrom == ANY ? "*" : productIdFrom == productIdTo ?
+                    hex(productIdFrom) : hex(productIdFrom) + "-" + hex(productIdTo);
+            return (vendorId == ANY ? "*" : hex(vendorId)) + ":" + product + " " + deviceType.name();
+        }
+
+        private static String hex(int id) {
+            return String.format("0x%04X", id);
+        }
+    }
+
+    //rules every classifier starts with, later rules for the same key override them
+    public static List<Rule> defaultRules() {
+        List<Rule> rules = new ArrayList<>();
+        rules.add(Rule.exact(VENDOR_ID_IPHONE, PRODUCT_ID_IPHONE, DeviceType.IPHONE));
+        //an Android device already in accessory mode
+        rules.add(Rule.exact(AOAP.ANDROID_VENDOR_ID, AOAP.ANDROID_PRODUCT_ID_ACCESSORY, DeviceType.ANDROID));
+        rules.add(Rule.exact(AOAP.ANDROID_VENDOR_ID, AOAP.ANDROID_PRODUCT_ID_ACCESSORY_ADB, DeviceType.ANDROID));
+        rules.add(Rule.exact(AOAP.ANDROID_VENDOR_ID, AOAP.ANDROID_PRODUCT_ID_ACCESSORY_AUDIO, DeviceType.ANDROID));
+        rules.add(Rule.exact(AOAP.ANDROID_VENDOR_ID, AOAP.ANDROID_PRODUCT_ID_ACCESSORY_AUDIO_ADB, DeviceType.ANDROID));
+        return rules;
+    }
+
+    private volatile RuleIndex index;
+    private volatile Store store;
+    //rules shipped with the app, the stored rules are applied on top of them
+    private volatile List<Rule> baseRules;
+
+    public DeviceClassifier() {
+        this(defaultRules());
+    }
+
+    public DeviceClassifier(List<Rule> rules) {
+        this.baseRules = new ArrayList<>(rules);
+        this.index = new RuleIndex(rules);
+    }
+
+    //without a store, rules set with replaceStoredRules are lost with the process
+    public void setStore(Store store) {
+        this.store = store;
+    }
+
+    //type of the first matching rule by specificity: exact product or range, then vendor, then the
+    //global wildcard. Null when no rule matches and the device has to be probed.
+    public DeviceType classify(int vendorId, int productId) {
+        return index.lookup(vendorId, productId);
+    }
+
+    //replaces all rules, returns the number of rules in the new index.
+    //Among rules of the same specificity the later one wins.
+    public int reload(List<Rule> rules) {
+        RuleIndex rebuilt = new RuleIndex(rules);
+        index = rebuilt;
+        return rebuilt.ruleCount;
+    }
+
+    //base rules followed by the stored ones, so the stored rules win. Reads the store, call it from a worker.
+    public int load(List<Rule> baseRules) {
+        this.baseRules = new ArrayList<>(baseRules);
+        Store currentStore = store;
+        return currentStore != null ? reloadWithStored(currentStore) : reload(baseRules);
+    }
+
+    //saves rules in place of the stored ones and swaps them in, returns the number of rules now active
+    public int replaceStoredRules(List<Rule> rules) {
+        Store currentStore = store;
+        if (currentStore == null) {
+            List<Rule> all = new ArrayList<>(baseRules);
+            all.addAll(rules);
+            return reload(all);
+        }
+        currentStore.replaceClassifierRules(rules);
+        return reloadWithStored(currentStore);
+    }
+
+    private int reloadWithStored(Store currentStore) {
+        List<Rule> all = new ArrayList<>(baseRules);
+        all.addAll(currentStore.loadClassifierRules());
+        return reload(all);
+    }
+
+    public int getRuleCount() {
+        return index.ruleCount;
+    }
+
+    //one rule per line: "<vendor>:<product> <type>", e.g. "0x05AC:0x12A8 IPHONE", "0x18D1:0x4E00-0x4EFF ANDROID",
+    //"0x0BDA:* NOT_CLASSIFIED". IDs are hex with 0x or decimal, the type is the enum name or the label.
+    //Blank lines and lines starting with # are ignored, malformed lines are logged and skipped.
+    public static List<Rule> parseRules(Reader source) throws IOException {
+
+        BufferedReader reader = new BufferedReader(source);
+        List<Rule> rules = new ArrayList<>();
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            try {
+                rules.add(parseRule(line));
+            }
+            catch (IllegalArgumentException e) {
+                Log.w(TAG, "Skipping classifier rule on line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    static Rule parseRule(String line) {
+
+        String[] parts = line.split("\\s+");
+        int colon = parts[0].indexOf(':');
+        if (parts.length != 2 || colon < 0) {
+            throw new IllegalArgumentException("Expected <vendor>:<product> <type> but got " + line);
+        }
+
+        DeviceType deviceType = DeviceType.fromLabel(parts[1]);
+        if (deviceType == null) {
+            throw new IllegalArgumentException("Unknown device type " + parts[1]);
+        }
+
+        String vendor = parts[0].substring(0, colon);
+        String product = parts[0].substring(colon + 1);
+        int vendorId = "*".equals(vendor) ? ANY : parseId(vendor);
+
+        if ("*".equals(product)) {
+            return new Rule(vendorId, ANY, ANY, deviceType);
+        }
+
+        //the range dash is searched after the first character, so "-" alone still fails in parseId
+        int dash = product.indexOf('-', 1);
+        if (dash < 0) {
+            int productId = parseId(product);
+            return new Rule(vendorId, productId, productId, deviceType);
+        }
+        return new Rule(vendorId, parseId(product.substring(0, dash)), parseId(product.substring(dash + 1)), deviceType);
+    }
+
+    private static int parseId(String id) {
+        int value;
+        try {
+            value = id.startsWith("0x") || id.startsWith("0X") ? Integer.parseInt(id.substring(2), 16) : Integer.parseInt(id);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid ID " + id);
+        }
+        if (value < 0 || value > 0xFFFF) {
+            throw new IllegalArgumentException("ID out of range " + id);
+        }
+        return value;
+    }
+
+    static int pack(int vendorId, int productId) {
+        return (vendorId << 16) | (productId & 0xFFFF);
+    }
+
+    //immutable compiled form of a rule list
+    private static final class RuleIndex {
+
+        private static final DeviceType[] TYPES = DeviceType.values();
+
+        final int ruleCount;
+        //packed VID<<16|PID, exact rules and expanded ranges
+        final IntTypeMap products;
+        //VID, vendor wildcards
+        final IntTypeMap vendors;
+        //wide range pieces, sorted by packed start, checked by binary search after a products miss
+        final int[] rangeStarts;
+        final int[] rangeEnds;
+        final byte[] rangeTypes;
+        final DeviceType fallback;
+
+        RuleIndex(List<Rule> rules) {
+            ruleCount = rules.size();
+
+            IntTypeMap products = new IntTypeMap(rules.size());
+            IntTypeMap vendors = new IntTypeMap(16);
+            DeviceType fallback = null;
+
+            //ranges of every width are cut into pieces that do not overlap,
+            //so a later wide range also wins over an earlier narrow one
+            TreeMap<Integer, Segment> segments = new TreeMap<>();
+            for (Rule rule : rules) {
+                if (rule.vendorId == ANY) {
+                    fallback = rule.deviceType;
+                }
+                else if (rule.productIdFrom == ANY) {
+                    vendors.put(rule.vendorId, rule.deviceType);
+                }
+                else if (rule.productIdFrom != rule.productIdTo) {
+                    addRange(segments, rule);
+                }
+            }
+
+            //ranges first, so an exact rule always beats a range covering the same product
+            List<Map.Entry<Integer, Segment>> wideSegments = new ArrayList<>();
+            for (Map.Entry<Integer, Segment> segment : segments.entrySet()) {
+                int start = segment.getKey();
+                int end = segment.getValue().end;
+                if (end - start < MAX_EXPANDED_RANGE) {
+                    for (int key = start; key <= end; key++) {
+                        products.put(key, segment.getValue().rule.deviceType);
+                    }
+                }
+                else {
+                    wideSegments.add(segment);
+                }
+            }
+            for (Rule rule : rules) {
+                if (rule.vendorId != ANY && rule.productIdFrom != ANY && rule.productIdFrom == rule.productIdTo) {
+                    products.put(pack(rule.vendorId, rule.productIdFrom), rule.deviceType);
+                }
+            }
+
+            this.products = products;
+            this.vendors = vendors;
+            this.fallback = fallback;
+
+            //the pieces do not overlap, the search only looks at the last one starting before the key
+            rangeStarts = new int[wideSegments.size()];
+            rangeEnds = new int[wideSegments.size()];
+            rangeTypes = new byte[wideSegments.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Segment> segment : wideSegments) {
+                rangeStarts[i] = segment.getKey();
+                rangeEnds[i] = segment.getValue().end;
+                rangeTypes[i] = (byte) segment.getValue().rule.deviceType.ordinal();
+                i++;
+            }
+        }
+
+        //adds the range of the rule, cutting it out of the segments of earlier rules it overlaps.
+        //Segments are keyed by packed start; a range never crosses a vendor, so neither does a segment
+        private static void addRange(TreeMap<Integer, Segment> segments, Rule rule) {
+            int start = pack(rule.vendorId, rule.productIdFrom);
+            int end = pack(rule.vendorId, rule.productIdTo);
+            Segment remainder = null;
+
+            //an earlier segment starting before the rule and reaching into it keeps its head
+            Map.Entry<Integer, Segment> before = segments.lowerEntry(start);
+            if (before != null && before.getValue().end >= start) {
+                Segment segment = before.getValue();
+                warnOverlap(rule, segment.rule);
+                if (segment.end > end) {
+                    remainder = new Segment(segment.end, segment.rule);
+                }
+                segment.end = start - 1;
+            }
+
+            //segments starting inside the rule are replaced, one reaching past it keeps its tail
+            Iterator<Segment> inside = segments.subMap(start, true, end, true).values().iterator();
+            while (inside.hasNext()) {
+                Segment segment = inside.next();
+                warnOverlap(rule, segment.rule);
+                if (segment.end > end) {
+                    remainder = new Segment(segment.end, segment.rule);
+                }
+                inside.remove();
+            }
+
+            segments.put(start, new Segment(end, rule));
+            if (remainder != null) {
+                segments.put(end + 1, remainder);
+            }
+        }
+
+        private static void warnOverlap(Rule later, Rule earlier) {
+            Log.w(TAG, "Classifier rule " + later + " overlaps " + earlier + ", the later rule is used for the overlap");
+        }
+
+        DeviceType lookup(int vendorId, int productId) {
+            int key = pack(vendorId, productId);
+
+            int slot = products.get(key);
+            if (slot >= 0) {
+                return TYPES[slot];
+            }
+
+            if (rangeStarts.length > 0) {
+                //last range starting at or before the key
+                int position = Arrays.binarySearch(rangeStarts, key);
+                if (position < 0) {
+                    position = -position - 2;
+                }
+                if (position >= 0 && key <= rangeEnds[position]) {
+                    return TYPES[rangeTypes[position]];
+                }
+            }
+
+            slot = vendors.get(vendorId);
+            if (slot >= 0) {
+                return TYPES[slot];
+            }
+            return fallback;
+        }
+    }
+
+    //part of a product range left after later rules were cut out of it, ends inclusive
+    private static final class Segment {
+
+        int end;
+        final Rule rule;
+
+        Segment(int end, Rule rule) {
+            this.end = end;
+            this.rule = rule;
+        }
+    }
+
+    //open addressing int to DeviceType ordinal map with linear probing, kept at most half full.
+    //values holds ordinal + 1 so 0 marks an empty slot and every int is a valid key.
+    private static final class IntTypeMap {
+
+        private int[] keys;
+        private byte[] values;
+        private int mask;
+        private int size;
+
+        IntTypeMap(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            keys = new int[capacity];
+            values = new byte[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(int key, DeviceType type) {
+            int slot = mix(key) & mask;
+            while (values[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == 0) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = (byte) (type.ordinal() + 1);
+
+            if (size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        //ordinal of the type, -1 if the key is absent
+        int get(int key) {
+            int slot = mix(key) & mask;
+            while (values[slot] != 0) {
+                if (keys[slot] == key) {
+                    return values[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            byte[] oldValues = values;
+
+            keys = new int[oldKeys.length * 2];
+            values = new byte[oldKeys.length * 2];
+            mask = keys.length - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (values[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        //packed IDs of one vendor differ only in the low bits, spread them over the table
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
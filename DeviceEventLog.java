@@ -0,0 +1,241 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+//append-only history of device events (attach, detach, permission, classification).
+//Events go into a fixed size ring buffer and are written to the usb_device_events table in one
+//transaction per batch, when batchSize events are pending or flushIntervalMillis have passed.
+//Events still in the ring are not journaled or synced anywhere: on process death at most the events
+//of the last flush interval (and of a batch backing off after a failure) are lost. Committed batches are
+//durable through SQLite's WAL. The service flushes when it goes to background and on destroy. A batch that fails to write goes back to the head of the ring and
+//is retried with a backoff that doubles up to MAX_RETRY_DELAY_MS.
+public class DeviceEventLog {
+
+    private static final String TAG = "USB_SQLite_DB";
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+
+    public enum EventType {
+        ATTACHED,
+        DETACHED,
+        PERMISSION_GRANTED,
+        PERMISSION_DENIED,
+        CLASSIFIED,
+        MODE_SWITCHED
+    }
+
+    //persistent destination of the batches, implemented by USBDevicesDatabaseHelper
+    public interface Sink {
+        //writes the first batch.size events in a single transaction
+        void writeEvents(EventBatch batch);
+    }
+
+    //column arrays of a batch of events, reused between flushes
+    public static class EventBatch {
+
+        public final String[] deviceKeys;
+        public final EventType[] types;
+        public final long[] times;
+        public final String[] details;
+        public int size;
+
+        EventBatch(int capacity) {
+            deviceKeys = new String[capacity];
+            types = new EventType[capacity];
+            times = new long[capacity];
+            details = new String[capacity];
+        }
+    }
+
+    private final Sink sink;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+
+    //ring buffer, guarded by this
+    private final String[] deviceKeys;
+    private final EventType[] types;
+    private final long[] times;
+    private final String[] details;
+    private int head;
+    private int count;
+
+    //only touched by the flush thread
+    private final EventBatch batch;
+    //0 while writes succeed, otherwise the wait before the next attempt
+    private long retryDelayMillis;
+    private long retryAtNanos;
+
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong writtenEvents = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    public DeviceEventLog(Sink sink, int capacity, int batchSize, long flushIntervalMillis) {
+        this.sink = sink;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        deviceKeys = new String[capacity];
+        types = new EventType[capacity];
+        times = new long[capacity];
+        details = new String[capacity];
+        batch = new EventBatch(capacity);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "usb-event-log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushPending(false);
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //queues an event, never blocks on the database. When the ring is full the oldest event is overwritten.
+    public void record(DeviceIdentity identity, EventType type, String detail) {
+
+        boolean flushNow;
+        synchronized (this) {
+            int tail = (head + count) % capacity;
+            deviceKeys[tail] = identity.getKey();
+            types[tail] = type;
+            times[tail] = System.currentTimeMillis();
+            details[tail] = detail;
+
+            if (count == capacity) {
+                head = (head + 1) % capacity;
+                droppedEvents.incrementAndGet();
+            }
+            else {
+                count++;
+            }
+            flushNow = count >= batchSize;
+        }
+
+        if (flushNow) {
+            requestFlush();
+        }
+    }
+
+    //starts writing everything pending without waiting, e.g. when the app goes to background
+    public void requestFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flushPending(false);
+                }
+            });
+        }
+    }
+
+    //writes everything pending and waits for it, e.g. before the process may be killed.
+    //Tries even while a failed write is backing off.
+    public void flush() {
+        try {
+            flusher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushPending(true);
+                }
+            }).get();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Error flushing device events", e);
+        }
+    }
+
+    //flushes pending events and stops the flush thread
+    public void shutdown() {
+        flush();
+        flusher.shutdown();
+    }
+
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
+    public long getWrittenEventCount() {
+        return writtenEvents.get();
+    }
+
+    //number of transactions committed, one per batch
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    //runs on the flush thread only, force ignores the backoff of a failed write
+    private void flushPending(boolean force) {
+        if (!force && retryDelayMillis > 0 && System.nanoTime() - retryAtNanos < 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (count == 0) {
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % capacity;
+                batch.deviceKeys[i] = deviceKeys[slot];
+                batch.types[i] = types[slot];
+                batch.times[i] = times[slot];
+                batch.details[i] = details[slot];
+                deviceKeys[slot] = null;
+                details[slot] = null;
+            }
+            batch.size = count;
+            head = 0;
+            count = 0;
+        }
+
+        try {
+            sink.writeEvents(batch);
+        }
+        catch (RuntimeException e) {
+            requeue(batch);
+            retryDelayMillis = retryDelayMillis == 0 ? flushIntervalMillis : Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MS);
+            retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+            Log.e(TAG, "Error writing device events, retrying in " + retryDelayMillis + " ms", e);
+            return;
+        }
+        retryDelayMillis = 0;
+        writtenEvents.addAndGet(batch.size);
+        commits.incrementAndGet();
+    }
+
+    //puts a batch that failed back in front of the events recorded meanwhile. When they do not all fit,
+    //the oldest events of the batch are dropped, as record does when the ring is full
+    private synchronized void requeue(EventBatch batch) {
+        int keep = Math.min(batch.size, capacity - count);
+        int skip = batch.size - keep;
+        if (skip > 0) {
+            droppedEvents.addAndGet(skip);
+        }
+
+        for (int i = batch.size - 1; i >= skip; i--) {
+            head = (head - 1 + capacity) % capacity;
+            deviceKeys[head] = batch.deviceKeys[i];
+            types[head] = batch.types[i];
+            times[head] = batch.times[i];
+            details[head] = batch.details[i];
+        }
+        count += keep;
+    }
+}
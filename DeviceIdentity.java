@@ -0,0 +1,81 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import android.os.Build;
+
+//stable identity of a USB device: vendor id, product id and serial number.
+//When no serial number is available the device name (bus path) is used instead.
+public final class DeviceIdentity {
+
+    private final int vendorId;
+    private final int productId;
+    private final String serialNumber;
+    private final String deviceName;
+    private final String key;
+
+    public DeviceIdentity(int vendorId, int productId, String serialNumber, String deviceName) {
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.serialNumber = serialNumber;
+        this.deviceName = deviceName;
+
+        if (serialNumber != null) {
+            key = vendorId + ":" + productId + ":" + serialNumber;
+        }
+        else {
+            key = vendorId + ":" + productId + "@" + deviceName;
+        }
+    }
+
+    public static DeviceIdentity of(UsbDevice device) {
+        return new DeviceIdentity(device.getVendorId(), device.getProductId(), readSerialNumber(device), device.getDeviceName());
+    }
+
+    //serial number is only available from Lollipop, and from Android 10 only once permission is granted
+    public static String readSerialNumber(UsbDevice device) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                return device.getSerialNumber();
+            }
+            catch (SecurityException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DeviceIdentity && key.equals(((DeviceIdentity) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
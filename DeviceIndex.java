@@ -0,0 +1,485 @@
+package com.example.usbdb;
+
+import java.util.Arrays;
+
+//in-memory index of the rows of usb_devices, for O(1) lookups by identity and by sr_no without a query.
+//Rows are kept as columns of primitive arrays (struct of arrays) instead of one object per row:
+//vendor and product ID packed into one int, serial number and device name interned to int IDs,
+//attach time and the DeviceType ordinal. Two open-addressing tables with linear probing map the
+//identity and the sr_no to a row, removal moves the last row into the hole so the columns stay dense.
+//Lookups neither box nor allocate. Strings are interned for the life of the index, a serial number or
+//bus path that was seen once usually comes back.
+//Heap per row is 29 bytes of columns, about 20 bytes of row tables and about 28 bytes of string tables
+//per two strings plus their characters. DeviceIndexHeapTest measures 100k rows with 16 character serials
+//and 20 character bus paths on a 64-bit JVM: 13 MB, against 18 MB as StoredDevice objects in a List and
+//28 MB as a List<UsbDevice> with one interface each, where a lookup is also a scan.
+public class DeviceIndex {
+
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    //columns, rows 0..size-1 are in use
+    private long[] srNos;
+    //vendorId << 16 | productId
+    private int[] packedIds;
+    //interned serial number, NONE when the row has none and is identified by its device name
+    private int[] serialIds;
+    private int[] nameIds;
+    private long[] attachTimes;
+    //DeviceType ordinal, NONE when the stored label is not a DeviceType
+    private byte[] deviceTypes;
+    private int size;
+
+    //row numbers or NONE, at least twice the column capacity so probe sequences stay short
+    private int[] identityTable;
+    private int[] srNoTable;
+
+    private final Interner strings;
+
+    public DeviceIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    //sized for expectedRows without growing, e.g. the row count of the table
+    public DeviceIndex(int expectedRows) {
+        int capacity = Math.max(MIN_CAPACITY, expectedRows);
+        allocate(capacity);
+        //a serial number and a device name per row
+        strings = new Interner(capacity * 2);
+    }
+
+    public static int packId(int vendorId, int productId) {
+        return (vendorId & 0xffff) << 16 | (productId & 0xffff);
+    }
+
+    //adds a row or replaces the row with the same sr_no or identity
+    public synchronized void put(long srNo, int vendorId, int productId, String serialNumber, String deviceName,
+                                 long attachTime, DeviceType deviceType) {
+
+        int row = findBySrNo(srNo);
+        if (row != NONE) {
+            removeRow(row);
+        }
+        row = findByIdentity(packId(vendorId, productId), serialNumber, deviceName);
+        if (row != NONE) {
+            removeRow(row);
+        }
+
+        if (size == srNos.length) {
+            resize(srNos.length + (srNos.length >> 1));
+        }
+
+        row = size++;
+        srNos[row] = srNo;
+        packedIds[row] = packId(vendorId, productId);
+        serialIds[row] = serialNumber != null ? strings.intern(serialNumber) : NONE;
+        nameIds[row] = deviceName != null ? strings.intern(deviceName) : NONE;
+        attachTimes[row] = attachTime;
+        deviceTypes[row] = deviceType != null ? (byte) deviceType.ordinal() : NONE;
+
+        insertSlot(identityTable, identityHash(row), row);
+        insertSlot(srNoTable, srNoHash(srNo), row);
+    }
+
+    public void put(StoredDevice row) {
+        put(row.getSrNo(), row.getVendorId(), row.getProductId(), row.getSerialNumber(), row.getDeviceName(),
+                row.getAttachTime(), DeviceType.fromLabel(row.getDeviceType()));
+    }
+
+    public synchronized boolean contains(DeviceIdentity identity) {
+        return find(identity) != NONE;
+    }
+
+    //sr_no of the row with the identity, 0 when there is none
+    public synchronized long getSrNo(DeviceIdentity identity) {
+        int row = find(identity);
+        return row != NONE ? srNos[row] : 0;
+    }
+
+    //attach time in epoch millis, 0 when there is no row with the identity
+    public synchronized long getAttachTime(DeviceIdentity identity) {
+        int row = find(identity);
+        return row != NONE ? attachTimes[row] : 0;
+    }
+
+    //null when there is no row with the identity or its label is not a DeviceType
+    public synchronized DeviceType getDeviceType(DeviceIdentity identity) {
+        int row = find(identity);
+        return row != NONE && deviceTypes[row] != NONE ? DeviceType.values()[deviceTypes[row]] : null;
+    }
+
+    //returns false when there is no row with the identity
+    public synchronized boolean setAttachTime(DeviceIdentity identity, long attachTime) {
+        int row = find(identity);
+        if (row == NONE) {
+            return false;
+        }
+        attachTimes[row] = attachTime;
+        return true;
+    }
+
+    //returns false when there is no row with the identity
+    public synchronized boolean setDeviceType(DeviceIdentity identity, DeviceType deviceType) {
+        int row = find(identity);
+        if (row == NONE) {
+            return false;
+        }
+        deviceTypes[row] = (byte) deviceType.ordinal();
+        return true;
+    }
+
+    public synchronized boolean containsSrNo(long srNo) {
+        return findBySrNo(srNo) != NONE;
+    }
+
+    //identity of the row, null when there is no row with the sr_no
+    public synchronized DeviceIdentity getIdentity(long srNo) {
+        int row = findBySrNo(srNo);
+        return row != NONE ? identityOf(row) : null;
+    }
+
+    //removes the row and returns its identity, null when there is no row with the sr_no
+    public synchronized DeviceIdentity removeBySrNo(long srNo) {
+        int row = findBySrNo(srNo);
+        if (row == NONE) {
+            return null;
+        }
+        DeviceIdentity identity = identityOf(row);
+        removeRow(row);
+        return identity;
+    }
+
+    //removes the row with the identity, returns false when there is none
+    public synchronized boolean remove(DeviceIdentity identity) {
+        int row = find(identity);
+        if (row == NONE) {
+            return false;
+        }
+        removeRow(row);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        size = 0;
+        Arrays.fill(identityTable, NONE);
+        Arrays.fill(srNoTable, NONE);
+        strings.clear();
+    }
+
+    //approximate bytes held by the arrays and the interned strings, checked against the live heap by DeviceIndexHeapTest
+    public synchronized long estimateHeapBytes() {
+        long columns = srNos.length * (8L + 4 + 4 + 4 + 8 + 1);
+        long tables = (identityTable.length + srNoTable.length) * 4L;
+        return columns + tables + strings.estimateHeapBytes();
+    }
+
+    private int find(DeviceIdentity identity) {
+        return findByIdentity(packId(identity.getVendorId(), identity.getProductId()),
+                identity.getSerialNumber(), identity.getDeviceName());
+    }
+
+    //the serial number identifies the row when there is one, like DeviceIdentity
+    private int findByIdentity(int packedId, String serialNumber, String deviceName) {
+        int serialId = NONE;
+        int nameId = NONE;
+        if (serialNumber != null) {
+            serialId = strings.find(serialNumber);
+            if (serialId == NONE) {
+                return NONE;
+            }
+        }
+        else if (deviceName != null) {
+            nameId = strings.find(deviceName);
+            if (nameId == NONE) {
+                return NONE;
+            }
+        }
+
+        int mask = identityTable.length - 1;
+        int slot = identityHash(packedId, serialId, nameId) & mask;
+        int row;
+        while ((row = identityTable[slot]) != NONE) {
+            if (packedIds[row] == packedId && serialIds[row] == serialId &&
+                    (serialId != NONE || nameIds[row] == nameId)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private int findBySrNo(long srNo) {
+        int mask = srNoTable.length - 1;
+        int slot = srNoHash(srNo) & mask;
+        int row;
+        while ((row = srNoTable[slot]) != NONE) {
+            if (srNos[row] == srNo) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private DeviceIdentity identityOf(int row) {
+        return new DeviceIdentity(packedIds[row] >>> 16, packedIds[row] & 0xffff,
+                serialIds[row] != NONE ? strings.get(serialIds[row]) : null,
+                nameIds[row] != NONE ? strings.get(nameIds[row]) : null);
+    }
+
+    //deletes the row from both tables and moves the last row into its place
+    private void removeRow(int row) {
+        deleteSlot(identityTable, row, true);
+        deleteSlot(srNoTable, row, false);
+
+        int last = --size;
+        if (row != last) {
+            replaceSlot(identityTable, identityHash(last), last, row);
+            replaceSlot(srNoTable, srNoHash(srNos[last]), last, row);
+            srNos[row] = srNos[last];
+            packedIds[row] = packedIds[last];
+            serialIds[row] = serialIds[last];
+            nameIds[row] = nameIds[last];
+            attachTimes[row] = attachTimes[last];
+            deviceTypes[row] = deviceTypes[last];
+        }
+    }
+
+    private int identityHash(int row) {
+        return identityHash(packedIds[row], serialIds[row], serialIds[row] != NONE ? NONE : nameIds[row]);
+    }
+
+    private static int identityHash(int packedId, int serialId, int nameId) {
+        return mix(packedId * 31 + (serialId != NONE ? serialId : ~nameId));
+    }
+
+    private static int srNoHash(long srNo) {
+        return mix((int) (srNo ^ (srNo >>> 32)));
+    }
+
+    //murmur3 finalizer, consecutive sr_no values and IDs must not land in consecutive slots
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static void insertSlot(int[] table, int hash, int row) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != NONE) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = row;
+    }
+
+    private static void replaceSlot(int[] table, int hash, int row, int newRow) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != row) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = newRow;
+    }
+
+    //linear probing delete without tombstones: later entries of the probe run are shifted back
+    //into the gap when their home slot allows it
+    private void deleteSlot(int[] table, int row, boolean identity) {
+        int mask = table.length - 1;
+        int gap = (identity ? identityHash(row) : srNoHash(srNos[row])) & mask;
+        while (table[gap] != row) {
+            gap = (gap + 1) & mask;
+        }
+
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int next = table[slot];
+            if (next == NONE) {
+                break;
+            }
+            int home = (identity ? identityHash(next) : srNoHash(srNos[next])) & mask;
+            //the entry may move to the gap when its home is not cyclically inside (gap, slot]
+            boolean reachable = gap <= slot ? home <= gap || home > slot : home <= gap && home > slot;
+            if (reachable) {
+                table[gap] = next;
+                gap = slot;
+            }
+        }
+        table[gap] = NONE;
+    }
+
+    private void allocate(int capacity) {
+        srNos = new long[capacity];
+        packedIds = new int[capacity];
+        serialIds = new int[capacity];
+        nameIds = new int[capacity];
+        attachTimes = new long[capacity];
+        deviceTypes = new byte[capacity];
+        identityTable = newTable(tableLength(capacity));
+        srNoTable = newTable(tableLength(capacity));
+    }
+
+    private void resize(int capacity) {
+        srNos = Arrays.copyOf(srNos, capacity);
+        packedIds = Arrays.copyOf(packedIds, capacity);
+        serialIds = Arrays.copyOf(serialIds, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        attachTimes = Arrays.copyOf(attachTimes, capacity);
+        deviceTypes = Arrays.copyOf(deviceTypes, capacity);
+
+        identityTable = newTable(tableLength(capacity));
+        srNoTable = newTable(tableLength(capacity));
+        for (int row = 0; row < size; row++) {
+            insertSlot(identityTable, identityHash(row), row);
+            insertSlot(srNoTable, srNoHash(srNos[row]), row);
+        }
+    }
+
+    private static int[] newTable(int length) {
+        int[] table = new int[length];
+        Arrays.fill(table, NONE);
+        return table;
+    }
+
+    //power of two of at least twice the entries
+    private static int tableLength(int entries) {
+        int length = MIN_CAPACITY;
+        while (length < entries * 2) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    //string to dense int ID. The characters of all strings share one byte array, one byte per character
+    //when every character fits in Latin-1 and two otherwise, so an interned string costs its characters
+    //plus three ints instead of a String object with its own array.
+    private static final class Interner {
+
+        //marks a string stored with two bytes per character in its end offset
+        private static final int WIDE = 0x80000000;
+
+        private byte[] bytes;
+        private int byteCount;
+        //ends[id] is the end offset of the string, its start is the end of the one before
+        private int[] ends;
+        private int[] hashes;
+        private int[] table;
+        private int count;
+
+        Interner(int capacity) {
+            //serial numbers and bus paths are mostly around 16 characters
+            bytes = new byte[capacity * 16];
+            ends = new int[capacity];
+            hashes = new int[capacity];
+            table = newTable(tableLength(capacity));
+        }
+
+        int intern(String value) {
+            int id = find(value);
+            if (id != NONE) {
+                return id;
+            }
+
+            int length = value.length();
+            boolean wide = false;
+            for (int i = 0; i < length && !wide; i++) {
+                wide = value.charAt(i) > 0xff;
+            }
+            int byteLength = wide ? length * 2 : length;
+            if (byteCount + byteLength > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length + (bytes.length >> 1), byteCount + byteLength));
+            }
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (wide) {
+                    bytes[byteCount++] = (byte) (c >>> 8);
+                }
+                bytes[byteCount++] = (byte) c;
+            }
+
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count + (count >> 1));
+                hashes = Arrays.copyOf(hashes, ends.length);
+                table = newTable(tableLength(ends.length));
+                for (int i = 0; i < count; i++) {
+                    insertSlot(table, mix(hashes[i]), i);
+                }
+            }
+            id = count++;
+            ends[id] = wide ? byteCount | WIDE : byteCount;
+            hashes[id] = value.hashCode();
+            insertSlot(table, mix(hashes[id]), id);
+            return id;
+        }
+
+        int find(String value) {
+            int hash = value.hashCode();
+            int mask = table.length - 1;
+            int slot = mix(hash) & mask;
+            int id;
+            while ((id = table[slot]) != NONE) {
+                if (hashes[id] == hash && matches(id, value)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NONE;
+        }
+
+        private boolean matches(int id, String value) {
+            int start = start(id);
+            boolean wide = (ends[id] & WIDE) != 0;
+            int length = ((ends[id] & ~WIDE) - start) >> (wide ? 1 : 0);
+            if (length != value.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (charAt(start, wide, i) != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //allocates the String, only used when an identity is handed out
+        String get(int id) {
+            int start = start(id);
+            boolean wide = (ends[id] & WIDE) != 0;
+            char[] chars = new char[((ends[id] & ~WIDE) - start) >> (wide ? 1 : 0)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(start, wide, i);
+            }
+            return new String(chars);
+        }
+
+        private int start(int id) {
+            return id == 0 ? 0 : ends[id - 1] & ~WIDE;
+        }
+
+        private char charAt(int start, boolean wide, int index) {
+            if (wide) {
+                int offset = start + index * 2;
+                return (char) ((bytes[offset] & 0xff) << 8 | (bytes[offset + 1] & 0xff));
+            }
+            return (char) (bytes[start + index] & 0xff);
+        }
+
+        void clear() {
+            Arrays.fill(table, NONE);
+            byteCount = 0;
+            count = 0;
+        }
+
+        long estimateHeapBytes() {
+            return bytes.length + (ends.length + hashes.length + table.length) * 4L;
+        }
+    }
+}
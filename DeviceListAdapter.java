@@ -0,0 +1,87 @@
+package com.example.usbdb;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import java.util.ArrayList;
+import java.util.List;
+
+//ListView adapter for the device list with stable ids taken from sr_no.
+//Updates are applied from a DeviceListDiff: an empty diff does nothing, a diff that only changes rows
+//rebinds the visible changed rows, and only inserts or removals rebuild the list.
+public class DeviceListAdapter extends BaseAdapter {
+
+    private final Context context;
+    private List<DeviceListItem> items = new ArrayList<>();
+
+    public DeviceListAdapter(Context context) {
+        this.context = context;
+    }
+
+    //current snapshot, must only be read on the main thread
+    public List<DeviceListItem> getItems() {
+        return items;
+    }
+
+    //called on the main thread
+    public void apply(DeviceListDiff diff, ListView listView) {
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        items = diff.getNewItems();
+
+        if (!diff.isContentOnly()) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        //rows that are not visible are bound with the new data when they scroll into view
+        int firstVisible = listView.getFirstVisiblePosition();
+        for (int position : diff.getChangedPositions()) {
+            View row = listView.getChildAt(position - firstVisible);
+            if (row != null) {
+                bind(row, items.get(position));
+            }
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return items.size();
+    }
+
+    @Override
+    public DeviceListItem getItem(int position) {
+        return items.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return items.get(position).getStoredDevice().getSrNo();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View row = convertView;
+        if (row == null) {
+            row = LayoutInflater.from(context).inflate(android.R.layout.simple_list_item_1, parent, false);
+        }
+        bind(row, items.get(position));
+        return row;
+    }
+
+    private static void bind(View row, DeviceListItem item) {
+        TextView text = row.findViewById(android.R.id.text1);
+        text.setText(item.getDisplayName());
+    }
+}
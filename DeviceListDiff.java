@@ -0,0 +1,106 @@
+package com.example.usbdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//difference between two device list snapshots, matched by sr_no.
+//Computed on a worker thread so the main thread only applies the result.
+public class DeviceListDiff {
+
+    private final List<DeviceListItem> newItems;
+    private final List<Integer> insertedPositions;
+    private final List<Integer> removedPositions;
+    private final List<Integer> changedPositions;
+
+    private DeviceListDiff(List<DeviceListItem> newItems, List<Integer> insertedPositions,
+                           List<Integer> removedPositions, List<Integer> changedPositions) {
+        this.newItems = newItems;
+        this.insertedPositions = insertedPositions;
+        this.removedPositions = removedPositions;
+        this.changedPositions = changedPositions;
+    }
+
+    public static DeviceListDiff compute(List<DeviceListItem> oldItems, List<DeviceListItem> newItems) {
+
+        Map<Long, Integer> oldPositions = new HashMap<>(oldItems.size() * 2);
+        for (int i = 0; i < oldItems.size(); i++) {
+            oldPositions.put(oldItems.get(i).getStoredDevice().getSrNo(), i);
+        }
+
+        List<Integer> inserted = new ArrayList<>();
+        List<Integer> changed = new ArrayList<>();
+        boolean[] kept = new boolean[oldItems.size()];
+
+        for (int i = 0; i < newItems.size(); i++) {
+            DeviceListItem item = newItems.get(i);
+            Integer oldPosition = oldPositions.get(item.getStoredDevice().getSrNo());
+
+            if (oldPosition == null) {
+                inserted.add(i);
+            }
+            else {
+                kept[oldPosition] = true;
+                if (oldPosition != i || !sameContent(oldItems.get(oldPosition), item)) {
+                    changed.add(i);
+                }
+            }
+        }
+
+        List<Integer> removed = new ArrayList<>();
+        for (int i = 0; i < kept.length; i++) {
+            if (!kept[i]) {
+                removed.add(i);
+            }
+        }
+
+        return new DeviceListDiff(newItems,
+                Collections.unmodifiableList(inserted),
+                Collections.unmodifiableList(removed),
+                Collections.unmodifiableList(changed));
+    }
+
+    //whether the visible content of a row is the same
+    private static boolean sameContent(DeviceListItem oldItem, DeviceListItem newItem) {
+        StoredDevice oldDevice = oldItem.getStoredDevice();
+        StoredDevice newDevice = newItem.getStoredDevice();
+        return oldItem.isConnected() == newItem.isConnected() &&
+                oldDevice.getAttachTime() == newDevice.getAttachTime() &&
+                equals(oldDevice.getDeviceType(), newDevice.getDeviceType()) &&
+                equals(oldItem.getDisplayName(), newItem.getDisplayName());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public List<DeviceListItem> getNewItems() {
+        return newItems;
+    }
+
+    //positions in the new list
+    public List<Integer> getInsertedPositions() {
+        return insertedPositions;
+    }
+
+    //positions in the old list
+    public List<Integer> getRemovedPositions() {
+        return removedPositions;
+    }
+
+    //positions in the new list of rows whose content or position changed
+    public List<Integer> getChangedPositions() {
+        return changedPositions;
+    }
+
+    public boolean isEmpty() {
+        return insertedPositions.isEmpty() && removedPositions.isEmpty() && changedPositions.isEmpty();
+    }
+
+    //true when rows were only updated in place, so no row moved, appeared or disappeared
+    public boolean isContentOnly() {
+        return insertedPositions.isEmpty() && removedPositions.isEmpty();
+    }
+}
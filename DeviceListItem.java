@@ -0,0 +1,42 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+
+//what the device list shows: the stored row and, when it is plugged in, the live UsbDevice
+public class DeviceListItem {
+
+    private final StoredDevice storedDevice;
+    private final UsbDevice liveDevice;
+    private final boolean connected;
+
+    public DeviceListItem(StoredDevice storedDevice, UsbDevice liveDevice) {
+        this.storedDevice = storedDevice;
+        this.liveDevice = liveDevice;
+        this.connected = liveDevice != null;
+    }
+
+    //item restored from DeviceListSnapshot: connected as last seen, without the live device
+    public DeviceListItem(StoredDevice storedDevice, boolean connected) {
+        this.storedDevice = storedDevice;
+        this.liveDevice = null;
+        this.connected = connected;
+    }
+
+    public StoredDevice getStoredDevice() {
+        return storedDevice;
+    }
+
+    //null when the device is not attached or the item comes from a snapshot
+    public UsbDevice getLiveDevice() {
+        return liveDevice;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public String getDisplayName() {
+        String name = storedDevice.getProductName() != null ? storedDevice.getProductName() : storedDevice.getDeviceName();
+        return isConnected() ? name : name + " (disconnected)";
+    }
+}
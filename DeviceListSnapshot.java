@@ -0,0 +1,140 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//last device list the user saw, in a small binary file the Activity can render before the service is
+//bound and before SQLite is opened. Written after every change of the list, read once at startup;
+//the list from the database replaces it as soon as it is loaded.
+//Layout: magic, version, item count, then per item sr_no, vendor and product ID, attach time,
+//connected flag and the five text columns, each as a presence byte plus modified UTF-8.
+public class DeviceListSnapshot {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    private static final int MAGIC = 0x55444c53;
+    private static final int VERSION = 1;
+
+    //the first page is all that is visible at startup
+    public static final int MAX_ITEMS = 50;
+
+    private final File file;
+
+    public DeviceListSnapshot(File file) {
+        this.file = file;
+    }
+
+    //empty when there is no snapshot yet or it cannot be read, never throws
+    public List<DeviceListItem> read() {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readShort() != VERSION) {
+                Log.w(TAG, "Ignoring device list snapshot of another format");
+                return Collections.emptyList();
+            }
+
+            int count = input.readUnsignedShort();
+            List<DeviceListItem> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long srNo = input.readLong();
+                int vendorId = input.readUnsignedShort();
+                int productId = input.readUnsignedShort();
+                long attachTime = input.readLong();
+                boolean connected = input.readBoolean();
+                String deviceName = readString(input);
+                String serialNumber = readString(input);
+                String manufacturer = readString(input);
+                String productName = readString(input);
+                String deviceType = readString(input);
+
+                StoredDevice storedDevice = new StoredDevice(srNo, deviceName, vendorId, productId, serialNumber,
+                        manufacturer, productName, deviceType, attachTime);
+                items.add(new DeviceListItem(storedDevice, connected));
+            }
+            return items;
+        }
+        catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        }
+        catch (EOFException e) {
+            Log.w(TAG, "Truncated device list snapshot");
+            return Collections.emptyList();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Error reading device list snapshot", e);
+            return Collections.emptyList();
+        }
+        finally {
+            closeQuietly(input);
+        }
+    }
+
+    //writes the first MAX_ITEMS items next to the file and renames it, so a crash never leaves half a snapshot
+    public void write(List<DeviceListItem> items) throws IOException {
+        int count = Math.min(items.size(), MAX_ITEMS);
+        File temp = new File(file.getPath() + ".tmp");
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeShort(count);
+            for (int i = 0; i < count; i++) {
+                DeviceListItem item = items.get(i);
+                StoredDevice storedDevice = item.getStoredDevice();
+                output.writeLong(storedDevice.getSrNo());
+                output.writeShort(storedDevice.getVendorId());
+                output.writeShort(storedDevice.getProductId());
+                output.writeLong(storedDevice.getAttachTime());
+                output.writeBoolean(item.isConnected());
+                writeString(output, storedDevice.getDeviceName());
+                writeString(output, storedDevice.getSerialNumber());
+                writeString(output, storedDevice.getManufacturer());
+                writeString(output, storedDevice.getProductName());
+                writeString(output, storedDevice.getDeviceType());
+            }
+        }
+        finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static void closeQuietly(DataInputStream input) {
+        if (input != null) {
+            try {
+                input.close();
+            }
+            catch (IOException e) {
+                //nothing was written
+            }
+        }
+    }
+}
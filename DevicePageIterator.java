@@ -0,0 +1,58 @@
+package com.example.usbdb;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+//walks the usb_devices table page by page in sr_no order.
+//Only one page is held at a time, so memory stays bounded whatever the size of the table.
+public class DevicePageIterator implements Iterator<StoredDevice> {
+
+    private final USBDevicesDatabaseHelper helper;
+    private final DeviceQuery query;
+    private final int pageSize;
+    private final LatencyHistogram timer;
+
+    private List<StoredDevice> page;
+    private int position;
+    private long lastSrNo;
+    private boolean lastPage;
+
+    DevicePageIterator(USBDevicesDatabaseHelper helper, DeviceQuery query, int pageSize, LatencyHistogram timer) {
+        this.helper = helper;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.timer = timer;
+        this.lastSrNo = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page != null && position < page.size()) {
+            return true;
+        }
+        if (lastPage) {
+            return false;
+        }
+
+        page = helper.getDevicesPage(query, lastSrNo, pageSize, timer);
+        position = 0;
+        lastPage = page.size() < pageSize;
+        return !page.isEmpty();
+    }
+
+    @Override
+    public StoredDevice next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        StoredDevice device = page.get(position++);
+        lastSrNo = device.getSrNo();
+        return device;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.usbdb;
+
+//filter and projection for paged reads of the usb_devices table.
+//Unset filters match every row. Setters return this so a query can be built in one expression.
+public class DeviceQuery {
+
+    public static final int ANY_VENDOR = -1;
+
+    private int vendorId = ANY_VENDOR;
+    private String deviceType;
+    private long attachedFrom = Long.MIN_VALUE;
+    private long attachedTo = Long.MAX_VALUE;
+    private String[] columns;
+
+    public DeviceQuery setVendorId(int vendorId) {
+        this.vendorId = vendorId;
+        return this;
+    }
+
+    public DeviceQuery setDeviceType(String deviceType) {
+        this.deviceType = deviceType;
+        return this;
+    }
+
+    //attach time range in epoch millis, both ends inclusive
+    public DeviceQuery setAttachTimeRange(long from, long to) {
+        this.attachedFrom = from;
+        this.attachedTo = to;
+        return this;
+    }
+
+    //columns to read, null reads all. sr_no is always read because pages are keyed on it.
+    //Fields of StoredDevice whose column is not read are null or 0.
+    public DeviceQuery setColumns(String... columns) {
+        this.columns = columns;
+        return this;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public String getDeviceType() {
+        return deviceType;
+    }
+
+    public long getAttachedFrom() {
+        return attachedFrom;
+    }
+
+    public long getAttachedTo() {
+        return attachedTo;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+}
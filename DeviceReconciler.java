@@ -0,0 +1,47 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//joins stored rows with the devices that are plugged in right now.
+//The live device list is read once into hash indexes, then every row is matched with one lookup,
+//so the cost is O(rows + devices) instead of a scan of the device list per row.
+public class DeviceReconciler {
+
+    public static List<DeviceListItem> reconcile(List<StoredDevice> storedDevices, Collection<UsbDevice> liveDevices) {
+
+        //live devices by identity key, and by device name for devices whose serial number cannot be read
+        Map<String, UsbDevice> liveByKey = new HashMap<>(liveDevices.size() * 2);
+        Map<String, UsbDevice> liveWithoutSerialByName = new HashMap<>(liveDevices.size() * 2);
+
+        for (UsbDevice device : liveDevices) {
+            DeviceIdentity identity = DeviceIdentity.of(device);
+            liveByKey.put(identity.getKey(), device);
+            if (identity.getSerialNumber() == null) {
+                liveWithoutSerialByName.put(device.getDeviceName(), device);
+            }
+        }
+
+        List<DeviceListItem> items = new ArrayList<>(storedDevices.size());
+        for (StoredDevice storedDevice : storedDevices) {
+            UsbDevice liveDevice = liveByKey.get(storedDevice.getIdentity().getKey());
+
+            //serial stored earlier but not readable now (no permission yet), fall back to the port
+            if (liveDevice == null && storedDevice.getSerialNumber() != null) {
+                UsbDevice candidate = liveWithoutSerialByName.get(storedDevice.getDeviceName());
+                if (candidate != null &&
+                        candidate.getVendorId() == storedDevice.getVendorId() &&
+                        candidate.getProductId() == storedDevice.getProductId()) {
+                    liveDevice = candidate;
+                }
+            }
+
+            items.add(new DeviceListItem(storedDevice, liveDevice));
+        }
+        return items;
+    }
+}
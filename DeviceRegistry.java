@@ -0,0 +1,143 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+//tracks every attached USB device and where it is in its lifecycle.
+//Entries are keyed by DeviceIdentity, so duplicate attach broadcasts of the same device are ignored
+//while other devices on the same hub are still accepted. Detached devices are removed, so the registry
+//only holds what is plugged in now; its work was cancelled on detach and late callbacks no longer
+//find the device. Safe to call from any thread: attach and detach update both maps under one lock,
+//so an identity is in devices exactly while its device name is attached; lookups do not lock.
+public class DeviceRegistry {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    public enum State {
+        ATTACHED,
+        AWAITING_PERMISSION,
+        PROBING,
+        CLASSIFIED,
+        DETACHED
+    }
+
+    public static class Entry {
+
+        private final DeviceIdentity identity;
+        private final AtomicReference<State> state = new AtomicReference<>(State.ATTACHED);
+        private final UsbDevice device;
+        private volatile long stateChangedAt = System.currentTimeMillis();
+        private final long attachedAt = stateChangedAt;
+
+        Entry(DeviceIdentity identity, UsbDevice device) {
+            this.identity = identity;
+            this.device = device;
+        }
+
+        public DeviceIdentity getIdentity() {
+            return identity;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        public UsbDevice getDevice() {
+            return device;
+        }
+
+        public long getStateChangedAt() {
+            return stateChangedAt;
+        }
+
+        //epoch millis of the attach
+        public long getAttachedAt() {
+            return attachedAt;
+        }
+
+        boolean compareAndSet(State expected, State update) {
+            if (state.compareAndSet(expected, update)) {
+                stateChangedAt = System.currentTimeMillis();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> devices = new ConcurrentHashMap<>();
+
+    //device name of every attached device, so detach and permission broadcasts can be matched
+    //even when the serial number cannot be read any more
+    private final ConcurrentHashMap<String, Entry> attachedByDeviceName = new ConcurrentHashMap<>();
+
+    //guards changes of the two maps together
+    private final Object lock = new Object();
+
+    //returns true when the device is new or was detached before, false for a duplicate attach
+    public boolean onAttached(UsbDevice device) {
+        DeviceIdentity identity = DeviceIdentity.of(device);
+
+        synchronized (lock) {
+            if (devices.containsKey(identity.getKey())) {
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Duplicate device attachment ignored: " + identity);
+                }
+                return false;
+            }
+
+            Entry entry = new Entry(identity, device);
+            devices.put(identity.getKey(), entry);
+            //the same bus path under another identity, e.g. the serial number became readable: the old
+            //entry is gone with it
+            Entry replaced = attachedByDeviceName.put(device.getDeviceName(), entry);
+            if (replaced != null) {
+                detach(replaced);
+            }
+            return true;
+        }
+    }
+
+    public void onDetached(UsbDevice device) {
+        synchronized (lock) {
+            Entry entry = attachedByDeviceName.remove(device.getDeviceName());
+            if (entry != null) {
+                detach(entry);
+            }
+        }
+    }
+
+    //called with lock held, after the entry left attachedByDeviceName
+    private void detach(Entry entry) {
+        entry.state.set(State.DETACHED);
+        entry.stateChangedAt = System.currentTimeMillis();
+        //path identities are new on every plug-in, keeping them would grow the map without bound
+        devices.remove(entry.getIdentity().getKey(), entry);
+    }
+
+    //moves the attached device from one state to another, returns false if it was not in the expected state
+    public boolean transition(UsbDevice device, State from, State to) {
+        Entry entry = attachedByDeviceName.get(device.getDeviceName());
+        return entry != null && entry.compareAndSet(from, to);
+    }
+
+    public Entry get(UsbDevice device) {
+        return attachedByDeviceName.get(device.getDeviceName());
+    }
+
+    //null once the device was detached
+    public Entry get(DeviceIdentity identity) {
+        return devices.get(identity.getKey());
+    }
+
+    public int getAttachedCount() {
+        return attachedByDeviceName.size();
+    }
+
+    public List<Entry> getAttachedDevices() {
+        return new ArrayList<>(attachedByDeviceName.values());
+    }
+}
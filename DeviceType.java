@@ -0,0 +1,46 @@
+package com.example.usbdb;
+
+//result of classifying a USB device. The label is what the device_type column stores and the
+//device list shows, so rows written before this enum existed keep their meaning.
+public enum DeviceType {
+
+    IPHONE("iPhone"),
+    ANDROID("Android"),
+    //accessory mode was requested, the device comes back with another identity
+    UNKNOWN("Unknown"),
+    //not classified yet, or excluded from classification by a rule
+    NOT_CLASSIFIED("NA");
+
+    private final String label;
+
+    DeviceType(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    //only a final answer is worth remembering, UNKNOWN and NOT_CLASSIFIED are not
+    public boolean isFinal() {
+        return this == IPHONE || this == ANDROID;
+    }
+
+    //accepts the stored label as well as the constant name, null if neither matches
+    public static DeviceType fromLabel(String label) {
+        if (label == null) {
+            return null;
+        }
+        for (DeviceType type : values()) {
+            if (type.label.equalsIgnoreCase(label) || type.name().equalsIgnoreCase(label)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+//write-behind queue for the attach time and device type of rows that already exist in usb_devices.
+//Only the latest pending values per DeviceIdentity are kept, so a device flapping on a hub costs one
+//row write per flush instead of an UPDATE per attach plus one per classification. Pending rows are
+//written in one transaction when batchSize identities are pending, every flushIntervalMillis and on flush.
+//Readers overlay getPending on what they read from the table to see their own writes.
+//Writes carry the DeviceIdentity read at enqueue time: by the time of the flush the device may be detached
+//or its permission revoked, and the serial number no longer readable.
+//Deleting a row and queueing for it are made atomic by holding the lock of this object around both.
+//On process death at most the updates of the last flush interval are lost, like in DeviceEventLog.
+public class DeviceWriteBehind {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    //persistent destination of the batches, implemented by USBDevicesDatabaseHelper
+    public interface Sink {
+        //writes every pending row of the batch in a single transaction
+        void writeDevices(Map<String, PendingWrite> batch);
+    }
+
+    //latest values not yet written for one device, attachTime 0 and deviceType null mean unchanged
+    public static class PendingWrite {
+
+        private final DeviceIdentity identity;
+        private long attachTime;
+        private DeviceType deviceType;
+        //the row was deleted while the write was being flushed, the sink skips it
+        private volatile boolean forgotten;
+
+        PendingWrite(DeviceIdentity identity) {
+            this.identity = identity;
+        }
+
+        PendingWrite(PendingWrite other) {
+            this.identity = other.identity;
+            this.attachTime = other.attachTime;
+            this.deviceType = other.deviceType;
+        }
+
+        public DeviceIdentity getIdentity() {
+            return identity;
+        }
+
+        public long getAttachTime() {
+            return attachTime;
+        }
+
+        public DeviceType getDeviceType() {
+            return deviceType;
+        }
+
+        public boolean isForgotten() {
+            return forgotten;
+        }
+    }
+
+    private final Sink sink;
+    private final int batchSize;
+
+    //guarded by this. Identities with a row in the table, so their updates can be deferred
+    private final Set<String> stored = new HashSet<>();
+    private Map<String, PendingWrite> pending = new HashMap<>();
+    //batch being written by the flush thread, empty when no flush is running. The sink gets a copy, so
+    //forget can remove from it while the batch is written
+    private Map<String, PendingWrite> flushing = new HashMap<>();
+
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong rowWrites = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    public DeviceWriteBehind(Sink sink, int batchSize, long flushIntervalMillis) {
+        this.sink = sink;
+        this.batchSize = batchSize;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "usb-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushPending();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //the identity has a row, e.g. after a synchronous insert or update found it
+    public synchronized void markStored(DeviceIdentity identity) {
+        stored.add(identity.getKey());
+    }
+
+    public synchronized boolean isStored(DeviceIdentity identity) {
+        return stored.contains(identity.getKey());
+    }
+
+    //queues the attach time of a stored device, returns false when the device has no known row
+    public boolean setAttachTime(DeviceIdentity identity, long attachTime) {
+        boolean flushNow;
+        synchronized (this) {
+            PendingWrite write = pendingFor(identity);
+            if (write == null) {
+                return false;
+            }
+            write.attachTime = attachTime;
+            flushNow = pending.size() >= batchSize;
+        }
+        updates.incrementAndGet();
+
+        if (flushNow) {
+            requestFlush();
+        }
+        return true;
+    }
+
+    //queues the device type of a stored device, returns false when the device has no known row
+    public boolean setDeviceType(DeviceIdentity identity, DeviceType deviceType) {
+        boolean flushNow;
+        synchronized (this) {
+            PendingWrite write = pendingFor(identity);
+            if (write == null) {
+                return false;
+            }
+            write.deviceType = deviceType;
+            flushNow = pending.size() >= batchSize;
+        }
+        updates.incrementAndGet();
+
+        if (flushNow) {
+            requestFlush();
+        }
+        return true;
+    }
+
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty() || !flushing.isEmpty();
+    }
+
+    //copy of the values not yet written, null when the table is up to date for the identity
+    public synchronized PendingWrite getPending(DeviceIdentity identity) {
+        if (pending.isEmpty() && flushing.isEmpty()) {
+            return null;
+        }
+        PendingWrite older = flushing.get(identity.getKey());
+        PendingWrite newer = pending.get(identity.getKey());
+        if (newer == null) {
+            return older != null ? new PendingWrite(older) : null;
+        }
+
+        PendingWrite merged = new PendingWrite(newer);
+        if (older != null) {
+            merge(merged, older);
+        }
+        return merged;
+    }
+
+    //the row of the identity is deleted, its pending values are dropped. A batch being flushed skips them,
+    //it commits before the delete can run or sees them forgotten
+    public synchronized void forget(DeviceIdentity identity) {
+        String key = identity.getKey();
+        stored.remove(key);
+        drop(pending.remove(key));
+        drop(flushing.remove(key));
+    }
+
+    //rows are deleted without knowing their identities: every identity is looked up again, and what is
+    //pending is written now, so none of it can reach the table after the caller's delete under this lock
+    public synchronized void forgetAll() {
+        stored.clear();
+
+        //a batch being flushed could otherwise commit after the delete
+        while (!flushing.isEmpty()) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (PendingWrite write : flushing.values()) {
+                    drop(write);
+                }
+                break;
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, PendingWrite> batch = pending;
+        pending = new HashMap<>();
+        try {
+            sink.writeDevices(batch);
+            rowWrites.addAndGet(batch.size());
+            commits.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            //not kept, they could overwrite a row inserted after the delete
+            for (PendingWrite write : batch.values()) {
+                drop(write);
+            }
+            Log.e(TAG, "Error writing pending device updates, dropped", e);
+        }
+    }
+
+    //starts writing everything pending without waiting
+    public void requestFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flushPending();
+                }
+            });
+        }
+    }
+
+    //writes everything pending and waits for it, e.g. before a filtered query or before the process may be killed
+    public void flush() {
+        try {
+            flusher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushPending();
+                }
+            }).get();
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Error flushing pending device writes", e);
+        }
+    }
+
+    //flushes pending writes and stops the flush thread
+    public void shutdown() {
+        flush();
+        flusher.shutdown();
+    }
+
+    //attach time and type updates accepted, including the ones merged into a pending write
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    public long getRowWriteCount() {
+        return rowWrites.get();
+    }
+
+    //number of transactions committed, one per flush with pending writes
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    private PendingWrite pendingFor(DeviceIdentity identity) {
+        String key = identity.getKey();
+        if (!stored.contains(key)) {
+            return null;
+        }
+        PendingWrite write = pending.get(key);
+        if (write == null) {
+            write = new PendingWrite(identity);
+            pending.put(key, write);
+        }
+        return write;
+    }
+
+    private static void drop(PendingWrite write) {
+        if (write != null) {
+            write.forgotten = true;
+        }
+    }
+
+    //fills the values newer left unchanged from older
+    private static void merge(PendingWrite newer, PendingWrite older) {
+        if (newer.attachTime == 0) {
+            newer.attachTime = older.attachTime;
+        }
+        if (newer.deviceType == null) {
+            newer.deviceType = older.deviceType;
+        }
+    }
+
+    //runs on the flush thread only. The batch stays visible to getPending until it is committed,
+    //so a reader never sees the old row in between.
+    private void flushPending() {
+        Map<String, PendingWrite> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            flushing = pending;
+            batch = new HashMap<>(pending);
+            pending = new HashMap<>();
+        }
+
+        try {
+            sink.writeDevices(batch);
+            rowWrites.addAndGet(batch.size());
+            commits.incrementAndGet();
+            synchronized (this) {
+                flushing = new HashMap<>();
+                notifyAll();
+            }
+        }
+        catch (RuntimeException e) {
+            //kept for the next flush, values that arrived in the meantime win
+            synchronized (this) {
+                for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+                    if (entry.getValue().forgotten) {
+                        continue;
+                    }
+                    PendingWrite newer = pending.get(entry.getKey());
+                    if (newer == null) {
+                        pending.put(entry.getKey(), entry.getValue());
+                    }
+                    else {
+                        merge(newer, entry.getValue());
+                    }
+                }
+                flushing = new HashMap<>();
+                notifyAll();
+            }
+            Log.e(TAG, "Error writing pending device updates", e);
+        }
+    }
+}
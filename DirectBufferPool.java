@@ -0,0 +1,68 @@
+package com.example.usbdb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//fixed size direct ByteBuffers for bulk transfers. Direct buffers can be handed to the USB stack
+//without a copy, but are expensive to allocate, so they are allocated once and reused.
+//Safe to use from any thread.
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    public DirectBufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    //returns a cleared buffer, or null when maxBuffers are already in use
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            reused.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        if (allocated.incrementAndGet() > maxBuffers) {
+            allocated.decrementAndGet();
+            exhausted.incrementAndGet();
+            return null;
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;
+        }
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    //buffers allocated so far, in use or free
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    //acquire calls that returned null
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.usbdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//bounded lock-free queue on a ring of slots, safe for many producers and consumers.
+//Every slot carries a sequence number that tells producers and consumers whose turn it is,
+//so offer and poll only need a compare-and-set on their position counter.
+class EventRing<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    //capacity is rounded up to a power of two
+    EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    //returns false when the ring is full
+    boolean offer(T item) {
+        long position = enqueuePosition.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            else if (difference < 0) {
+                return false;
+            }
+            position = enqueuePosition.get();
+        }
+
+        slots.set(index, item);
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    //returns null when the ring is empty
+    T poll() {
+        long position = dequeuePosition.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            else if (difference < 0) {
+                return null;
+            }
+            position = dequeuePosition.get();
+        }
+
+        T item = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, position + mask + 1);
+        return item;
+    }
+
+    boolean isEmpty() {
+        return enqueuePosition.get() == dequeuePosition.get();
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.usbdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//lock-free latency histogram with HDR-style log-linear buckets: every power of two is split into
+//SUB_BUCKETS equal buckets, so a percentile is off by at most 1/SUB_BUCKETS (6.25%) of its value.
+//Values below SUB_BUCKETS nanoseconds are exact, values above MAX_TRACKABLE_NANOS (about 18 minutes)
+//are counted in the last bucket. Recording is one array increment plus two atomic updates, no allocation.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    public static final long MAX_TRACKABLE_NANOS = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : nanos > MAX_TRACKABLE_NANOS ? MAX_TRACKABLE_NANOS : nanos;
+        buckets.incrementAndGet(bucketIndex(value));
+        totalNanos.addAndGet(value);
+
+        long max;
+        while (value > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    //records the time since start, a System.nanoTime() value
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    //smallest value counted in the bucket
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    //largest value counted in the bucket
+    static long bucketUpperBound(int index) {
+        return index + 1 < BUCKET_COUNT ? bucketLowerBound(index + 1) - 1 : MAX_TRACKABLE_NANOS;
+    }
+
+    //copy of the counts taken without stopping writers, so it may be a few records behind
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, totalNanos.get(), maxNanos.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        //upper bound of the bucket holding the percentile (0..100), never above the recorded max
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        //{"count":..,"mean_ns":..,"p50_ns":..,"p90_ns":..,"p99_ns":..,"p999_ns":..,"max_ns":..}
+        void appendJson(StringBuilder json) {
+            json.append("{\"count\":").append(count)
+                    .append(",\"mean_ns\":").append(getMeanNanos())
+                    .append(",\"p50_ns\":").append(getPercentileNanos(50))
+                    .append(",\"p90_ns\":").append(getPercentileNanos(90))
+                    .append(",\"p99_ns\":").append(getPercentileNanos(99))
+                    .append(",\"p999_ns\":").append(getPercentileNanos(99.9))
+                    .append(",\"max_ns\":").append(maxNanos)
+                    .append('}');
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.usbdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//in-memory AsyncBulkTransport for JVM benchmarks: bytes written on OUT are read back on IN.
+//Every transfer completes after a configurable latency and a read returns at most maxPacketSize *
+//packetsPerTransfer bytes, like a device that answers each URB on its own.
+//No threads, completions are timed by a DelayQueue and keep the order they were made in.
+public class LoopbackBulkTransport implements AsyncBulkTransport {
+
+    private final int maxPacketSize;
+    private final int maxTransferSize;
+    private final long latencyNanos;
+
+    private final DelayQueue<TimedCompletion> completions = new DelayQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    //guarded by this
+    private final ArrayDeque<Completion> pendingReads = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> written = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    public LoopbackBulkTransport(int maxPacketSize, int packetsPerTransfer, long latency, TimeUnit unit) {
+        this.maxPacketSize = maxPacketSize;
+        this.maxTransferSize = maxPacketSize * packetsPerTransfer;
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    @Override
+    public boolean queue(boolean in, ByteBuffer buffer, Object tag) {
+        if (closed) {
+            return false;
+        }
+
+        Completion completion = new Completion(in, buffer, tag);
+        synchronized (this) {
+            if (in) {
+                pendingReads.add(completion);
+            }
+            else {
+                ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                copy.put(buffer);
+                copy.flip();
+
+                written.add(copy);
+                complete(completion);
+            }
+            deliver();
+        }
+        return true;
+    }
+
+    //fills pending reads from written data, one read gets at most the bytes of one write
+    private void deliver() {
+        while (!pendingReads.isEmpty() && !written.isEmpty()) {
+            Completion read = pendingReads.poll();
+            ByteBuffer source = written.peek();
+            ByteBuffer target = read.getBuffer();
+
+            int length = Math.min(Math.min(source.remaining(), target.remaining()), maxTransferSize);
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(chunk.position() + length);
+            target.put(chunk);
+            source.position(source.position() + length);
+
+            if (!source.hasRemaining()) {
+                written.poll();
+            }
+            complete(read);
+        }
+    }
+
+    private void complete(Completion completion) {
+        completions.add(new TimedCompletion(completion, System.nanoTime() + latencyNanos, sequence.incrementAndGet()));
+    }
+
+    @Override
+    public Completion requestWait(long timeoutMillis) throws InterruptedException {
+        if (closed) {
+            return null;
+        }
+        TimedCompletion completion = completions.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        return completion != null ? completion.completion : null;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            pendingReads.clear();
+            written.clear();
+        }
+        completions.clear();
+    }
+
+    private static class TimedCompletion implements Delayed {
+
+        final Completion completion;
+        final long dueAt;
+        final long sequence;
+
+        TimedCompletion(Completion completion, long dueAt, long sequence) {
+            this.completion = completion;
+            this.dueAt = dueAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            TimedCompletion completion = (TimedCompletion) other;
+            long difference = dueAt - completion.dueAt;
+            if (difference == 0) {
+                difference = sequence - completion.sequence;
+            }
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
@@ -2,88 +2,111 @@ package com.example.usbdb;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbManager;
-import android.os.Build;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class MainActivity extends Activity {
 
     private static final String TAG = "USB_SQLite_DB";
-    private static final String ACTION_USB_PERMISSION = "com.example.usbdb.USB_PERMISSION";
+    private static final int DEVICE_PAGE_SIZE = 50;
+    private static final DeviceQuery ALL_DEVICES = new DeviceQuery();
+    private static final String DEVICE_LIST_SNAPSHOT_FILE = "device_list.snapshot";
     private ListView deviceListView;
-    private ArrayAdapter<String> deviceListAdapter;
-    private List<String> deviceList = new ArrayList<>();
-    private UsbManager usbManager;
-    private PendingIntent permissionIntent;
-    private USBDevicesDatabaseHelper usbDevicesDatabaseHelper;
-    private String device_type = null;
-    private boolean isAttachedDevice = false;
+    private DeviceListAdapter deviceListAdapter;
+    //last list computed on the list lane, the next diff is taken against it
+    private List<DeviceListItem> lastDeviceSnapshot = new ArrayList<>();
+    //rows loaded into the list, grows by a page when the user scrolls to the end
+    private volatile int deviceListLimit = DEVICE_PAGE_SIZE;
+    private boolean loadingDevicePage = false;
+    //USB monitoring, database and caches live in the service, null while not bound
+    private UsbMonitorService usbMonitor;
+    //list shown at startup until the database is loaded, rewritten on the list lane after every change
+    private DeviceListSnapshot deviceListSnapshot;
+    //nanoTime of onCreate, 0 once the list from the database was shown
+    private long createdAt;
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        createdAt = System.nanoTime();
         super.onCreate(savedInstanceState);
         getActionBar().hide();
         setContentView(R.layout.activity_main);
 
-        //obtaining instance of UsbManager, that allows us to interact with USB devices connected to Android device.
-        usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(this);
-
         deviceListView = findViewById(R.id.deviceListView);
-        deviceListAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, deviceList);
+        deviceListAdapter = new DeviceListAdapter(this);
         deviceListView.setAdapter(deviceListAdapter);
 
+        //the last list seen is a few KB, reading it here puts it in the first frame. The service, the
+        //database and UsbManager are only used once bound, and the real list replaces this one.
+        deviceListSnapshot = new DeviceListSnapshot(new File(getFilesDir(), DEVICE_LIST_SNAPSHOT_FILE));
+        List<DeviceListItem> snapshotItems = deviceListSnapshot.read();
+        if (!snapshotItems.isEmpty()) {
+            lastDeviceSnapshot = snapshotItems;
+            deviceListAdapter.apply(DeviceListDiff.compute(new ArrayList<DeviceListItem>(), snapshotItems), deviceListView);
+            UsbMetrics.recordTiming("first_list_snapshot", System.nanoTime() - createdAt);
+        }
+
+        //loads the next page of the history when the end of the list comes into view
+        deviceListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                boolean nearEnd = firstVisibleItem + visibleItemCount >= totalItemCount - DEVICE_PAGE_SIZE / 4;
+                if (nearEnd && totalItemCount >= deviceListLimit && !loadingDevicePage && usbMonitor != null) {
+                    loadNextDevicePage();
+                }
+            }
+        });
+
         //interface definition for callback to be invoked when an item in AdapterView has been clicked
         deviceListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String productName = deviceList.get(position);
+                DeviceListItem item = deviceListAdapter.getItem(position);
+                final long srNo = item.getStoredDevice().getSrNo();
 
                 new AlertDialog.Builder(MainActivity.this)
-                        .setTitle("Do you want to remove " + deviceList.get(position) + " from list?")
+                        .setTitle("Do you want to remove " + item.getDisplayName() + " from list?")
                         .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
 
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
                                 Log.d(TAG, "Device removed from list");
-
-                                UsbDevice selectedDevice = null;
-                                List<UsbDevice> usbDevices = usbDevicesDatabaseHelper.getAllUSBDevices(MainActivity.this);
-
-                                for (UsbDevice device : usbDevices) {
-                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                        if (device.getProductName().equals(productName)) {
-                                            selectedDevice = device;
-                                            break;
-                                        }
-                                    }
+                                if (usbMonitor == null) {
+                                    return;
                                 }
 
-                                if (selectedDevice != null) {
-                                    usbDevicesDatabaseHelper.deleteUSBDeviceFromDB(MainActivity.this, selectedDevice);
-                                    updateDeviceList();
-                                    Log.d(TAG, "Device removed from db and list");
-                                }
-                                else {
-                                    Log.e(TAG, "Selected device not found.");
-                                }
+                                usbMonitor.deleteDevice(srNo, new UsbDeviceExecutor.Callback<Void>() {
+                                    @Override
+                                    public void onResult(Void result) {
+                                        updateDeviceList();
+                                        Log.d(TAG, "Device removed from db and list");
+                                    }
 
+                                    @Override
+                                    public void onError(Exception e) {
+                                        Log.e(TAG, "Error removing device", e);
+                                    }
+                                });
                             }
                         })
 
@@ -97,15 +120,9 @@ public class MainActivity extends Activity {
             }
         });
 
-        permissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
-
-        //This filter is used to listen for permission grant result
-        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
-
-        registerReceiver(usbReceiver, filter);
-        Log.i(TAG, "usbReceiver registered");
+        //the service keeps monitoring after this Activity is gone, the Activity only binds for display
+        UsbMonitorService.start(this);
+        bindService(new Intent(this, UsbMonitorService.class), monitorConnection, Context.BIND_AUTO_CREATE);
     }
 
 
@@ -116,113 +133,142 @@ public class MainActivity extends Activity {
     }
 
 
-    private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
-
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-
-            //If action 'ACTION_USB_DEVICE_ATTACHED' - means USB device has attached to device.
-             if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-                Log.i(TAG, "Device Attached");
-
-                if (isAttachedDevice) {
-                    Log.i(TAG, "Duplicate device attachment ignored");
-                    return;
-                }
-
-                isAttachedDevice = true;
-
-                //USB device attached, update the device list
-                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-                if (device != null) {
-                    checkdeviceinDB(device);
-                }
-            }
+    private final UsbMonitorService.Listener monitorListener = new UsbMonitorService.Listener() {
+        @Override
+        public void onDeviceListChanged() {
+            updateDeviceList();
+        }
 
-            //If action 'ACTION_USB_DEVICE_DETACHED' - means USB device has detached from device.
-            else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
-                 Log.i(TAG, "Device Detached");
+        @Override
+        public void onAlert(String message) {
+            UsbUtils.showAlertDialog(MainActivity.this, message);
+        }
+    };
 
-                 //USB device detached, update the device list
-                 UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
 
-                 if (device != null) {
-                     isAttachedDevice = false;
-                 }
-             }
+    private final ServiceConnection monitorConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            usbMonitor = ((UsbMonitorService.LocalBinder) service).getService();
+            usbMonitor.addListener(monitorListener);
+            Log.i(TAG, "Bound to USB monitor");
+            updateDeviceList();
+        }
 
-            //If action 'ACTION_USB_PERMISSION' - means USB device permission request has been granted or denied.
-            else if (ACTION_USB_PERMISSION.equals(action)) {
-                     synchronized (this) {
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            usbMonitor = null;
+        }
+    };
 
-                         UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
 
-                         if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+    //queries the database and diffs against the previous list on a worker,
+    //the main thread only applies the inserted, removed and changed rows
+    private void updateDeviceList() {
+        final UsbMonitorService monitor = usbMonitor;
+        if (monitor == null) {
+            return;
+        }
 
-                             if (device != null) {
-                                 UsbDeviceConnection usbDeviceConnection = usbManager.openDevice(device);
-                                 device_type = UsbUtils.checkDeviceType(MainActivity.this, usbDeviceConnection, device);
-                                 Log.i(TAG, "Checking Device Type in Database");
+        monitor.query("query", new Callable<DeviceListDiff>() {
+            @Override
+            public DeviceListDiff call() {
+                //the loaded pages of the table and one device list snapshot, joined by identity
+                List<StoredDevice> rows = new ArrayList<>();
+                for (StoredDevice row : monitor.streamDevices(ALL_DEVICES, DEVICE_PAGE_SIZE)) {
+                    rows.add(row);
+                    if (rows.size() >= deviceListLimit) {
+                        break;
+                    }
+                }
 
-                                 usbDevicesDatabaseHelper.UpdateUSBDeviceType(MainActivity.this, device, device_type);
+                List<DeviceListItem> items = DeviceReconciler.reconcile(rows, monitor.getLiveDevices());
 
-                                 updateDeviceList();
-                                 Log.i(TAG, "Updating Device Type in Database");
-                             }
-                         }
-                         else {
-                             Log.d(TAG, "Permission denied for USB device");
-                         }
-                     }
-                 }
+                //list lane runs one task at a time, so the snapshot is not shared between workers
+                DeviceListDiff diff = DeviceListDiff.compute(lastDeviceSnapshot, items);
+                lastDeviceSnapshot = items;
 
-            else {
-                Log.e(TAG, "Unexpected value: " + action);
+                if (!diff.isEmpty()) {
+                    try {
+                        deviceListSnapshot.write(items);
+                    }
+                    catch (IOException e) {
+                        Log.e(TAG, "Error writing device list snapshot", e);
+                    }
+                }
+                return diff;
+            }
+        }, new UsbDeviceExecutor.Callback<DeviceListDiff>() {
+            @Override
+            public void onResult(DeviceListDiff diff) {
+                //unbound in the meantime, the Activity is being destroyed
+                if (usbMonitor != null) {
+                    deviceListAdapter.apply(diff, deviceListView);
+                    usbMonitor.onDeviceListRendered();
+
+                    if (createdAt != 0) {
+                        long timeToList = System.nanoTime() - createdAt;
+                        UsbMetrics.recordTiming("first_list_database", timeToList);
+                        if (UsbLog.isInfoEnabled()) {
+                            Log.i(TAG, "Device list loaded " + timeToList / 1000000 + " ms after start");
+                        }
+                        createdAt = 0;
+                    }
+                }
             }
-        }
-    };
-
-
-    private void checkdeviceinDB(UsbDevice device) {
 
-        // Check if the device is already in the database
-        if (usbDevicesDatabaseHelper.checkUSBDeviceinDB(MainActivity.this, device)) {
-            Log.i(TAG, "USB Device already in Database");
-            updateDeviceList();
-        }
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error loading device list", e);
+            }
+        });
+    }
 
-        else {
-            boolean inserted = usbDevicesDatabaseHelper.insertUSBDevicestoDB(MainActivity.this, device);
 
-            if (inserted) {
-                updateDeviceList();
-                Log.i(TAG, "USB Device added to Database");
+    //appends the page after the last loaded row
+    private void loadNextDevicePage() {
+        final UsbMonitorService monitor = usbMonitor;
+        loadingDevicePage = true;
 
-                // Request permission for the device
-                usbManager.requestPermission(device, permissionIntent);
+        monitor.query("page", new Callable<DeviceListDiff>() {
+            @Override
+            public DeviceListDiff call() {
+                List<DeviceListItem> items = new ArrayList<>(lastDeviceSnapshot);
+                long lastSrNo = items.isEmpty() ? 0 : items.get(items.size() - 1).getStoredDevice().getSrNo();
+
+                List<StoredDevice> page = monitor.getDevicesPage(ALL_DEVICES, lastSrNo, DEVICE_PAGE_SIZE);
+                items.addAll(DeviceReconciler.reconcile(page, monitor.getLiveDevices()));
+                //a short page means the end of the table, stop asking for more until a new row shows up
+                deviceListLimit = page.size() < DEVICE_PAGE_SIZE ? items.size() + 1 : items.size();
+
+                DeviceListDiff diff = DeviceListDiff.compute(lastDeviceSnapshot, items);
+                lastDeviceSnapshot = items;
+                return diff;
             }
-            else {
-                Log.e(TAG, "Failed to insert USB Device to Database");
+        }, new UsbDeviceExecutor.Callback<DeviceListDiff>() {
+            @Override
+            public void onResult(DeviceListDiff diff) {
+                deviceListAdapter.apply(diff, deviceListView);
+                loadingDevicePage = false;
             }
-        }
 
+            @Override
+            public void onError(Exception e) {
+                loadingDevicePage = false;
+                Log.e(TAG, "Error loading device page", e);
+            }
+        });
     }
 
 
-    private void updateDeviceList() {
-        deviceList.clear();
-        List<UsbDevice> usbDevices = usbDevicesDatabaseHelper.getAllUSBDevices(MainActivity.this);
+    @Override
+    protected void onStop() {
+        super.onStop();
 
-        for (UsbDevice device : usbDevices) {
-            String productName = null;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-                productName = device.getProductName();
-            }
-            deviceList.add(productName);
+        //pending events are written before the process may be killed in background
+        if (usbMonitor != null) {
+            usbMonitor.flushEvents();
         }
-
-        deviceListAdapter.notifyDataSetChanged();
     }
 
 
@@ -230,11 +276,12 @@ public class MainActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
-        //to prevent memory leaks and ensure that receiver is not active when component is destroyed.
-        unregisterReceiver(usbReceiver);
-        Log.i(TAG, "usbReceiver unregistered");
-
-        usbManager = null;
-        usbDevicesDatabaseHelper = null;
+        //the service and its receiver keep running, only this Activity stops listening
+        if (usbMonitor != null) {
+            usbMonitor.removeListener(monitorListener);
+            usbMonitor = null;
+        }
+        unbindService(monitorConnection);
+        Log.i(TAG, "Unbound from USB monitor");
     }
 }
\ No newline at end of file
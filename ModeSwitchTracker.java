@@ -0,0 +1,183 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+//links a device that was asked to start accessory mode with the accessory-mode device that
+//re-enumerates shortly after (VID 0x18D1, PID 0x2D00-0x2D05), so the new attach can reuse the
+//classification and capabilities of the old one instead of starting from scratch.
+//Devices are matched by serial number. Before permission is granted the serial of the new device
+//may not be readable, then the only pending switch on the same USB bus within the window is used.
+public class ModeSwitchTracker {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    public static class Switch {
+
+        private final DeviceIdentity before;
+        private final DeviceIdentity after;
+        private final AccessoryCapabilities capabilities;
+        private final long switchNanos;
+        private final long plugInAt;
+
+        Switch(DeviceIdentity before, DeviceIdentity after, AccessoryCapabilities capabilities, long switchNanos, long plugInAt) {
+            this.before = before;
+            this.after = after;
+            this.capabilities = capabilities;
+            this.switchNanos = switchNanos;
+            this.plugInAt = plugInAt;
+        }
+
+        //identity before the switch
+        public DeviceIdentity getBefore() {
+            return before;
+        }
+
+        //identity in accessory mode
+        public DeviceIdentity getAfter() {
+            return after;
+        }
+
+        //negotiated by the handshake, null if unknown
+        public AccessoryCapabilities getCapabilities() {
+            return capabilities;
+        }
+
+        //time from the start request to the attach of the accessory-mode device
+        public long getSwitchNanos() {
+            return switchNanos;
+        }
+
+        //epoch millis of the attach before the switch
+        public long getPlugInAt() {
+            return plugInAt;
+        }
+    }
+
+    private static class Pending {
+        DeviceIdentity before;
+        AccessoryCapabilities capabilities;
+        long requestedAt;
+        long plugInAt;
+    }
+
+    private final long windowNanos;
+
+    //guarded by itself, only a handful of switches are ever pending
+    private final List<Pending> pending = new ArrayList<>();
+
+    private final AtomicLong switches = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong totalSwitchNanos = new AtomicLong();
+    private final AtomicLong maxSwitchNanos = new AtomicLong();
+
+    public ModeSwitchTracker(long windowMillis) {
+        this.windowNanos = windowMillis * 1000000L;
+    }
+
+    //called once ACCESSORY_START was sent. plugInAt is when the device was attached (epoch millis).
+    public void onSwitchRequested(DeviceIdentity before, long plugInAt, AccessoryCapabilities capabilities) {
+        Pending switchRequest = new Pending();
+        switchRequest.before = before;
+        switchRequest.capabilities = capabilities;
+        switchRequest.requestedAt = System.nanoTime();
+        switchRequest.plugInAt = plugInAt;
+
+        synchronized (pending) {
+            expire(switchRequest.requestedAt);
+            pending.add(switchRequest);
+        }
+    }
+
+    //returns the matching switch for a device attached in accessory mode, or null when it was not switched by us
+    public Switch onAccessoryAttached(DeviceIdentity after) {
+        long now = System.nanoTime();
+        Pending match = null;
+
+        synchronized (pending) {
+            expire(now);
+
+            if (after.getSerialNumber() != null) {
+                for (Pending candidate : pending) {
+                    if (after.getSerialNumber().equals(candidate.before.getSerialNumber())) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+
+            //serial not readable yet, accept a single candidate on the same bus
+            if (match == null) {
+                String bus = getBus(after.getDeviceName());
+                for (Pending candidate : pending) {
+                    if (bus != null && bus.equals(getBus(candidate.before.getDeviceName()))) {
+                        if (match != null) {
+                            if (UsbLog.isInfoEnabled()) {
+                                Log.i(TAG, "Ambiguous mode switch on bus " + bus);
+                            }
+                            return null;
+                        }
+                        match = candidate;
+                    }
+                }
+            }
+
+            if (match == null) {
+                return null;
+            }
+            pending.remove(match);
+        }
+
+        long switchNanos = now - match.requestedAt;
+        switches.incrementAndGet();
+        totalSwitchNanos.addAndGet(switchNanos);
+        long max;
+        while (switchNanos > (max = maxSwitchNanos.get()) && !maxSwitchNanos.compareAndSet(max, switchNanos)) {
+            //retry until the maximum is stored
+        }
+
+        return new Switch(match.before, after, match.capabilities, switchNanos, match.plugInAt);
+    }
+
+    public long getSwitchCount() {
+        return switches.get();
+    }
+
+    //switches requested whose device never came back within the window
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public long getAverageSwitchNanos() {
+        long count = switches.get();
+        return count > 0 ? totalSwitchNanos.get() / count : 0;
+    }
+
+    public long getMaxSwitchNanos() {
+        return maxSwitchNanos.get();
+    }
+
+    //caller holds pending
+    private void expire(long now) {
+        Iterator<Pending> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().requestedAt > windowNanos) {
+                iterator.remove();
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    //"/dev/bus/usb/001/005" -> "001"
+    private static String getBus(String deviceName) {
+        if (deviceName == null) {
+            return null;
+        }
+        int end = deviceName.lastIndexOf('/');
+        int start = end > 0 ? deviceName.lastIndexOf('/', end - 1) : -1;
+        return start >= 0 ? deviceName.substring(start + 1, end) : null;
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+//asks for USB permission one device at a time. Requests are queued and the next prompt is shown
+//only when the previous one was answered, devices that already have permission skip the prompt,
+//and the user's answer is remembered so a device the user denied is not prompted again on every reattach.
+//Answers are kept under a key that is readable before the grant and survives replugging, see decisionKey.
+//All methods except the getters must be called on the main thread.
+public class PermissionCoordinator {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    //the system side, implemented with UsbManager in UsbMonitorService
+    public interface Prompter {
+        boolean hasPermission(UsbDevice device);
+
+        void requestPermission(UsbDevice device);
+    }
+
+    public interface Listener {
+        //prompted is false when the device already had permission
+        void onPermissionGranted(UsbDevice device, boolean prompted);
+
+        //remembered is true when the user was not asked again because of an earlier denial
+        void onPermissionDenied(UsbDevice device, boolean remembered);
+    }
+
+    //persisted answers, implemented by USBDevicesDatabaseHelper
+    public interface Store {
+        Map<String, Boolean> loadPermissionDecisions();
+
+        void savePermissionDecision(String deviceKey, boolean granted, long decidedAt);
+
+        void deletePermissionDecision(String deviceKey);
+    }
+
+    private static class Request {
+        final UsbDevice device;
+        final DeviceIdentity identity;
+        final long requestedAt = System.nanoTime();
+
+        Request(UsbDevice device, DeviceIdentity identity) {
+            this.device = device;
+            this.identity = identity;
+        }
+    }
+
+    private final Prompter prompter;
+    private final Listener listener;
+    private final Store store;
+    private final Executor storeExecutor;
+
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    private Request active;
+
+    //answers by decision key, true for granted
+    private final ConcurrentHashMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+    //wait of the latest request by decision key
+    private final ConcurrentHashMap<String, Long> lastWaitNanos = new ConcurrentHashMap<>();
+
+    private final AtomicLong prompts = new AtomicLong();
+    private final AtomicLong alreadyGranted = new AtomicLong();
+    private final AtomicLong grants = new AtomicLong();
+    private final AtomicLong denials = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    //store writes run on storeExecutor, never on the main thread
+    public PermissionCoordinator(Prompter prompter, Listener listener, Store store, Executor storeExecutor) {
+        this.prompter = prompter;
+        this.listener = listener;
+        this.store = store;
+        this.storeExecutor = storeExecutor;
+    }
+
+    //loads the remembered answers, call from a worker before the first request.
+    //Answers stored under a bus path by earlier versions can never match again and are deleted.
+    public void warmUp() {
+        for (Map.Entry<String, Boolean> decision : store.loadPermissionDecisions().entrySet()) {
+            if (decision.getKey().indexOf('@') >= 0) {
+                store.deletePermissionDecision(decision.getKey());
+            }
+            else {
+                decisions.put(decision.getKey(), decision.getValue());
+            }
+        }
+    }
+
+    //the serial number where it is readable before the grant (before Android 10), the product otherwise.
+    //Never the bus path of the identity, which changes with every plug-in.
+    static String decisionKey(DeviceIdentity identity) {
+        if (identity.getSerialNumber() != null) {
+            return identity.getKey();
+        }
+        return identity.getVendorId() + ":" + identity.getProductId();
+    }
+
+    public void request(UsbDevice device) {
+        DeviceIdentity identity = DeviceIdentity.of(device);
+
+        if (prompter.hasPermission(device)) {
+            alreadyGranted.incrementAndGet();
+            remember(identity, true);
+            listener.onPermissionGranted(device, false);
+            return;
+        }
+
+        if (Boolean.FALSE.equals(decisions.get(decisionKey(identity)))) {
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Permission denied before, not asking again: " + identity);
+            }
+            listener.onPermissionDenied(device, true);
+            return;
+        }
+
+        if (isQueued(device)) {
+            return;
+        }
+        queue.add(new Request(device, identity));
+        promptNext();
+    }
+
+    //answer from the USB_PERMISSION broadcast
+    public void onResult(UsbDevice device, boolean granted) {
+        Request request = null;
+        if (active != null && active.device.getDeviceName().equals(device.getDeviceName())) {
+            request = active;
+            active = null;
+        }
+
+        //serial numbers become readable with the grant, remember under the identity of the request so the
+        //key is the one the next request of the device looks up
+        DeviceIdentity identity = request != null ? request.identity : DeviceIdentity.of(device);
+        if (request != null) {
+            recordWait(identity, System.nanoTime() - request.requestedAt);
+        }
+
+        remember(identity, granted);
+        if (granted) {
+            grants.incrementAndGet();
+            listener.onPermissionGranted(device, true);
+        }
+        else {
+            denials.incrementAndGet();
+            listener.onPermissionDenied(device, false);
+        }
+
+        promptNext();
+    }
+
+    //drops queued requests of a detached device
+    public void cancel(UsbDevice device) {
+        Iterator<Request> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().device.getDeviceName().equals(device.getDeviceName())) {
+                iterator.remove();
+            }
+        }
+
+        //the system dialog of a detached device is answered as denied, the next device may go now
+        if (active != null && active.device.getDeviceName().equals(device.getDeviceName())) {
+            active = null;
+            promptNext();
+        }
+    }
+
+    //lets the user be asked again for a device that was denied
+    public void forget(DeviceIdentity identity) {
+        final String key = decisionKey(identity);
+        decisions.remove(key);
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.deletePermissionDecision(key);
+            }
+        });
+    }
+
+    //null when the user never answered for the device
+    public Boolean getDecision(DeviceIdentity identity) {
+        return decisions.get(decisionKey(identity));
+    }
+
+    //wait between request and answer of the latest prompt for the device, -1 if it was never prompted
+    public long getLastWaitNanos(DeviceIdentity identity) {
+        Long wait = lastWaitNanos.get(decisionKey(identity));
+        return wait != null ? wait : -1;
+    }
+
+    public int getQueueLength() {
+        return queue.size() + (active != null ? 1 : 0);
+    }
+
+    public long getPromptCount() {
+        return prompts.get();
+    }
+
+    //requests answered without a prompt because permission was already there
+    public long getAlreadyGrantedCount() {
+        return alreadyGranted.get();
+    }
+
+    public long getGrantCount() {
+        return grants.get();
+    }
+
+    public long getDenialCount() {
+        return denials.get();
+    }
+
+    public long getAverageWaitNanos() {
+        long answered = grants.get() + denials.get();
+        return answered > 0 ? totalWaitNanos.get() / answered : 0;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    private boolean isQueued(UsbDevice device) {
+        if (active != null && active.device.getDeviceName().equals(device.getDeviceName())) {
+            return true;
+        }
+        for (Request request : queue) {
+            if (request.device.getDeviceName().equals(device.getDeviceName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void promptNext() {
+        while (active == null && !queue.isEmpty()) {
+            Request next = queue.poll();
+
+            //granted meanwhile, e.g. through the device filter of another app start
+            if (prompter.hasPermission(next.device)) {
+                alreadyGranted.incrementAndGet();
+                remember(next.identity, true);
+                listener.onPermissionGranted(next.device, false);
+                continue;
+            }
+
+            active = next;
+            prompts.incrementAndGet();
+            prompter.requestPermission(next.device);
+        }
+    }
+
+    private void remember(DeviceIdentity identity, final boolean granted) {
+        final String key = decisionKey(identity);
+        Boolean previous = decisions.put(key, granted);
+        if (previous != null && previous == granted) {
+            return;
+        }
+
+        final long decidedAt = System.currentTimeMillis();
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.savePermissionDecision(key, granted, decidedAt);
+            }
+        });
+    }
+
+    private void recordWait(DeviceIdentity identity, long waitNanos) {
+        lastWaitNanos.put(decisionKey(identity), waitNanos);
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            //retry until the maximum is stored
+        }
+    }
+}
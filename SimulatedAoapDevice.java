@@ -0,0 +1,330 @@
+package com.example.usbdb;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+//pure JVM AoapTransport that behaves like an Android phone answering the AOAP control requests.
+//Latency, failures, short reads and the protocol version can be configured, so the handshake
+//in AOAP and UsbUtils can be timed and load tested without hardware.
+//Protocol version 2 adds audio mode and HID requests. Once accessory mode is started the bulk
+//endpoints loop back: everything written can be read again.
+public class SimulatedAoapDevice implements AoapTransport, AccessoryBulkTransport {
+
+    private static final int USB_DIR_IN = 0x80;
+
+    private volatile int protocolVersion;
+    private volatile long transferLatencyNanos;
+    private volatile double failureRate;
+    private volatile double shortReadRate;
+    private volatile int failAtTransfer = -1;
+    private final Random random;
+
+    private final String[] receivedStrings = new String[6];
+    private volatile boolean accessoryStarted;
+    private volatile int audioMode;
+    private volatile boolean rejectAudioMode;
+    //descriptor length announced by request 54 and bytes received by request 56, per HID id
+    private final Map<Integer, byte[]> hidDescriptors = new HashMap<>();
+    private final Map<Integer, Integer> hidEvents = new HashMap<>();
+    //bulk loopback, guarded by itself
+    private final ArrayDeque<byte[]> loopback = new ArrayDeque<>();
+    private volatile boolean closed;
+    private final AtomicInteger transferCount = new AtomicInteger();
+
+    public SimulatedAoapDevice(int protocolVersion) {
+        this(protocolVersion, 0L);
+    }
+
+    //seed makes injected failures and short reads repeatable between benchmark runs
+    public SimulatedAoapDevice(int protocolVersion, long seed) {
+        this.protocolVersion = protocolVersion;
+        this.random = new Random(seed);
+    }
+
+    //0 means the device does not support accessory mode and rejects request 51
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public void setTransferLatency(long latency, TimeUnit unit) {
+        this.transferLatencyNanos = unit.toNanos(latency);
+    }
+
+    //probability (0..1) that a transfer fails with -1
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    //probability (0..1) that a transfer moves fewer bytes than requested
+    public void setShortReadRate(double shortReadRate) {
+        this.shortReadRate = shortReadRate;
+    }
+
+    //a protocol version 2 device that still fails request 58, e.g. audio disabled by the user
+    public void setRejectAudioMode(boolean rejectAudioMode) {
+        this.rejectAudioMode = rejectAudioMode;
+    }
+
+    //makes exactly the n-th transfer (counting from 1) fail, -1 disables
+    public void setFailAtTransfer(int transferNumber) {
+        this.failAtTransfer = transferNumber;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+
+        if (closed) {
+            return -1;
+        }
+
+        int transferNumber = transferCount.incrementAndGet();
+
+        //a transfer slower than its timeout costs the full timeout and fails, like the kernel does
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (timeout > 0 && transferLatencyNanos > timeoutNanos) {
+            LockSupport.parkNanos(timeoutNanos);
+            return -1;
+        }
+        if (transferLatencyNanos > 0) {
+            LockSupport.parkNanos(transferLatencyNanos);
+        }
+
+        //an interrupt ends the wait early, the transfer fails like one to a device that was just detached
+        if (Thread.currentThread().isInterrupted()) {
+            return -1;
+        }
+
+        if (transferNumber == failAtTransfer || nextChance(failureRate)) {
+            return -1;
+        }
+
+        boolean shortRead = length > 0 && nextChance(shortReadRate);
+
+        switch (request) {
+            case AOAP.ACCESSORY_GET_PROTOCOL:
+                if ((requestType & USB_DIR_IN) == 0 || protocolVersion == 0 || buffer == null || length < 2) {
+                    return -1;
+                }
+                buffer[0] = (byte) protocolVersion;
+                buffer[1] = (byte) (protocolVersion >> 8);
+                return shortRead ? 1 : 2;
+
+            case AOAP.ACCESSORY_SEND_STRING:
+                if (protocolVersion == 0 || index < 0 || index >= receivedStrings.length) {
+                    return -1;
+                }
+                receivedStrings[index] = decode(buffer, length);
+                return shortRead ? length - 1 : length;
+
+            case AOAP.ACCESSORY_START:
+                if (protocolVersion == 0) {
+                    return -1;
+                }
+                accessoryStarted = true;
+                return 0;
+
+            case AOAP.ACCESSORY_SET_AUDIO_MODE:
+                if (protocolVersion < 2 || rejectAudioMode) {
+                    return -1;
+                }
+                audioMode = value;
+                return 0;
+
+            case AOAP.ACCESSORY_REGISTER_HID:
+                if (protocolVersion < 2) {
+                    return -1;
+                }
+                synchronized (hidDescriptors) {
+                    hidDescriptors.put(value, new byte[index]);
+                    hidEvents.put(value, 0);
+                }
+                return 0;
+
+            case AOAP.ACCESSORY_SET_HID_REPORT_DESC:
+                synchronized (hidDescriptors) {
+                    byte[] descriptor = hidDescriptors.get(value);
+                    if (protocolVersion < 2 || descriptor == null || index + length > descriptor.length) {
+                        return -1;
+                    }
+                    System.arraycopy(buffer, 0, descriptor, index, length);
+                }
+                return shortRead ? length - 1 : length;
+
+            case AOAP.ACCESSORY_SEND_HID_EVENT:
+                synchronized (hidDescriptors) {
+                    if (protocolVersion < 2 || !hidEvents.containsKey(value)) {
+                        return -1;
+                    }
+                    hidEvents.put(value, hidEvents.get(value) + 1);
+                }
+                return length;
+
+            case AOAP.ACCESSORY_UNREGISTER_HID:
+                synchronized (hidDescriptors) {
+                    if (protocolVersion < 2 || hidDescriptors.remove(value) == null) {
+                        return -1;
+                    }
+                    hidEvents.remove(value);
+                }
+                return 0;
+
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public int bulkRead(byte[] buffer, int offset, int length, int timeout) {
+        if (closed || !accessoryStarted) {
+            return -1;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (loopback) {
+            while (loopback.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (timeout > 0 && remaining <= 0) {
+                    return -1;
+                }
+                try {
+                    if (timeout > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(loopback, remaining);
+                    }
+                    else {
+                        loopback.wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+                if (closed) {
+                    return -1;
+                }
+            }
+
+            //like USB, one transfer never returns more than one written packet
+            byte[] packet = loopback.poll();
+            int count = Math.min(length, packet.length);
+            System.arraycopy(packet, 0, buffer, offset, count);
+            if (count < packet.length) {
+                byte[] rest = new byte[packet.length - count];
+                System.arraycopy(packet, count, rest, 0, rest.length);
+                loopback.addFirst(rest);
+            }
+            return count;
+        }
+    }
+
+    @Override
+    public int bulkWrite(byte[] buffer, int offset, int length, int timeout) {
+        if (closed || !accessoryStarted) {
+            return -1;
+        }
+        if (transferLatencyNanos > 0) {
+            LockSupport.parkNanos(transferLatencyNanos);
+        }
+        if (nextChance(failureRate)) {
+            return -1;
+        }
+
+        int count = nextChance(shortReadRate) && length > 1 ? length / 2 : length;
+        byte[] packet = new byte[count];
+        System.arraycopy(buffer, offset, packet, 0, count);
+        synchronized (loopback) {
+            loopback.add(packet);
+            loopback.notifyAll();
+        }
+        return count;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return 512;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (loopback) {
+            loopback.notifyAll();
+        }
+    }
+
+    public String getReceivedString(int index) {
+        return receivedStrings[index];
+    }
+
+    public boolean isAccessoryStarted() {
+        return accessoryStarted;
+    }
+
+    //value of the last ACCESSORY_SET_AUDIO_MODE, 0 if none was received
+    public int getAudioMode() {
+        return audioMode;
+    }
+
+    //report descriptor received for the HID id, null if it is not registered
+    public byte[] getHidDescriptor(int id) {
+        synchronized (hidDescriptors) {
+            return hidDescriptors.get(id);
+        }
+    }
+
+    public int getHidEventCount(int id) {
+        synchronized (hidDescriptors) {
+            Integer count = hidEvents.get(id);
+            return count != null ? count : 0;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getTransferCount() {
+        return transferCount.get();
+    }
+
+    //puts the device back into its just-plugged-in state, keeping the configuration
+    public void reset() {
+        for (int i = 0; i < receivedStrings.length; i++) {
+            receivedStrings[i] = null;
+        }
+        accessoryStarted = false;
+        audioMode = 0;
+        synchronized (hidDescriptors) {
+            hidDescriptors.clear();
+            hidEvents.clear();
+        }
+        synchronized (loopback) {
+            loopback.clear();
+        }
+        closed = false;
+        transferCount.set(0);
+    }
+
+    private boolean nextChance(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    //strings arrive null terminated
+    private static String decode(byte[] buffer, int length) {
+        int end = 0;
+        while (end < length && buffer[end] != 0) {
+            end++;
+        }
+        return new String(buffer, 0, end, Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.usbdb;
+
+//one row of the usb_devices table
+public class StoredDevice {
+
+    private final long srNo;
+    private final String deviceName;
+    private final int vendorId;
+    private final int productId;
+    private final String serialNumber;
+    private final String manufacturer;
+    private final String productName;
+    private final String deviceType;
+    private final long attachTime;
+
+    public StoredDevice(long srNo, String deviceName, int vendorId, int productId, String serialNumber,
+                        String manufacturer, String productName, String deviceType, long attachTime) {
+        this.srNo = srNo;
+        this.deviceName = deviceName;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.serialNumber = serialNumber;
+        this.manufacturer = manufacturer;
+        this.productName = productName;
+        this.deviceType = deviceType;
+        this.attachTime = attachTime;
+    }
+
+    public long getSrNo() {
+        return srNo;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    public String getDeviceType() {
+        return deviceType;
+    }
+
+    //epoch millis
+    public long getAttachTime() {
+        return attachTime;
+    }
+
+    public DeviceIdentity getIdentity() {
+        return new DeviceIdentity(vendorId, productId, serialNumber, deviceName);
+    }
+}
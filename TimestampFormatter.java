@@ -0,0 +1,43 @@
+package com.example.usbdb;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+//formats epoch millis as "yyyy-MM-dd HH:mm:ss".
+//Each thread keeps its own SimpleDateFormat and the last formatted second, so repeated calls within
+//the same second return the cached string without allocating.
+//java.time is not used because it needs API 26.
+public final class TimestampFormatter {
+
+    private static final String PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private static final ThreadLocal<TimestampFormatter> formatters = new ThreadLocal<TimestampFormatter>() {
+        @Override
+        protected TimestampFormatter initialValue() {
+            return new TimestampFormatter();
+        }
+    };
+
+    private final SimpleDateFormat format = new SimpleDateFormat(PATTERN, Locale.US);
+    private final Date date = new Date();
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedText;
+
+    private TimestampFormatter() {
+    }
+
+    public static String format(long epochMillis) {
+        return formatters.get().formatMillis(epochMillis);
+    }
+
+    private String formatMillis(long epochMillis) {
+        long second = epochMillis / 1000L;
+        if (second != cachedSecond) {
+            date.setTime(epochMillis);
+            cachedText = format.format(date);
+            cachedSecond = second;
+        }
+        return cachedText;
+    }
+}
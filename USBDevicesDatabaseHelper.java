@@ -1,46 +1,343 @@
 package com.example.usbdb;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
 import android.util.Log;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
-public class USBDevicesDatabaseHelper extends SQLiteOpenHelper {
+public class USBDevicesDatabaseHelper extends SQLiteOpenHelper implements DeviceClassificationCache.Store, DeviceEventLog.Sink,
+        AccessoryCapabilities.Store, PermissionCoordinator.Store, DeviceClassifier.Store, DeviceWriteBehind.Sink {
 
     private static final String TAG = "USB_SQLite_DB";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 9;
     private static final String DATABASE_NAME = "usb_devices.db";
     private static final String TABLE_NAME = "usb_devices";
-    private static final String COLUMN_SR_NO = "sr_no";
-    private static final String COLUMN_DEVICE_NAME = "device_name";
-    private static final String COLUMN_VENDOR_ID = "vendor_id";
-    private static final String COLUMN_PRODUCT_ID = "product_id";
-    private static final String COLUMN_DEVICE_SERIAL_NUMBER = "serial_number";
-    private static final String COLUMN_MANUFACTURER = "manufacturer";
-    private static final String COLUMN_PRODUCT_NAME = "product_name";
-    private static final String COLUMN_DEVICE_TYPE = "device_type";
-    private static final String COLUMN_DEVICE_ATTACH_DATETIME = "date_time";
+    public static final String COLUMN_SR_NO = "sr_no";
+    public static final String COLUMN_DEVICE_NAME = "device_name";
+    public static final String COLUMN_VENDOR_ID = "vendor_id";
+    public static final String COLUMN_PRODUCT_ID = "product_id";
+    public static final String COLUMN_DEVICE_SERIAL_NUMBER = "serial_number";
+    public static final String COLUMN_MANUFACTURER = "manufacturer";
+    public static final String COLUMN_PRODUCT_NAME = "product_name";
+    public static final String COLUMN_DEVICE_TYPE = "device_type";
+    public static final String COLUMN_DEVICE_ATTACH_DATETIME = "date_time";
+    private static final String INDEX_DEVICE_IDENTITY = "usb_devices_identity";
+    private static final String INDEX_DEVICE_NAME = "usb_devices_device_name";
+    private static final String INDEX_ATTACH_TIME = "usb_devices_attach_time";
+
+    //classification cache table, keyed by DeviceIdentity key
+    private static final String CLASSIFICATION_TABLE_NAME = "device_classifications";
+    private static final String COLUMN_DEVICE_KEY = "device_key";
+    private static final String COLUMN_PROTOCOL_VERSION = "protocol_version";
+    private static final String COLUMN_CLASSIFIED_AT = "classified_at";
+
+    //AOAP capabilities negotiated per device, keyed by DeviceIdentity key
+    private static final String CAPABILITIES_TABLE_NAME = "accessory_capabilities";
+    private static final String COLUMN_FEATURES = "features";
+    private static final String COLUMN_NEGOTIATED_AT = "negotiated_at";
+
+    //the user's answer to the USB permission prompt, keyed by PermissionCoordinator.decisionKey
+    private static final String PERMISSIONS_TABLE_NAME = "device_permissions";
+    private static final String COLUMN_GRANTED = "granted";
+    private static final String COLUMN_DECIDED_AT = "decided_at";
+
+    //VID/PID rules of DeviceClassifier, applied in rule_id order. -1 stands for DeviceClassifier.ANY
+    private static final String CLASSIFIER_RULES_TABLE_NAME = "classifier_rules";
+    private static final String COLUMN_RULE_ID = "rule_id";
+    private static final String COLUMN_PRODUCT_ID_FROM = "product_id_from";
+    private static final String COLUMN_PRODUCT_ID_TO = "product_id_to";
+
+    //append-only event history
+    private static final String EVENTS_TABLE_NAME = "usb_device_events";
+    private static final String COLUMN_EVENT_ID = "event_id";
+    private static final String COLUMN_EVENT_TYPE = "event_type";
+    private static final String COLUMN_EVENT_TIME = "event_time";
+    private static final String COLUMN_EVENT_DETAIL = "detail";
+
+    //attach time and type updates of known rows are written at most this often, or when this many devices are pending
+    private static final long WRITE_BEHIND_FLUSH_MS = 1000;
+    private static final int WRITE_BEHIND_BATCH_SIZE = 64;
+
+    //results of upsertUSBDevice
+    public static final int UPSERT_FAILED = -1;
+    public static final int UPSERT_INSERTED = 0;
+    public static final int UPSERT_UPDATED = 1;
+
+    //a device is identified by (vendor_id, product_id, serial_number) through the unique index.
+    //Devices without serial number fall back to (device_name, vendor_id, product_id) like DeviceIdentity,
+    //device_name has its own index.
+    private static final String WHERE_SERIAL_IDENTITY = " WHERE " +
+            COLUMN_VENDOR_ID + "=? AND " + COLUMN_PRODUCT_ID + "=? AND " + COLUMN_DEVICE_SERIAL_NUMBER + "=?";
+    private static final String WHERE_NAME_IDENTITY = " WHERE " +
+            COLUMN_DEVICE_NAME + "=? AND " + COLUMN_VENDOR_ID + "=? AND " + COLUMN_PRODUCT_ID + "=? AND " +
+            COLUMN_DEVICE_SERIAL_NUMBER + " IS NULL";
+
+    //column order read by readStoredDevice
+    private static final String[] DEVICE_COLUMNS = {
+            COLUMN_SR_NO,
+            COLUMN_DEVICE_NAME,
+            COLUMN_VENDOR_ID,
+            COLUMN_PRODUCT_ID,
+            COLUMN_DEVICE_SERIAL_NUMBER,
+            COLUMN_MANUFACTURER,
+            COLUMN_PRODUCT_NAME,
+            COLUMN_DEVICE_TYPE,
+            COLUMN_DEVICE_ATTACH_DATETIME
+    };
+
     private static USBDevicesDatabaseHelper usbDevicesDatabaseHelper;
 
-    public USBDevicesDatabaseHelper(Context context) {
+    //database stays open for the life of the process, statements are compiled once and reused
+    private SQLiteDatabase database;
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement updateAttachTimeBySerialStatement;
+    private SQLiteStatement updateAttachTimeByNameStatement;
+    private SQLiteStatement updateDeviceTypeBySerialStatement;
+    private SQLiteStatement updateDeviceTypeByNameStatement;
+    private SQLiteStatement updateAttachTimeAndTypeBySerialStatement;
+    private SQLiteStatement updateAttachTimeAndTypeByNameStatement;
+    private SQLiteStatement deleteBySerialStatement;
+    private SQLiteStatement deleteByNameStatement;
+    private SQLiteStatement deleteBySrNoStatement;
+    private SQLiteStatement attachTimeLookupStatement;
+    private SQLiteStatement adoptSerialStatement;
+    private SQLiteStatement pathRowAttachTimeStatement;
+    private SQLiteStatement saveClassificationStatement;
+    private SQLiteStatement deleteClassificationStatement;
+    private SQLiteStatement saveCapabilitiesStatement;
+    private SQLiteStatement deleteCapabilitiesStatement;
+    private SQLiteStatement savePermissionStatement;
+    private SQLiteStatement deletePermissionStatement;
+    private SQLiteStatement insertEventStatement;
+
+    private final DeviceWriteBehind writeBehind;
+
+    //histograms of every operation, held so timing one is no lookup by name
+    private static final LatencyHistogram insertTimer = UsbMetrics.database(UsbMetrics.DB_INSERT);
+    private static final LatencyHistogram checkTimer = UsbMetrics.database(UsbMetrics.DB_CHECK);
+    private static final LatencyHistogram upsertTimer = UsbMetrics.database(UsbMetrics.DB_UPSERT);
+    private static final LatencyHistogram updateTypeTimer = UsbMetrics.database(UsbMetrics.DB_UPDATE_TYPE);
+    private static final LatencyHistogram deleteTimer = UsbMetrics.database(UsbMetrics.DB_DELETE);
+    private static final LatencyHistogram queryAllTimer = UsbMetrics.database(UsbMetrics.DB_QUERY_ALL);
+    private static final LatencyHistogram queryPageTimer = UsbMetrics.database(UsbMetrics.DB_QUERY_PAGE);
+    private static final LatencyHistogram streamPageTimer = UsbMetrics.database(UsbMetrics.DB_STREAM_PAGE);
+    private static final LatencyHistogram lookupAttachTimeTimer = UsbMetrics.database(UsbMetrics.DB_LOOKUP_ATTACH_TIME);
+    private static final LatencyHistogram writeEventsTimer = UsbMetrics.database(UsbMetrics.DB_WRITE_EVENTS);
+    private static final LatencyHistogram writeDevicesTimer = UsbMetrics.database(UsbMetrics.DB_WRITE_DEVICES);
+    private static final LatencyHistogram loadIndexTimer = UsbMetrics.database(UsbMetrics.DB_LOAD_INDEX);
+    private static final LatencyHistogram loadClassificationTimer = UsbMetrics.database(UsbMetrics.DB_LOAD_CLASSIFICATION);
+    private static final LatencyHistogram loadRecentClassificationsTimer = UsbMetrics.database(UsbMetrics.DB_LOAD_RECENT_CLASSIFICATIONS);
+    private static final LatencyHistogram saveClassificationTimer = UsbMetrics.database(UsbMetrics.DB_SAVE_CLASSIFICATION);
+    private static final LatencyHistogram deleteClassificationTimer = UsbMetrics.database(UsbMetrics.DB_DELETE_CLASSIFICATION);
+    private static final LatencyHistogram loadCapabilitiesTimer = UsbMetrics.database(UsbMetrics.DB_LOAD_CAPABILITIES);
+    private static final LatencyHistogram saveCapabilitiesTimer = UsbMetrics.database(UsbMetrics.DB_SAVE_CAPABILITIES);
+    private static final LatencyHistogram deleteCapabilitiesTimer = UsbMetrics.database(UsbMetrics.DB_DELETE_CAPABILITIES);
+    private static final LatencyHistogram loadPermissionsTimer = UsbMetrics.database(UsbMetrics.DB_LOAD_PERMISSIONS);
+    private static final LatencyHistogram savePermissionTimer = UsbMetrics.database(UsbMetrics.DB_SAVE_PERMISSION);
+    private static final LatencyHistogram deletePermissionTimer = UsbMetrics.database(UsbMetrics.DB_DELETE_PERMISSION);
+    private static final LatencyHistogram loadRulesTimer = UsbMetrics.database(UsbMetrics.DB_LOAD_RULES);
+    private static final LatencyHistogram replaceRulesTimer = UsbMetrics.database(UsbMetrics.DB_REPLACE_RULES);
+
+    //in-memory index of usb_devices by identity and sr_no, loaded on first use and kept in step with
+    //every insert, update and delete of this helper
+    private DeviceIndex deviceIndex;
+
+    private USBDevicesDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        writeBehind = new DeviceWriteBehind(this, WRITE_BEHIND_BATCH_SIZE, WRITE_BEHIND_FLUSH_MS);
+    }
+
+    //returns the process wide helper. Application context is held so no Activity is leaked
+    public static synchronized USBDevicesDatabaseHelper getInstance(Context context) {
+        if (usbDevicesDatabaseHelper == null) {
+            usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context.getApplicationContext());
+        }
+        return usbDevicesDatabaseHelper;
+    }
+
+    //WAL lets readers run on pooled connections while a write is in progress
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    //opens database on first use and compiles the statements used by the static methods
+    private synchronized SQLiteDatabase getDatabase() {
+        if (database == null || !database.isOpen()) {
+            database = getWritableDatabase();
+
+            //identity conflicts are reported as -1 instead of an exception
+            insertStatement = database.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME + " (" +
+                    COLUMN_DEVICE_NAME + ", " +
+                    COLUMN_VENDOR_ID + ", " +
+                    COLUMN_PRODUCT_ID + ", " +
+                    COLUMN_DEVICE_SERIAL_NUMBER + ", " +
+                    COLUMN_MANUFACTURER + ", " +
+                    COLUMN_PRODUCT_NAME + ", " +
+                    COLUMN_DEVICE_TYPE + ", " +
+                    COLUMN_DEVICE_ATTACH_DATETIME +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+
+            String updateAttachTime = "UPDATE " + TABLE_NAME + " SET " + COLUMN_DEVICE_ATTACH_DATETIME + "=?";
+            updateAttachTimeBySerialStatement = database.compileStatement(updateAttachTime + WHERE_SERIAL_IDENTITY);
+            updateAttachTimeByNameStatement = database.compileStatement(updateAttachTime + WHERE_NAME_IDENTITY);
+
+            String updateDeviceType = "UPDATE " + TABLE_NAME + " SET " + COLUMN_DEVICE_TYPE + "=?";
+            updateDeviceTypeBySerialStatement = database.compileStatement(updateDeviceType + WHERE_SERIAL_IDENTITY);
+            updateDeviceTypeByNameStatement = database.compileStatement(updateDeviceType + WHERE_NAME_IDENTITY);
+
+            String updateAttachTimeAndType = "UPDATE " + TABLE_NAME + " SET " + COLUMN_DEVICE_ATTACH_DATETIME + "=?, " +
+                    COLUMN_DEVICE_TYPE + "=?";
+            updateAttachTimeAndTypeBySerialStatement = database.compileStatement(updateAttachTimeAndType + WHERE_SERIAL_IDENTITY);
+            updateAttachTimeAndTypeByNameStatement = database.compileStatement(updateAttachTimeAndType + WHERE_NAME_IDENTITY);
+
+            String delete = "DELETE FROM " + TABLE_NAME;
+            deleteBySerialStatement = database.compileStatement(delete + WHERE_SERIAL_IDENTITY);
+            deleteByNameStatement = database.compileStatement(delete + WHERE_NAME_IDENTITY);
+
+            //gives a row stored before its serial number was readable the serial, unless a row has it already
+            adoptSerialStatement = database.compileStatement("UPDATE OR IGNORE " + TABLE_NAME +
+                    " SET " + COLUMN_DEVICE_SERIAL_NUMBER + "=?" + WHERE_NAME_IDENTITY);
+            pathRowAttachTimeStatement = database.compileStatement("SELECT " + COLUMN_DEVICE_ATTACH_DATETIME +
+                    " FROM " + TABLE_NAME + WHERE_NAME_IDENTITY + " LIMIT 1");
+            deleteBySrNoStatement = database.compileStatement(delete + " WHERE " + COLUMN_SR_NO + "=?");
+
+            attachTimeLookupStatement = database.compileStatement("SELECT " + COLUMN_DEVICE_ATTACH_DATETIME +
+                    " FROM " + TABLE_NAME +
+                    " WHERE " + COLUMN_DEVICE_NAME + "=? AND " + COLUMN_VENDOR_ID + "=? AND " + COLUMN_PRODUCT_ID + "=?" +
+                    " LIMIT 1");
+
+            saveClassificationStatement = database.compileStatement("INSERT OR REPLACE INTO " + CLASSIFICATION_TABLE_NAME + " (" +
+                    COLUMN_DEVICE_KEY + ", " +
+                    COLUMN_VENDOR_ID + ", " +
+                    COLUMN_PRODUCT_ID + ", " +
+                    COLUMN_DEVICE_SERIAL_NUMBER + ", " +
+                    COLUMN_PROTOCOL_VERSION + ", " +
+                    COLUMN_DEVICE_TYPE + ", " +
+                    COLUMN_CLASSIFIED_AT +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+
+            deleteClassificationStatement = database.compileStatement("DELETE FROM " + CLASSIFICATION_TABLE_NAME +
+                    " WHERE " + COLUMN_DEVICE_KEY + "=?");
+
+            saveCapabilitiesStatement = database.compileStatement("INSERT OR REPLACE INTO " + CAPABILITIES_TABLE_NAME + " (" +
+                    COLUMN_DEVICE_KEY + ", " +
+                    COLUMN_PROTOCOL_VERSION + ", " +
+                    COLUMN_FEATURES + ", " +
+                    COLUMN_NEGOTIATED_AT +
+                    ") VALUES (?, ?, ?, ?)");
+
+            deleteCapabilitiesStatement = database.compileStatement("DELETE FROM " + CAPABILITIES_TABLE_NAME +
+                    " WHERE " + COLUMN_DEVICE_KEY + "=?");
+
+            savePermissionStatement = database.compileStatement("INSERT OR REPLACE INTO " + PERMISSIONS_TABLE_NAME + " (" +
+                    COLUMN_DEVICE_KEY + ", " +
+                    COLUMN_GRANTED + ", " +
+                    COLUMN_DECIDED_AT +
+                    ") VALUES (?, ?, ?)");
+
+            deletePermissionStatement = database.compileStatement("DELETE FROM " + PERMISSIONS_TABLE_NAME +
+                    " WHERE " + COLUMN_DEVICE_KEY + "=?");
+
+            insertEventStatement = database.compileStatement("INSERT INTO " + EVENTS_TABLE_NAME + " (" +
+                    COLUMN_DEVICE_KEY + ", " +
+                    COLUMN_EVENT_TYPE + ", " +
+                    COLUMN_EVENT_TIME + ", " +
+                    COLUMN_EVENT_DETAIL +
+                    ") VALUES (?, ?, ?, ?)");
+        }
+        return database;
+    }
+
+    //SQLiteStatement does not accept null in bindString
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static String getSerialNumber(UsbDevice device) {
+        return DeviceIdentity.readSerialNumber(device);
+    }
+
+    //binds leading values (String or Long) followed by the identity of the device and runs the matching
+    //indexed statement. Returns number of rows affected.
+    private static int executeForDevice(SQLiteStatement bySerial, SQLiteStatement byName, UsbDevice device, Object... values) {
+        return execute(bySerial, byName, device.getVendorId(), device.getProductId(), getSerialNumber(device),
+                device.getDeviceName(), values);
+    }
+
+    //like executeForDevice for an identity read earlier, e.g. when the device may be detached by now
+    private static int executeForIdentity(SQLiteStatement bySerial, SQLiteStatement byName, DeviceIdentity identity, Object... values) {
+        return execute(bySerial, byName, identity.getVendorId(), identity.getProductId(), identity.getSerialNumber(),
+                identity.getDeviceName(), values);
+    }
+
+    private static int execute(SQLiteStatement bySerial, SQLiteStatement byName, int vendorId, int productId,
+                               String serialNumber, String deviceName, Object... values) {
+
+        SQLiteStatement statement = serialNumber != null ? bySerial : byName;
+
+        synchronized (statement) {
+            int index = 1;
+            for (Object value : values) {
+                if (value instanceof Long) {
+                    statement.bindLong(index++, (Long) value);
+                }
+                else {
+                    bindStringOrNull(statement, index++, (String) value);
+                }
+            }
+
+            if (serialNumber != null) {
+                statement.bindLong(index++, vendorId);
+                statement.bindLong(index++, productId);
+                statement.bindString(index, serialNumber);
+            }
+            else {
+                bindStringOrNull(statement, index++, deviceName);
+                statement.bindLong(index++, vendorId);
+                statement.bindLong(index, productId);
+            }
+
+            int rowsAffected = statement.executeUpdateDelete();
+            statement.clearBindings();
+            return rowsAffected;
+        }
     }
 
     //create table
     @Override
     public void onCreate(SQLiteDatabase db) {
 
+        createDeviceTable(db, TABLE_NAME);
+        createIdentityIndexes(db);
+        createClassificationTable(db);
+        createEventsTable(db);
+        createCapabilitiesTable(db);
+        createPermissionsTable(db);
+        createClassifierRulesTable(db);
+    }
+
+    //attach time is stored as epoch millis
+    private static void createDeviceTable(SQLiteDatabase db, String tableName) {
+
         String createUSBDeviceTable = "CREATE TABLE " +
-                TABLE_NAME + " (" +
+                tableName + " (" +
                 COLUMN_SR_NO + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                 COLUMN_DEVICE_NAME + " TEXT, " +
                 COLUMN_VENDOR_ID + " INTEGER, " +
@@ -49,208 +346,430 @@ public class USBDevicesDatabaseHelper extends SQLiteOpenHelper {
                 COLUMN_MANUFACTURER + " TEXT, " +
                 COLUMN_PRODUCT_NAME + " TEXT," +
                 COLUMN_DEVICE_TYPE + " TEXT," +
-                COLUMN_DEVICE_ATTACH_DATETIME + " TEXT" +
+                COLUMN_DEVICE_ATTACH_DATETIME + " INTEGER" +
                 ") ";
 
         //to execute sql query
         db.execSQL(createUSBDeviceTable);
     }
 
+    private static void createIdentityIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_DEVICE_IDENTITY + " ON " + TABLE_NAME + " (" +
+                COLUMN_VENDOR_ID + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_DEVICE_SERIAL_NUMBER + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_DEVICE_NAME + " ON " + TABLE_NAME + " (" +
+                COLUMN_DEVICE_NAME + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_ATTACH_TIME + " ON " + TABLE_NAME + " (" +
+                COLUMN_DEVICE_ATTACH_DATETIME + ")");
+    }
 
-    //when database need to be upgraded
+    private static void createClassificationTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CLASSIFICATION_TABLE_NAME + " (" +
+                COLUMN_DEVICE_KEY + " TEXT PRIMARY KEY, " +
+                COLUMN_VENDOR_ID + " INTEGER, " +
+                COLUMN_PRODUCT_ID + " INTEGER, " +
+                COLUMN_DEVICE_SERIAL_NUMBER + " TEXT, " +
+                COLUMN_PROTOCOL_VERSION + " INTEGER, " +
+                COLUMN_DEVICE_TYPE + " TEXT, " +
+                COLUMN_CLASSIFIED_AT + " INTEGER" +
+                ")");
+    }
+
+
+    private static void createEventsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + EVENTS_TABLE_NAME + " (" +
+                COLUMN_EVENT_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_DEVICE_KEY + " TEXT, " +
+                COLUMN_EVENT_TYPE + " TEXT, " +
+                COLUMN_EVENT_TIME + " INTEGER, " +
+                COLUMN_EVENT_DETAIL + " TEXT" +
+                ")");
+    }
+
+
+    private static void createCapabilitiesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CAPABILITIES_TABLE_NAME + " (" +
+                COLUMN_DEVICE_KEY + " TEXT PRIMARY KEY, " +
+                COLUMN_PROTOCOL_VERSION + " INTEGER, " +
+                COLUMN_FEATURES + " INTEGER, " +
+                COLUMN_NEGOTIATED_AT + " INTEGER" +
+                ")");
+    }
+
+
+    private static void createPermissionsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + PERMISSIONS_TABLE_NAME + " (" +
+                COLUMN_DEVICE_KEY + " TEXT PRIMARY KEY, " +
+                COLUMN_GRANTED + " INTEGER, " +
+                COLUMN_DECIDED_AT + " INTEGER" +
+                ")");
+    }
+
+
+    private static void createClassifierRulesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CLASSIFIER_RULES_TABLE_NAME + " (" +
+                COLUMN_RULE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_VENDOR_ID + " INTEGER, " +
+                COLUMN_PRODUCT_ID_FROM + " INTEGER, " +
+                COLUMN_PRODUCT_ID_TO + " INTEGER, " +
+                COLUMN_DEVICE_TYPE + " TEXT" +
+                ")");
+    }
+
+
+    //when database need to be upgraded.
+    //Each case migrates one version forward and falls through to the next, so existing rows are kept.
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Drop older table if existed
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-
-        // Create tables again
-        onCreate(db);
+        switch (oldVersion) {
+            case 1:
+                //version 1 could store the same device more than once, keep the latest row of each identity
+                db.execSQL("DELETE FROM " + TABLE_NAME +
+                        " WHERE " + COLUMN_DEVICE_SERIAL_NUMBER + " IS NOT NULL AND " + COLUMN_SR_NO + " NOT IN (" +
+                        "SELECT MAX(" + COLUMN_SR_NO + ") FROM " + TABLE_NAME +
+                        " WHERE " + COLUMN_DEVICE_SERIAL_NUMBER + " IS NOT NULL" +
+                        " GROUP BY " + COLUMN_VENDOR_ID + ", " + COLUMN_PRODUCT_ID + ", " + COLUMN_DEVICE_SERIAL_NUMBER + ")");
+                createIdentityIndexes(db);
+            case 2:
+                createClassificationTable(db);
+            case 3:
+                //date_time changes from "yyyy-MM-dd HH:mm:ss" local time TEXT to epoch millis INTEGER.
+                //SQLite cannot change a column type in place, so the table is rebuilt and the indexes recreated.
+                String columns = COLUMN_SR_NO + ", " + COLUMN_DEVICE_NAME + ", " + COLUMN_VENDOR_ID + ", " +
+                        COLUMN_PRODUCT_ID + ", " + COLUMN_DEVICE_SERIAL_NUMBER + ", " + COLUMN_MANUFACTURER + ", " +
+                        COLUMN_PRODUCT_NAME + ", " + COLUMN_DEVICE_TYPE;
+                String migratedTable = TABLE_NAME + "_v4";
+
+                createDeviceTable(db, migratedTable);
+                db.execSQL("INSERT INTO " + migratedTable + " (" + columns + ", " + COLUMN_DEVICE_ATTACH_DATETIME + ")" +
+                        " SELECT " + columns + ", CAST(strftime('%s', " + COLUMN_DEVICE_ATTACH_DATETIME + ", 'utc') AS INTEGER) * 1000" +
+                        " FROM " + TABLE_NAME);
+                db.execSQL("DROP TABLE " + TABLE_NAME);
+                db.execSQL("ALTER TABLE " + migratedTable + " RENAME TO " + TABLE_NAME);
+                createIdentityIndexes(db);
+            case 4:
+                createEventsTable(db);
+            case 5:
+                //attach time index for time range queries
+                createIdentityIndexes(db);
+            case 6:
+                createCapabilitiesTable(db);
+            case 7:
+                createPermissionsTable(db);
+            case 8:
+                createClassifierRulesTable(db);
+        }
     }
 
 
     //insert usb device information into database.
-    // It gets writable db instance, creates 'ContentValues' object with device information and inserts it into table
+    // It binds device information to the precompiled insert statement and executes it
     public static boolean insertUSBDevicestoDB(Context context, UsbDevice device) {
 
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context);
-
-        //get data repository in write mode
-        SQLiteDatabase db = usbDevicesDatabaseHelper.getWritableDatabase();
-
-        //creating map of values, where column names are keys
-        ContentValues values = new ContentValues();
+        long start = System.nanoTime();
+        USBDevicesDatabaseHelper helper = getInstance(context);
+        helper.getDatabase();
 
-        //passing values with its key-value pair
-        values.put(COLUMN_DEVICE_NAME, device.getDeviceName());
-        values.put(COLUMN_VENDOR_ID, device.getVendorId());
-        values.put(COLUMN_PRODUCT_ID, device.getProductId());
+        String manufacturer = null;
+        String productName = null;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            values.put(COLUMN_DEVICE_SERIAL_NUMBER, device.getSerialNumber());
-            values.put(COLUMN_MANUFACTURER, device.getManufacturerName());
-            values.put(COLUMN_PRODUCT_NAME, device.getProductName());
+            manufacturer = device.getManufacturerName();
+            productName = device.getProductName();
         }
-        values.put(COLUMN_DEVICE_TYPE, "NA");
-        values.put(COLUMN_DEVICE_ATTACH_DATETIME, getCurrentTimestamp());
 
-        //insert record in the table with values that are passed. Returns row ID
-        long newRowId = db.insert(TABLE_NAME, null, values);
+        String serialNumber = getSerialNumber(device);
+        long attachTime = System.currentTimeMillis();
+
+        long newRowId;
+        SQLiteStatement statement = helper.insertStatement;
+        synchronized (statement) {
+            bindStringOrNull(statement, 1, device.getDeviceName());
+            statement.bindLong(2, device.getVendorId());
+            statement.bindLong(3, device.getProductId());
+            bindStringOrNull(statement, 4, serialNumber);
+            bindStringOrNull(statement, 5, manufacturer);
+            bindStringOrNull(statement, 6, productName);
+            statement.bindString(7, DeviceType.NOT_CLASSIFIED.getLabel());
+            statement.bindLong(8, attachTime);
+
+            //insert record in the table with values that are passed. Returns row ID
+            newRowId = statement.executeInsert();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(insertTimer, start);
 
         if (newRowId != -1) {
-            Log.i(TAG, "Device added to the database successfully");
-            db.close();
+            helper.getDeviceIndex().put(newRowId, device.getVendorId(), device.getProductId(), serialNumber,
+                    device.getDeviceName(), attachTime, DeviceType.NOT_CLASSIFIED);
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Device added to the database successfully");
+            }
             return true;
         }
         else {
             Log.e(TAG, "Error inserting USB device information into database");
-            db.close();
             return false;
         }
     }
 
     //to check if usb device already exists in database.
-    //It queries db for matching device name or serial no.
+    //Updating the attachment time through the identity index tells us whether the row exists,
+    //so no separate query is needed.
     public static boolean checkUSBDeviceinDB(Context context, UsbDevice device) {
 
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context);
-        SQLiteDatabase db = usbDevicesDatabaseHelper.getReadableDatabase();
-
-        String deviceName = device.getDeviceName();
-        String serialNumber = null;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-            serialNumber = device.getSerialNumber();
-        }
-
-        String selection = COLUMN_DEVICE_SERIAL_NUMBER + "=? OR " + COLUMN_DEVICE_NAME + "=?";
-        String[] selectionArgs = {serialNumber, deviceName};
+        long start = System.nanoTime();
+        USBDevicesDatabaseHelper helper = getInstance(context);
+        helper.getDatabase();
 
+        int rowsAffected = executeForDevice(helper.updateAttachTimeBySerialStatement, helper.updateAttachTimeByNameStatement,
+                device, System.currentTimeMillis());
+        UsbMetrics.recordDatabase(checkTimer, start);
 
-        Cursor cursor = db.query(
-                TABLE_NAME,
-                new String[]{COLUMN_DEVICE_NAME, COLUMN_DEVICE_SERIAL_NUMBER, COLUMN_VENDOR_ID, COLUMN_PRODUCT_ID, COLUMN_PRODUCT_NAME, COLUMN_MANUFACTURER},
-                selection,
-                selectionArgs,
-                null,
-                null,
-                null,
-                null
-        );
-
-        if (cursor.getCount() > 0) {
+        if (rowsAffected > 0) {
             //usb device is already known
-            cursor.moveToFirst();
-
-//            String productNameFromDB = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PRODUCT_NAME));
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Attachment time updated successfully: " + device.getDeviceName());
+            }
+            return true;
+        }
+        return false;
+    }
 
-            // Update the attachment time in the database
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(COLUMN_DEVICE_ATTACH_DATETIME, getCurrentTimestamp());
+    //records an attach in one transaction: known devices get their attachment time updated,
+    //new devices are inserted. Both steps go through the identity indexes.
+    //SQLite on older Android releases has no INSERT ... ON CONFLICT DO UPDATE, so update-then-insert is used.
+    public static int upsertUSBDevice(Context context, UsbDevice device) {
+
+        long start = System.nanoTime();
+        USBDevicesDatabaseHelper helper = getInstance(context);
+
+        //a row the index knows only gets its attach time queued, merged with later updates.
+        //Under the write-behind lock, so a delete cannot remove the row between the lookup and the queueing
+        DeviceIdentity identity = DeviceIdentity.of(device);
+        DeviceIndex index = helper.getDeviceIndex();
+        long attachTime = System.currentTimeMillis();
+        synchronized (helper.writeBehind) {
+            if (!helper.writeBehind.isStored(identity) && index.contains(identity)) {
+                helper.writeBehind.markStored(identity);
+            }
+            if (helper.writeBehind.setAttachTime(identity, attachTime)) {
+                index.setAttachTime(identity, attachTime);
+                UsbMetrics.recordDatabase(upsertTimer, start);
+                return UPSERT_UPDATED;
+            }
+        }
 
-            //The “?” in whereClause parameter serves as a placeholder for statement.
-            int rowsAffected = db.update(
-                    TABLE_NAME,
-                    contentValues,
-                    selection,
-                    selectionArgs
-            );
+        SQLiteDatabase db = helper.getDatabase();
 
-            if (rowsAffected > 0) {
-                Log.i(TAG, "Attachment time updated successfully: " + device.getDeviceName());
+        int result;
+        db.beginTransactionNonExclusive();
+        try {
+            if (checkUSBDeviceinDB(context, device)) {
+                result = UPSERT_UPDATED;
+            }
+            //stored on an earlier attach before permission made the serial number readable
+            else if (identity.getSerialNumber() != null && helper.adoptSerialNumber(device, identity.getSerialNumber()) &&
+                    checkUSBDeviceinDB(context, device)) {
+                result = UPSERT_UPDATED;
+            }
+            else if (insertUSBDevicestoDB(context, device)) {
+                result = UPSERT_INSERTED;
             }
             else {
-                Log.e(TAG, "Error updating attachment time: " + device.getDeviceName());
+                result = UPSERT_FAILED;
             }
-
-            cursor.close();
-            return true;
+            db.setTransactionSuccessful();
         }
-        else {
-            cursor.close();
-            return false;
+        finally {
+            db.endTransaction();
         }
+        //not when the row was deleted since, its next attach time would be queued for nothing
+        synchronized (helper.writeBehind) {
+            if (result != UPSERT_FAILED && index.contains(identity)) {
+                helper.writeBehind.markStored(identity);
+            }
+        }
+        UsbMetrics.recordDatabase(upsertTimer, start);
+        return result;
     }
 
     // Updating Device Type column in database.
-    // It takes device and new device type as parameters, retrieves writable database instance and updates corresponding row in table
-    public static void UpdateUSBDeviceType(Context context, UsbDevice device, String deviceType) {
-
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context);
-        SQLiteDatabase db = usbDevicesDatabaseHelper.getWritableDatabase();
+    // It takes device and new device type as parameters and updates the row matching its identity
+    public static void UpdateUSBDeviceType(Context context, UsbDevice device, DeviceType deviceType) {
 
-        ContentValues contentValues1 = new ContentValues();
-        contentValues1.put(COLUMN_DEVICE_TYPE, deviceType);
+        long start = System.nanoTime();
+        USBDevicesDatabaseHelper helper = getInstance(context);
 
-        String serialNumber = null;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            serialNumber = device.getSerialNumber();
+        //merged into the pending write of the attach time
+        DeviceIdentity identity = DeviceIdentity.of(device);
+        if (helper.writeBehind.setDeviceType(identity, deviceType)) {
+            helper.getDeviceIndex().setDeviceType(identity, deviceType);
+            UsbMetrics.recordDatabase(updateTypeTimer, start);
+            return;
         }
-        String deviceName = device.getDeviceName();
 
-        int rowsAffected = db.update(TABLE_NAME, contentValues1, COLUMN_DEVICE_SERIAL_NUMBER + "=? OR " + COLUMN_DEVICE_NAME + "=?", new String[]{serialNumber, deviceName});
+        helper.getDatabase();
+
+        int rowsAffected = executeForDevice(helper.updateDeviceTypeBySerialStatement, helper.updateDeviceTypeByNameStatement,
+                device, deviceType.getLabel());
+
+        //on Android 10+ the row was inserted at attach, before permission made the serial number readable
+        if (rowsAffected == 0 && identity.getSerialNumber() != null && helper.adoptSerialNumber(device, identity.getSerialNumber())) {
+            rowsAffected = executeForDevice(helper.updateDeviceTypeBySerialStatement, helper.updateDeviceTypeByNameStatement,
+                    device, deviceType.getLabel());
+        }
+        UsbMetrics.recordDatabase(updateTypeTimer, start);
 
         if (rowsAffected > 0) {
-            Log.i(TAG, "Device type updated successfully: " + device.getDeviceName());
+            helper.getDeviceIndex().setDeviceType(identity, deviceType);
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Device type updated successfully: " + device.getDeviceName());
+            }
         }
         else {
             Log.e(TAG, "Error updating device type: " + device.getDeviceName());
         }
-
-        db.close();
     }
 
-    // Get current timestamp in "yyyy-MM-dd HH:mm:ss" format
-    private static String getCurrentTimestamp() {
-        Date date = new Date();
-        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        return format.format(date);
-    }
-
-    public static void deleteUSBDeviceFromDB(Context context, UsbDevice device) {
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context);
-        SQLiteDatabase db = usbDevicesDatabaseHelper.getWritableDatabase();
+    //from Android 10 the serial number can only be read once permission is granted, so a device attached
+    //before that is stored under its bus path, which changes with every plug-in. Once the serial is readable
+    //that row gets the serial number; when a row with the serial exists already, e.g. from an earlier
+    //plug-in, the path row is merged into it: its attach time is kept and the path row deleted.
+    //Returns false when there is no path row for the device.
+    private boolean adoptSerialNumber(UsbDevice device, String serialNumber) {
+
+        SQLiteDatabase db = getDatabase();
+        DeviceIdentity pathIdentity = new DeviceIdentity(device.getVendorId(), device.getProductId(), null, device.getDeviceName());
+        DeviceIdentity serialIdentity = new DeviceIdentity(device.getVendorId(), device.getProductId(), serialNumber, device.getDeviceName());
+
+        boolean adopted;
+        long mergedAttachTime = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            int rekeyed;
+            synchronized (adoptSerialStatement) {
+                adoptSerialStatement.bindString(1, serialNumber);
+                bindStringOrNull(adoptSerialStatement, 2, device.getDeviceName());
+                adoptSerialStatement.bindLong(3, device.getVendorId());
+                adoptSerialStatement.bindLong(4, device.getProductId());
+                rekeyed = adoptSerialStatement.executeUpdateDelete();
+                adoptSerialStatement.clearBindings();
+            }
 
-        String serialNumber = null;
-        String deviceName = device.getDeviceName();
+            if (rekeyed > 0) {
+                adopted = true;
+            }
+            else {
+                //ignored: the serial is stored in another row already, or there is no path row
+                synchronized (pathRowAttachTimeStatement) {
+                    bindStringOrNull(pathRowAttachTimeStatement, 1, device.getDeviceName());
+                    pathRowAttachTimeStatement.bindLong(2, device.getVendorId());
+                    pathRowAttachTimeStatement.bindLong(3, device.getProductId());
+                    try {
+                        mergedAttachTime = pathRowAttachTimeStatement.simpleQueryForLong();
+                    }
+                    catch (SQLiteDoneException e) {
+                        //no path row
+                    }
+                    pathRowAttachTimeStatement.clearBindings();
+                }
 
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-            serialNumber = device.getSerialNumber();
+                adopted = mergedAttachTime != 0;
+                if (adopted) {
+                    executeForDevice(updateAttachTimeBySerialStatement, updateAttachTimeByNameStatement, device, mergedAttachTime);
+                    synchronized (deleteByNameStatement) {
+                        bindStringOrNull(deleteByNameStatement, 1, device.getDeviceName());
+                        deleteByNameStatement.bindLong(2, device.getVendorId());
+                        deleteByNameStatement.bindLong(3, device.getProductId());
+                        deleteByNameStatement.executeUpdateDelete();
+                        deleteByNameStatement.clearBindings();
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
         }
 
-        if (serialNumber == null) {
-            Log.e(TAG, "Serial number is null for device: " + device.getDeviceName());
-            return;
+        if (adopted) {
+            DeviceIndex index = getDeviceIndex();
+            long srNo = index.getSrNo(pathIdentity);
+            if (mergedAttachTime != 0) {
+                index.remove(pathIdentity);
+                index.setAttachTime(serialIdentity, mergedAttachTime);
+            }
+            else if (srNo != 0) {
+                index.put(srNo, device.getVendorId(), device.getProductId(), serialNumber, device.getDeviceName(),
+                        index.getAttachTime(pathIdentity), index.getDeviceType(pathIdentity));
+            }
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Serial number adopted by the row of " + pathIdentity);
+            }
         }
+        return adopted;
+    }
+
+    // Get current timestamp in "yyyy-MM-dd HH:mm:ss" format
+    static String getCurrentTimestamp() {
+        return TimestampFormatter.format(System.currentTimeMillis());
+    }
 
-        int deletedRows = db.delete(TABLE_NAME,
-                COLUMN_DEVICE_NAME + "=? OR " + COLUMN_DEVICE_SERIAL_NUMBER + "=?",
-                new String[] {deviceName, serialNumber});
+    public static void deleteUSBDeviceFromDB(Context context, UsbDevice device) {
+        long start = System.nanoTime();
+        USBDevicesDatabaseHelper helper = getInstance(context);
+        helper.getDatabase();
+
+        //pending values are dropped before the row, both under the write-behind lock so a concurrent upsert
+        //either queues before the delete and is dropped with it, or finds no row and inserts
+        DeviceIdentity identity = DeviceIdentity.of(device);
+        DeviceIndex index = helper.getDeviceIndex();
+        int deletedRows;
+        synchronized (helper.writeBehind) {
+            helper.writeBehind.forget(identity);
+            deletedRows = executeForDevice(helper.deleteBySerialStatement, helper.deleteByNameStatement, device);
+            index.remove(identity);
+        }
+        UsbMetrics.recordDatabase(deleteTimer, start);
 
         if (deletedRows > 0) {
-            Log.i(TAG, "Device deleted successfully: " + device.getDeviceName());
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Device deleted successfully: " + device.getDeviceName());
+            }
         }
         else {
             Log.e(TAG, "Error deleting device: " + device.getDeviceName());
         }
-
-        db.close();
     }
 
+    //live devices that have a row in the table, matched by identity
     public List<UsbDevice> getAllUSBDevices(Context context) {
         List<UsbDevice> usbDevices = new ArrayList<>();
 
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context);
-        SQLiteDatabase db = usbDevicesDatabaseHelper.getReadableDatabase();
+        UsbManager usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        List<DeviceListItem> items = DeviceReconciler.reconcile(getAllStoredDevices(), usbManager.getDeviceList().values());
+
+        for (DeviceListItem item : items) {
+            // Add the UsbDevice object to the list
+            if (item.isConnected()) {
+                usbDevices.add(item.getLiveDevice());
+            }
+        }
 
-        Cursor cursor = db.query(TABLE_NAME, null, null, null, null, null, null);
+        return usbDevices;
+    }
+
+    //all rows of the table in sr_no order
+    public List<StoredDevice> getAllStoredDevices() {
+        long start = System.nanoTime();
+        List<StoredDevice> storedDevices = new ArrayList<>();
+
+        SQLiteDatabase db = getDatabase();
+
+        Cursor cursor = db.query(TABLE_NAME, DEVICE_COLUMNS, null, null, null, null, COLUMN_SR_NO);
 
         if (cursor != null && cursor.moveToFirst()) {
             do {
-                String productName = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DEVICE_NAME));
-                UsbDevice usbDevice = getUsbDeviceFromProductName(productName, context);
-
-                // Add the UsbDevice object to the list
-                if (usbDevice != null) {
-                    usbDevices.add(usbDevice);
-                }
+                storedDevices.add(readStoredDevice(cursor));
             }
             while (cursor.moveToNext());
         }
@@ -259,46 +778,586 @@ public class USBDevicesDatabaseHelper extends SQLiteOpenHelper {
             cursor.close();
         }
 
-        db.close();
+        UsbMetrics.recordDatabase(queryAllTimer, start);
+        return storedDevices;
+    }
 
-        return usbDevices;
+    //reads the current row of a cursor queried with DEVICE_COLUMNS
+    private static StoredDevice readStoredDevice(Cursor cursor) {
+        return new StoredDevice(
+                cursor.getLong(0),
+                cursor.getString(1),
+                cursor.getInt(2),
+                cursor.getInt(3),
+                cursor.getString(4),
+                cursor.getString(5),
+                cursor.getString(6),
+                cursor.getString(7),
+                cursor.getLong(8));
     }
 
-    private UsbDevice getUsbDeviceFromProductName(String productName, Context context) {
-        UsbManager usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+    //reads the current row of a cursor with any projection, columns not in the cursor are null or 0.
+    //indexes holds the position of each DEVICE_COLUMNS entry in the cursor, -1 when missing.
+    private static StoredDevice readStoredDevice(Cursor cursor, int[] indexes) {
+        return new StoredDevice(
+                cursor.getLong(indexes[0]),
+                indexes[1] >= 0 ? cursor.getString(indexes[1]) : null,
+                indexes[2] >= 0 ? cursor.getInt(indexes[2]) : 0,
+                indexes[3] >= 0 ? cursor.getInt(indexes[3]) : 0,
+                indexes[4] >= 0 ? cursor.getString(indexes[4]) : null,
+                indexes[5] >= 0 ? cursor.getString(indexes[5]) : null,
+                indexes[6] >= 0 ? cursor.getString(indexes[6]) : null,
+                indexes[7] >= 0 ? cursor.getString(indexes[7]) : null,
+                indexes[8] >= 0 ? cursor.getLong(indexes[8]) : 0);
+    }
 
-        for (UsbDevice device : usbManager.getDeviceList().values()) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                if (device.getProductName().equals(productName)) {
-                    return device;
-                }
+    //one page of rows with sr_no greater than afterSrNo, in sr_no order (keyset pagination).
+    //Pass 0 for the first page and the sr_no of the last row for the next one.
+    public List<StoredDevice> getDevicesPage(DeviceQuery query, long afterSrNo, int limit) {
+        return getDevicesPage(query, afterSrNo, limit, queryPageTimer);
+    }
+
+    //pages read by streamDevices are timed apart from the ones the UI asks for
+    List<StoredDevice> getDevicesPage(DeviceQuery query, long afterSrNo, int limit, LatencyHistogram timer) {
+
+        long start = System.nanoTime();
+
+        //pending values are overlaid on the rows below, but a filter on them needs them in the table
+        if (query.getDeviceType() != null || query.getAttachedFrom() != Long.MIN_VALUE || query.getAttachedTo() != Long.MAX_VALUE) {
+            writeBehind.flush();
+        }
+
+        StringBuilder selection = new StringBuilder(COLUMN_SR_NO + ">?");
+        List<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add(String.valueOf(afterSrNo));
+
+        if (query.getVendorId() != DeviceQuery.ANY_VENDOR) {
+            selection.append(" AND " + COLUMN_VENDOR_ID + "=?");
+            selectionArgs.add(String.valueOf(query.getVendorId()));
+        }
+        if (query.getDeviceType() != null) {
+            selection.append(" AND " + COLUMN_DEVICE_TYPE + "=?");
+            selectionArgs.add(query.getDeviceType());
+        }
+        if (query.getAttachedFrom() != Long.MIN_VALUE) {
+            selection.append(" AND " + COLUMN_DEVICE_ATTACH_DATETIME + ">=?");
+            selectionArgs.add(String.valueOf(query.getAttachedFrom()));
+        }
+        if (query.getAttachedTo() != Long.MAX_VALUE) {
+            selection.append(" AND " + COLUMN_DEVICE_ATTACH_DATETIME + "<=?");
+            selectionArgs.add(String.valueOf(query.getAttachedTo()));
+        }
+
+        String[] columns = getProjection(query);
+        Cursor cursor = getDatabase().query(TABLE_NAME, columns, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                null, null, COLUMN_SR_NO, String.valueOf(limit));
+
+        List<StoredDevice> page = new ArrayList<>(limit);
+        int[] indexes = new int[DEVICE_COLUMNS.length];
+        for (int i = 0; i < DEVICE_COLUMNS.length; i++) {
+            indexes[i] = cursor.getColumnIndex(DEVICE_COLUMNS[i]);
+        }
+
+        boolean overlay = writeBehind.hasPending();
+        while (cursor.moveToNext()) {
+            StoredDevice row = readStoredDevice(cursor, indexes);
+            page.add(overlay ? withPendingWrite(row) : row);
+        }
+        cursor.close();
+
+        UsbMetrics.recordDatabase(timer, start);
+        return page;
+    }
+
+    //streams every matching row, reading pageSize rows at a time
+    public Iterable<StoredDevice> streamDevices(final DeviceQuery query, final int pageSize) {
+        return new Iterable<StoredDevice>() {
+            @Override
+            public Iterator<StoredDevice> iterator() {
+                return new DevicePageIterator(USBDevicesDatabaseHelper.this, query, pageSize, streamPageTimer);
+            }
+        };
+    }
+
+    //requested columns plus sr_no, which keys the pages
+    private static String[] getProjection(DeviceQuery query) {
+        String[] columns = query.getColumns();
+        if (columns == null) {
+            return DEVICE_COLUMNS;
+        }
+
+        for (String column : columns) {
+            if (COLUMN_SR_NO.equals(column)) {
+                return columns;
             }
         }
 
-        return null;
+        String[] projection = new String[columns.length + 1];
+        projection[0] = COLUMN_SR_NO;
+        System.arraycopy(columns, 0, projection, 1, columns.length);
+        return projection;
     }
 
+    public static void deleteUSBDeviceById(Context context, long srNo) {
+        long start = System.nanoTime();
+        USBDevicesDatabaseHelper helper = getInstance(context);
+        helper.getDatabase();
+
+        //the index knows the identity of the row, so only its pending values are dropped.
+        //Without it every pending write is written first, see DeviceWriteBehind.forgetAll.
+        //Forgetting comes first and shares the write-behind lock with the delete, like in deleteUSBDeviceFromDB
+        DeviceIndex index = helper.getDeviceIndex();
+        DeviceIdentity identity;
+        int deletedRows;
+        synchronized (helper.writeBehind) {
+            identity = index.getIdentity(srNo);
+            if (identity != null) {
+                helper.writeBehind.forget(identity);
+            }
+            else {
+                helper.writeBehind.forgetAll();
+            }
 
-    public String getAttachmentTimestamp(Context context, UsbDevice device) {
+            SQLiteStatement statement = helper.deleteBySrNoStatement;
+            synchronized (statement) {
+                statement.bindLong(1, srNo);
+                deletedRows = statement.executeUpdateDelete();
+                statement.clearBindings();
+            }
+            index.removeBySrNo(srNo);
+        }
+        UsbMetrics.recordDatabase(deleteTimer, start);
 
-        usbDevicesDatabaseHelper = new USBDevicesDatabaseHelper(context);
-        SQLiteDatabase db = usbDevicesDatabaseHelper.getReadableDatabase();
+        if (deletedRows > 0) {
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Device deleted successfully: " + srNo);
+            }
+        }
+        else {
+            Log.e(TAG, "Error deleting device: " + srNo);
+        }
+    }
 
-        String[] projection = {COLUMN_DEVICE_ATTACH_DATETIME};
-        String selection = COLUMN_DEVICE_NAME + " = ? AND " + COLUMN_VENDOR_ID + " = ? AND " + COLUMN_PRODUCT_ID + " = ?";
-        String[] selectionArgs = {device.getDeviceName(), String.valueOf(device.getVendorId()), String.valueOf(device.getProductId())};
 
-        Cursor cursor = db.query(TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+    @Override
+    public DeviceClassificationCache.Classification loadClassification(String deviceKey) {
 
-        String timestamp = null;
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        Cursor cursor = db.query(CLASSIFICATION_TABLE_NAME,
+                new String[]{COLUMN_VENDOR_ID, COLUMN_PRODUCT_ID, COLUMN_DEVICE_SERIAL_NUMBER, COLUMN_PROTOCOL_VERSION, COLUMN_DEVICE_TYPE, COLUMN_CLASSIFIED_AT},
+                COLUMN_DEVICE_KEY + "=?",
+                new String[]{deviceKey},
+                null, null, null);
+
+        DeviceClassificationCache.Classification classification = null;
         if (cursor.moveToFirst()) {
-            timestamp = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_DEVICE_ATTACH_DATETIME));
+            DeviceIdentity identity = new DeviceIdentity(cursor.getInt(0), cursor.getInt(1), cursor.getString(2), null);
+            classification = new DeviceClassificationCache.Classification(identity, cursor.getInt(3), DeviceType.fromLabel(cursor.getString(4)),
+                    cursor.getLong(5));
+        }
+
+        cursor.close();
+        UsbMetrics.recordDatabase(loadClassificationTimer, start);
+        return classification;
+    }
+
+    @Override
+    public List<DeviceClassificationCache.Classification> loadRecentClassifications(int limit) {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        Cursor cursor = db.query(CLASSIFICATION_TABLE_NAME,
+                new String[]{COLUMN_VENDOR_ID, COLUMN_PRODUCT_ID, COLUMN_DEVICE_SERIAL_NUMBER, COLUMN_PROTOCOL_VERSION, COLUMN_DEVICE_TYPE, COLUMN_CLASSIFIED_AT},
+                null, null, null, null,
+                COLUMN_CLASSIFIED_AT + " DESC",
+                String.valueOf(limit));
+
+        List<DeviceClassificationCache.Classification> classifications = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            DeviceIdentity identity = new DeviceIdentity(cursor.getInt(0), cursor.getInt(1), cursor.getString(2), null);
+            classifications.add(new DeviceClassificationCache.Classification(identity, cursor.getInt(3), DeviceType.fromLabel(cursor.getString(4)),
+                    cursor.getLong(5)));
         }
 
         cursor.close();
-        db.close();
+        UsbMetrics.recordDatabase(loadRecentClassificationsTimer, start);
+        return classifications;
+    }
+
+    @Override
+    public void saveClassification(DeviceClassificationCache.Classification classification) {
+
+        long start = System.nanoTime();
+        getDatabase();
+
+        DeviceIdentity identity = classification.getIdentity();
+        SQLiteStatement statement = saveClassificationStatement;
+        synchronized (statement) {
+            statement.bindString(1, identity.getKey());
+            statement.bindLong(2, identity.getVendorId());
+            statement.bindLong(3, identity.getProductId());
+            bindStringOrNull(statement, 4, identity.getSerialNumber());
+            statement.bindLong(5, classification.getProtocolVersion());
+            statement.bindString(6, classification.getDeviceType().getLabel());
+            statement.bindLong(7, classification.getClassifiedAt());
+            statement.executeInsert();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(saveClassificationTimer, start);
+    }
+
+    @Override
+    public void deleteClassification(String deviceKey) {
+
+        long start = System.nanoTime();
+        getDatabase();
+
+        SQLiteStatement statement = deleteClassificationStatement;
+        synchronized (statement) {
+            statement.bindString(1, deviceKey);
+            statement.executeUpdateDelete();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(deleteClassificationTimer, start);
+    }
+
+
+    @Override
+    public AccessoryCapabilities loadCapabilities(String deviceKey) {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        Cursor cursor = db.query(CAPABILITIES_TABLE_NAME,
+                new String[]{COLUMN_PROTOCOL_VERSION, COLUMN_FEATURES, COLUMN_NEGOTIATED_AT},
+                COLUMN_DEVICE_KEY + "=?",
+                new String[]{deviceKey},
+                null, null, null);
+
+        AccessoryCapabilities capabilities = null;
+        if (cursor.moveToFirst()) {
+            capabilities = new AccessoryCapabilities(cursor.getInt(0), cursor.getInt(1), cursor.getLong(2));
+        }
+
+        cursor.close();
+        UsbMetrics.recordDatabase(loadCapabilitiesTimer, start);
+        return capabilities;
+    }
+
+
+    @Override
+    public void saveCapabilities(String deviceKey, AccessoryCapabilities capabilities) {
+
+        long start = System.nanoTime();
+        getDatabase();
+
+        SQLiteStatement statement = saveCapabilitiesStatement;
+        synchronized (statement) {
+            statement.bindString(1, deviceKey);
+            statement.bindLong(2, capabilities.getProtocolVersion());
+            statement.bindLong(3, capabilities.getFeatures());
+            statement.bindLong(4, capabilities.getNegotiatedAt());
+            statement.executeInsert();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(saveCapabilitiesTimer, start);
+    }
+
+
+    @Override
+    public void deleteCapabilities(String deviceKey) {
+
+        long start = System.nanoTime();
+        getDatabase();
+
+        SQLiteStatement statement = deleteCapabilitiesStatement;
+        synchronized (statement) {
+            statement.bindString(1, deviceKey);
+            statement.executeUpdateDelete();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(deleteCapabilitiesTimer, start);
+    }
+
+
+    @Override
+    public Map<String, Boolean> loadPermissionDecisions() {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        Cursor cursor = db.query(PERMISSIONS_TABLE_NAME,
+                new String[]{COLUMN_DEVICE_KEY, COLUMN_GRANTED},
+                null, null, null, null, null);
+
+        Map<String, Boolean> decisions = new HashMap<>(cursor.getCount() * 2);
+        while (cursor.moveToNext()) {
+            decisions.put(cursor.getString(0), cursor.getInt(1) != 0);
+        }
+
+        cursor.close();
+        UsbMetrics.recordDatabase(loadPermissionsTimer, start);
+        return decisions;
+    }
+
+
+    @Override
+    public void savePermissionDecision(String deviceKey, boolean granted, long decidedAt) {
+
+        long start = System.nanoTime();
+        getDatabase();
+
+        SQLiteStatement statement = savePermissionStatement;
+        synchronized (statement) {
+            statement.bindString(1, deviceKey);
+            statement.bindLong(2, granted ? 1 : 0);
+            statement.bindLong(3, decidedAt);
+            statement.executeInsert();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(savePermissionTimer, start);
+    }
 
-        return timestamp;
+
+    @Override
+    public void deletePermissionDecision(String deviceKey) {
+
+        long start = System.nanoTime();
+        getDatabase();
+
+        SQLiteStatement statement = deletePermissionStatement;
+        synchronized (statement) {
+            statement.bindString(1, deviceKey);
+            statement.executeUpdateDelete();
+            statement.clearBindings();
+        }
+        UsbMetrics.recordDatabase(deletePermissionTimer, start);
+    }
+
+
+    //rules in the order they were saved, so later ones win in DeviceClassifier
+    @Override
+    public List<DeviceClassifier.Rule> loadClassifierRules() {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        Cursor cursor = db.query(CLASSIFIER_RULES_TABLE_NAME,
+                new String[]{COLUMN_VENDOR_ID, COLUMN_PRODUCT_ID_FROM, COLUMN_PRODUCT_ID_TO, COLUMN_DEVICE_TYPE},
+                null, null, null, null, COLUMN_RULE_ID);
+
+        List<DeviceClassifier.Rule> rules = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            DeviceType deviceType = DeviceType.fromLabel(cursor.getString(3));
+            if (deviceType == null) {
+                Log.w(TAG, "Skipping classifier rule with unknown device type " + cursor.getString(3));
+                continue;
+            }
+            rules.add(new DeviceClassifier.Rule(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), deviceType));
+        }
+
+        cursor.close();
+        UsbMetrics.recordDatabase(loadRulesTimer, start);
+        return rules;
+    }
+
+    //replaces all stored rules in one transaction, rules are edited rarely so the insert is compiled per call
+    @Override
+    public void replaceClassifierRules(List<DeviceClassifier.Rule> rules) {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        db.beginTransactionNonExclusive();
+        try {
+            db.execSQL("DELETE FROM " + CLASSIFIER_RULES_TABLE_NAME);
+
+            SQLiteStatement statement = db.compileStatement("INSERT INTO " + CLASSIFIER_RULES_TABLE_NAME + " (" +
+                    COLUMN_VENDOR_ID + ", " +
+                    COLUMN_PRODUCT_ID_FROM + ", " +
+                    COLUMN_PRODUCT_ID_TO + ", " +
+                    COLUMN_DEVICE_TYPE +
+                    ") VALUES (?, ?, ?, ?)");
+            try {
+                for (DeviceClassifier.Rule rule : rules) {
+                    statement.bindLong(1, rule.getVendorId());
+                    statement.bindLong(2, rule.getProductIdFrom());
+                    statement.bindLong(3, rule.getProductIdTo());
+                    statement.bindString(4, rule.getDeviceType().getLabel());
+                    statement.executeInsert();
+                }
+            }
+            finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        UsbMetrics.recordDatabase(replaceRulesTimer, start);
+    }
+
+
+    //writes the merged attach time and type updates of many devices in one transaction, one row write each.
+    //Bound from the identity captured at enqueue time, the device may be gone by now
+    @Override
+    public void writeDevices(Map<String, DeviceWriteBehind.PendingWrite> batch) {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (DeviceWriteBehind.PendingWrite write : batch.values()) {
+                //the row was deleted since the batch was taken
+                if (write.isForgotten()) {
+                    continue;
+                }
+                if (write.getAttachTime() != 0 && write.getDeviceType() != null) {
+                    executeForIdentity(updateAttachTimeAndTypeBySerialStatement, updateAttachTimeAndTypeByNameStatement,
+                            write.getIdentity(), write.getAttachTime(), write.getDeviceType().getLabel());
+                }
+                else if (write.getAttachTime() != 0) {
+                    executeForIdentity(updateAttachTimeBySerialStatement, updateAttachTimeByNameStatement,
+                            write.getIdentity(), write.getAttachTime());
+                }
+                else {
+                    executeForIdentity(updateDeviceTypeBySerialStatement, updateDeviceTypeByNameStatement,
+                            write.getIdentity(), write.getDeviceType().getLabel());
+                }
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        UsbMetrics.recordDatabase(writeDevicesTimer, start);
+    }
+
+    //the row as it will be after the pending write of its device
+    private StoredDevice withPendingWrite(StoredDevice row) {
+        DeviceWriteBehind.PendingWrite write = writeBehind.getPending(row.getIdentity());
+        if (write == null) {
+            return row;
+        }
+        return new StoredDevice(row.getSrNo(), row.getDeviceName(), row.getVendorId(), row.getProductId(), row.getSerialNumber(),
+                row.getManufacturer(), row.getProductName(),
+                write.getDeviceType() != null ? write.getDeviceType().getLabel() : row.getDeviceType(),
+                write.getAttachTime() != 0 ? write.getAttachTime() : row.getAttachTime());
+    }
+
+    //identity and sr_no index of usb_devices, read from the table on first use
+    public synchronized DeviceIndex getDeviceIndex() {
+        if (deviceIndex == null) {
+            long start = System.nanoTime();
+            SQLiteDatabase db = getDatabase();
+
+            Cursor cursor = db.query(TABLE_NAME, DEVICE_COLUMNS, null, null, null, null, null);
+            try {
+                DeviceIndex index = new DeviceIndex(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    index.put(readStoredDevice(cursor));
+                }
+                deviceIndex = index;
+            }
+            finally {
+                cursor.close();
+            }
+            UsbMetrics.recordDatabase(loadIndexTimer, start);
+        }
+        return deviceIndex;
+    }
+
+    //writes pending attach time and type updates and waits for them
+    public void flushPendingWrites() {
+        writeBehind.flush();
+    }
+
+    //starts writing pending attach time and type updates without waiting
+    public void requestPendingWritesFlush() {
+        writeBehind.requestFlush();
+    }
+
+    public DeviceWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+
+    //writes a batch of events in one transaction with the precompiled insert
+    @Override
+    public void writeEvents(DeviceEventLog.EventBatch batch) {
+
+        long start = System.nanoTime();
+        SQLiteDatabase db = getDatabase();
+        SQLiteStatement statement = insertEventStatement;
+
+        synchronized (statement) {
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < batch.size; i++) {
+                    bindStringOrNull(statement, 1, batch.deviceKeys[i]);
+                    statement.bindString(2, batch.types[i].name());
+                    statement.bindLong(3, batch.times[i]);
+                    bindStringOrNull(statement, 4, batch.details[i]);
+                    statement.executeInsert();
+                }
+                statement.clearBindings();
+                db.setTransactionSuccessful();
+            }
+            finally {
+                db.endTransaction();
+            }
+        }
+        UsbMetrics.recordDatabase(writeEventsTimer, start);
+    }
+
+
+    //attachment time in "yyyy-MM-dd HH:mm:ss" format, null when the device is not stored
+    public String getAttachmentTimestamp(Context context, UsbDevice device) {
+
+        long attachTime = getAttachmentTime(device);
+        return attachTime > 0 ? TimestampFormatter.format(attachTime) : null;
+    }
+
+    //attachment time in epoch millis, 0 when the device is not stored
+    public long getAttachmentTime(UsbDevice device) {
+
+        long start = System.nanoTime();
+        //the index has the row of the identity including its pending attach time
+        long indexed = getDeviceIndex().getAttachTime(DeviceIdentity.of(device));
+        if (indexed != 0) {
+            UsbMetrics.recordDatabase(lookupAttachTimeTimer, start);
+            return indexed;
+        }
+
+        getDatabase();
+
+        long attachTime = 0;
+        SQLiteStatement statement = attachTimeLookupStatement;
+        synchronized (statement) {
+            bindStringOrNull(statement, 1, device.getDeviceName());
+            statement.bindLong(2, device.getVendorId());
+            statement.bindLong(3, device.getProductId());
+            try {
+                attachTime = statement.simpleQueryForLong();
+            }
+            catch (SQLiteDoneException e) {
+                //no matching row
+            }
+            statement.clearBindings();
+        }
+
+        DeviceWriteBehind.PendingWrite write = writeBehind.getPending(DeviceIdentity.of(device));
+        if (write != null && write.getAttachTime() != 0) {
+            attachTime = write.getAttachTime();
+        }
+        UsbMetrics.recordDatabase(lookupAttachTimeTimer, start);
+        return attachTime;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.util.Log;
+
+//AccessoryBulkTransport on the accessory interface of a device in AOAP mode.
+//The accessory interface is the first one and has one bulk IN and one bulk OUT endpoint.
+public class UsbBulkTransport implements AccessoryBulkTransport {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    private final UsbDeviceConnection connection;
+    private final UsbInterface accessoryInterface;
+    private final UsbEndpoint in;
+    private final UsbEndpoint out;
+
+    private UsbBulkTransport(UsbDeviceConnection connection, UsbInterface accessoryInterface, UsbEndpoint in, UsbEndpoint out) {
+        this.connection = connection;
+        this.accessoryInterface = accessoryInterface;
+        this.in = in;
+        this.out = out;
+    }
+
+    //claims the accessory interface, returns null when the device is not in accessory mode or the
+    //endpoints are missing. The connection is not closed on failure.
+    public static UsbBulkTransport open(UsbDevice device, UsbDeviceConnection connection) {
+
+        UsbEndpoint[] endpoints = claimAccessoryEndpoints(device, connection);
+        if (endpoints == null) {
+            return null;
+        }
+        return new UsbBulkTransport(connection, device.getInterface(0), endpoints[0], endpoints[1]);
+    }
+
+    //claims the accessory interface and returns its bulk {IN, OUT} endpoints, null when not possible
+    static UsbEndpoint[] claimAccessoryEndpoints(UsbDevice device, UsbDeviceConnection connection) {
+
+        if (connection == null || !AOAP.isDeviceInAOAPMode(device) || device.getInterfaceCount() == 0) {
+            return null;
+        }
+
+        UsbInterface accessoryInterface = device.getInterface(0);
+        UsbEndpoint in = null;
+        UsbEndpoint out = null;
+        for (int i = 0; i < accessoryInterface.getEndpointCount(); i++) {
+            UsbEndpoint endpoint = accessoryInterface.getEndpoint(i);
+            if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                continue;
+            }
+            if (endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                in = endpoint;
+            }
+            else {
+                out = endpoint;
+            }
+        }
+
+        if (in == null || out == null) {
+            Log.e(TAG, "Accessory interface without bulk endpoints");
+            return null;
+        }
+
+        if (!connection.claimInterface(accessoryInterface, true)) {
+            Log.e(TAG, "Could not claim accessory interface");
+            return null;
+        }
+        return new UsbEndpoint[]{in, out};
+    }
+
+    @Override
+    public int bulkRead(byte[] buffer, int offset, int length, int timeout) {
+        return connection.bulkTransfer(in, buffer, offset, length, timeout);
+    }
+
+    @Override
+    public int bulkWrite(byte[] buffer, int offset, int length, int timeout) {
+        return connection.bulkTransfer(out, buffer, offset, length, timeout);
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return in.getMaxPacketSize();
+    }
+
+    @Override
+    public void close() {
+        connection.releaseInterface(accessoryInterface);
+        connection.close();
+    }
+}
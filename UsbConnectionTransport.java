@@ -0,0 +1,28 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+//AoapTransport backed by an Android UsbDeviceConnection
+public class UsbConnectionTransport implements AoapTransport {
+
+    private final UsbDeviceConnection connection;
+
+    public UsbConnectionTransport(UsbDeviceConnection connection) {
+        this.connection = connection;
+    }
+
+    //returns null for a null connection, so callers keep their existing "invalid handle" checks
+    public static AoapTransport wrap(UsbDeviceConnection connection) {
+        return connection != null ? new UsbConnectionTransport(connection) : null;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        return connection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
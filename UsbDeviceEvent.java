@@ -0,0 +1,65 @@
+package com.example.usbdb;
+
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+
+//typed form of the USB broadcasts handled by the app
+public class UsbDeviceEvent {
+
+    public enum Type {
+        ATTACHED,
+        DETACHED,
+        PERMISSION_GRANTED,
+        PERMISSION_DENIED
+    }
+
+    private final Type type;
+    private final UsbDevice device;
+    private final long timestamp;
+
+    public UsbDeviceEvent(Type type, UsbDevice device, long timestamp) {
+        this.type = type;
+        this.device = device;
+        this.timestamp = timestamp;
+    }
+
+    //converts a broadcast, returns null for other actions or when the device extra is missing
+    public static UsbDeviceEvent fromIntent(Intent intent, String permissionAction) {
+        String action = intent.getAction();
+        UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (device == null) {
+            return null;
+        }
+
+        Type type;
+        if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+            type = Type.ATTACHED;
+        }
+        else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+            type = Type.DETACHED;
+        }
+        else if (permissionAction.equals(action)) {
+            type = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)
+                    ? Type.PERMISSION_GRANTED
+                    : Type.PERMISSION_DENIED;
+        }
+        else {
+            return null;
+        }
+        return new UsbDeviceEvent(type, device, System.currentTimeMillis());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public UsbDevice getDevice() {
+        return device;
+    }
+
+    //epoch millis when the broadcast was received
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
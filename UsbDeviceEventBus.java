@@ -0,0 +1,363 @@
+package com.example.usbdb;
+
+import android.content.Intent;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+//publishes USB broadcasts as typed UsbDeviceEvents to any number of subscribers.
+//Every subscriber has its own bounded EventRing drained on its own executor, so a slow subscriber
+//only drops its own events (by its OverflowPolicy) and never blocks the receiver or the others.
+//Subscribers that track device state use COALESCE, which merges instead of dropping.
+//Attach and detach broadcasts of one port are held for debounceMillis and a flapping burst is
+//coalesced into the net change: attach+detach cancels out, detach+attach becomes one replug.
+public class UsbDeviceEventBus {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    public enum OverflowPolicy {
+        //keep what is queued and drop the event being published
+        DROP_NEWEST,
+        //make room by dropping the oldest queued event
+        DROP_OLDEST,
+        //never lose a state change: events that do not fit wait per port and are merged into their net
+        //change (attach+detach cancels out, repeats keep the last), so at most a detach, an attach and a
+        //permission answer wait per port
+        COALESCE
+    }
+
+    public interface Subscriber {
+        void onEvent(UsbDeviceEvent event);
+    }
+
+    public static class Subscription {
+
+        private final String name;
+        private final Subscriber subscriber;
+        private final Executor executor;
+        private final OverflowPolicy policy;
+        private final EventRing<UsbDeviceEvent> ring;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean active = true;
+        //COALESCE only: events that did not fit in the ring, by device name in arrival order, guarded by itself.
+        //While it is not empty new events go here too, so events of one port stay in order
+        private final LinkedHashMap<String, List<UsbDeviceEvent>> overflow = new LinkedHashMap<>();
+
+        Subscription(String name, Subscriber subscriber, Executor executor, OverflowPolicy policy, int capacity) {
+            this.name = name;
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.policy = policy;
+            this.ring = new EventRing<>(capacity);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getDeliveredCount() {
+            return delivered.get();
+        }
+
+        //events not delivered, including COALESCE events merged away with the event they cancelled
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        void enqueue(UsbDeviceEvent event) {
+            if (!active) {
+                return;
+            }
+
+            if (policy == OverflowPolicy.COALESCE) {
+                synchronized (overflow) {
+                    if (!overflow.isEmpty() || !ring.offer(event)) {
+                        coalesce(event);
+                    }
+                }
+                scheduleDrain();
+                return;
+            }
+
+            while (!ring.offer(event)) {
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (ring.poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            }
+            scheduleDrain();
+        }
+
+        //at most one drain task per subscriber, so events are delivered in order
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            }
+        }
+
+        //merges the event into what waits for its port, called with the overflow lock held
+        private void coalesce(UsbDeviceEvent event) {
+            String port = event.getDevice().getDeviceName();
+            List<UsbDeviceEvent> waiting = overflow.get(port);
+            if (waiting == null) {
+                waiting = new ArrayList<>(3);
+                overflow.put(port, waiting);
+            }
+
+            UsbDeviceEvent.Type type = event.getType();
+            int last = waiting.size() - 1;
+            if (type == UsbDeviceEvent.Type.DETACHED) {
+                //an attach still waiting never reached the subscriber, it goes with its permission answer
+                int attached = indexOf(waiting, UsbDeviceEvent.Type.ATTACHED);
+                if (attached >= 0) {
+                    dropped.addAndGet(waiting.size() - attached + 1);
+                    waiting.subList(attached, waiting.size()).clear();
+                    if (waiting.isEmpty()) {
+                        overflow.remove(port);
+                    }
+                    return;
+                }
+            }
+            if (last >= 0 && waiting.get(last).getType() == type) {
+                //a repeated broadcast, the last one carries the current device
+                waiting.set(last, event);
+                dropped.incrementAndGet();
+                return;
+            }
+            if (last >= 0 && isPermission(type) && isPermission(waiting.get(last).getType())) {
+                //the later answer for the same device wins
+                waiting.set(last, event);
+                dropped.incrementAndGet();
+                return;
+            }
+            waiting.add(event);
+        }
+
+        private UsbDeviceEvent pollOverflow() {
+            synchronized (overflow) {
+                Iterator<List<UsbDeviceEvent>> ports = overflow.values().iterator();
+                if (!ports.hasNext()) {
+                    return null;
+                }
+                List<UsbDeviceEvent> waiting = ports.next();
+                UsbDeviceEvent event = waiting.remove(0);
+                if (waiting.isEmpty()) {
+                    ports.remove();
+                }
+                return event;
+            }
+        }
+
+        private boolean hasPending() {
+            if (!ring.isEmpty()) {
+                return true;
+            }
+            if (policy != OverflowPolicy.COALESCE) {
+                return false;
+            }
+            synchronized (overflow) {
+                return !overflow.isEmpty();
+            }
+        }
+
+        private void drain() {
+            UsbDeviceEvent event;
+            //the ring is drained before the overflow, it only takes new events while the overflow is empty
+            while (active && ((event = ring.poll()) != null || (event = pollOverflow()) != null)) {
+                try {
+                    subscriber.onEvent(event);
+                    delivered.incrementAndGet();
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Subscriber " + name + " failed on " + event.getType(), e);
+                }
+            }
+            draining.set(false);
+
+            //an event published after the last poll but before the flag was cleared
+            if (active && hasPending()) {
+                scheduleDrain();
+            }
+        }
+
+        private static int indexOf(List<UsbDeviceEvent> events, UsbDeviceEvent.Type type) {
+            for (int i = 0; i < events.size(); i++) {
+                if (events.get(i).getType() == type) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean isPermission(UsbDeviceEvent.Type type) {
+            return type == UsbDeviceEvent.Type.PERMISSION_GRANTED || type == UsbDeviceEvent.Type.PERMISSION_DENIED;
+        }
+    }
+
+    //attach and detach events of one port seen during the current debounce window
+    private static class PortBurst {
+        UsbDeviceEvent first;
+        UsbDeviceEvent last;
+    }
+
+    private final String permissionAction;
+    private final long debounceMillis;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    //keyed by device name, guarded by itself
+    private final Map<String, PortBurst> bursts = new HashMap<>();
+    private final ScheduledExecutorService debouncer;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public UsbDeviceEventBus(String permissionAction, long debounceMillis) {
+        this.permissionAction = permissionAction;
+        this.debounceMillis = debounceMillis;
+
+        debouncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "usb-event-debounce");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public Subscription subscribe(String name, Subscriber subscriber, Executor executor, OverflowPolicy policy, int capacity) {
+        Subscription subscription = new Subscription(name, subscriber, executor, policy, capacity);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscription.active = false;
+        subscriptions.remove(subscription);
+    }
+
+    //returns false when the intent is not a USB device broadcast
+    public boolean publish(Intent intent) {
+        UsbDeviceEvent event = UsbDeviceEvent.fromIntent(intent, permissionAction);
+        if (event == null) {
+            return false;
+        }
+        publish(event);
+        return true;
+    }
+
+    public void publish(UsbDeviceEvent event) {
+        published.incrementAndGet();
+
+        UsbDeviceEvent.Type type = event.getType();
+        boolean portEvent = type == UsbDeviceEvent.Type.ATTACHED || type == UsbDeviceEvent.Type.DETACHED;
+        if (!portEvent || debounceMillis <= 0) {
+            dispatch(event);
+            return;
+        }
+
+        final String port = event.getDevice().getDeviceName();
+        boolean startWindow;
+        synchronized (bursts) {
+            PortBurst burst = bursts.get(port);
+            startWindow = burst == null;
+            if (startWindow) {
+                burst = new PortBurst();
+                burst.first = event;
+                bursts.put(port, burst);
+            }
+            else {
+                coalesced.incrementAndGet();
+            }
+            burst.last = event;
+        }
+
+        if (startWindow) {
+            debouncer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    closeWindow(port);
+                }
+            }, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        debouncer.shutdownNow();
+        for (Subscription subscription : subscriptions) {
+            subscription.active = false;
+        }
+        subscriptions.clear();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    //attach and detach events merged into another event of the same port
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public List<Subscription> getSubscriptions() {
+        return new ArrayList<>(subscriptions);
+    }
+
+    private void closeWindow(String port) {
+        PortBurst burst;
+        synchronized (bursts) {
+            burst = bursts.remove(port);
+        }
+        if (burst == null) {
+            return;
+        }
+
+        UsbDeviceEvent.Type first = burst.first.getType();
+        UsbDeviceEvent.Type last = burst.last.getType();
+
+        if (first == last) {
+            //attach..attach or detach..detach, the last one carries the current device
+            dispatch(burst.last);
+        }
+        else if (first == UsbDeviceEvent.Type.DETACHED) {
+            //replugged, subscribers see the old device go and the new one come
+            dispatch(burst.first);
+            dispatch(burst.last);
+        }
+        else {
+            //attached and gone again within the window, nothing changed for subscribers
+            coalesced.incrementAndGet();
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Flapping device ignored on port " + port);
+            }
+        }
+    }
+
+    private void dispatch(UsbDeviceEvent event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.enqueue(event);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.usbdb;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//runs USB probing and database work off the main thread.
+//Tasks of one device run one after another in submission order (one lane per device key),
+//different devices run in parallel on a bounded pool. Results are posted back to the main thread.
+public class UsbDeviceExecutor {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    public interface Callback<T> {
+        //called on the main thread with the result of the task
+        void onResult(T result);
+
+        //called on the main thread when the task threw or could not be queued
+        void onError(Exception e);
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //guarded by itself
+    private final Map<String, DeviceLane> lanes = new HashMap<>();
+
+    private final Map<String, StageStats> stageStats = new HashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    public UsbDeviceExecutor(int threads, int queueCapacity) {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "usb-device-worker-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    //queues task on the lane of deviceKey. Stage names the step ("persist", "probe" ...) for metrics.
+    public <T> Future<T> submit(String deviceKey, String stage, Callable<T> task, Callback<T> callback) {
+
+        DeviceTask<T> deviceTask = new DeviceTask<>(deviceKey, getStageStats(stage), task, callback);
+        queueDepth.incrementAndGet();
+
+        boolean startNow;
+        synchronized (lanes) {
+            DeviceLane lane = lanes.get(deviceKey);
+            if (lane == null) {
+                lane = new DeviceLane();
+                lanes.put(deviceKey, lane);
+            }
+
+            startNow = !lane.running;
+            if (startNow) {
+                lane.running = true;
+                lane.current = deviceTask;
+            }
+            else {
+                lane.pending.add(deviceTask);
+            }
+        }
+
+        if (startNow) {
+            execute(deviceTask);
+        }
+        return deviceTask;
+    }
+
+    //drops queued tasks of the device and interrupts the running one. No callbacks are delivered for them.
+    public void cancel(String deviceKey) {
+        DeviceTask<?> running = null;
+
+        synchronized (lanes) {
+            DeviceLane lane = lanes.get(deviceKey);
+            if (lane == null) {
+                return;
+            }
+
+            DeviceTask<?> pendingTask;
+            while ((pendingTask = lane.pending.poll()) != null) {
+                queueDepth.decrementAndGet();
+                pendingTask.cancel(false);
+            }
+            running = lane.current;
+        }
+
+        if (running != null) {
+            running.cancel(true);
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Cancelled USB work for " + deviceKey);
+            }
+        }
+    }
+
+    //tasks submitted but not started yet, across all devices
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    //copy of the per stage latency statistics
+    public Map<String, StageStats> getStageStats() {
+        synchronized (stageStats) {
+            return new HashMap<>(stageStats);
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        synchronized (lanes) {
+            lanes.clear();
+        }
+    }
+
+    private StageStats getStageStats(String stage) {
+        synchronized (stageStats) {
+            StageStats stats = stageStats.get(stage);
+            if (stats == null) {
+                stats = new StageStats();
+                stageStats.put(stage, stats);
+            }
+            return stats;
+        }
+    }
+
+    private void execute(DeviceTask<?> task) {
+        try {
+            workers.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            Log.e(TAG, "USB work queue full, dropping task for " + task.deviceKey);
+            queueDepth.decrementAndGet();
+            task.reject(e);
+            runNext(task.deviceKey);
+        }
+    }
+
+    //starts the next task of the lane, or removes the lane when it is empty
+    private void runNext(String deviceKey) {
+        DeviceTask<?> next = null;
+
+        synchronized (lanes) {
+            DeviceLane lane = lanes.get(deviceKey);
+            if (lane == null) {
+                return;
+            }
+
+            next = lane.pending.poll();
+            lane.current = next;
+            if (next == null) {
+                lane.running = false;
+                lanes.remove(deviceKey);
+            }
+        }
+
+        if (next != null) {
+            execute(next);
+        }
+    }
+
+    private static class DeviceLane {
+        final ArrayDeque<DeviceTask<?>> pending = new ArrayDeque<>();
+        boolean running;
+        //set when the task is handed to the pool, so cancel reaches it before a worker picks it up
+        DeviceTask<?> current;
+    }
+
+    private class DeviceTask<T> extends FutureTask<T> {
+
+        final String deviceKey;
+        final StageStats stats;
+        final Callback<T> callback;
+        final long submittedAt = System.nanoTime();
+
+        DeviceTask(String deviceKey, StageStats stats, Callable<T> task, Callback<T> callback) {
+            super(task);
+            this.deviceKey = deviceKey;
+            this.stats = stats;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            queueDepth.decrementAndGet();
+
+            //cancelled while it waited for a worker, FutureTask.run would return without running it
+            if (isCancelled()) {
+                runNext(deviceKey);
+                return;
+            }
+
+            long startedAt = System.nanoTime();
+            try {
+                super.run();
+            }
+            finally {
+                stats.record(startedAt - submittedAt, System.nanoTime() - startedAt);
+                runNext(deviceKey);
+            }
+        }
+
+        void reject(Exception e) {
+            setException(e);
+        }
+
+        //FutureTask hook, called once the task completed, failed or was cancelled
+        @Override
+        protected void done() {
+            if (isCancelled() || callback == null) {
+                return;
+            }
+
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    //owner already shut the executor down, e.g. Activity destroyed
+                    if (workers.isShutdown()) {
+                        return;
+                    }
+
+                    try {
+                        callback.onResult(get());
+                    }
+                    catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        callback.onError(cause instanceof Exception ? (Exception) cause : e);
+                    }
+                    catch (InterruptedException e) {
+                        callback.onError(e);
+                    }
+                }
+            });
+        }
+    }
+
+    //latency of one stage: time waiting in queue and time running
+    public static class StageStats {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong totalRunNanos = new AtomicLong();
+        private final AtomicLong maxRunNanos = new AtomicLong();
+
+        void record(long waitNanos, long runNanos) {
+            count.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            totalRunNanos.addAndGet(runNanos);
+
+            long max;
+            while (runNanos > (max = maxRunNanos.get())) {
+                if (maxRunNanos.compareAndSet(max, runNanos)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getAverageWaitMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / n);
+        }
+
+        public long getAverageRunMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRunNanos.get() / n);
+        }
+
+        public long getMaxRunMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxRunNanos.get());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.usbdb;
+
+import android.util.Log;
+
+//Log.i builds its message even when nobody reads the log. Informational logs on the per-device
+//paths are written as if (UsbLog.isInfoEnabled()) { Log.i(TAG, ...); }, so a disabled log costs one
+//field read. Follows the log.tag property like Log.isLoggable:
+//adb shell setprop log.tag.USB_SQLite_DB WARN turns them off after a restart of the app.
+public final class UsbLog {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    private static volatile boolean infoEnabled = Log.isLoggable(TAG, Log.INFO);
+
+    private UsbLog() {
+    }
+
+    public static boolean isInfoEnabled() {
+        return infoEnabled;
+    }
+
+    //overrides the log.tag property at runtime
+    public static void setInfoEnabled(boolean enabled) {
+        infoEnabled = enabled;
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.usbdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//process wide metrics of the USB pipeline: latency of every AOAP control request, of every
+//USBDevicesDatabaseHelper operation and from the broadcast reaching the receiver to the device list
+//being redrawn, plus named counters. Everything is lock-free and recording does not allocate, hot
+//paths keep the LatencyHistogram or counter they record into instead of looking it up by name.
+//toJson and writeJson export a snapshot, e.g. to pull with adb for a performance report.
+public final class UsbMetrics {
+
+    //USBDevicesDatabaseHelper operations
+    public static final String DB_INSERT = "insert";
+    public static final String DB_CHECK = "check";
+    public static final String DB_UPSERT = "upsert";
+    public static final String DB_UPDATE_TYPE = "update_type";
+    public static final String DB_DELETE = "delete";
+    public static final String DB_QUERY_ALL = "query_all";
+    public static final String DB_QUERY_PAGE = "query_page";
+    public static final String DB_STREAM_PAGE = "stream_page";
+    public static final String DB_LOOKUP_ATTACH_TIME = "lookup_attach_time";
+    public static final String DB_WRITE_EVENTS = "write_events";
+    public static final String DB_WRITE_DEVICES = "write_devices";
+    public static final String DB_LOAD_INDEX = "load_index";
+    public static final String DB_LOAD_CLASSIFICATION = "load_classification";
+    public static final String DB_LOAD_RECENT_CLASSIFICATIONS = "load_recent_classifications";
+    public static final String DB_SAVE_CLASSIFICATION = "save_classification";
+    public static final String DB_DELETE_CLASSIFICATION = "delete_classification";
+    public static final String DB_LOAD_CAPABILITIES = "load_capabilities";
+    public static final String DB_SAVE_CAPABILITIES = "save_capabilities";
+    public static final String DB_DELETE_CAPABILITIES = "delete_capabilities";
+    public static final String DB_LOAD_PERMISSIONS = "load_permissions";
+    public static final String DB_SAVE_PERMISSION = "save_permission";
+    public static final String DB_DELETE_PERMISSION = "delete_permission";
+    public static final String DB_LOAD_RULES = "load_rules";
+    public static final String DB_REPLACE_RULES = "replace_rules";
+
+    //control requests 51 (get protocol) up to 58 (set audio mode), indexed by request - 51
+    private static final int FIRST_CONTROL_REQUEST = AOAP.ACCESSORY_GET_PROTOCOL;
+    private static final int CONTROL_REQUEST_COUNT = AOAP.ACCESSORY_SET_AUDIO_MODE - FIRST_CONTROL_REQUEST + 1;
+
+    private static final long startedAt = System.currentTimeMillis();
+    private static volatile boolean enabled = true;
+
+    private static final LatencyHistogram[] controlRequests = new LatencyHistogram[CONTROL_REQUEST_COUNT];
+    private static final AtomicLongArray controlRequestFailures = new AtomicLongArray(CONTROL_REQUEST_COUNT);
+    private static final ConcurrentHashMap<String, LatencyHistogram> databaseOperations = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final LatencyHistogram dispatchToUi = new LatencyHistogram();
+    //one-off and UI timings, e.g. time to first list
+    private static final ConcurrentHashMap<String, LatencyHistogram> timings = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < CONTROL_REQUEST_COUNT; i++) {
+            controlRequests[i] = new LatencyHistogram();
+        }
+    }
+
+    private UsbMetrics() {
+    }
+
+    //false turns every record call into a field read, snapshots keep what was recorded so far
+    public static void setEnabled(boolean enabled) {
+        UsbMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    //a failed control transfer is timed as well, a timeout shows up as a slow failure
+    public static void recordControlRequest(int request, long nanos, boolean success) {
+        int index = request - FIRST_CONTROL_REQUEST;
+        if (!enabled || index < 0 || index >= CONTROL_REQUEST_COUNT) {
+            return;
+        }
+        controlRequests[index].record(nanos);
+        if (!success) {
+            controlRequestFailures.incrementAndGet(index);
+        }
+    }
+
+    public static LatencyHistogram controlRequest(int request) {
+        return controlRequests[request - FIRST_CONTROL_REQUEST];
+    }
+
+    public static long getControlRequestFailures(int request) {
+        return controlRequestFailures.get(request - FIRST_CONTROL_REQUEST);
+    }
+
+    //records the time since start, a System.nanoTime() value, into the histogram of a DB_ operation.
+    //Callers get it once from database(operation) and keep it
+    public static void recordDatabase(LatencyHistogram operation, long start) {
+        if (enabled) {
+            operation.recordSince(start);
+        }
+    }
+
+    public static LatencyHistogram database(String operation) {
+        return histogram(databaseOperations, operation);
+    }
+
+    public static void recordTiming(String name, long nanos) {
+        if (enabled) {
+            timing(name).record(nanos);
+        }
+    }
+
+    public static LatencyHistogram timing(String name) {
+        return histogram(timings, name);
+    }
+
+    private static LatencyHistogram histogram(ConcurrentHashMap<String, LatencyHistogram> histograms, String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    //receiver onReceive to the redrawn device list, including debouncing, database work and the query
+    public static void recordDispatchToUi(long nanos) {
+        if (enabled) {
+            dispatchToUi.record(nanos);
+        }
+    }
+
+    public static LatencyHistogram dispatchToUi() {
+        return dispatchToUi;
+    }
+
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public static void increment(AtomicLong counter) {
+        if (enabled) {
+            counter.incrementAndGet();
+        }
+    }
+
+    //clears every histogram and counter, e.g. between two measurement runs
+    public static void reset() {
+        for (int i = 0; i < CONTROL_REQUEST_COUNT; i++) {
+            controlRequests[i].reset();
+            controlRequestFailures.set(i, 0);
+        }
+        for (LatencyHistogram histogram : databaseOperations.values()) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : timings.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+        dispatchToUi.reset();
+    }
+
+    //{"started_at":..,"exported_at":..,"control_requests":{"51":{..,"failures":..}},"database":{..},
+    //"dispatch_to_ui":{..},"timings":{..},"counters":{..}}. Control requests that never ran are left out.
+    public static String toJson() {
+
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"started_at\":").append(startedAt)
+                .append(",\"exported_at\":").append(System.currentTimeMillis())
+                .append(",\"control_requests\":{");
+
+        boolean first = true;
+        for (int i = 0; i < CONTROL_REQUEST_COUNT; i++) {
+            LatencyHistogram.Snapshot snapshot = controlRequests[i].snapshot();
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(FIRST_CONTROL_REQUEST + i).append("\":");
+            snapshot.appendJson(json);
+            //splice the failure count into the histogram object
+            json.setLength(json.length() - 1);
+            json.append(",\"failures\":").append(controlRequestFailures.get(i)).append('}');
+        }
+
+        json.append("},\"database\":");
+        appendHistograms(json, databaseOperations);
+
+        json.append(",\"dispatch_to_ui\":");
+        dispatchToUi.snapshot().appendJson(json);
+
+        json.append(",\"timings\":");
+        appendHistograms(json, timings);
+
+        json.append(",\"counters\":{");
+        first = true;
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(entry.getKey()).append("\":").append(entry.getValue().get());
+        }
+        return json.append("}}").toString();
+    }
+
+    //{"name":{..},..} sorted by name
+    private static void appendHistograms(StringBuilder json, Map<String, LatencyHistogram> histograms) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append('"').append(entry.getKey()).append("\":");
+            entry.getValue().snapshot().appendJson(json);
+        }
+        json.append('}');
+    }
+
+    //writes next to the file and renames it, so a reader never sees half an export
+    public static void writeJson(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(toJson().getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,768 @@
+package com.example.usbdb;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//long-running owner of everything USB: the receiver, the database, the caches, the executor and
+//the device registry. It runs as a started foreground service so devices are still persisted and
+//classified while no Activity is alive, and activities bind to it only to display and query.
+//Needs <service android:name=".UsbMonitorService" android:foregroundServiceType="connectedDevice"/>
+//and the FOREGROUND_SERVICE permission in the manifest.
+public class UsbMonitorService extends Service implements UsbUtils.AlertSink {
+
+    private static final String TAG = "USB_SQLite_DB";
+    public static final String ACTION_USB_PERMISSION = "com.example.usbdb.USB_PERMISSION";
+    //lane used for list queries, so they run in order with each other but not behind device probing
+    private static final String DEVICE_LIST_LANE = "device_list";
+    //lane for writes of remembered permission answers
+    private static final String PERMISSION_LANE = "permissions";
+    private static final long CLASSIFICATION_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+    //attach and detach of one port within this window are coalesced
+    private static final long PORT_DEBOUNCE_MS = 250;
+    private static final int SUBSCRIBER_QUEUE_SIZE = 128;
+    private static final int NOTIFICATION_ID = 1;
+    private static final String NOTIFICATION_CHANNEL_ID = "usb_monitor";
+    //accessory I/O: 16 KiB transfers, 4 reads and 8 writes in flight per device
+    private static final int ACCESSORY_BUFFER_SIZE = 16 * 1024;
+    private static final int ACCESSORY_READS_IN_FLIGHT = 4;
+    private static final int ACCESSORY_WRITES_IN_FLIGHT = 8;
+    //a device asked to start accessory mode is expected back within this time
+    private static final long MODE_SWITCH_WINDOW_MS = 10000;
+    //how long opening an accessory channel waits for the user to answer the permission prompt
+    private static final long ACCESSORY_PERMISSION_TIMEOUT_MS = 30000;
+    //optional VID/PID rules shipped with the app, see DeviceClassifier.parseRules for the format
+    private static final String CLASSIFIER_RULES_ASSET = "usb_device_rules.txt";
+    private static final String METRICS_FILE = "usb_metrics.json";
+
+    private static final AtomicLong broadcastCount = UsbMetrics.counter("broadcasts");
+    private static final AtomicLong probeCount = UsbMetrics.counter("probes");
+    private static final AtomicLong quarantinedProbeCount = UsbMetrics.counter("probes_quarantined");
+
+    //a worker blocked until the permission prompt of a device is answered
+    private static class PermissionWait {
+        final CountDownLatch answered = new CountDownLatch(1);
+        volatile boolean granted;
+    }
+
+    //callbacks to the bound Activity, always on the main thread
+    public interface Listener {
+        //rows were inserted, updated or deleted, or a device was attached or detached
+        void onDeviceListChanged();
+
+        //message of the device classification the user should see, e.g. as a dialog
+        void onAlert(String message);
+    }
+
+    public class LocalBinder extends Binder {
+        public UsbMonitorService getService() {
+            return UsbMonitorService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mainThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mainHandler.post(command);
+        }
+    };
+
+    private UsbManager usbManager;
+    private PendingIntent permissionIntent;
+    private USBDevicesDatabaseHelper usbDevicesDatabaseHelper;
+    private UsbDeviceExecutor deviceExecutor;
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+    private final ModeSwitchTracker modeSwitchTracker = new ModeSwitchTracker(MODE_SWITCH_WINDOW_MS);
+    private PermissionCoordinator permissionCoordinator;
+    //workers waiting in awaitPermission, by device name
+    private final ConcurrentHashMap<String, PermissionWait> permissionWaits = new ConcurrentHashMap<>();
+    //nanoTime of the oldest broadcast not yet shown in the device list, 0 when it is up to date
+    private final AtomicLong pendingDispatchAt = new AtomicLong();
+    private DeviceClassificationCache classificationCache;
+    private DeviceEventLog eventLog;
+    private UsbDeviceEventBus eventBus;
+    //transfer buffers shared by all accessory channels
+    private final DirectBufferPool accessoryBufferPool = new DirectBufferPool(ACCESSORY_BUFFER_SIZE, 4 * (ACCESSORY_READS_IN_FLIGHT + ACCESSORY_WRITES_IN_FLIGHT));
+
+
+    //starts the service so it keeps running after the Activity that started it is gone
+    public static void start(Context context) {
+        Intent intent = new Intent(context, UsbMonitorService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        }
+        else {
+            context.startService(intent);
+        }
+    }
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        //obtaining instance of UsbManager, that allows us to interact with USB devices connected to Android device.
+        usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
+        usbDevicesDatabaseHelper = USBDevicesDatabaseHelper.getInstance(this);
+        UsbUtils.setCapabilityStore(usbDevicesDatabaseHelper);
+        UsbUtils.getDeviceClassifier().setStore(usbDevicesDatabaseHelper);
+        deviceExecutor = new UsbDeviceExecutor(4, 64);
+        classificationCache = new DeviceClassificationCache(usbDevicesDatabaseHelper, 256, CLASSIFICATION_TTL_MS);
+        eventLog = new DeviceEventLog(usbDevicesDatabaseHelper, 4096, 256, 1000);
+        eventBus = new UsbDeviceEventBus(ACTION_USB_PERMISSION, PORT_DEBOUNCE_MS);
+
+        //registry, history, persistence and probing; when full, events are merged per port and a detach is
+        //never lost, otherwise the registry would keep the device attached and ignore its next attach
+        eventBus.subscribe("device_pipeline", new UsbDeviceEventBus.Subscriber() {
+            @Override
+            public void onEvent(UsbDeviceEvent event) {
+                handleDeviceEvent(event);
+            }
+        }, mainThreadExecutor, UsbDeviceEventBus.OverflowPolicy.COALESCE, SUBSCRIBER_QUEUE_SIZE);
+
+        //a detached device stays in the list as disconnected, only the latest refresh matters
+        eventBus.subscribe("device_list", new UsbDeviceEventBus.Subscriber() {
+            @Override
+            public void onEvent(UsbDeviceEvent event) {
+                if (event.getType() == UsbDeviceEvent.Type.DETACHED) {
+                    notifyDeviceListChanged();
+                }
+            }
+        }, mainThreadExecutor, UsbDeviceEventBus.OverflowPolicy.DROP_OLDEST, SUBSCRIBER_QUEUE_SIZE);
+
+        permissionIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
+
+        //one prompt at a time; a grant resumes the probing of the device
+        permissionCoordinator = new PermissionCoordinator(new PermissionCoordinator.Prompter() {
+            @Override
+            public boolean hasPermission(UsbDevice device) {
+                return usbManager.hasPermission(device);
+            }
+
+            @Override
+            public void requestPermission(UsbDevice device) {
+                usbManager.requestPermission(device, permissionIntent);
+            }
+        }, new PermissionCoordinator.Listener() {
+            @Override
+            public void onPermissionGranted(UsbDevice device, boolean prompted) {
+                completePermissionWait(device, true);
+                if (deviceRegistry.transition(device, DeviceRegistry.State.AWAITING_PERMISSION, DeviceRegistry.State.PROBING)) {
+                    probeDevice(device);
+                }
+            }
+
+            @Override
+            public void onPermissionDenied(UsbDevice device, boolean remembered) {
+                completePermissionWait(device, false);
+                deviceRegistry.transition(device, DeviceRegistry.State.AWAITING_PERMISSION, DeviceRegistry.State.ATTACHED);
+                Log.d(TAG, "Permission denied for USB device");
+            }
+        }, usbDevicesDatabaseHelper, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                deviceExecutor.submit(PERMISSION_LANE, "permission", Executors.callable(command), null);
+            }
+        });
+
+        //This filter is used to listen for permission grant result
+        IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+
+        registerReceiver(usbReceiver, filter);
+        Log.i(TAG, "usbReceiver registered");
+
+        warmUp();
+    }
+
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        //to prevent memory leaks and ensure that receiver is not active when component is destroyed.
+        unregisterReceiver(usbReceiver);
+        Log.i(TAG, "usbReceiver unregistered");
+
+        eventBus.shutdown();
+        deviceExecutor.shutdown();
+        eventLog.shutdown();
+        usbDevicesDatabaseHelper.flushPendingWrites();
+        listeners.clear();
+    }
+
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+
+    //runs a read on the list lane of the executor, the callback is delivered on the main thread
+    public <T> void query(String stage, Callable<T> query, UsbDeviceExecutor.Callback<T> callback) {
+        deviceExecutor.submit(DEVICE_LIST_LANE, stage, query, callback);
+    }
+
+
+    //to be called from a query, pages are read with keyset pagination
+    public List<StoredDevice> getDevicesPage(DeviceQuery query, long afterSrNo, int limit) {
+        return usbDevicesDatabaseHelper.getDevicesPage(query, afterSrNo, limit);
+    }
+
+
+    //to be called from a query
+    public Iterable<StoredDevice> streamDevices(DeviceQuery query, int pageSize) {
+        return usbDevicesDatabaseHelper.streamDevices(query, pageSize);
+    }
+
+
+    public Collection<UsbDevice> getLiveDevices() {
+        return usbManager.getDeviceList().values();
+    }
+
+
+    public void deleteDevice(final long srNo, UsbDeviceExecutor.Callback<Void> callback) {
+        deviceExecutor.submit(DEVICE_LIST_LANE, "delete", new Callable<Void>() {
+            @Override
+            public Void call() {
+                USBDevicesDatabaseHelper.deleteUSBDeviceById(UsbMonitorService.this, srNo);
+                return null;
+            }
+        }, callback);
+    }
+
+
+    //stores the rules and swaps them into the classifier without a restart, the callback gets the
+    //number of rules now active. Devices already classified keep their type.
+    public void replaceClassifierRules(final List<DeviceClassifier.Rule> rules, UsbDeviceExecutor.Callback<Integer> callback) {
+        deviceExecutor.submit(DEVICE_LIST_LANE, "classifier_rules", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return UsbUtils.getDeviceClassifier().replaceStoredRules(rules);
+            }
+        }, callback);
+    }
+
+
+    //built-in rules, then the asset, then the rules stored in the database. Later rules override earlier ones.
+    //The built-in and asset rules are kept by the classifier, replaceClassifierRules only swaps the stored ones
+    private int loadClassifierRules() {
+
+        List<DeviceClassifier.Rule> rules = DeviceClassifier.defaultRules();
+        try {
+            InputStream input = getAssets().open(CLASSIFIER_RULES_ASSET);
+            try {
+                rules.addAll(DeviceClassifier.parseRules(new InputStreamReader(input, "UTF-8")));
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch (FileNotFoundException e) {
+            //no asset, the built-in rules are enough
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Error reading classifier rules", e);
+        }
+        return UsbUtils.getDeviceClassifier().load(rules);
+    }
+
+
+    //bulk data channel to a device already in accessory mode, null when it cannot be opened or the user
+    //denied permission. Reads the capability store and may wait for the permission prompt, so call it from a worker.
+    public AccessoryChannel openAccessoryChannel(UsbDevice device) {
+        if (!awaitPermission(device)) {
+            return null;
+        }
+        UsbDeviceConnection connection = usbManager.openDevice(device);
+        UsbBulkTransport transport = UsbBulkTransport.open(device, connection);
+        if (transport == null) {
+            if (connection != null) {
+                connection.close();
+            }
+            return null;
+        }
+        return new AccessoryChannel(transport, UsbUtils.getAccessoryNegotiator().getCapabilities(DeviceIdentity.of(device)));
+    }
+
+
+    //framed, pipelined I/O with a device already in accessory mode, null when it cannot be opened or the user
+    //denied permission. May wait for the permission prompt, so call it from a worker.
+    //Frames arrive on the I/O thread of the returned AccessoryIo.
+    public AccessoryIo openAccessoryIo(UsbDevice device, AccessoryFraming.FrameListener listener) {
+        if (!awaitPermission(device)) {
+            return null;
+        }
+        UsbDeviceConnection connection = usbManager.openDevice(device);
+        UsbRequestTransport transport = UsbRequestTransport.open(device, connection);
+        if (transport == null) {
+            if (connection != null) {
+                connection.close();
+            }
+            return null;
+        }
+
+        AccessoryIo io = new AccessoryIo(transport, accessoryBufferPool, ACCESSORY_READS_IN_FLIGHT, ACCESSORY_WRITES_IN_FLIGHT, listener);
+        io.start();
+        return io;
+    }
+
+
+    //the device in accessory mode re-enumerates with a new VID/PID and needs its own grant before openDevice.
+    //Asks through the coordinator, so the prompt is queued behind others and a remembered denial is honoured,
+    //and blocks until the answer, a detach or ACCESSORY_PERMISSION_TIMEOUT_MS. Never call it on the main thread.
+    private boolean awaitPermission(final UsbDevice device) {
+        if (usbManager.hasPermission(device)) {
+            return true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.e(TAG, "Permission for " + device.getDeviceName() + " cannot be awaited on the main thread");
+            return false;
+        }
+
+        PermissionWait wait = new PermissionWait();
+        PermissionWait existing = permissionWaits.putIfAbsent(device.getDeviceName(), wait);
+        if (existing != null) {
+            wait = existing;
+        }
+        mainThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                permissionCoordinator.request(device);
+            }
+        });
+
+        try {
+            if (!wait.answered.await(ACCESSORY_PERMISSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "No permission answer for " + device.getDeviceName() + " within " + ACCESSORY_PERMISSION_TIMEOUT_MS + " ms");
+                return false;
+            }
+            return wait.granted;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            permissionWaits.remove(device.getDeviceName(), wait);
+        }
+    }
+
+
+    private void completePermissionWait(UsbDevice device, boolean granted) {
+        PermissionWait wait = permissionWaits.remove(device.getDeviceName());
+        if (wait != null) {
+            wait.granted = granted;
+            wait.answered.countDown();
+        }
+    }
+
+
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+
+    public DeviceClassificationCache getClassificationCache() {
+        return classificationCache;
+    }
+
+
+    public UsbDeviceExecutor getDeviceExecutor() {
+        return deviceExecutor;
+    }
+
+
+    //starts writing pending device events and row updates, e.g. when the Activity goes to background
+    public void flushEvents() {
+        eventLog.requestFlush();
+        usbDevicesDatabaseHelper.requestPendingWritesFlush();
+    }
+
+
+    //called by the Activity after it applied a device list update, closes the dispatch to UI timing
+    public void onDeviceListRendered() {
+        long dispatchedAt = pendingDispatchAt.getAndSet(0);
+        if (dispatchedAt != 0) {
+            UsbMetrics.recordDispatchToUi(System.nanoTime() - dispatchedAt);
+        }
+    }
+
+
+    //writes UsbMetrics.toJson to usb_metrics.json in the files directory, the callback gets the file
+    public void exportMetrics(UsbDeviceExecutor.Callback<File> callback) {
+        deviceExecutor.submit(DEVICE_LIST_LANE, "metrics", new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                File file = new File(getFilesDir(), METRICS_FILE);
+                UsbMetrics.writeJson(file);
+                return file;
+            }
+        }, callback);
+    }
+
+
+    //classification messages go to the bound Activity, a service cannot show dialogs itself
+    @Override
+    public void onAlert(final String message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listeners.isEmpty()) {
+                    Log.i(TAG, message);
+                }
+                for (Listener listener : listeners) {
+                    listener.onAlert(message);
+                }
+            }
+        });
+    }
+
+
+    //opens the database and fills the classification cache once, then picks up the devices that
+    //were plugged in before the service started, their attach broadcasts were never received
+    private void warmUp() {
+        deviceExecutor.submit(DEVICE_LIST_LANE, "warmup", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                permissionCoordinator.warmUp();
+                Log.i(TAG, "Loaded " + loadClassifierRules() + " classifier rules");
+                Log.i(TAG, "Indexed " + usbDevicesDatabaseHelper.getDeviceIndex().size() + " stored devices");
+                return classificationCache.warmUp();
+            }
+        }, new UsbDeviceExecutor.Callback<Integer>() {
+            @Override
+            public void onResult(Integer loaded) {
+                Log.i(TAG, "Classification cache warmed up with " + loaded + " devices");
+                publishAttachedDevices();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error warming up classification cache", e);
+                publishAttachedDevices();
+            }
+        });
+    }
+
+
+    private void publishAttachedDevices() {
+        List<UsbDevice> attached = new ArrayList<>(usbManager.getDeviceList().values());
+        for (UsbDevice device : attached) {
+            eventBus.publish(new UsbDeviceEvent(UsbDeviceEvent.Type.ATTACHED, device, System.currentTimeMillis()));
+        }
+    }
+
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(
+                    new NotificationChannel(NOTIFICATION_CHANNEL_ID, "USB monitor", NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID);
+        }
+        else {
+            builder = new Notification.Builder(this);
+        }
+
+        return builder.setContentTitle("USB monitor")
+                .setContentText("Watching for USB devices")
+                .setSmallIcon(android.R.drawable.stat_notify_sync)
+                .setOngoing(true)
+                .build();
+    }
+
+
+    private void notifyDeviceListChanged() {
+        for (Listener listener : listeners) {
+            listener.onDeviceListChanged();
+        }
+    }
+
+
+    //broadcasts only become typed events here, the subscribers registered in onCreate handle them
+    private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
+
+        public void onReceive(Context context, Intent intent) {
+            UsbMetrics.increment(broadcastCount);
+            pendingDispatchAt.compareAndSet(0, System.nanoTime());
+            if (!eventBus.publish(intent)) {
+                Log.e(TAG, "Unexpected value: " + intent.getAction());
+            }
+        }
+    };
+
+
+    private void handleDeviceEvent(UsbDeviceEvent event) {
+        UsbDevice device = event.getDevice();
+
+        switch (event.getType()) {
+            //USB device has attached to device
+            case ATTACHED:
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Device Attached");
+                }
+
+                //registry ignores repeated broadcasts for a device that is already attached
+                if (deviceRegistry.onAttached(device)) {
+                    recordEvent(device, DeviceEventLog.EventType.ATTACHED, null);
+
+                    //a device we just switched to accessory mode is already classified
+                    ModeSwitchTracker.Switch modeSwitch = AOAP.isDeviceInAOAPMode(device)
+                            ? modeSwitchTracker.onAccessoryAttached(DeviceIdentity.of(device))
+                            : null;
+                    if (modeSwitch != null) {
+                        completeModeSwitch(device, modeSwitch);
+                    }
+                    else {
+                        checkdeviceinDB(device);
+                    }
+                }
+                break;
+
+            //USB device has detached from device
+            case DETACHED:
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Device Detached");
+                }
+
+                recordEvent(device, DeviceEventLog.EventType.DETACHED, null);
+                deviceRegistry.onDetached(device);
+
+                //drop probing, database work and the permission request still queued for the detached device.
+                //A running probe is interrupted and its handshake stops before the next control transfer
+                deviceExecutor.cancel(device.getDeviceName());
+                permissionCoordinator.cancel(device);
+                completePermissionWait(device, false);
+                break;
+
+            case PERMISSION_GRANTED:
+                recordEvent(device, DeviceEventLog.EventType.PERMISSION_GRANTED, null);
+                permissionCoordinator.onResult(device, true);
+                break;
+
+            case PERMISSION_DENIED:
+                recordEvent(device, DeviceEventLog.EventType.PERMISSION_DENIED, null);
+                permissionCoordinator.onResult(device, false);
+                break;
+        }
+    }
+
+
+    private void checkdeviceinDB(final UsbDevice device) {
+
+        // Update the device if it is already in the database, insert it otherwise
+        deviceExecutor.submit(device.getDeviceName(), "persist", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return USBDevicesDatabaseHelper.upsertUSBDevice(UsbMonitorService.this, device);
+            }
+        }, new UsbDeviceExecutor.Callback<Integer>() {
+            @Override
+            public void onResult(Integer result) {
+                if (result == USBDevicesDatabaseHelper.UPSERT_FAILED) {
+                    Log.e(TAG, "Failed to insert USB Device to Database");
+                    return;
+                }
+
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, result == USBDevicesDatabaseHelper.UPSERT_UPDATED ? "USB Device already in Database" : "USB Device added to Database");
+                }
+                notifyDeviceListChanged();
+
+                // Request permission for the device, known devices are asked again on every attach
+                if (deviceRegistry.transition(device, DeviceRegistry.State.ATTACHED, DeviceRegistry.State.AWAITING_PERMISSION)) {
+                    permissionCoordinator.request(device);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Failed to insert USB Device to Database", e);
+            }
+        });
+
+    }
+
+
+    //opens the device and runs the AOAP control transfers on a worker, then stores the device type.
+    //A quarantined, cancelled or timed out probe gives null and leaves the stored type alone
+    private void probeDevice(final UsbDevice device) {
+
+        deviceExecutor.submit(device.getDeviceName(), "probe", new Callable<DeviceType>() {
+            @Override
+            public DeviceType call() {
+                DeviceIdentity identity = DeviceIdentity.of(device);
+
+                //known devices are classified from the cache without opening the device
+                DeviceType deviceType = classificationCache.getDeviceType(identity);
+                if (deviceType != null) {
+                    if (UsbLog.isInfoEnabled()) {
+                        Log.i(TAG, "Device type from cache: " + deviceType);
+                    }
+                }
+                //a device that failed its last handshakes is not opened until its quarantine ends
+                else if (UsbUtils.getControlTimeouts().isQuarantined(identity)) {
+                    UsbMetrics.increment(quarantinedProbeCount);
+                    return null;
+                }
+                else {
+                    UsbMetrics.increment(probeCount);
+                    UsbDeviceConnection usbDeviceConnection = usbManager.openDevice(device);
+                    deviceType = UsbUtils.checkDeviceType(UsbMonitorService.this, usbDeviceConnection, device);
+                    //timed out or cancelled, the type stored on an earlier attach stays
+                    if (deviceType == null) {
+                        return null;
+                    }
+                    classificationCache.put(identity, 0, deviceType);
+
+                    //UNKNOWN means accessory mode was requested, the device re-enumerates shortly
+                    if (deviceType == DeviceType.UNKNOWN) {
+                        DeviceRegistry.Entry entry = deviceRegistry.get(device);
+                        long plugInAt = entry != null ? entry.getAttachedAt() : System.currentTimeMillis();
+                        modeSwitchTracker.onSwitchRequested(identity, plugInAt, UsbUtils.getAccessoryNegotiator().getCapabilities(identity));
+                    }
+                }
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Checking Device Type in Database");
+                }
+
+                USBDevicesDatabaseHelper.UpdateUSBDeviceType(UsbMonitorService.this, device, deviceType);
+                recordEvent(device, DeviceEventLog.EventType.CLASSIFIED, deviceType.getLabel());
+                return deviceType;
+            }
+        }, new UsbDeviceExecutor.Callback<DeviceType>() {
+            @Override
+            public void onResult(DeviceType deviceType) {
+                if (deviceType == null) {
+                    deviceRegistry.transition(device, DeviceRegistry.State.PROBING, DeviceRegistry.State.ATTACHED);
+                    if (UsbLog.isInfoEnabled()) {
+                        Log.i(TAG, "Device not classified this time, stored type kept");
+                    }
+                    return;
+                }
+                deviceRegistry.transition(device, DeviceRegistry.State.PROBING, DeviceRegistry.State.CLASSIFIED);
+                notifyDeviceListChanged();
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Updating Device Type in Database");
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                deviceRegistry.transition(device, DeviceRegistry.State.PROBING, DeviceRegistry.State.ATTACHED);
+                Log.e(TAG, "Error checking device type", e);
+            }
+        });
+    }
+
+
+    //the accessory-mode device of a switch we requested: classification and capabilities are carried
+    //over from the device before the switch, so there is no permission prompt and no probing
+    private void completeModeSwitch(final UsbDevice device, final ModeSwitchTracker.Switch modeSwitch) {
+
+        deviceExecutor.submit(device.getDeviceName(), "mode_switch", new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int result = USBDevicesDatabaseHelper.upsertUSBDevice(UsbMonitorService.this, device);
+                USBDevicesDatabaseHelper.UpdateUSBDeviceType(UsbMonitorService.this, device, DeviceType.ANDROID);
+
+                AccessoryCapabilities capabilities = modeSwitch.getCapabilities();
+                if (capabilities != null) {
+                    UsbUtils.getAccessoryNegotiator().putCapabilities(modeSwitch.getAfter(), capabilities);
+                }
+                classificationCache.put(modeSwitch.getAfter(), capabilities != null ? capabilities.getProtocolVersion() : 0, DeviceType.ANDROID);
+                recordEvent(device, DeviceEventLog.EventType.MODE_SWITCHED, modeSwitch.getBefore().getKey());
+                return result;
+            }
+        }, new UsbDeviceExecutor.Callback<Integer>() {
+            @Override
+            public void onResult(Integer result) {
+                deviceRegistry.transition(device, DeviceRegistry.State.ATTACHED, DeviceRegistry.State.CLASSIFIED);
+                notifyDeviceListChanged();
+
+                if (UsbLog.isInfoEnabled()) {
+                    Log.i(TAG, "Mode switch of " + modeSwitch.getBefore() + " took " + modeSwitch.getSwitchNanos() / 1000000 + " ms, " +
+                            (System.currentTimeMillis() - modeSwitch.getPlugInAt()) + " ms from plug-in to session ready");
+                }
+                onAlert(device.getProductName() + " supporting Android Auto session");
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error completing mode switch", e);
+            }
+        });
+    }
+
+
+    public PermissionCoordinator getPermissionCoordinator() {
+        return permissionCoordinator;
+    }
+
+
+    public ModeSwitchTracker getModeSwitchTracker() {
+        return modeSwitchTracker;
+    }
+
+
+    //identity from the registry is preferred, the serial number may no longer be readable on detach
+    private void recordEvent(UsbDevice device, DeviceEventLog.EventType type, String detail) {
+        DeviceRegistry.Entry entry = deviceRegistry.get(device);
+        DeviceIdentity identity = entry != null ? entry.getIdentity() : DeviceIdentity.of(device);
+        eventLog.record(identity, type, detail);
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+
+//AsyncBulkTransport on UsbRequest: every queued transfer is one URB, completions come from
+//UsbDeviceConnection.requestWait. A UsbRequest is bound to one endpoint, so idle requests are
+//kept per direction and reused instead of being initialized for every transfer.
+public class UsbRequestTransport implements AsyncBulkTransport {
+
+    private final UsbDevice device;
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint in;
+    private final UsbEndpoint out;
+    private final ConcurrentLinkedQueue<UsbRequest> idleIn = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<UsbRequest> idleOut = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    private UsbRequestTransport(UsbDevice device, UsbDeviceConnection connection, UsbEndpoint in, UsbEndpoint out) {
+        this.device = device;
+        this.connection = connection;
+        this.in = in;
+        this.out = out;
+    }
+
+    //claims the accessory interface, returns null when the device is not in accessory mode.
+    //The connection is not closed on failure.
+    public static UsbRequestTransport open(UsbDevice device, UsbDeviceConnection connection) {
+        UsbEndpoint[] endpoints = UsbBulkTransport.claimAccessoryEndpoints(device, connection);
+        if (endpoints == null) {
+            return null;
+        }
+        return new UsbRequestTransport(device, connection, endpoints[0], endpoints[1]);
+    }
+
+    @Override
+    public boolean queue(boolean in, ByteBuffer buffer, Object tag) {
+        if (closed) {
+            return false;
+        }
+
+        ConcurrentLinkedQueue<UsbRequest> idle = in ? idleIn : idleOut;
+        UsbRequest request = idle.poll();
+        if (request == null) {
+            request = new UsbRequest();
+            if (!request.initialize(connection, in ? this.in : out)) {
+                request.close();
+                return false;
+            }
+        }
+
+        request.setClientData(new Completion(in, buffer, tag));
+
+        boolean queued;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            //transfers position..limit and advances the position
+            queued = request.queue(buffer);
+        }
+        else {
+            queued = request.queue(buffer, buffer.remaining());
+        }
+
+        if (!queued) {
+            request.setClientData(null);
+            idle.offer(request);
+        }
+        return queued;
+    }
+
+    @Override
+    public Completion requestWait(long timeoutMillis) throws InterruptedException {
+        if (closed) {
+            return null;
+        }
+
+        UsbRequest request;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            try {
+                request = connection.requestWait(timeoutMillis);
+            }
+            catch (TimeoutException e) {
+                return null;
+            }
+        }
+        else {
+            //no timeout before Oreo, close() makes it return null
+            request = connection.requestWait();
+        }
+
+        if (request == null) {
+            return null;
+        }
+
+        Completion completion = (Completion) request.getClientData();
+        request.setClientData(null);
+        if (completion == null) {
+            //request of another user of the connection or cancelled
+            return null;
+        }
+
+        (completion.isIn() ? idleIn : idleOut).offer(request);
+        return completion;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return in.getMaxPacketSize();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        UsbRequest request;
+        while ((request = idleIn.poll()) != null) {
+            request.close();
+        }
+        while ((request = idleOut.poll()) != null) {
+            request.close();
+        }
+
+        //closing the connection cancels the transfers still in flight
+        connection.releaseInterface(device.getInterface(0));
+        connection.close();
+    }
+}
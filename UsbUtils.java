@@ -7,6 +7,8 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -16,94 +18,181 @@ public class UsbUtils {
 
     private static final String TAG = "USB_SQLite_DB";
 
-    //vendor ID and product ID for iPhone
-    private static final int VENDOR_ID_IPHONE = 1452;
-    private static final int PRODUCT_ID_IPHONE = 4776;
+    //checkDeviceType runs on a worker thread, dialogs and toasts are posted to the main thread
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
 
-    //strings sent by app
-    private static final int MANUFACTURER_NAME = 0;
-    private static final int MODEL_NAME = 1;
-    private static final int DESCRIPTION = 2;
-    private static final int VERSION = 3;
-    private static final int URI = 4;
-    private static final int SERIAL_NUMBER = 5;
+    //context without a window, e.g. a Service, that forwards the messages of checkDeviceType to a visible Activity
+    public interface AlertSink {
+        void onAlert(String message);
+    }
+
+    //known devices are classified by VID/PID rules without any transfer, the rules can be reloaded at runtime
+    private static final DeviceClassifier deviceClassifier = new DeviceClassifier();
+
+    //total time budget for all control transfers of one accessory handshake
+    private static final long HANDSHAKE_DEADLINE_MS = 5000;
+
+    //strings sent by app, can be replaced with setAccessoryIdentification
+    private static final AccessoryHandshake accessoryHandshake = new AccessoryHandshake(AccessoryIdentification.DEFAULT);
+
+    //asks protocol version 2 devices for audio and remembers what each device supports
+    private static final AccessoryNegotiator accessoryNegotiator = new AccessoryNegotiator(accessoryHandshake, AccessoryCapabilities.ALL);
+
+    public static DeviceType checkDeviceType(Context context, UsbDeviceConnection usbDeviceConnection, UsbDevice device) {
+        return checkDeviceType(context, UsbConnectionTransport.wrap(usbDeviceConnection), device);
+    }
+
+    //null when the handshake did not run to a result, the stored type of the device must then be kept
+    public static DeviceType checkDeviceType(Context context, AoapTransport usbDeviceConnection, UsbDevice device) {
 
-    public static String checkDeviceType(Context context, UsbDeviceConnection usbDeviceConnection, UsbDevice device) {
+        //looks up the vendor and product IDs in the rule table, e.g. iPhone or Android already in accessory mode
+        DeviceType ruleType = deviceClassifier.classify(device.getVendorId(), device.getProductId());
 
-        //checks if connected USB device is iPhone with vendor and product IDs.
-        if (device.getVendorId() == VENDOR_ID_IPHONE && device.getProductId() == PRODUCT_ID_IPHONE) {
+        if (ruleType == DeviceType.IPHONE) {
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                UsbUtils.showAlertDialog(context, device.getProductName() + " supporting CarPlay session.");
-                return "iPhone";
+                alert(context, device.getProductName() + " supporting CarPlay session.");
+                return DeviceType.IPHONE;
             }
         }
 
-        //if not iPhone, it checks for Android or other device
-        else {
-
-            if (AOAP.isDeviceInAOAPMode(device)) {
+        else if (ruleType == DeviceType.ANDROID) {
+            if (UsbLog.isInfoEnabled()) {
                 Log.i(TAG, "Device in accessory mode");
+            }
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                    UsbUtils.showAlertDialog(context, device.getProductName() + " supporting Android Auto session");
-                    return "Android";
-                }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                alert(context, device.getProductName() + " supporting Android Auto session");
+                return DeviceType.ANDROID;
             }
+        }
 
-            //If neither condition is met, it checks if the device supports AOAP by calling
-            else if (AOAP.isSupported(usbDeviceConnection)) {
-
-                //it sends identifying information CT 52 to the device
-                String manufacturerName = "Manufacturer";
-                String modelName = "Model";
-                String description = "Description";
-                String version = "1.0";
-                String uri = "https://www.android.com/auto";
-                String serial = "1234";
-
-                AOAP.sendString(usbDeviceConnection, MANUFACTURER_NAME, manufacturerName);
-                AOAP.sendString(usbDeviceConnection, MODEL_NAME, modelName);
-                AOAP.sendString(usbDeviceConnection, DESCRIPTION, description);
-                AOAP.sendString(usbDeviceConnection, VERSION, version);
-                AOAP.sendString(usbDeviceConnection, URI, uri);
-                AOAP.sendString(usbDeviceConnection, SERIAL_NUMBER, serial);
-
-                //then initiates the AOAP mode using sendAOAPStart()
-                AOAP.sendAOAPStart(usbDeviceConnection);
-                Log.i(TAG, "Send Control Request 53 Start Accessory Mode");
+        //hubs, keyboards and the like are never sent AOAP requests
+        else if (ruleType == DeviceType.NOT_CLASSIFIED) {
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Device excluded from classification by rule");
+            }
+            return DeviceType.NOT_CLASSIFIED;
+        }
 
-                //Finally, it closes the USB device connection
-                usbDeviceConnection.close();
+        //If no rule matches, it checks if the device supports AOAP and switches it to accessory mode
+        else {
+            AccessoryHandshake.HandshakeResult result = runAccessoryHandshake(usbDeviceConnection, DeviceIdentity.of(device));
+            switch (result.getStatus()) {
+                case SUCCESS:
+                    if (UsbLog.isInfoEnabled()) {
+                        Log.i(TAG, "Accessory mode requested");
+                    }
+                    break;
+                case NOT_SUPPORTED:
+                    showToast(context, "Device does not support accessory mode");
+                    return DeviceType.ANDROID;
+                default:
+                    //no answer in time, detached or quarantined: accessory mode was never started and
+                    //nothing was learned about the device, it is probed again on its next attach
+                    return null;
             }
-            else {
-                Toast.makeText(context, "Device does not support accessory mode", Toast.LENGTH_SHORT).show();
-                return "Android";
+        }
+        return DeviceType.UNKNOWN;
+    }
+
+    //checks if the device supports AOAP by calling AOAP.isSupported, sends identifying information and
+    //starts accessory mode. Returns false when the device does not support accessory mode.
+    //Only uses the transport, so the whole handshake can run on a JVM against SimulatedAoapDevice.
+    public static boolean startAccessoryMode(AoapTransport usbDeviceConnection) {
+        return startAccessoryMode(usbDeviceConnection, null);
+    }
+
+    //identity lets a device seen before skip request 51, null negotiates from scratch
+    public static boolean startAccessoryMode(AoapTransport usbDeviceConnection, DeviceIdentity identity) {
+        return runAccessoryHandshake(usbDeviceConnection, identity).getStatus() != AccessoryHandshake.Status.NOT_SUPPORTED;
+    }
+
+    //runs the handshake with the timeouts learned for the product and closes the connection
+    public static AccessoryHandshake.HandshakeResult runAccessoryHandshake(AoapTransport usbDeviceConnection, DeviceIdentity identity) {
+
+        //sends identifying information CT 52, audio mode CT 58 if supported and initiates the AOAP mode,
+        //aborting on the first failed transfer
+        AccessoryHandshake.HandshakeResult result = accessoryNegotiator.negotiate(identity, usbDeviceConnection, HANDSHAKE_DEADLINE_MS);
+
+        if (result.isSuccess()) {
+            if (UsbLog.isInfoEnabled()) {
+                Log.i(TAG, "Send Control Request 53 Start Accessory Mode");
             }
         }
-        return "Unknown";
+
+        //Finally, it closes the USB device connection
+        if (usbDeviceConnection != null) {
+            usbDeviceConnection.close();
+        }
+        return result;
     }
 
-    public static void showAlertDialog(Context context, String message) {
+    public static void setAccessoryIdentification(AccessoryIdentification identification) {
+        accessoryHandshake.setIdentification(identification);
+    }
+
+    //persists negotiated capabilities, e.g. in USBDevicesDatabaseHelper
+    public static void setCapabilityStore(AccessoryCapabilities.Store store) {
+        accessoryNegotiator.setStore(store);
+    }
 
-        AlertDialog.Builder builder = new AlertDialog.Builder(context);
-        builder.setMessage(message + " Do you want to continue?");
+    public static AccessoryNegotiator getAccessoryNegotiator() {
+        return accessoryNegotiator;
+    }
+
+    public static ControlTimeouts getControlTimeouts() {
+        return accessoryNegotiator.getControlTimeouts();
+    }
 
-        builder.setPositiveButton("Yes", new DialogInterface.OnClickListener() {
+    public static DeviceClassifier getDeviceClassifier() {
+        return deviceClassifier;
+    }
+
+    private static void alert(Context context, String message) {
+        if (context instanceof AlertSink) {
+            ((AlertSink) context).onAlert(message);
+        }
+        else {
+            showAlertDialog(context, message);
+        }
+    }
+
+    public static void showAlertDialog(final Context context, final String message) {
+
+        mainHandler.post(new Runnable() {
             @Override
-            public void onClick(DialogInterface dialog, int which) {
+            public void run() {
+                AlertDialog.Builder builder = new AlertDialog.Builder(context);
+                builder.setMessage(message + " Do you want to continue?");
+
+                builder.setPositiveButton("Yes", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                    }
+                });
+
+                builder.setNegativeButton("No", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                    }
+                });
+
+                AlertDialog dialog = builder.create();
+                dialog.show();
             }
         });
+    }
 
-        builder.setNegativeButton("No", new DialogInterface.OnClickListener() {
+    private static void showToast(final Context context, final String message) {
+
+        mainHandler.post(new Runnable() {
             @Override
-            public void onClick(DialogInterface dialog, int which) {
-                dialog.dismiss();
+            public void run() {
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
             }
         });
-
-        AlertDialog dialog = builder.create();
-        dialog.show();
     }
 
 }
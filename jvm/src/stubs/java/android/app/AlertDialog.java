@@ -0,0 +1,37 @@
+package android.app;
+
+import android.content.Context;
+import android.content.DialogInterface;
+
+//JVM stand-in for android.app.AlertDialog, nothing is shown
+public class AlertDialog implements DialogInterface {
+
+    @Override
+    public void dismiss() {
+    }
+
+    public void show() {
+    }
+
+    public static class Builder {
+
+        public Builder(Context context) {
+        }
+
+        public Builder setMessage(CharSequence message) {
+            return this;
+        }
+
+        public Builder setPositiveButton(CharSequence text, DialogInterface.OnClickListener listener) {
+            return this;
+        }
+
+        public Builder setNegativeButton(CharSequence text, DialogInterface.OnClickListener listener) {
+            return this;
+        }
+
+        public AlertDialog create() {
+            return new AlertDialog();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package android.content;
+
+import java.io.File;
+
+//JVM stand-in for android.content.Context. Tests extend it and override what the code under test uses.
+public abstract class Context {
+
+    public static final String USB_SERVICE = "usb";
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    public File getDatabasePath(String name) {
+        throw new UnsupportedOperationException("getDatabasePath");
+    }
+
+    public File getFilesDir() {
+        throw new UnsupportedOperationException("getFilesDir");
+    }
+}
@@ -0,0 +1,11 @@
+package android.content;
+
+//JVM stand-in for android.content.DialogInterface
+public interface DialogInterface {
+
+    void dismiss();
+
+    interface OnClickListener {
+        void onClick(DialogInterface dialog, int which);
+    }
+}
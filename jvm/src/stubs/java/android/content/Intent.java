@@ -0,0 +1,40 @@
+package android.content;
+
+import android.os.Parcelable;
+import java.util.HashMap;
+import java.util.Map;
+
+//JVM stand-in for android.content.Intent with the action and extras the USB broadcasts carry
+public class Intent {
+
+    private final String action;
+    private final Map<String, Object> extras = new HashMap<>();
+
+    public Intent(String action) {
+        this.action = action;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public Intent putExtra(String name, Parcelable value) {
+        extras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        extras.put(name, value);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelableExtra(String name) {
+        return (T) extras.get(name);
+    }
+
+    public boolean getBooleanExtra(String name, boolean defaultValue) {
+        Object value = extras.get(name);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+}
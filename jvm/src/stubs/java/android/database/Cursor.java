@@ -0,0 +1,36 @@
+package android.database;
+
+import java.io.Closeable;
+
+//JVM stand-in for android.database.Cursor, the subset the shared sources use
+public interface Cursor extends Closeable {
+
+    int getCount();
+
+    int getPosition();
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    boolean moveToPosition(int position);
+
+    int getColumnCount();
+
+    int getColumnIndex(String columnName);
+
+    int getColumnIndexOrThrow(String columnName);
+
+    String getString(int columnIndex);
+
+    int getInt(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    boolean isNull(int columnIndex);
+
+    boolean isClosed();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,16 @@
+package android.database;
+
+//JVM stand-in for android.database.SQLException
+public class SQLException extends RuntimeException {
+
+    public SQLException() {
+    }
+
+    public SQLException(String error) {
+        super(error);
+    }
+
+    public SQLException(String error, Throwable cause) {
+        super(error, cause);
+    }
+}
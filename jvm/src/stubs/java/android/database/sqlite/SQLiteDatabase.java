@@ -0,0 +1,359 @@
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+//JVM stand-in for android.database.sqlite.SQLiteDatabase on one sqlite-jdbc connection.
+//On a device writes and transactions go through the primary connection, which one thread holds at
+//a time; here every statement takes that connection, so readers are serialized with writers too.
+//A transaction holds it from beginTransaction to the matching endTransaction, and nested
+//transactions commit only when every level was marked successful, as on Android.
+public final class SQLiteDatabase implements Closeable {
+
+    public interface CursorFactory {
+    }
+
+    private final Connection connection;
+    private final String path;
+    private final ReentrantLock primary = new ReentrantLock();
+
+    //guarded by primary
+    private int transactionDepth;
+    private boolean successful;
+    private boolean failed;
+    private long lastInsertRowId;
+
+    private SQLiteDatabase(Connection connection, String path) {
+        this.connection = connection;
+        this.path = path;
+    }
+
+    //path null opens an in-memory database
+    static SQLiteDatabase open(String path) {
+        try {
+            return new SQLiteDatabase(DriverManager.getConnection(path != null ? "jdbc:sqlite:" + path : "jdbc:sqlite::memory:"), path);
+        }
+        catch (SQLException e) {
+            throw new SQLiteException("Cannot open " + path, e);
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isOpen() {
+        try {
+            return !connection.isClosed();
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            throw new SQLiteException("close", e);
+        }
+    }
+
+    public boolean enableWriteAheadLogging() {
+        if (path == null) {
+            return false;
+        }
+        Cursor cursor = rawQuery("PRAGMA journal_mode=WAL", null);
+        boolean wal = cursor.moveToFirst() && "wal".equalsIgnoreCase(cursor.getString(0));
+        cursor.close();
+        return wal;
+    }
+
+    public int getVersion() {
+        Cursor cursor = rawQuery("PRAGMA user_version", null);
+        int version = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+        return version;
+    }
+
+    public void setVersion(int version) {
+        execSQL("PRAGMA user_version = " + version);
+    }
+
+    public void beginTransaction() {
+        begin();
+    }
+
+    public void beginTransactionNonExclusive() {
+        begin();
+    }
+
+    public void setTransactionSuccessful() {
+        if (!primary.isHeldByCurrentThread() || transactionDepth == 0) {
+            throw new IllegalStateException("no transaction pending");
+        }
+        successful = true;
+    }
+
+    public void endTransaction() {
+        if (!primary.isHeldByCurrentThread() || transactionDepth == 0) {
+            throw new IllegalStateException("no transaction pending");
+        }
+        try {
+            if (!successful) {
+                failed = true;
+            }
+            successful = false;
+            transactionDepth--;
+            if (transactionDepth == 0) {
+                try {
+                    if (failed) {
+                        connection.rollback();
+                    }
+                    else {
+                        connection.commit();
+                    }
+                    connection.setAutoCommit(true);
+                }
+                catch (SQLException e) {
+                    throw new SQLiteException("endTransaction", e);
+                }
+                finally {
+                    failed = false;
+                }
+            }
+        }
+        finally {
+            primary.unlock();
+        }
+    }
+
+    public boolean inTransaction() {
+        primary.lock();
+        try {
+            return transactionDepth > 0;
+        }
+        finally {
+            primary.unlock();
+        }
+    }
+
+    public void execSQL(String sql) {
+        primary.lock();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(sql);
+            }
+            finally {
+                statement.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new SQLiteException(e.getMessage() + ", while executing " + sql, e);
+        }
+        finally {
+            primary.unlock();
+        }
+    }
+
+    public void execSQL(String sql, Object[] bindArgs) {
+        SQLiteStatement statement = compileStatement(sql);
+        try {
+            for (int i = 0; i < bindArgs.length; i++) {
+                statement.bind(i + 1, bindArgs[i]);
+            }
+            statement.execute();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        return new SQLiteStatement(this, sql);
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        primary.lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; i++) {
+                        if (selectionArgs[i] == null) {
+                            throw new IllegalArgumentException("the bind value at index " + (i + 1) + " is null");
+                        }
+                        statement.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    return new SQLiteCursor(resultSet);
+                }
+                finally {
+                    resultSet.close();
+                }
+            }
+            finally {
+                statement.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new SQLiteException(e.getMessage() + ", while compiling " + sql, e);
+        }
+        finally {
+            primary.unlock();
+        }
+    }
+
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs,
+                        String groupBy, String having, String orderBy) {
+        return query(table, columns, selection, selectionArgs, groupBy, having, orderBy, null);
+    }
+
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs,
+                        String groupBy, String having, String orderBy, String limit) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns == null || columns.length == 0) {
+            sql.append('*');
+        }
+        else {
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+        }
+        sql.append(" FROM ").append(table);
+        appendClause(sql, " WHERE ", selection);
+        appendClause(sql, " GROUP BY ", groupBy);
+        appendClause(sql, " HAVING ", having);
+        appendClause(sql, " ORDER BY ", orderBy);
+        appendClause(sql, " LIMIT ", limit);
+        return rawQuery(sql.toString(), selectionArgs);
+    }
+
+    //row id of the new row, -1 when the insert failed
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder placeholders = new StringBuilder();
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            columns.append(columns.length() > 0 ? ", " : "").append(value.getKey());
+            placeholders.append(placeholders.length() > 0 ? ", " : "").append('?');
+        }
+        SQLiteStatement statement = compileStatement("INSERT INTO " + table + " (" + columns + ") VALUES (" + placeholders + ")");
+        try {
+            int index = 1;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                statement.bind(index++, value.getValue());
+            }
+            return statement.executeInsert();
+        }
+        catch (SQLiteException e) {
+            return -1;
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        int index = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            sql.append(index++ > 0 ? ", " : "").append(value.getKey()).append("=?");
+        }
+        appendClause(sql, " WHERE ", whereClause);
+        SQLiteStatement statement = compileStatement(sql.toString());
+        try {
+            index = 1;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                statement.bind(index++, value.getValue());
+            }
+            bindArgs(statement, index, whereArgs);
+            return statement.executeUpdateDelete();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(table);
+        appendClause(sql, " WHERE ", whereClause);
+        SQLiteStatement statement = compileStatement(sql.toString());
+        try {
+            bindArgs(statement, 1, whereArgs);
+            return statement.executeUpdateDelete();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    void acquire() {
+        primary.lock();
+    }
+
+    void release() {
+        primary.unlock();
+    }
+
+    //called with the primary connection held, after an insert changed a row
+    long readLastInsertRowId() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("SELECT last_insert_rowid()");
+            lastInsertRowId = resultSet.next() ? resultSet.getLong(1) : -1;
+            resultSet.close();
+            return lastInsertRowId;
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    private void begin() {
+        primary.lock();
+        if (transactionDepth == 0) {
+            try {
+                connection.setAutoCommit(false);
+            }
+            catch (SQLException e) {
+                primary.unlock();
+                throw new SQLiteException("beginTransaction", e);
+            }
+        }
+        transactionDepth++;
+        successful = false;
+    }
+
+    //like Android, a null selection argument is an error rather than NULL
+    private static void bindArgs(SQLiteStatement statement, int first, String[] args) {
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                statement.bindString(first + i, args[i]);
+            }
+        }
+    }
+
+    private static void appendClause(StringBuilder sql, String name, String clause) {
+        if (clause != null && !clause.isEmpty()) {
+            sql.append(name).append(clause);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package android.database.sqlite;
+
+//JVM stand-in for android.database.sqlite.SQLiteDoneException, a simple query returned no row
+public class SQLiteDoneException extends SQLiteException {
+
+    public SQLiteDoneException() {
+    }
+
+    public SQLiteDoneException(String error) {
+        super(error);
+    }
+}
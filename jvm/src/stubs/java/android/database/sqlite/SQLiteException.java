@@ -0,0 +1,18 @@
+package android.database.sqlite;
+
+import android.database.SQLException;
+
+//JVM stand-in for android.database.sqlite.SQLiteException
+public class SQLiteException extends SQLException {
+
+    public SQLiteException() {
+    }
+
+    public SQLiteException(String error) {
+        super(error);
+    }
+
+    public SQLiteException(String error, Throwable cause) {
+        super(error, cause);
+    }
+}
@@ -0,0 +1,110 @@
+package android.database.sqlite;
+
+import android.content.Context;
+import java.io.File;
+
+//JVM stand-in for android.database.sqlite.SQLiteOpenHelper: opens the file at
+//Context.getDatabasePath, creates or upgrades it by PRAGMA user_version and keeps one connection
+public abstract class SQLiteOpenHelper {
+
+    private final Context context;
+    private final String name;
+    private final int version;
+    private boolean writeAheadLogging;
+    private SQLiteDatabase database;
+
+    public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+        if (version < 1) {
+            throw new IllegalArgumentException("Version must be >= 1, was " + version);
+        }
+        this.context = context;
+        this.name = name;
+        this.version = version;
+    }
+
+    public String getDatabaseName() {
+        return name;
+    }
+
+    public synchronized void setWriteAheadLoggingEnabled(boolean enabled) {
+        writeAheadLogging = enabled;
+        if (enabled && database != null && database.isOpen()) {
+            database.enableWriteAheadLogging();
+        }
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (database != null && database.isOpen()) {
+            return database;
+        }
+        String path = null;
+        if (name != null) {
+            File file = context.getDatabasePath(name);
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new SQLiteException("Cannot create " + parent);
+            }
+            path = file.getPath();
+        }
+
+        SQLiteDatabase db = SQLiteDatabase.open(path);
+        try {
+            if (writeAheadLogging) {
+                db.enableWriteAheadLogging();
+            }
+            onConfigure(db);
+            int current = db.getVersion();
+            if (current != version) {
+                db.beginTransaction();
+                try {
+                    if (current == 0) {
+                        onCreate(db);
+                    }
+                    else if (current < version) {
+                        onUpgrade(db, current, version);
+                    }
+                    else {
+                        onDowngrade(db, current, version);
+                    }
+                    db.setVersion(version);
+                    db.setTransactionSuccessful();
+                }
+                finally {
+                    db.endTransaction();
+                }
+            }
+            onOpen(db);
+        }
+        catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        database = db;
+        return db;
+    }
+
+    public void onConfigure(SQLiteDatabase db) {
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        throw new SQLiteException("Can't downgrade database from version " + oldVersion + " to " + newVersion);
+    }
+
+    public void onOpen(SQLiteDatabase db) {
+    }
+
+    public synchronized void close() {
+        if (database != null && database.isOpen()) {
+            database.close();
+        }
+        database = null;
+    }
+}
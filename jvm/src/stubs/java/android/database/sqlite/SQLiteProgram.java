@@ -0,0 +1,87 @@
+package android.database.sqlite;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+//JVM stand-in for android.database.sqlite.SQLiteProgram. Bindings are kept here and set on the
+//prepared statement when it runs, with the primary connection of the database held.
+public abstract class SQLiteProgram implements Closeable {
+
+    final SQLiteDatabase database;
+    final String sql;
+    private final Object[] bindArgs;
+    private PreparedStatement statement;
+
+    SQLiteProgram(SQLiteDatabase database, String sql) {
+        this.database = database;
+        this.sql = sql;
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        this.bindArgs = new Object[count];
+    }
+
+    public void bindString(int index, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("the bind value at index " + index + " is null");
+        }
+        bind(index, value);
+    }
+
+    public void bindLong(int index, long value) {
+        bind(index, value);
+    }
+
+    public void bindDouble(int index, double value) {
+        bind(index, value);
+    }
+
+    public void bindNull(int index) {
+        bind(index, null);
+    }
+
+    public void clearBindings() {
+        Arrays.fill(bindArgs, null);
+    }
+
+    @Override
+    public void close() {
+        if (statement != null) {
+            database.acquire();
+            try {
+                statement.close();
+            }
+            catch (SQLException e) {
+                throw new SQLiteException("close", e);
+            }
+            finally {
+                statement = null;
+                database.release();
+            }
+        }
+    }
+
+    void bind(int index, Object value) {
+        if (index < 1 || index > bindArgs.length) {
+            throw new IllegalArgumentException("Cannot bind argument at index " + index
+                    + " because the index is out of range.  The statement has " + bindArgs.length + " parameters.");
+        }
+        bindArgs[index - 1] = value;
+    }
+
+    //called with the primary connection held
+    PreparedStatement prepare() throws SQLException {
+        if (statement == null) {
+            statement = database.getConnection().prepareStatement(sql);
+        }
+        for (int i = 0; i < bindArgs.length; i++) {
+            statement.setObject(i + 1, bindArgs[i]);
+        }
+        return statement;
+    }
+}
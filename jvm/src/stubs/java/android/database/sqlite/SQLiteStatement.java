@@ -0,0 +1,105 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+//JVM stand-in for android.database.sqlite.SQLiteStatement
+public final class SQLiteStatement extends SQLiteProgram {
+
+    SQLiteStatement(SQLiteDatabase database, String sql) {
+        super(database, sql);
+    }
+
+    public void execute() {
+        database.acquire();
+        try {
+            prepare().execute();
+        }
+        catch (SQLException e) {
+            throw wrap(e);
+        }
+        finally {
+            database.release();
+        }
+    }
+
+    public int executeUpdateDelete() {
+        database.acquire();
+        try {
+            return prepare().executeUpdate();
+        }
+        catch (SQLException e) {
+            throw wrap(e);
+        }
+        finally {
+            database.release();
+        }
+    }
+
+    //row id of the inserted row, -1 when nothing was inserted
+    public long executeInsert() {
+        database.acquire();
+        try {
+            return prepare().executeUpdate() > 0 ? database.readLastInsertRowId() : -1;
+        }
+        catch (SQLException e) {
+            throw wrap(e);
+        }
+        finally {
+            database.release();
+        }
+    }
+
+    public long simpleQueryForLong() {
+        database.acquire();
+        try {
+            ResultSet resultSet = first();
+            try {
+                return resultSet.getLong(1);
+            }
+            finally {
+                resultSet.close();
+            }
+        }
+        catch (SQLException e) {
+            throw wrap(e);
+        }
+        finally {
+            database.release();
+        }
+    }
+
+    public String simpleQueryForString() {
+        database.acquire();
+        try {
+            ResultSet resultSet = first();
+            try {
+                return resultSet.getString(1);
+            }
+            finally {
+                resultSet.close();
+            }
+        }
+        catch (SQLException e) {
+            throw wrap(e);
+        }
+        finally {
+            database.release();
+        }
+    }
+
+    private ResultSet first() throws SQLException {
+        PreparedStatement statement = prepare();
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            resultSet.close();
+            throw new SQLiteDoneException();
+        }
+        return resultSet;
+    }
+
+    private SQLiteException wrap(SQLException e) {
+        return new SQLiteException(e.getMessage() + ", while executing " + sql, e);
+    }
+}
@@ -0,0 +1,14 @@
+package android.hardware.usb;
+
+//JVM stand-in for android.hardware.usb.UsbConstants
+public final class UsbConstants {
+
+    public static final int USB_DIR_OUT = 0;
+    public static final int USB_DIR_IN = 0x80;
+    public static final int USB_TYPE_VENDOR = 0x40;
+    public static final int USB_ENDPOINT_XFER_BULK = 2;
+    public static final int USB_CLASS_VENDOR_SPEC = 255;
+
+    private UsbConstants() {
+    }
+}
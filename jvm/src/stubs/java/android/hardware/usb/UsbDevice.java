@@ -0,0 +1,73 @@
+package android.hardware.usb;
+
+import android.os.Parcelable;
+
+//JVM stand-in for android.hardware.usb.UsbDevice, built by tests instead of the USB host service
+public class UsbDevice implements Parcelable {
+
+    private final String deviceName;
+    private final int vendorId;
+    private final int productId;
+    private final String manufacturerName;
+    private final String productName;
+    private final String serialNumber;
+    private final UsbInterface[] interfaces;
+
+    public UsbDevice(String deviceName, int vendorId, int productId, String manufacturerName, String productName,
+                     String serialNumber, UsbInterface... interfaces) {
+        this.deviceName = deviceName;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.manufacturerName = manufacturerName;
+        this.productName = productName;
+        this.serialNumber = serialNumber;
+        this.interfaces = interfaces;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public String getManufacturerName() {
+        return manufacturerName;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public int getInterfaceCount() {
+        return interfaces.length;
+    }
+
+    public UsbInterface getInterface(int index) {
+        return interfaces[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof UsbDevice && ((UsbDevice) o).deviceName.equals(deviceName);
+    }
+
+    @Override
+    public int hashCode() {
+        return deviceName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "UsbDevice[" + deviceName + ", " + vendorId + ":" + productId + "]";
+    }
+}
@@ -0,0 +1,39 @@
+package android.hardware.usb;
+
+import java.util.concurrent.TimeoutException;
+
+//JVM stand-in for android.hardware.usb.UsbDeviceConnection. Every transfer fails like a detached
+//device does; tests subclass it to play a device.
+public class UsbDeviceConnection {
+
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        return -1;
+    }
+
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int length, int timeout) {
+        return bulkTransfer(endpoint, buffer, 0, length, timeout);
+    }
+
+    public int bulkTransfer(UsbEndpoint endpoint, byte[] buffer, int offset, int length, int timeout) {
+        return -1;
+    }
+
+    public boolean claimInterface(UsbInterface intf, boolean force) {
+        return true;
+    }
+
+    public boolean releaseInterface(UsbInterface intf) {
+        return true;
+    }
+
+    public UsbRequest requestWait() {
+        return null;
+    }
+
+    public UsbRequest requestWait(long timeout) throws TimeoutException {
+        return null;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,31 @@
+package android.hardware.usb;
+
+//JVM stand-in for android.hardware.usb.UsbEndpoint
+public class UsbEndpoint {
+
+    private final int address;
+    private final int type;
+    private final int maxPacketSize;
+
+    public UsbEndpoint(int address, int type, int maxPacketSize) {
+        this.address = address;
+        this.type = type;
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getDirection() {
+        return address & UsbConstants.USB_DIR_IN;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+}
@@ -0,0 +1,43 @@
+package android.hardware.usb;
+
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//JVM stand-in for android.hardware.usb.UsbManager. Tests attach devices and grant permission
+//themselves; openDevice hands out a connection whose transfers fail unless it is overridden.
+public class UsbManager {
+
+    public static final String ACTION_USB_DEVICE_ATTACHED = "android.hardware.usb.action.USB_DEVICE_ATTACHED";
+    public static final String ACTION_USB_DEVICE_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
+    public static final String EXTRA_DEVICE = "device";
+    public static final String EXTRA_PERMISSION_GRANTED = "permission";
+
+    private final ConcurrentHashMap<String, UsbDevice> devices = new ConcurrentHashMap<>();
+    private final Set<String> permitted = ConcurrentHashMap.newKeySet();
+
+    public void attach(UsbDevice device) {
+        devices.put(device.getDeviceName(), device);
+    }
+
+    public void detach(UsbDevice device) {
+        devices.remove(device.getDeviceName());
+        permitted.remove(device.getDeviceName());
+    }
+
+    public void grantPermission(UsbDevice device) {
+        permitted.add(device.getDeviceName());
+    }
+
+    public HashMap<String, UsbDevice> getDeviceList() {
+        return new HashMap<>(devices);
+    }
+
+    public boolean hasPermission(UsbDevice device) {
+        return permitted.contains(device.getDeviceName());
+    }
+
+    public UsbDeviceConnection openDevice(UsbDevice device) {
+        return devices.containsKey(device.getDeviceName()) ? new UsbDeviceConnection() : null;
+    }
+}
@@ -0,0 +1,43 @@
+package android.hardware.usb;
+
+import java.nio.ByteBuffer;
+
+//JVM stand-in for android.hardware.usb.UsbRequest. Nothing completes a queued request, so
+//requestWait of the stand-in connection never returns one.
+public class UsbRequest {
+
+    private UsbEndpoint endpoint;
+    private Object clientData;
+
+    public boolean initialize(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+        this.endpoint = endpoint;
+        return true;
+    }
+
+    public UsbEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public boolean queue(ByteBuffer buffer) {
+        return true;
+    }
+
+    public boolean queue(ByteBuffer buffer, int length) {
+        return true;
+    }
+
+    public void setClientData(Object data) {
+        clientData = data;
+    }
+
+    public Object getClientData() {
+        return clientData;
+    }
+
+    public boolean cancel() {
+        return true;
+    }
+
+    public void close() {
+    }
+}
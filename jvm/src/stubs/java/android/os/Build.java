@@ -0,0 +1,20 @@
+package android.os;
+
+//JVM stand-in for android.os.Build, the shared sources run as on Android 13
+public class Build {
+
+    public static class VERSION {
+        public static int SDK_INT = 33;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int O = 26;
+        public static final int Q = 29;
+        public static final int S = 31;
+        public static final int TIRAMISU = 33;
+    }
+}
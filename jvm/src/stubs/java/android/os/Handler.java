@@ -0,0 +1,40 @@
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+//JVM stand-in for android.os.Handler, posts to the thread of its Looper
+public class Handler {
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "handler-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Looper looper;
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public boolean post(Runnable r) {
+        looper.executor.execute(r);
+        return true;
+    }
+
+    public boolean postDelayed(final Runnable r, long delayMillis) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                post(r);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
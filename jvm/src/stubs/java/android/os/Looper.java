@@ -0,0 +1,35 @@
+package android.os;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+//JVM stand-in for android.os.Looper. The main looper is a single daemon thread named "main",
+//so callbacks posted to the main thread run one after another as on a device.
+public final class Looper {
+
+    private static final Looper MAIN = new Looper();
+
+    private volatile Thread thread;
+    final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread created = new Thread(runnable, "main");
+            created.setDaemon(true);
+            thread = created;
+            return created;
+        }
+    });
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    //the main looper on its thread, null on every other thread
+    public static Looper myLooper() {
+        return Thread.currentThread() == MAIN.thread ? MAIN : null;
+    }
+}
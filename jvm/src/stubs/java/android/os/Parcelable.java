@@ -0,0 +1,5 @@
+package android.os;
+
+//JVM stand-in for android.os.Parcelable, only a marker here
+public interface Parcelable {
+}
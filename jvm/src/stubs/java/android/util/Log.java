@@ -0,0 +1,59 @@
+package android.util;
+
+//JVM stand-in for android.util.Log. Warnings and errors go to stderr when -Dusbdb.log=true,
+//everything else is dropped; isLoggable answers false, so UsbLog keeps info logs off.
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final boolean ENABLED = Boolean.getBoolean("usbdb.log");
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return false;
+    }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        if (ENABLED) {
+            System.err.println(level + "/" + tag + ": " + msg);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+        return 0;
+    }
+}
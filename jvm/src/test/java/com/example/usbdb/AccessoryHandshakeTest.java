@@ -0,0 +1,132 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+//the AOAP handshake against SimulatedAoapDevice on a slow or dead transport. An unresponsive device
+//used to cost AOAP_TIMEOUT_MS on every attach, the learned timeouts and the quarantine bound that cost.
+public class AccessoryHandshakeTest {
+
+    private static final int VENDOR_ID = 0x1234;
+    private static final int PRODUCT_ID = 0x5678;
+    private static final long DEADLINE_MS = 5000;
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    private static SimulatedAoapDevice device(long latencyMillis) {
+        SimulatedAoapDevice device = new SimulatedAoapDevice(2);
+        device.setTransferLatency(latencyMillis, TimeUnit.MILLISECONDS);
+        return device;
+    }
+
+    //20 healthy phones of the product answering in 3 ms each
+    private static AccessoryNegotiator learnedNegotiator() {
+        AccessoryNegotiator negotiator = new AccessoryNegotiator(new AccessoryHandshake(AccessoryIdentification.DEFAULT), AccessoryCapabilities.ALL);
+        for (int i = 0; i < 20; i++) {
+            DeviceIdentity identity = new DeviceIdentity(VENDOR_ID, PRODUCT_ID, "OK" + i, "/dev/bus/usb/001/" + i);
+            assertTrue(negotiator.negotiate(identity, device(3), DEADLINE_MS).isSuccess());
+        }
+        return negotiator;
+    }
+
+    @Test
+    public void unresponsiveDeviceIsGivenUpOnEarlyAndQuarantined() {
+        SimulatedAoapDevice dead = device(10000);
+
+        long start = System.nanoTime();
+        AccessoryHandshake.HandshakeResult fixed = new AccessoryHandshake(AccessoryIdentification.DEFAULT).run(dead, DEADLINE_MS);
+        long fixedMillis = millisSince(start);
+        assertFalse(fixed.isSuccess());
+        assertTrue("fixed " + fixedMillis, fixedMillis >= AOAP.AOAP_TIMEOUT_MS);
+
+        AccessoryNegotiator negotiator = learnedNegotiator();
+        DeviceIdentity identity = new DeviceIdentity(VENDOR_ID, PRODUCT_ID, "DEAD", "/dev/bus/usb/002/1");
+        long worst = 0;
+        for (int attach = 0; attach < 3; attach++) {
+            start = System.nanoTime();
+            AccessoryHandshake.HandshakeResult result = negotiator.negotiate(identity, dead, DEADLINE_MS);
+            long millis = millisSince(start);
+            assertEquals(AccessoryHandshake.Status.TRANSFER_FAILED, result.getStatus());
+            worst = Math.max(worst, millis);
+        }
+        //the timeout doubles after each failure and never exceeds the fixed one
+        assertTrue("worst " + worst + " ms, fixed " + fixedMillis + " ms", worst <= fixedMillis);
+
+        start = System.nanoTime();
+        AccessoryHandshake.HandshakeResult quarantined = negotiator.negotiate(identity, dead, DEADLINE_MS);
+        assertEquals(AccessoryHandshake.Status.QUARANTINED, quarantined.getStatus());
+        assertTrue(millisSince(start) < 50);
+
+        //other phones of the product are still probed
+        DeviceIdentity other = new DeviceIdentity(VENDOR_ID, PRODUCT_ID, "OK100", "/dev/bus/usb/002/2");
+        assertTrue(negotiator.negotiate(other, device(3), DEADLINE_MS).isSuccess());
+    }
+
+    @Test
+    public void learnedTimeoutIsShorterThanFixed() {
+        AccessoryNegotiator negotiator = learnedNegotiator();
+        int learned = negotiator.getControlTimeouts().getProfile(VENDOR_ID, PRODUCT_ID).getTimeoutMillis();
+        assertTrue("learned " + learned, learned < AOAP.AOAP_TIMEOUT_MS);
+    }
+
+    //slower than the learned timeout: the first attach times out, the doubled timeout lets the next one through
+    @Test
+    public void slowDeviceSucceedsAfterBackoff() {
+        AccessoryNegotiator negotiator = learnedNegotiator();
+        int learned = negotiator.getControlTimeouts().getProfile(VENDOR_ID, PRODUCT_ID).getTimeoutMillis();
+
+        DeviceIdentity identity = new DeviceIdentity(VENDOR_ID, PRODUCT_ID, "SLOW", "/dev/bus/usb/002/3");
+        SimulatedAoapDevice slow = device(learned + 50);
+        assertEquals(AccessoryHandshake.Status.TRANSFER_FAILED, negotiator.negotiate(identity, slow, DEADLINE_MS).getStatus());
+
+        AccessoryHandshake.HandshakeResult result = negotiator.negotiate(identity, slow, DEADLINE_MS);
+        assertEquals(AccessoryHandshake.Status.SUCCESS, result.getStatus());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(result.getTotalNanos()) <= DEADLINE_MS);
+    }
+
+    @Test
+    public void deadlineBoundsTheHandshake() {
+        long start = System.nanoTime();
+        AccessoryHandshake.HandshakeResult result = new AccessoryHandshake(AccessoryIdentification.DEFAULT).run(device(10000), 600);
+        long millis = millisSince(start);
+        assertFalse(result.isSuccess());
+        assertTrue("took " + millis + " ms", millis < 1000);
+    }
+
+    //detach interrupts the probing thread, the transfer in flight ends and nothing more is sent
+    @Test
+    public void interruptCancelsHandshake() throws InterruptedException {
+        final SimulatedAoapDevice busy = device(100);
+        final AccessoryHandshake.HandshakeResult[] result = new AccessoryHandshake.HandshakeResult[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = new AccessoryHandshake(AccessoryIdentification.DEFAULT).run(busy, DEADLINE_MS);
+            }
+        });
+
+        long start = System.nanoTime();
+        thread.start();
+        Thread.sleep(150);
+        thread.interrupt();
+        thread.join();
+
+        assertEquals(AccessoryHandshake.Status.CANCELLED, result[0].getStatus());
+        assertTrue(millisSince(start) < 1000);
+    }
+
+    //a one byte answer to ACCESSORY_GET_PROTOCOL is not a protocol version
+    @Test
+    public void shortProtocolReadIsNotSupported() {
+        SimulatedAoapDevice device = new SimulatedAoapDevice(2);
+        device.setShortReadRate(1.0);
+        assertEquals(0, AOAP.getProtocol((AoapTransport) device));
+        assertFalse(AOAP.isSupported((AoapTransport) device));
+    }
+}
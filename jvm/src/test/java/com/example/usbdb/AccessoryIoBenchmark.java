@@ -0,0 +1,101 @@
+package com.example.usbdb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//AccessoryIo over the in-memory loopback device. throughput pipelines frames and counts the bytes,
+//reported as bytes per second; roundTrip sends one frame at a time and waits until it is read back,
+//SampleTime gives its p50 and p99.
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessoryIoBenchmark {
+
+    @Param({"512", "16384", "65536"})
+    public int frameSize;
+
+    //completion latency of every transfer of the loopback device
+    @Param({"0", "50"})
+    public int latencyMicros;
+
+    private AccessoryIo io;
+    private ByteBuffer frame;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final Semaphore received = new Semaphore(0);
+    private long sentBytes;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+    }
+
+    @Setup(Level.Trial)
+    public void open() {
+        LoopbackBulkTransport transport = new LoopbackBulkTransport(512, 32, latencyMicros, TimeUnit.MICROSECONDS);
+        io = new AccessoryIo(transport, new DirectBufferPool(16384, 32), 4, 8, new AccessoryFraming.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer payload) {
+                receivedBytes.addAndGet(payload.remaining());
+                received.release();
+            }
+        });
+        io.start();
+        frame = AccessoryIoTest.frame(frameSize);
+    }
+
+    //lets the frames still in flight arrive, so the next iteration starts with an empty pipeline
+    @TearDown(Level.Iteration)
+    public void drain() throws InterruptedException {
+        long until = System.currentTimeMillis() + 10000;
+        while (receivedBytes.get() < sentBytes && System.currentTimeMillis() < until) {
+            Thread.sleep(1);
+        }
+        received.drainPermits();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        io.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean throughput(Bytes bytes) throws InterruptedException {
+        boolean queued = io.sendFrame(frame.duplicate(), 1000);
+        if (queued) {
+            bytes.bytes += frameSize;
+            sentBytes += frameSize;
+        }
+        return queued;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean roundTrip() throws InterruptedException {
+        if (!io.sendFrame(frame.duplicate(), 1000)) {
+            return false;
+        }
+        sentBytes += frameSize;
+        return received.tryAcquire(1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+//frames of every size make it through the loopback device intact and in order,
+//including frames longer than one transfer buffer and empty frames
+public class AccessoryIoTest {
+
+    private static final int FRAMES = 2000;
+
+    @Test
+    public void framesArriveIntactAndInOrder() throws Exception {
+        LoopbackBulkTransport transport = new LoopbackBulkTransport(512, 32, 50, TimeUnit.MICROSECONDS);
+        DirectBufferPool pool = new DirectBufferPool(16384, 16);
+        final Random expected = new Random(1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger mismatched = new AtomicInteger();
+        final AtomicLong receivedBytes = new AtomicLong();
+
+        AccessoryIo io = new AccessoryIo(transport, pool, 4, 8, new AccessoryFraming.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer payload) {
+                //frames come from one thread in the order they were sent, so the sizes repeat the sender's
+                int length = expected.nextInt(40000);
+                if (payload.remaining() != length || !matches(payload)) {
+                    mismatched.incrementAndGet();
+                }
+                receivedBytes.addAndGet(payload.remaining());
+                received.incrementAndGet();
+            }
+        });
+        io.start();
+
+        Random sizes = new Random(1);
+        long sentBytes = 0;
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                ByteBuffer frame = frame(sizes.nextInt(40000));
+                sentBytes += frame.remaining();
+                assertTrue("frame " + i + " not queued", io.sendFrame(frame, 1000));
+            }
+
+            long until = System.currentTimeMillis() + 10000;
+            while (received.get() < FRAMES && System.currentTimeMillis() < until) {
+                Thread.sleep(10);
+            }
+
+            AccessoryIo.Stats stats = io.getStats();
+            assertEquals(FRAMES, received.get());
+            assertEquals(0, mismatched.get());
+            assertEquals(sentBytes, receivedBytes.get());
+            assertEquals(0, stats.getCorruptTransfers());
+            assertEquals(0, stats.getFailedTransfers());
+            assertTrue(stats.getWriteLatencyPercentileNanos(99) >= stats.getWriteLatencyPercentileNanos(50));
+            //transfers reuse pooled buffers instead of allocating one per frame
+            assertTrue(pool.getAllocatedCount() <= 16);
+        }
+        finally {
+            io.close();
+        }
+    }
+
+    @Test
+    public void emptyFrameIsDelivered() throws Exception {
+        LoopbackBulkTransport transport = new LoopbackBulkTransport(512, 32, 0, TimeUnit.MICROSECONDS);
+        final AtomicInteger lengths = new AtomicInteger(-1);
+        AccessoryIo io = new AccessoryIo(transport, new DirectBufferPool(16384, 4), 2, 2, new AccessoryFraming.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer payload) {
+                lengths.set(payload.remaining());
+            }
+        });
+        io.start();
+        try {
+            assertTrue(io.sendFrame(ByteBuffer.allocate(0), 1000));
+            long until = System.currentTimeMillis() + 5000;
+            while (lengths.get() < 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, lengths.get());
+        }
+        finally {
+            io.close();
+        }
+    }
+
+    //bytes derived from the length, so a frame cut or glued to another one does not match
+    static ByteBuffer frame(int length) {
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            frame.put((byte) (length + i));
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static boolean matches(ByteBuffer payload) {
+        int length = payload.remaining();
+        for (int i = 0; i < length; i++) {
+            if (payload.get(payload.position() + i) != (byte) (length + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+//capability negotiation and the bulk channel against SimulatedAoapDevice
+public class AccessoryNegotiatorTest {
+
+    private static final long DEADLINE_MS = 5000;
+    private static final int TIMEOUT_MS = 1000;
+
+    private static class MapStore implements AccessoryCapabilities.Store {
+
+        final Map<String, AccessoryCapabilities> rows = new HashMap<>();
+
+        @Override
+        public AccessoryCapabilities loadCapabilities(String deviceKey) {
+            return rows.get(deviceKey);
+        }
+
+        @Override
+        public void saveCapabilities(String deviceKey, AccessoryCapabilities capabilities) {
+            rows.put(deviceKey, capabilities);
+        }
+
+        @Override
+        public void deleteCapabilities(String deviceKey) {
+            rows.remove(deviceKey);
+        }
+    }
+
+    private static AccessoryNegotiator negotiator(MapStore store) {
+        AccessoryNegotiator negotiator = new AccessoryNegotiator(new AccessoryHandshake(AccessoryIdentification.DEFAULT), AccessoryCapabilities.ALL);
+        negotiator.setStore(store);
+        return negotiator;
+    }
+
+    private static DeviceIdentity identity(String serial) {
+        return new DeviceIdentity(0x18D1, 0x4EE1, serial, "/dev/bus/usb/001/2");
+    }
+
+    @Test
+    public void protocolVersionTwoGetsAudio() {
+        MapStore store = new MapStore();
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+
+        AccessoryHandshake.HandshakeResult result = negotiator(store).negotiate(identity("SN1"), phone, DEADLINE_MS);
+
+        assertTrue(result.isSuccess());
+        assertTrue(result.isNegotiated());
+        assertEquals(2, result.getProtocolVersion());
+        assertTrue(result.getCapabilities().has(AccessoryCapabilities.AUDIO));
+        assertEquals(AOAP.AUDIO_MODE_PCM_16BIT_44100_STEREO, phone.getAudioMode());
+        assertTrue(phone.isAccessoryStarted());
+        assertEquals(result.getCapabilities(), store.rows.get(identity("SN1").getKey()));
+    }
+
+    @Test
+    public void protocolVersionOneGetsNoAudio() {
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(1);
+
+        AccessoryHandshake.HandshakeResult result = negotiator(new MapStore()).negotiate(identity("SN1"), phone, DEADLINE_MS);
+
+        assertTrue(result.isSuccess());
+        assertEquals(1, result.getProtocolVersion());
+        assertFalse(result.getCapabilities().has(AccessoryCapabilities.AUDIO));
+        assertEquals(0, result.getStepNanos(AccessoryHandshake.STEP_AUDIO_MODE));
+        assertEquals(AOAP.AUDIO_MODE_NONE, phone.getAudioMode());
+    }
+
+    //audio disabled on the phone: accessory mode without audio. A reattach asks again, audio may be on by then
+    @Test
+    public void rejectedAudioStillStartsAccessoryMode() {
+        MapStore store = new MapStore();
+        AccessoryNegotiator negotiator = negotiator(store);
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+        phone.setRejectAudioMode(true);
+
+        AccessoryHandshake.HandshakeResult result = negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS);
+        assertTrue(result.isSuccess());
+        assertFalse(result.getCapabilities().has(AccessoryCapabilities.AUDIO));
+        assertFalse(store.rows.get(identity("SN1").getKey()).has(AccessoryCapabilities.AUDIO));
+
+        phone.reset();
+        phone.setRejectAudioMode(false);
+        result = negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS);
+        assertTrue(result.isSuccess());
+        assertFalse(result.isNegotiated());
+        assertTrue(result.getCapabilities().has(AccessoryCapabilities.AUDIO));
+        assertEquals(AOAP.AUDIO_MODE_PCM_16BIT_44100_STEREO, phone.getAudioMode());
+    }
+
+    @Test
+    public void reattachSkipsRequest51() {
+        MapStore store = new MapStore();
+        AccessoryNegotiator negotiator = negotiator(store);
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+
+        assertTrue(negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS).isNegotiated());
+        int firstTransfers = phone.getTransferCount();
+
+        //the same phone in another port
+        phone.reset();
+        DeviceIdentity otherPort = new DeviceIdentity(0x18D1, 0x4EE1, "SN1", "/dev/bus/usb/002/5");
+        AccessoryHandshake.HandshakeResult again = negotiator.negotiate(otherPort, phone, DEADLINE_MS);
+        assertTrue(again.isSuccess());
+        assertFalse(again.isNegotiated());
+        assertEquals(0, again.getStepNanos(AccessoryHandshake.STEP_GET_PROTOCOL));
+        assertEquals(firstTransfers - 1, phone.getTransferCount());
+        assertEquals(AOAP.AUDIO_MODE_PCM_16BIT_44100_STEREO, phone.getAudioMode());
+
+        //after a restart the capabilities come from the store
+        phone.reset();
+        AccessoryHandshake.HandshakeResult restarted = negotiator(store).negotiate(identity("SN1"), phone, DEADLINE_MS);
+        assertTrue(restarted.isSuccess());
+        assertFalse(restarted.isNegotiated());
+    }
+
+    //a phone that lost accessory support since it was stored is negotiated from scratch next time
+    @Test
+    public void staleCapabilitiesAreForgotten() {
+        MapStore store = new MapStore();
+        AccessoryNegotiator negotiator = negotiator(store);
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+        assertTrue(negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS).isSuccess());
+
+        phone.reset();
+        phone.setProtocolVersion(0);
+        assertFalse(negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS).isSuccess());
+        assertNull(negotiator.getCapabilities(identity("SN1")));
+        assertNull(store.rows.get(identity("SN1").getKey()));
+
+        phone.reset();
+        AccessoryHandshake.HandshakeResult result = negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS);
+        assertTrue(result.isNegotiated());
+        assertEquals(AccessoryHandshake.Status.NOT_SUPPORTED, result.getStatus());
+    }
+
+    //without a serial number the identity does not survive a replug, nothing is remembered
+    @Test
+    public void pathIdentityIsNotRemembered() {
+        MapStore store = new MapStore();
+        AccessoryNegotiator negotiator = negotiator(store);
+        DeviceIdentity pathOnly = new DeviceIdentity(0x18D1, 0x4EE1, null, "/dev/bus/usb/001/2");
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+
+        assertTrue(negotiator.negotiate(pathOnly, phone, DEADLINE_MS).isSuccess());
+        phone.reset();
+        assertTrue(negotiator.negotiate(pathOnly, phone, DEADLINE_MS).isNegotiated());
+        assertTrue(store.rows.isEmpty());
+    }
+
+    @Test
+    public void channelLoopsBackOverBulkTransfers() {
+        AccessoryNegotiator negotiator = negotiator(new MapStore());
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+        assertTrue(negotiator.negotiate(identity("SN1"), phone, DEADLINE_MS).isSuccess());
+
+        AccessoryChannel channel = new AccessoryChannel(phone, negotiator.getCapabilities(identity("SN1")));
+        assertTrue(channel.getCapabilities().has(AccessoryCapabilities.AUDIO));
+        assertEquals(512, channel.getMaxPacketSize());
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertTrue(channel.write(data, 0, data.length, TIMEOUT_MS));
+        byte[] buffer = new byte[2048];
+        assertEquals(data.length, channel.read(buffer, 0, buffer.length, TIMEOUT_MS));
+        assertArrayEquals(data, Arrays.copyOf(buffer, data.length));
+        assertEquals(1000, channel.getBytesWritten());
+        assertEquals(1000, channel.getBytesRead());
+
+        //nothing to read times out
+        assertEquals(-1, channel.read(buffer, 0, buffer.length, 20));
+        assertEquals(1, channel.getFailedTransferCount());
+
+        channel.close();
+        assertTrue(phone.isClosed());
+        assertFalse(channel.write(data, 0, 10, TIMEOUT_MS));
+        assertEquals(-1, channel.read(buffer, 0, buffer.length, TIMEOUT_MS));
+    }
+
+    //every bulk transfer takes half of what is asked, write goes on until all of it is sent
+    @Test
+    public void shortWritesAreContinued() {
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+        assertTrue(negotiator(new MapStore()).negotiate(identity("SN1"), phone, DEADLINE_MS).isSuccess());
+        phone.setShortReadRate(1.0);
+        AccessoryChannel channel = new AccessoryChannel(phone, null);
+
+        byte[] data = new byte[64];
+        assertTrue(channel.write(data, 0, data.length, TIMEOUT_MS));
+        assertEquals(64, channel.getBytesWritten());
+
+        int received = 0;
+        byte[] buffer = new byte[64];
+        int read;
+        while ((read = channel.read(buffer, 0, buffer.length, 20)) > 0) {
+            received += read;
+        }
+        assertEquals(64, received);
+    }
+
+    @Test
+    public void channelBeforeAccessoryModeFails() {
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+        AccessoryChannel channel = new AccessoryChannel(phone, null);
+
+        assertFalse(channel.write(new byte[8], 0, 8, TIMEOUT_MS));
+        assertEquals(-1, channel.read(new byte[8], 0, 8, TIMEOUT_MS));
+        assertEquals(2, channel.getFailedTransferCount());
+        assertNull(channel.getCapabilities());
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//UsbUtils.checkDeviceType of a device no rule knows, the full handshake against SimulatedAoapDevice.
+//Throughput gives handshakes per second, SampleTime the p50 and p99 of one attach.
+//firstAttach forgets the device before every call so request 51 is sent, otherwise the negotiator
+//remembers it as on a reattach.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckDeviceTypeBenchmark {
+
+    @Param({"1", "2"})
+    public int protocolVersion;
+
+    //completion latency of every control transfer
+    @Param({"0", "100"})
+    public int latencyMicros;
+
+    @Param({"true", "false"})
+    public boolean firstAttach;
+
+    private UsbUtilsTest.AlertContext context;
+    private SimulatedAoapDevice phone;
+    private UsbDevice device;
+    private DeviceIdentity identity;
+
+    @Setup
+    public void attach() {
+        UsbLog.setInfoEnabled(false);
+        context = new UsbUtilsTest.AlertContext();
+        phone = new SimulatedAoapDevice(protocolVersion);
+        phone.setTransferLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        device = JvmContext.device(1);
+        identity = DeviceIdentity.of(device);
+    }
+
+    @Benchmark
+    public DeviceType checkDeviceType() {
+        if (firstAttach) {
+            UsbUtils.getAccessoryNegotiator().forget(identity);
+        }
+        phone.reset();
+        return UsbUtils.checkDeviceType(context, phone, device);
+    }
+}
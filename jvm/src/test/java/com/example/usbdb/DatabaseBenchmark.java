@@ -0,0 +1,87 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//insert, lookup and list of USBDevicesDatabaseHelper on a file database in WAL mode.
+//Every fork is a new JVM, so every run starts with its own helper and database.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    //rows in the table before measuring
+    @Param({"1000"})
+    public int rows;
+
+    private JvmContext context;
+    private USBDevicesDatabaseHelper helper;
+    private UsbDevice known;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createTable() {
+        context = new JvmContext();
+        helper = USBDevicesDatabaseHelper.getInstance(context);
+        for (int i = 0; i < rows; i++) {
+            USBDevicesDatabaseHelper.insertUSBDevicestoDB(context, JvmContext.device(i));
+        }
+        known = JvmContext.device(rows / 2);
+        next = rows;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        helper.getWriteBehind().shutdown();
+        helper.close();
+    }
+
+    @Benchmark
+    public boolean insert() {
+        return USBDevicesDatabaseHelper.insertUSBDevicestoDB(context, JvmContext.device(next++));
+    }
+
+    //attach of a known device, the attach time goes to the write-behind queue
+    @Benchmark
+    public int upsertKnown() {
+        return USBDevicesDatabaseHelper.upsertUSBDevice(context, known);
+    }
+
+    //indexed UPDATE of the attach time, how checkUSBDeviceinDB finds a row
+    @Benchmark
+    public boolean checkInDb() {
+        return USBDevicesDatabaseHelper.checkUSBDeviceinDB(context, known);
+    }
+
+    @Benchmark
+    public long lookupAttachTime() {
+        return helper.getAttachmentTime(known);
+    }
+
+    @Benchmark
+    public List<StoredDevice> listAll() {
+        return helper.getAllStoredDevices();
+    }
+
+    @Benchmark
+    public List<StoredDevice> firstPage() {
+        return helper.getDevicesPage(new DeviceQuery(), 0, 50);
+    }
+}
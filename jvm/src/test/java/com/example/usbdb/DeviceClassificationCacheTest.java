@@ -0,0 +1,174 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class DeviceClassificationCacheTest {
+
+    private static final long TTL_MS = 60000;
+
+    //the persisted table, counting the lookups that missed the memory cache
+    private static class MapStore implements DeviceClassificationCache.Store {
+
+        final Map<String, DeviceClassificationCache.Classification> rows = new HashMap<>();
+        int loads;
+
+        @Override
+        public DeviceClassificationCache.Classification loadClassification(String deviceKey) {
+            loads++;
+            return rows.get(deviceKey);
+        }
+
+        @Override
+        public List<DeviceClassificationCache.Classification> loadRecentClassifications(int limit) {
+            List<DeviceClassificationCache.Classification> recent = new ArrayList<>(rows.values());
+            Collections.sort(recent, new Comparator<DeviceClassificationCache.Classification>() {
+                @Override
+                public int compare(DeviceClassificationCache.Classification a, DeviceClassificationCache.Classification b) {
+                    return Long.compare(b.getClassifiedAt(), a.getClassifiedAt());
+                }
+            });
+            return recent.subList(0, Math.min(limit, recent.size()));
+        }
+
+        @Override
+        public void saveClassification(DeviceClassificationCache.Classification classification) {
+            rows.put(classification.getIdentity().getKey(), classification);
+        }
+
+        @Override
+        public void deleteClassification(String deviceKey) {
+            rows.remove(deviceKey);
+        }
+    }
+
+    private static DeviceIdentity identity(int index) {
+        return new DeviceIdentity(0x18D1, 0x4EE1, "SN" + index, "/dev/bus/usb/001/" + index);
+    }
+
+    @Test
+    public void knownDeviceIsAHit() {
+        MapStore store = new MapStore();
+        DeviceClassificationCache cache = new DeviceClassificationCache(store, 8, TTL_MS);
+
+        assertNull(cache.getDeviceType(identity(1)));
+        cache.put(identity(1), 2, DeviceType.ANDROID);
+
+        assertEquals(DeviceType.ANDROID, cache.getDeviceType(identity(1)));
+        //the same phone in another port
+        assertEquals(DeviceType.ANDROID, cache.getDeviceType(new DeviceIdentity(0x18D1, 0x4EE1, "SN1", "/dev/bus/usb/002/7")));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, store.rows.get(identity(1).getKey()).getProtocolVersion());
+        assertEquals(1, store.loads);
+    }
+
+    @Test
+    public void onlyFinalTypesOfSerialNumberedDevicesAreCached() {
+        MapStore store = new MapStore();
+        DeviceClassificationCache cache = new DeviceClassificationCache(store, 8, TTL_MS);
+        DeviceIdentity pathOnly = new DeviceIdentity(0x18D1, 0x4EE1, null, "/dev/bus/usb/001/9");
+
+        cache.put(pathOnly, 2, DeviceType.ANDROID);
+        cache.put(identity(1), 2, DeviceType.UNKNOWN);
+        cache.put(identity(2), 0, DeviceType.NOT_CLASSIFIED);
+        cache.put(identity(3), 0, null);
+
+        assertTrue(store.rows.isEmpty());
+        assertNull(cache.getDeviceType(pathOnly));
+        assertNull(cache.getDeviceType(identity(1)));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        //a device without serial never reaches the table
+        assertEquals(1, store.loads);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        MapStore store = new MapStore();
+        DeviceClassificationCache cache = new DeviceClassificationCache(store, 3, TTL_MS);
+        for (int i = 1; i <= 3; i++) {
+            cache.put(identity(i), 0, DeviceType.IPHONE);
+        }
+        //1 becomes the most recently used, 2 is the eldest when 4 comes
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(1)));
+        cache.put(identity(4), 0, DeviceType.IPHONE);
+        assertEquals(0, store.loads);
+
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(1)));
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(3)));
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(4)));
+        assertEquals(0, store.loads);
+
+        //evicted from memory only, the table still knows it
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(2)));
+        assertEquals(1, store.loads);
+        assertEquals(5, cache.getHitCount());
+    }
+
+    @Test
+    public void expiredClassificationIsProbedAgain() {
+        MapStore store = new MapStore();
+        DeviceClassificationCache cache = new DeviceClassificationCache(store, 8, TTL_MS);
+        long expired = System.currentTimeMillis() - TTL_MS - 1000;
+        store.saveClassification(new DeviceClassificationCache.Classification(identity(1), 1, DeviceType.ANDROID, expired));
+        store.saveClassification(new DeviceClassificationCache.Classification(identity(2), 1, DeviceType.ANDROID, System.currentTimeMillis()));
+
+        assertNull(cache.getDeviceType(identity(1)));
+        assertEquals(DeviceType.ANDROID, cache.getDeviceType(identity(2)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        //the expired row is gone, a new probe result replaces it
+        assertNull(store.rows.get(identity(1).getKey()));
+
+        cache.put(identity(1), 2, DeviceType.ANDROID);
+        assertEquals(DeviceType.ANDROID, cache.getDeviceType(identity(1)));
+    }
+
+    //the cache is keyed by serial number, a detach and reattach hits; invalidate forgets the device everywhere
+    @Test
+    public void invalidateForgetsTheDevice() {
+        MapStore store = new MapStore();
+        DeviceClassificationCache cache = new DeviceClassificationCache(store, 8, TTL_MS);
+        cache.put(identity(1), 2, DeviceType.ANDROID);
+        cache.put(identity(2), 0, DeviceType.IPHONE);
+
+        assertEquals(DeviceType.ANDROID, cache.getDeviceType(identity(1)));
+        cache.invalidate(identity(1));
+
+        assertNull(store.rows.get(identity(1).getKey()));
+        assertNull(cache.getDeviceType(identity(1)));
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(2)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void warmUpLoadsTheMostRecentUnexpired() {
+        MapStore store = new MapStore();
+        long now = System.currentTimeMillis();
+        store.saveClassification(new DeviceClassificationCache.Classification(identity(1), 0, DeviceType.IPHONE, now - TTL_MS - 1));
+        store.saveClassification(new DeviceClassificationCache.Classification(identity(2), 0, DeviceType.IPHONE, now - 3000));
+        store.saveClassification(new DeviceClassificationCache.Classification(identity(3), 0, DeviceType.IPHONE, now - 2000));
+        store.saveClassification(new DeviceClassificationCache.Classification(identity(4), 0, DeviceType.IPHONE, now - 1000));
+        DeviceClassificationCache cache = new DeviceClassificationCache(store, 4, TTL_MS);
+
+        //the expired row is loaded with the others and left out
+        assertEquals(3, cache.warmUp());
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(4)));
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(3)));
+        assertEquals(DeviceType.IPHONE, cache.getDeviceType(identity(2)));
+        assertEquals(0, store.loads);
+        assertNull(cache.getDeviceType(identity(1)));
+        assertEquals(1, store.loads);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.usbdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//lookups and reload of DeviceClassifier with 50k rules: exact products only, or a tenth of them
+//product ranges of every width plus vendor rules. Keys cycle through a shuffled array so the
+//lookups are not all the same cache line.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceClassifierBenchmark {
+
+    private static final int KEYS = 4096;
+
+    @Param({"50000"})
+    public int rules;
+
+    @Param({"exact", "mixed"})
+    public String ruleSet;
+
+    private List<DeviceClassifier.Rule> ruleList;
+    private DeviceClassifier classifier;
+    private final int[] hits = new int[KEYS];
+    private final int[] misses = new int[KEYS];
+    private int next;
+
+    @Setup
+    public void buildRules() {
+        Random random = new Random(1);
+        ruleList = new ArrayList<>(rules);
+        for (int i = 0; i < rules; i++) {
+            int vendor = random.nextInt(0x10000);
+            int product = random.nextInt(0x10000);
+            if ("mixed".equals(ruleSet) && i % 10 == 0) {
+                if (i % 100 == 0) {
+                    ruleList.add(DeviceClassifier.Rule.vendor(vendor, DeviceType.UNKNOWN));
+                }
+                else {
+                    int to = Math.min(0xFFFF, product + 1 + random.nextInt(i % 20 == 0 ? 8000 : 64));
+                    ruleList.add(new DeviceClassifier.Rule(vendor, product, to, DeviceType.IPHONE));
+                }
+            }
+            else {
+                ruleList.add(DeviceClassifier.Rule.exact(vendor, product, DeviceType.ANDROID));
+            }
+        }
+        classifier = new DeviceClassifier(ruleList);
+
+        for (int i = 0; i < KEYS; i++) {
+            DeviceClassifier.Rule rule = ruleList.get(random.nextInt(rules));
+            int product = rule.getProductIdFrom() == DeviceClassifier.ANY ? random.nextInt(0x10000) : rule.getProductIdFrom();
+            hits[i] = DeviceClassifier.pack(rule.getVendorId(), product);
+            misses[i] = random.nextInt();
+        }
+    }
+
+    @Benchmark
+    public DeviceType classifyHit() {
+        int key = hits[next++ & (KEYS - 1)];
+        return classifier.classify(key >>> 16, key & 0xFFFF);
+    }
+
+    //mostly misses, they go through every table of the index
+    @Benchmark
+    public DeviceType classifyMiss() {
+        int key = misses[next++ & (KEYS - 1)];
+        return classifier.classify(key >>> 16, key & 0xFFFF);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int reload() {
+        return classifier.reload(ruleList);
+    }
+}
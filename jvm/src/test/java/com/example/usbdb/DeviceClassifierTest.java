@@ -0,0 +1,142 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class DeviceClassifierTest {
+
+    @Test
+    public void defaultRulesKnowIphoneAndAccessoryMode() {
+        DeviceClassifier classifier = new DeviceClassifier();
+
+        assertEquals(DeviceType.IPHONE, classifier.classify(1452, 4776));
+        assertEquals(DeviceType.ANDROID, classifier.classify(0x18D1, 0x2D01));
+        assertNull(classifier.classify(0x18D1, 0x2D02));
+        assertNull(classifier.classify(0x18D1, 0x4EE1));
+    }
+
+    //without a store the replaced rules live in memory on top of the base rules
+    @Test
+    public void replacedRulesKeepTheBaseRules() {
+        DeviceClassifier classifier = new DeviceClassifier();
+        List<DeviceClassifier.Rule> rules = new ArrayList<>();
+        rules.add(DeviceClassifier.Rule.exact(0x18D1, 0x4EE1, DeviceType.ANDROID));
+
+        assertEquals(DeviceClassifier.defaultRules().size() + 1, classifier.replaceStoredRules(rules));
+        assertEquals(DeviceType.ANDROID, classifier.classify(0x18D1, 0x4EE1));
+        assertEquals(DeviceType.IPHONE, classifier.classify(1452, 4776));
+
+        classifier.replaceStoredRules(new ArrayList<DeviceClassifier.Rule>());
+        assertNull(classifier.classify(0x18D1, 0x4EE1));
+        assertEquals(DeviceType.IPHONE, classifier.classify(1452, 4776));
+    }
+
+    @Test
+    public void parsedRulesApplyBySpecificity() throws Exception {
+        DeviceClassifier classifier = new DeviceClassifier();
+        List<DeviceClassifier.Rule> rules = DeviceClassifier.defaultRules();
+        rules.addAll(DeviceClassifier.parseRules(new StringReader("# comment\n" +
+                "0x18D1:0x4E00-0x4EFF ANDROID\n" +
+                "0xFFFF:0x0000-0xFFFF NA\n" +
+                "0x0BDA:* NOT_CLASSIFIED\n" +
+                "0x0BDA:0x0001 iPhone\n" +
+                "bad line\n" +
+                "*:* Unknown\n" +
+                "0x8000:0x10-0x9000 ANDROID\n")));
+
+        assertEquals(11, classifier.reload(rules));
+        assertEquals(DeviceType.ANDROID, classifier.classify(0x18D1, 0x4EE1));
+        assertEquals(DeviceType.NOT_CLASSIFIED, classifier.classify(0xFFFF, 0xFFFF));
+        assertEquals(DeviceType.ANDROID, classifier.classify(0x8000, 0x5000));
+        assertEquals(DeviceType.UNKNOWN, classifier.classify(0x8000, 0x9001));
+        assertEquals(DeviceType.NOT_CLASSIFIED, classifier.classify(0x0BDA, 5));
+        assertEquals(DeviceType.IPHONE, classifier.classify(0x0BDA, 1));
+        assertEquals(DeviceType.UNKNOWN, classifier.classify(1, 1));
+    }
+
+    //random overlapping ranges of every width against a linear scan: an exact product beats any range,
+    //among ranges the later rule wins, then the vendor rule, then the global one
+    @Test
+    public void overlappingRangesMatchLinearScan() {
+        Random random = new Random(1);
+        int[] vendors = {0x18D1, 0x8000, 0xFFFF};
+        DeviceType[] types = DeviceType.values();
+
+        for (int round = 0; round < 300; round++) {
+            List<DeviceClassifier.Rule> rules = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                int vendor = vendors[random.nextInt(vendors.length)];
+                DeviceType type = types[random.nextInt(types.length)];
+                switch (random.nextInt(6)) {
+                    case 0:
+                        rules.add(DeviceClassifier.Rule.exact(vendor, random.nextInt(0x10000), type));
+                        break;
+                    case 1:
+                        rules.add(DeviceClassifier.Rule.vendor(vendor, type));
+                        break;
+                    default:
+                        int from = random.nextInt(0xF000);
+                        int width = random.nextBoolean() ? random.nextInt(2 * DeviceClassifier.MAX_EXPANDED_RANGE) : random.nextInt(8000);
+                        rules.add(new DeviceClassifier.Rule(vendor, from, Math.min(0xFFFF, from + 1 + width), type));
+                }
+            }
+            DeviceClassifier classifier = new DeviceClassifier(rules);
+
+            for (int q = 0; q < 3000; q++) {
+                int vendor = vendors[random.nextInt(vendors.length)];
+                int product = random.nextInt(0x10000);
+                assertEquals("round " + round + " " + Integer.toHexString(vendor) + ":" + Integer.toHexString(product) + " " + rules,
+                        scan(rules, vendor, product), classifier.classify(vendor, product));
+            }
+        }
+    }
+
+    @Test
+    public void fiftyThousandExactRules() {
+        Random random = new Random(1);
+        List<DeviceClassifier.Rule> rules = new ArrayList<>();
+        int[] keys = new int[50000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            rules.add(DeviceClassifier.Rule.exact(keys[i] >>> 16, keys[i] & 0xFFFF, DeviceType.ANDROID));
+        }
+        DeviceClassifier classifier = new DeviceClassifier(rules);
+
+        for (int key : keys) {
+            assertEquals(DeviceType.ANDROID, classifier.classify(key >>> 16, key & 0xFFFF));
+        }
+    }
+
+    private static DeviceType scan(List<DeviceClassifier.Rule> rules, int vendor, int product) {
+        DeviceType exact = null;
+        DeviceType range = null;
+        DeviceType vendorType = null;
+        DeviceType fallback = null;
+        for (DeviceClassifier.Rule rule : rules) {
+            if (rule.getVendorId() == DeviceClassifier.ANY) {
+                fallback = rule.getDeviceType();
+            }
+            else if (rule.getVendorId() != vendor) {
+                continue;
+            }
+            else if (rule.getProductIdFrom() == DeviceClassifier.ANY) {
+                vendorType = rule.getDeviceType();
+            }
+            else if (product >= rule.getProductIdFrom() && product <= rule.getProductIdTo()) {
+                if (rule.getProductIdFrom() == rule.getProductIdTo()) {
+                    exact = rule.getDeviceType();
+                }
+                else {
+                    range = rule.getDeviceType();
+                }
+            }
+        }
+        return exact != null ? exact : range != null ? range : vendorType != null ? vendorType : fallback;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.usbdb;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//events per second through DeviceEventLog into usb_device_events on a file database in WAL mode,
+//with the ring and batch sizes of UsbMonitorService. The request asks for 10k+ events/s.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceEventLogBenchmark {
+
+    private static final int CAPACITY = 4096;
+    private static final int BATCH_SIZE = 256;
+
+    private USBDevicesDatabaseHelper helper;
+    private DeviceEventLog eventLog;
+    private DeviceIdentity identity;
+
+    @Setup(Level.Trial)
+    public void open() {
+        helper = USBDevicesDatabaseHelper.getInstance(new JvmContext());
+        eventLog = new DeviceEventLog(helper, CAPACITY, BATCH_SIZE, 1000);
+        identity = DeviceIdentity.of(JvmContext.device(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        eventLog.shutdown();
+        helper.close();
+    }
+
+    //what a caller pays, the batches are written on the flush thread meanwhile
+    @Benchmark
+    public void record() {
+        eventLog.record(identity, DeviceEventLog.EventType.ATTACHED, null);
+    }
+
+    //sustained rate: a full batch recorded and committed before the next one, no event dropped
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long recordAndCommit() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            eventLog.record(identity, DeviceEventLog.EventType.CLASSIFIED, "Android");
+        }
+        eventLog.flush();
+        return eventLog.getWrittenEventCount();
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+//the ring and its batching against a Sink that keeps what it was given and can be made to fail
+public class DeviceEventLogTest {
+
+    private static final long NEVER = 60 * 60 * 1000L;
+
+    private static class RecordingSink implements DeviceEventLog.Sink {
+
+        final List<String> details = new ArrayList<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        volatile int failures;
+        volatile CountDownLatch written = new CountDownLatch(1);
+
+        @Override
+        public synchronized void writeEvents(DeviceEventLog.EventBatch batch) {
+            if (failures > 0) {
+                failures--;
+                throw new IllegalStateException("database locked");
+            }
+            for (int i = 0; i < batch.size; i++) {
+                details.add(batch.details[i]);
+            }
+            batchSizes.add(batch.size);
+            written.countDown();
+        }
+
+        synchronized List<String> getDetails() {
+            return new ArrayList<>(details);
+        }
+    }
+
+    private static final DeviceIdentity IDENTITY = new DeviceIdentity(0x18D1, 0x4EE1, "SN1", "/dev/bus/usb/001/2");
+
+    private static void record(DeviceEventLog log, int from, int to) {
+        for (int i = from; i < to; i++) {
+            log.record(IDENTITY, DeviceEventLog.EventType.ATTACHED, String.valueOf(i));
+        }
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> details = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            details.add(String.valueOf(i));
+        }
+        return details;
+    }
+
+    @Test
+    public void eventsAreWrittenInOrderInOneBatch() {
+        RecordingSink sink = new RecordingSink();
+        DeviceEventLog log = new DeviceEventLog(sink, 64, 64, NEVER);
+        record(log, 0, 40);
+        log.flush();
+
+        assertEquals(range(0, 40), sink.getDetails());
+        assertEquals(1, log.getCommitCount());
+        assertEquals(40, log.getWrittenEventCount());
+        log.shutdown();
+    }
+
+    @Test
+    public void fullBatchIsWrittenWithoutWaitingForTheInterval() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        DeviceEventLog log = new DeviceEventLog(sink, 64, 8, NEVER);
+        record(log, 0, 8);
+
+        assertTrue(sink.written.await(5, TimeUnit.SECONDS));
+        log.shutdown();
+        assertEquals(range(0, 8), sink.getDetails());
+    }
+
+    @Test
+    public void intervalWritesWhatIsPending() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        DeviceEventLog log = new DeviceEventLog(sink, 64, 64, 20);
+        record(log, 0, 3);
+
+        assertTrue(sink.written.await(5, TimeUnit.SECONDS));
+        assertEquals(range(0, 3), sink.getDetails());
+        log.shutdown();
+    }
+
+    //a full ring overwrites the oldest events and the ring wraps around
+    @Test
+    public void fullRingDropsOldest() {
+        RecordingSink sink = new RecordingSink();
+        DeviceEventLog log = new DeviceEventLog(sink, 16, 64, NEVER);
+        record(log, 0, 10);
+        log.flush();
+        record(log, 10, 40);
+        log.flush();
+
+        List<String> expected = range(0, 10);
+        expected.addAll(range(24, 40));
+        assertEquals(expected, sink.getDetails());
+        assertEquals(14, log.getDroppedEventCount());
+        log.shutdown();
+    }
+
+    //a failed batch goes back in front of the events recorded since and is retried after the backoff
+    @Test
+    public void failedBatchIsRequeuedInOrder() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.failures = 1;
+        DeviceEventLog log = new DeviceEventLog(sink, 64, 64, 50);
+        record(log, 0, 5);
+        log.requestFlush();
+
+        //the failed attempt, then the retry after the backoff of one interval
+        long start = System.nanoTime();
+        record(log, 5, 8);
+        assertTrue(sink.written.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+
+        assertEquals(range(0, 8), sink.getDetails());
+        assertEquals(0, log.getDroppedEventCount());
+        log.shutdown();
+    }
+
+    @Test
+    public void requeueDropsOldestWhenRingIsFull() {
+        RecordingSink sink = new RecordingSink();
+        sink.failures = 1;
+        DeviceEventLog log = new DeviceEventLog(sink, 16, 64, NEVER);
+        record(log, 0, 10);
+        log.flush();
+        record(log, 10, 20);
+        log.flush();
+
+        assertEquals(range(4, 20), sink.getDetails());
+        assertEquals(4, log.getDroppedEventCount());
+        log.shutdown();
+    }
+
+    //flush does not wait for the backoff, a write that keeps failing keeps its events
+    @Test
+    public void flushRetriesDuringBackoff() {
+        RecordingSink sink = new RecordingSink();
+        sink.failures = 2;
+        DeviceEventLog log = new DeviceEventLog(sink, 64, 64, NEVER);
+        record(log, 0, 4);
+        log.flush();
+        log.flush();
+        assertEquals(0, log.getCommitCount());
+
+        log.flush();
+        assertEquals(range(0, 4), sink.getDetails());
+        assertEquals(1, log.getCommitCount());
+        log.shutdown();
+    }
+}
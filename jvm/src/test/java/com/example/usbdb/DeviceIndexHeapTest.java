@@ -0,0 +1,81 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+//live heap of 100k devices held three ways: the DeviceIndex columns, StoredDevice rows in a List and
+//UsbDevice objects in a List, as getAllUSBDevices kept them. The UsbDevice stand-in has one interface
+//with two bulk endpoints and none of the configurations and descriptor fields of Android's, so its
+//figure is a lower bound.
+public class DeviceIndexHeapTest {
+
+    private static final int DEVICES = 100000;
+
+    //16 character serial numbers and 20 character bus paths, like phones on a hub
+    private static String serialNumber(int i) {
+        return String.format("R58M%012d", i);
+    }
+
+    private static String deviceName(int i) {
+        return String.format("/dev/bus/usb/%03d/%03d", 1 + i / 1000, i % 1000) + "-0";
+    }
+
+    @Test
+    public void indexIsSmallerThanObjectLists() {
+        long baseline = liveHeap();
+        DeviceIndex index = new DeviceIndex(DEVICES);
+        for (int i = 0; i < DEVICES; i++) {
+            index.put(i + 1, 0x04E8, 0x6860 + i % 8, serialNumber(i), deviceName(i), 1700000000000L + i, DeviceType.ANDROID);
+        }
+        long indexBytes = liveHeap() - baseline;
+        long estimate = index.estimateHeapBytes();
+
+        baseline = liveHeap();
+        List<StoredDevice> rows = new ArrayList<>(DEVICES);
+        for (int i = 0; i < DEVICES; i++) {
+            rows.add(new StoredDevice(i + 1, deviceName(i), 0x04E8, 0x6860 + i % 8, serialNumber(i), null, null,
+                    DeviceType.ANDROID.getLabel(), 1700000000000L + i));
+        }
+        long rowBytes = liveHeap() - baseline;
+
+        baseline = liveHeap();
+        List<UsbDevice> devices = new ArrayList<>(DEVICES);
+        for (int i = 0; i < DEVICES; i++) {
+            UsbInterface usbInterface = new UsbInterface(0, UsbConstants.USB_CLASS_VENDOR_SPEC,
+                    new UsbEndpoint(0x81, UsbConstants.USB_ENDPOINT_XFER_BULK, 512),
+                    new UsbEndpoint(0x01, UsbConstants.USB_ENDPOINT_XFER_BULK, 512));
+            devices.add(new UsbDevice(deviceName(i), 0x04E8, 0x6860 + i % 8, "samsung", "SAMSUNG_Android",
+                    serialNumber(i), usbInterface));
+        }
+        long deviceBytes = liveHeap() - baseline;
+
+        System.out.println("DeviceIndexHeapTest: " + DEVICES + " devices, DeviceIndex " + indexBytes + " bytes (estimate "
+                + estimate + "), List<StoredDevice> " + rowBytes + " bytes, List<UsbDevice> " + deviceBytes + " bytes");
+
+        assertEquals(DEVICES, index.size());
+        assertEquals(DEVICES, rows.size());
+        assertEquals(DEVICES, devices.size());
+        assertTrue("estimate " + estimate + ", measured " + indexBytes, Math.abs(estimate - indexBytes) < indexBytes / 4);
+        assertTrue("index " + indexBytes + ", rows " + rowBytes, indexBytes < rowBytes);
+        assertTrue("index " + indexBytes + ", devices " + deviceBytes, indexBytes < deviceBytes);
+    }
+
+    //heap still reachable after a full collection
+    private static long liveHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class DeviceIndexTest {
+
+    private static DeviceIdentity identity(int i) {
+        //every fifth device has no readable serial number and is identified by its bus path
+        return i % 5 == 0
+                ? new DeviceIdentity(0x18D1, 0x4EE0 + i % 3, null, "/dev/bus/usb/001/" + i)
+                : new DeviceIdentity(0x18D1, 0x4EE0 + i % 3, "SN" + i, "/dev/bus/usb/002/" + i);
+    }
+
+    private static void put(DeviceIndex index, long srNo, DeviceIdentity identity, long attachTime) {
+        index.put(srNo, identity.getVendorId(), identity.getProductId(), identity.getSerialNumber(), identity.getDeviceName(),
+                attachTime, DeviceType.ANDROID);
+    }
+
+    @Test
+    public void findsRowsByIdentityAndSrNo() {
+        DeviceIndex index = new DeviceIndex();
+        DeviceIdentity withSerial = identity(1);
+        DeviceIdentity withoutSerial = identity(5);
+        put(index, 10, withSerial, 100);
+        put(index, 11, withoutSerial, 200);
+
+        assertEquals(10, index.getSrNo(withSerial));
+        assertEquals(200, index.getAttachTime(withoutSerial));
+        assertEquals(withSerial, index.getIdentity(10));
+        assertEquals(withoutSerial, index.getIdentity(11));
+        assertEquals(DeviceType.ANDROID, index.getDeviceType(withSerial));
+
+        //the serial number identifies the row whatever the port, a path row only on its port
+        assertTrue(index.contains(new DeviceIdentity(0x18D1, withSerial.getProductId(), "SN1", "/dev/bus/usb/009/9")));
+        assertFalse(index.contains(new DeviceIdentity(0x18D1, withoutSerial.getProductId(), null, "/dev/bus/usb/009/9")));
+        assertFalse(index.contains(new DeviceIdentity(0x18D2, withSerial.getProductId(), "SN1", "/dev/bus/usb/002/1")));
+    }
+
+    @Test
+    public void putReplacesRowWithSameSrNoOrIdentity() {
+        DeviceIndex index = new DeviceIndex();
+        put(index, 1, identity(1), 100);
+        put(index, 1, identity(2), 200);
+        assertFalse(index.contains(identity(1)));
+        assertEquals(1, index.getSrNo(identity(2)));
+
+        put(index, 7, identity(2), 300);
+        assertFalse(index.containsSrNo(1));
+        assertEquals(300, index.getAttachTime(identity(2)));
+        assertEquals(1, index.size());
+    }
+
+    //grows from the minimum capacity many times, every row stays reachable
+    @Test
+    public void resizeKeepsEveryRow() {
+        DeviceIndex index = new DeviceIndex();
+        for (int i = 0; i < 20000; i++) {
+            put(index, i + 1, identity(i), i);
+        }
+        assertEquals(20000, index.size());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i + 1, index.getSrNo(identity(i)));
+            assertEquals(identity(i), index.getIdentity(i + 1));
+        }
+    }
+
+    //random puts and removes on few keys against a HashMap: long probe runs that wrap around the end of the
+    //tables, backward shift deletes in the middle of them and rows moved into the holes
+    @Test
+    public void agreesWithHashMapUnderChurn() {
+        Random random = new Random(24);
+        DeviceIndex index = new DeviceIndex();
+        Map<Long, DeviceIdentity> bySrNo = new HashMap<>();
+        Map<DeviceIdentity, Long> byIdentity = new HashMap<>();
+
+        for (int n = 0; n < 200000; n++) {
+            int i = random.nextInt(3000);
+            DeviceIdentity identity = identity(i);
+            int operation = random.nextInt(4);
+            if (operation < 2) {
+                long srNo = 1 + random.nextInt(5000);
+                put(index, srNo, identity, n);
+                DeviceIdentity previous = bySrNo.remove(srNo);
+                if (previous != null) {
+                    byIdentity.remove(previous);
+                }
+                Long previousSrNo = byIdentity.remove(identity);
+                if (previousSrNo != null) {
+                    bySrNo.remove(previousSrNo);
+                }
+                bySrNo.put(srNo, identity);
+                byIdentity.put(identity, srNo);
+            }
+            else if (operation == 2) {
+                Long srNo = byIdentity.remove(identity);
+                assertEquals(srNo != null, index.remove(identity));
+                if (srNo != null) {
+                    bySrNo.remove(srNo);
+                }
+            }
+            else {
+                long srNo = 1 + random.nextInt(5000);
+                DeviceIdentity removed = bySrNo.remove(srNo);
+                assertEquals(removed, index.removeBySrNo(srNo));
+                if (removed != null) {
+                    byIdentity.remove(removed);
+                }
+            }
+
+            if (n % 10000 == 0) {
+                assertAgrees(index, bySrNo);
+            }
+        }
+        assertAgrees(index, bySrNo);
+    }
+
+    private static void assertAgrees(DeviceIndex index, Map<Long, DeviceIdentity> bySrNo) {
+        assertEquals(bySrNo.size(), index.size());
+        for (int i = 0; i < 3000; i++) {
+            DeviceIdentity identity = identity(i);
+            long srNo = index.getSrNo(identity);
+            if (srNo != 0) {
+                assertEquals(identity, bySrNo.get(srNo));
+            }
+            else {
+                assertFalse(bySrNo.containsValue(identity));
+            }
+        }
+        for (long srNo = 1; srNo <= 5000; srNo++) {
+            assertEquals(bySrNo.get(srNo), index.getIdentity(srNo));
+        }
+    }
+
+    //Latin-1 strings are stored with a byte per character, others with two; both come back unchanged
+    @Test
+    public void internedStringsRoundTrip() {
+        DeviceIndex index = new DeviceIndex();
+        String[] serials = {"", "ü-Serial-ÿ", "序列号-42", "SN\u0000NUL", "📱"};
+        for (int i = 0; i < serials.length; i++) {
+            put(index, i + 1, new DeviceIdentity(0x18D1, 0x4EE1, serials[i], "/dev/bus/usb/001/" + i), i);
+        }
+        for (int i = 0; i < serials.length; i++) {
+            DeviceIdentity identity = index.getIdentity(i + 1);
+            assertEquals(serials[i], identity.getSerialNumber());
+            assertEquals("/dev/bus/usb/001/" + i, identity.getDeviceName());
+            assertEquals(i + 1, index.getSrNo(identity));
+        }
+
+        //a prefix or a different width of the same characters is another string
+        assertFalse(index.contains(new DeviceIdentity(0x18D1, 0x4EE1, "ü-Serial-", "/dev/bus/usb/001/1")));
+        assertFalse(index.contains(new DeviceIdentity(0x18D1, 0x4EE1, "序列号", "/dev/bus/usb/001/2")));
+    }
+
+    //the interner grows past its initial capacity, and clear starts it over
+    @Test
+    public void internerGrowsAndClears() {
+        DeviceIndex index = new DeviceIndex(16);
+        for (int i = 0; i < 5000; i++) {
+            put(index, i + 1, new DeviceIdentity(0x18D1, 0x4EE1, "SERIAL-NUMBER-LONGER-THAN-SIXTEEN-" + i, "/dev/" + i), i);
+        }
+        for (int i = 0; i < 5000; i += 7) {
+            assertEquals("SERIAL-NUMBER-LONGER-THAN-SIXTEEN-" + i, index.getIdentity(i + 1).getSerialNumber());
+        }
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertNull(index.getIdentity(1));
+        put(index, 1, identity(3), 1);
+        assertEquals(identity(3), index.getIdentity(1));
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+//the diffs DeviceListAdapter.apply turns into ListView updates
+public class DeviceListDiffTest {
+
+    private static DeviceListItem item(long srNo, String deviceType, long attachTime, boolean connected) {
+        StoredDevice device = new StoredDevice(srNo, "/dev/bus/usb/001/" + srNo, 0x18D1, 0x4EE1, "SN" + srNo,
+                "Vendor", "Product " + srNo, deviceType, attachTime);
+        return new DeviceListItem(device, connected);
+    }
+
+    private static DeviceListItem item(long srNo) {
+        return item(srNo, "Android", 1000, true);
+    }
+
+    private static List<DeviceListItem> items(long... srNos) {
+        List<DeviceListItem> items = new ArrayList<>();
+        for (long srNo : srNos) {
+            items.add(item(srNo));
+        }
+        return items;
+    }
+
+    @Test
+    public void sameListIsEmpty() {
+        DeviceListDiff diff = DeviceListDiff.compute(items(1, 2, 3), items(1, 2, 3));
+
+        assertTrue(diff.isEmpty());
+        assertTrue(diff.isContentOnly());
+    }
+
+    @Test
+    public void firstSnapshotInsertsEveryRow() {
+        List<DeviceListItem> newItems = items(5, 6, 7);
+        DeviceListDiff diff = DeviceListDiff.compute(new ArrayList<DeviceListItem>(), newItems);
+
+        assertEquals(Arrays.asList(0, 1, 2), diff.getInsertedPositions());
+        assertTrue(diff.getRemovedPositions().isEmpty());
+        assertFalse(diff.isContentOnly());
+        assertSame(newItems, diff.getNewItems());
+    }
+
+    //a new device at the top moves every other row down one position
+    @Test
+    public void insertedRowShiftsTheRest() {
+        DeviceListDiff diff = DeviceListDiff.compute(items(1, 2, 3), items(4, 1, 2, 3));
+
+        assertEquals(Collections.singletonList(0), diff.getInsertedPositions());
+        assertTrue(diff.getRemovedPositions().isEmpty());
+        assertEquals(Arrays.asList(1, 2, 3), diff.getChangedPositions());
+        assertFalse(diff.isContentOnly());
+    }
+
+    @Test
+    public void removedRowsAreOldPositions() {
+        DeviceListDiff diff = DeviceListDiff.compute(items(1, 2, 3, 4, 5), items(1, 3, 5));
+
+        assertTrue(diff.getInsertedPositions().isEmpty());
+        assertEquals(Arrays.asList(1, 3), diff.getRemovedPositions());
+        //3 and 5 moved up
+        assertEquals(Arrays.asList(1, 2), diff.getChangedPositions());
+        assertFalse(diff.isContentOnly());
+    }
+
+    @Test
+    public void appendedRowLeavesTheOthersAlone() {
+        DeviceListDiff diff = DeviceListDiff.compute(items(1, 2), items(1, 2, 3));
+
+        assertEquals(Collections.singletonList(2), diff.getInsertedPositions());
+        assertTrue(diff.getChangedPositions().isEmpty());
+    }
+
+    //the rows the adapter rebinds in place: type, attach time, connection and name
+    @Test
+    public void contentChangesAreInPlace() {
+        List<DeviceListItem> oldItems = items(1, 2, 3, 4, 5);
+        List<DeviceListItem> newItems = new ArrayList<>(oldItems);
+        newItems.set(0, item(1, "iPhone", 1000, true));
+        newItems.set(1, item(2, "Android", 2000, true));
+        newItems.set(2, item(3, "Android", 1000, false));
+        StoredDevice renamed = new StoredDevice(4, "/dev/bus/usb/001/4", 0x18D1, 0x4EE1, "SN4",
+                "Vendor", "Renamed", "Android", 1000);
+        newItems.set(3, new DeviceListItem(renamed, true));
+        //an equal row built again is no change
+        newItems.set(4, item(5));
+
+        DeviceListDiff diff = DeviceListDiff.compute(oldItems, newItems);
+
+        assertTrue(diff.isContentOnly());
+        assertEquals(Arrays.asList(0, 1, 2, 3), diff.getChangedPositions());
+    }
+
+    //a reordered list has no inserts or removals, every row at a new position is rebound
+    @Test
+    public void movedRowsAreChangedAtTheirNewPosition() {
+        DeviceListDiff diff = DeviceListDiff.compute(items(1, 2, 3, 4), items(1, 4, 3, 2));
+
+        assertTrue(diff.isContentOnly());
+        assertEquals(Arrays.asList(1, 3), diff.getChangedPositions());
+    }
+
+    //what the adapter relies on: a row neither inserted nor changed shows the same device with the same
+    //content at the same position, and every old row is either kept or removed
+    @Test
+    public void randomSnapshotsKeepTheAdapterConsistent() {
+        Random random = new Random(11);
+        for (int round = 0; round < 500; round++) {
+            List<DeviceListItem> oldItems = randomList(random);
+            List<DeviceListItem> newItems = randomList(random);
+            DeviceListDiff diff = DeviceListDiff.compute(oldItems, newItems);
+
+            Set<Long> oldSrNos = new HashSet<>();
+            for (DeviceListItem item : oldItems) {
+                oldSrNos.add(item.getStoredDevice().getSrNo());
+            }
+            Set<Long> newSrNos = new HashSet<>();
+            for (int i = 0; i < newItems.size(); i++) {
+                long srNo = newItems.get(i).getStoredDevice().getSrNo();
+                newSrNos.add(srNo);
+                assertEquals(!oldSrNos.contains(srNo), diff.getInsertedPositions().contains(i));
+                if (!diff.getInsertedPositions().contains(i) && !diff.getChangedPositions().contains(i)) {
+                    DeviceListItem old = oldItems.get(i);
+                    assertEquals(srNo, old.getStoredDevice().getSrNo());
+                    assertEquals(old.getDisplayName(), newItems.get(i).getDisplayName());
+                    assertEquals(old.getStoredDevice().getDeviceType(), newItems.get(i).getStoredDevice().getDeviceType());
+                }
+            }
+            for (int i = 0; i < oldItems.size(); i++) {
+                boolean gone = !newSrNos.contains(oldItems.get(i).getStoredDevice().getSrNo());
+                assertEquals(gone, diff.getRemovedPositions().contains(i));
+            }
+            assertEquals(oldItems.size() - diff.getRemovedPositions().size() + diff.getInsertedPositions().size(), newItems.size());
+        }
+    }
+
+    //distinct sr_no values out of 0..19 in random order, with a random type and connection
+    private static List<DeviceListItem> randomList(Random random) {
+        List<Long> srNos = new ArrayList<>();
+        for (long srNo = 0; srNo < 20; srNo++) {
+            if (random.nextBoolean()) {
+                srNos.add(srNo);
+            }
+        }
+        if (random.nextBoolean()) {
+            Collections.shuffle(srNos, random);
+        }
+        List<DeviceListItem> items = new ArrayList<>();
+        for (long srNo : srNos) {
+            items.add(item(srNo, random.nextInt(4) == 0 ? "iPhone" : "Android", 1000, random.nextInt(4) != 0));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class DeviceListSnapshotTest {
+
+    //the first page of the database, joined with the attached devices, comes back from the snapshot as it was written
+    @Test
+    public void firstPageRoundTrips() throws Exception {
+        JvmContext context = new JvmContext();
+        USBDevicesDatabaseHelper helper = USBDevicesDatabaseHelper.getInstance(context);
+        for (int i = 0; i < 80; i++) {
+            UsbDevice device = i % 2 == 0 ? JvmContext.device(i) : JvmContext.pathDevice(i);
+            USBDevicesDatabaseHelper.insertUSBDevicestoDB(context, device);
+            if (i % 3 == 0) {
+                context.getUsbManager().attach(device);
+            }
+        }
+        List<StoredDevice> page = helper.getDevicesPage(new DeviceQuery(), 0, 80);
+        List<DeviceListItem> items = DeviceReconciler.reconcile(page, context.getUsbManager().getDeviceList().values());
+
+        DeviceListSnapshot snapshot = new DeviceListSnapshot(new File(context.getFilesDir(), "device_list.snapshot"));
+        snapshot.write(items);
+        List<DeviceListItem> read = snapshot.read();
+
+        assertEquals(DeviceListSnapshot.MAX_ITEMS, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            StoredDevice expected = items.get(i).getStoredDevice();
+            StoredDevice actual = read.get(i).getStoredDevice();
+            assertEquals(expected.getSrNo(), actual.getSrNo());
+            assertEquals(expected.getDeviceName(), actual.getDeviceName());
+            assertEquals(expected.getVendorId(), actual.getVendorId());
+            assertEquals(expected.getProductId(), actual.getProductId());
+            assertEquals(expected.getSerialNumber(), actual.getSerialNumber());
+            assertEquals(expected.getManufacturer(), actual.getManufacturer());
+            assertEquals(expected.getProductName(), actual.getProductName());
+            assertEquals(expected.getDeviceType(), actual.getDeviceType());
+            assertEquals(expected.getAttachTime(), actual.getAttachTime());
+            assertEquals(items.get(i).isConnected(), read.get(i).isConnected());
+        }
+    }
+
+    @Test
+    public void missingOrTruncatedSnapshotIsEmpty() throws Exception {
+        File file = new File(new JvmContext().getFilesDir(), "device_list.snapshot");
+        DeviceListSnapshot snapshot = new DeviceListSnapshot(file);
+        assertTrue(snapshot.read().isEmpty());
+
+        List<DeviceListItem> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            items.add(new DeviceListItem(new StoredDevice(i + 1, "/dev/bus/usb/001/" + i, 0x18D1, 0x4EE1,
+                    "SN" + i, "Google", "Pixel ü " + i, "Android", 1700000000000L + i), i % 2 == 0));
+        }
+        snapshot.write(items);
+        assertEquals(20, snapshot.read().size());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        }
+        finally {
+            raf.close();
+        }
+        assertTrue(snapshot.read().isEmpty());
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//stored rows joined with the plugged in devices. reconcile should grow linearly with the rows,
+//the scan of the device list per row it replaced grows with rows times devices.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceReconcilerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int rows;
+
+    @Param({"100"})
+    public int liveDevices;
+
+    private List<StoredDevice> storedDevices;
+    private List<UsbDevice> live;
+
+    @Setup
+    public void createRows() {
+        storedDevices = new ArrayList<>(rows);
+        live = new ArrayList<>(liveDevices);
+        for (int i = 0; i < rows; i++) {
+            UsbDevice device = JvmContext.device(i);
+            storedDevices.add(new StoredDevice(i + 1, device.getDeviceName(), device.getVendorId(), device.getProductId(),
+                    device.getSerialNumber(), "Vendor", "Product " + i, "Unknown", i));
+        }
+        //spread over the table, the rest of the rows are not plugged in
+        for (int i = 0; i < liveDevices; i++) {
+            live.add(JvmContext.device(i * (rows / liveDevices)));
+        }
+    }
+
+    @Benchmark
+    public List<DeviceListItem> reconcile() {
+        return DeviceReconciler.reconcile(storedDevices, live);
+    }
+
+    //what getAllUSBDevices did before, one pass over the device list for every row
+    @Benchmark
+    public List<DeviceListItem> scanPerRow() {
+        List<DeviceListItem> items = new ArrayList<>(storedDevices.size());
+        for (StoredDevice storedDevice : storedDevices) {
+            UsbDevice match = null;
+            for (UsbDevice device : live) {
+                if (DeviceIdentity.of(device).equals(storedDevice.getIdentity())) {
+                    match = device;
+                    break;
+                }
+            }
+            items.add(new DeviceListItem(storedDevice, match));
+        }
+        return items;
+    }
+}
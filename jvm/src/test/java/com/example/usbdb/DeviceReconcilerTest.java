@@ -0,0 +1,119 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class DeviceReconcilerTest {
+
+    private static StoredDevice row(long srNo, String deviceName, int vendorId, int productId, String serialNumber) {
+        return new StoredDevice(srNo, deviceName, vendorId, productId, serialNumber, "Vendor", "Product", "Unknown", 1000 + srNo);
+    }
+
+    private static StoredDevice row(long srNo, UsbDevice device) {
+        return row(srNo, device.getDeviceName(), device.getVendorId(), device.getProductId(), device.getSerialNumber());
+    }
+
+    private static UsbDevice live(String deviceName, int vendorId, int productId, String serialNumber) {
+        return new UsbDevice(deviceName, vendorId, productId, "Vendor", "Product", serialNumber);
+    }
+
+    @Test
+    public void matchesBySerialOnAnyPort() {
+        StoredDevice stored = row(1, "/dev/bus/usb/001/2", 0x18D1, 0x4EE1, "SN1");
+        UsbDevice replugged = live("/dev/bus/usb/003/7", 0x18D1, 0x4EE1, "SN1");
+
+        List<DeviceListItem> items = DeviceReconciler.reconcile(Collections.singletonList(stored),
+                Arrays.asList(live("/dev/bus/usb/001/2", 0x18D1, 0x4EE1, "SN2"), replugged));
+
+        assertEquals(1, items.size());
+        assertSame(stored, items.get(0).getStoredDevice());
+        assertSame(replugged, items.get(0).getLiveDevice());
+        assertTrue(items.get(0).isConnected());
+    }
+
+    //the stored serial is not readable yet (no permission), the device on the same port with the same IDs is it
+    @Test
+    public void fallsBackToPortWhenSerialIsUnreadable() {
+        StoredDevice stored = row(1, "/dev/bus/usb/001/2", 0x18D1, 0x4EE1, "SN1");
+        UsbDevice withoutSerial = live("/dev/bus/usb/001/2", 0x18D1, 0x4EE1, null);
+
+        assertSame(withoutSerial, DeviceReconciler.reconcile(Collections.singletonList(stored),
+                Collections.singletonList(withoutSerial)).get(0).getLiveDevice());
+
+        //another product on that port is not it
+        UsbDevice otherProduct = live("/dev/bus/usb/001/2", 0x18D1, 0x4EE2, null);
+        assertNull(DeviceReconciler.reconcile(Collections.singletonList(stored),
+                Collections.singletonList(otherProduct)).get(0).getLiveDevice());
+
+        //a readable but different serial on that port is another device
+        UsbDevice otherSerial = live("/dev/bus/usb/001/2", 0x18D1, 0x4EE1, "SN9");
+        assertNull(DeviceReconciler.reconcile(Collections.singletonList(stored),
+                Collections.singletonList(otherSerial)).get(0).getLiveDevice());
+    }
+
+    @Test
+    public void pathRowMatchesByPort() {
+        StoredDevice stored = row(1, "/dev/bus/usb/001/2", 0x18D1, 0x4EE1, null);
+        UsbDevice device = live("/dev/bus/usb/001/2", 0x18D1, 0x4EE1, null);
+
+        assertSame(device, DeviceReconciler.reconcile(Collections.singletonList(stored),
+                Collections.singletonList(device)).get(0).getLiveDevice());
+        assertFalse(DeviceReconciler.reconcile(Collections.singletonList(stored),
+                Collections.singletonList(live("/dev/bus/usb/001/3", 0x18D1, 0x4EE1, null))).get(0).isConnected());
+    }
+
+    //cheap devices share one serial number: every row of the identity shows as connected, rows keep their order
+    @Test
+    public void duplicateIdentitiesAreAllConnected() {
+        UsbDevice first = live("/dev/bus/usb/001/2", 0x1234, 0x5678, "0123456789");
+        UsbDevice second = live("/dev/bus/usb/001/3", 0x1234, 0x5678, "0123456789");
+        List<StoredDevice> rows = Arrays.asList(row(1, first), row(2, second), row(3, "/dev/bus/usb/001/4", 0x1234, 0x5678, "OTHER"));
+
+        List<DeviceListItem> items = DeviceReconciler.reconcile(rows, Arrays.asList(first, second));
+
+        assertEquals(3, items.size());
+        for (int i = 0; i < 3; i++) {
+            assertSame(rows.get(i), items.get(i).getStoredDevice());
+        }
+        assertTrue(items.get(0).isConnected());
+        assertTrue(items.get(1).isConnected());
+        assertFalse(items.get(2).isConnected());
+    }
+
+    //same answer as a scan of the live devices for every row, which is what the join replaces
+    @Test
+    public void agreesWithScanOfLiveDevices() {
+        Random random = new Random(11);
+        List<StoredDevice> rows = new ArrayList<>();
+        List<UsbDevice> liveDevices = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            UsbDevice device = random.nextInt(4) == 0 ? JvmContext.pathDevice(i) : JvmContext.device(i);
+            rows.add(row(i + 1, device));
+            if (random.nextInt(20) == 0) {
+                liveDevices.add(device);
+            }
+        }
+
+        List<DeviceListItem> items = DeviceReconciler.reconcile(rows, liveDevices);
+        for (int i = 0; i < rows.size(); i++) {
+            UsbDevice expected = null;
+            for (UsbDevice device : liveDevices) {
+                if (DeviceIdentity.of(device).equals(rows.get(i).getIdentity())) {
+                    expected = device;
+                }
+            }
+            assertSame(expected, items.get(i).getLiveDevice());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+//thousands of attach and detach broadcasts from several threads at once, as a busy hub delivers them
+public class DeviceRegistryStressTest {
+
+    private static final int THREADS = 8;
+    private static final int DEVICES = 64;
+
+    //every thread delivers the attach of every device, only one of the duplicates may be accepted
+    @Test
+    public void duplicateAttachesAreAcceptedOnce() throws Exception {
+        final DeviceRegistry registry = new DeviceRegistry();
+        final int rounds = 500;
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<Integer> attachedCounts = new ArrayList<>();
+
+        run(new Task() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = 0; i < DEVICES; i++) {
+                        if (registry.onAttached(device(i, round))) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                    if (barrier.await() == 0) {
+                        synchronized (attachedCounts) {
+                            attachedCounts.add(registry.getAttachedCount());
+                        }
+                    }
+                    barrier.await();
+                    for (int i = 0; i < DEVICES; i++) {
+                        registry.onDetached(device(i, round));
+                    }
+                    barrier.await();
+                }
+            }
+        });
+
+        assertEquals(rounds * DEVICES, accepted.get());
+        for (int count : attachedCounts) {
+            assertEquals(DEVICES, count);
+        }
+        assertEquals(0, registry.getAttachedCount());
+        for (int i = 0; i < DEVICES; i++) {
+            assertNull(registry.get(DeviceIdentity.of(device(i, 0))));
+        }
+    }
+
+    //each thread owns some devices and plugs them in and out at random, replugs move them to a new bus
+    //path, while other threads move every attached device through its states. The registry must end
+    //up with exactly the devices each owner left plugged in.
+    @Test
+    public void randomAttachDetachMatchesModel() throws Exception {
+        final DeviceRegistry registry = new DeviceRegistry();
+        final int events = 20000;
+        final UsbDevice[] plugged = new UsbDevice[DEVICES];
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        Thread prober = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    for (DeviceRegistry.Entry entry : registry.getAttachedDevices()) {
+                        UsbDevice device = entry.getDevice();
+                        registry.transition(device, DeviceRegistry.State.ATTACHED, DeviceRegistry.State.PROBING);
+                        registry.transition(device, DeviceRegistry.State.PROBING, DeviceRegistry.State.CLASSIFIED);
+                    }
+                }
+            }
+        });
+        prober.start();
+
+        try {
+            run(new Task() {
+                @Override
+                public void run(int thread) {
+                    Random random = new Random(thread);
+                    int generation = 0;
+                    for (int n = 0; n < events; n++) {
+                        int i = thread + THREADS * random.nextInt(DEVICES / THREADS);
+                        if (plugged[i] == null) {
+                            UsbDevice device = device(i, ++generation);
+                            assertTrue(registry.onAttached(device));
+                            plugged[i] = device;
+                        }
+                        else if (random.nextBoolean()) {
+                            //a duplicate broadcast of the plugged device
+                            assertFalse(registry.onAttached(plugged[i]));
+                        }
+                        else {
+                            registry.onDetached(plugged[i]);
+                            plugged[i] = null;
+                        }
+                    }
+                }
+            });
+        }
+        finally {
+            stop.set(true);
+            prober.join();
+        }
+
+        int expected = 0;
+        for (int i = 0; i < DEVICES; i++) {
+            DeviceRegistry.Entry entry = registry.get(DeviceIdentity.of(device(i, 0)));
+            if (plugged[i] != null) {
+                expected++;
+                assertNotNull(entry);
+                assertEquals(plugged[i].getDeviceName(), entry.getDevice().getDeviceName());
+                assertTrue(entry.getState() != DeviceRegistry.State.DETACHED);
+                assertEquals(entry, registry.get(plugged[i]));
+            }
+            else {
+                assertNull(entry);
+            }
+        }
+        assertEquals(expected, registry.getAttachedCount());
+    }
+
+    //every thread attaches and detaches every device, on one of two bus paths, so attach and detach of the
+    //same identity race. Whatever order they land in, both maps must agree and nothing may be left behind.
+    @Test
+    public void sharedDevicesStayConsistent() throws Exception {
+        final DeviceRegistry registry = new DeviceRegistry();
+        final int events = 20000;
+
+        for (int repeat = 0; repeat < 5; repeat++) {
+            run(new Task() {
+                @Override
+                public void run(int thread) {
+                    Random random = new Random(thread);
+                    for (int n = 0; n < events; n++) {
+                        UsbDevice device = device(random.nextInt(DEVICES), random.nextInt(2));
+                        if (random.nextBoolean()) {
+                            registry.onAttached(device);
+                        }
+                        else {
+                            registry.onDetached(device);
+                        }
+                    }
+                }
+            });
+
+            int attached = 0;
+            for (int i = 0; i < DEVICES; i++) {
+                DeviceRegistry.Entry entry = registry.get(DeviceIdentity.of(device(i, 0)));
+                if (entry != null) {
+                    attached++;
+                    assertTrue(entry.getState() != DeviceRegistry.State.DETACHED);
+                    assertTrue(entry == registry.get(entry.getDevice()));
+                }
+                for (int generation = 0; generation < 2; generation++) {
+                    DeviceRegistry.Entry byName = registry.get(device(i, generation));
+                    if (byName != null) {
+                        assertTrue(byName == entry);
+                    }
+                }
+            }
+            assertEquals(attached, registry.getAttachedCount());
+
+            //no phantom entry swallows the next attach
+            for (int i = 0; i < DEVICES; i++) {
+                registry.onDetached(device(i, 0));
+                registry.onDetached(device(i, 1));
+                assertNull(registry.get(DeviceIdentity.of(device(i, 0))));
+                assertTrue(registry.onAttached(device(i, 0)));
+                registry.onDetached(device(i, 0));
+            }
+            assertEquals(0, registry.getAttachedCount());
+        }
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    //runs the task on THREADS threads and rethrows the first failure
+    private static void run(final Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        task.run(thread);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    //device i with its serial number, on a bus path that changes with every plug-in
+    private static UsbDevice device(int i, int generation) {
+        return new UsbDevice("/dev/bus/usb/" + (generation % 100) + "/" + i, 0x1000, 0x2000 + i, "Vendor", "Product", "SN" + i);
+    }
+}
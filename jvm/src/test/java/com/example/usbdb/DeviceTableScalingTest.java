@@ -0,0 +1,118 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.hardware.usb.UsbDevice;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+//lookups by identity stay flat from 1k to usbdb.rows rows (100k by default): the plans use the identity
+//and device name indexes, and the measured lookup cost hardly grows with the table
+public class DeviceTableScalingTest {
+
+    private static final int SMALL = 1000;
+    private static final int LARGE = Integer.getInteger("usbdb.rows", 100000);
+    private static final int LOOKUPS = 2000;
+    //B-trees a level or two deeper and pages no longer all cached, where a scan would grow with the rows
+    private static final double MAX_GROWTH = 5.0;
+
+    private static JvmContext context;
+    private static SQLiteDatabase db;
+
+    @BeforeClass
+    public static void openDatabase() {
+        context = new JvmContext();
+        USBDevicesDatabaseHelper helper = USBDevicesDatabaseHelper.getInstance(context);
+        helper.getDeviceIndex();
+        db = helper.getWritableDatabase();
+    }
+
+    @Test
+    public void identityLookupsUseIndexes() {
+        String serialPlan = plan("SELECT date_time FROM usb_devices WHERE vendor_id=? AND product_id=? AND serial_number=?",
+                "1", "2", "SN");
+        String namePlan = plan("SELECT date_time FROM usb_devices WHERE device_name=? AND vendor_id=? AND product_id=?" +
+                " AND serial_number IS NULL", "/dev/bus/usb/1/2", "1", "2");
+
+        assertTrue(serialPlan, serialPlan.contains("usb_devices_identity"));
+        assertTrue(namePlan, namePlan.contains("INDEX"));
+        assertFalse(serialPlan, serialPlan.contains("SCAN"));
+        assertFalse(namePlan, namePlan.contains("SCAN"));
+    }
+
+    @Test
+    public void lookupCostStaysFlat() {
+        fill(0, SMALL);
+        //warms up the JIT and the page cache before anything is compared
+        median(SMALL);
+        long small = median(SMALL);
+
+        fill(SMALL, LARGE);
+        long large = median(LARGE);
+
+        assertTrue("median lookup " + small + " ns at " + SMALL + " rows, " + large + " ns at " + LARGE,
+                large < small * MAX_GROWTH);
+    }
+
+    //rows [from, to) in one transaction, through the same table the helper writes
+    private static void fill(int from, int to) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO usb_devices (device_name, vendor_id, product_id," +
+                " serial_number, manufacturer, product_name, device_type, date_time) VALUES (?, ?, ?, ?, ?, ?, 'NA', ?)");
+        db.beginTransaction();
+        try {
+            for (int i = from; i < to; i++) {
+                UsbDevice device = JvmContext.device(i);
+                insert.bindString(1, device.getDeviceName());
+                insert.bindLong(2, device.getVendorId());
+                insert.bindLong(3, device.getProductId());
+                insert.bindString(4, device.getSerialNumber());
+                insert.bindString(5, device.getManufacturerName());
+                insert.bindString(6, device.getProductName());
+                insert.bindLong(7, System.currentTimeMillis());
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    //median of checkUSBDeviceinDB, the indexed attach time UPDATE, over devices spread across the table.
+    //One transaction around all of them, so fsync of the commits does not drown the lookup.
+    private static long median(int rows) {
+        long[] nanos = new long[LOOKUPS];
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < LOOKUPS; i++) {
+                UsbDevice device = JvmContext.device((int) ((i * 7919L) % rows));
+                long start = System.nanoTime();
+                boolean found = USBDevicesDatabaseHelper.checkUSBDeviceinDB(context, device);
+                nanos[i] = System.nanoTime() - start;
+                assertTrue(found);
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        Arrays.sort(nanos);
+        return nanos[LOOKUPS / 2];
+    }
+
+    private static String plan(String sql, String... args) {
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnIndexOrThrow("detail"))).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+//the queue against a Sink that records what it is given and can be held inside a batch
+public class DeviceWriteBehindTest {
+
+    private static final long NEVER = 60 * 60 * 1000L;
+
+    private static class RecordingSink implements DeviceWriteBehind.Sink {
+
+        final List<DeviceWriteBehind.PendingWrite> written = new ArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch release;
+        volatile int failures;
+
+        @Override
+        public void writeDevices(Map<String, DeviceWriteBehind.PendingWrite> batch) {
+            entered.countDown();
+            CountDownLatch latch = release;
+            if (latch != null) {
+                try {
+                    latch.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failures > 0) {
+                failures--;
+                throw new IllegalStateException("disk full");
+            }
+            synchronized (written) {
+                for (DeviceWriteBehind.PendingWrite write : batch.values()) {
+                    if (!write.isForgotten()) {
+                        written.add(write);
+                    }
+                }
+            }
+        }
+    }
+
+    private static DeviceIdentity identity(int i) {
+        return new DeviceIdentity(0x18D1, i, "SN" + i, "/dev/bus/usb/001/" + i);
+    }
+
+    @Test
+    public void updatesOfOneDeviceAreMerged() {
+        RecordingSink sink = new RecordingSink();
+        DeviceWriteBehind writeBehind = new DeviceWriteBehind(sink, 64, NEVER);
+        DeviceIdentity identity = identity(1);
+
+        assertFalse(writeBehind.setAttachTime(identity, 1));
+        writeBehind.markStored(identity);
+        assertTrue(writeBehind.setAttachTime(identity, 1));
+        assertTrue(writeBehind.setDeviceType(identity, DeviceType.ANDROID));
+        assertTrue(writeBehind.setAttachTime(identity, 2));
+        assertEquals(2, writeBehind.getPending(identity).getAttachTime());
+
+        writeBehind.shutdown();
+        assertEquals(1, sink.written.size());
+        DeviceWriteBehind.PendingWrite write = sink.written.get(0);
+        assertEquals(identity, write.getIdentity());
+        assertEquals("SN1", write.getIdentity().getSerialNumber());
+        assertEquals(2, write.getAttachTime());
+        assertEquals(DeviceType.ANDROID, write.getDeviceType());
+        assertEquals(3, writeBehind.getUpdateCount());
+        assertEquals(1, writeBehind.getCommitCount());
+    }
+
+    @Test
+    public void forgetDuringFlushSkipsTheWrite() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        sink.release = new CountDownLatch(1);
+        DeviceWriteBehind writeBehind = new DeviceWriteBehind(sink, 64, NEVER);
+        DeviceIdentity deleted = identity(1);
+        DeviceIdentity kept = identity(2);
+        writeBehind.markStored(deleted);
+        writeBehind.markStored(kept);
+        writeBehind.setAttachTime(deleted, 10);
+        writeBehind.setAttachTime(kept, 20);
+
+        writeBehind.requestFlush();
+        assertTrue(sink.entered.await(5, TimeUnit.SECONDS));
+        writeBehind.forget(deleted);
+        assertNull(writeBehind.getPending(deleted));
+        assertEquals(20, writeBehind.getPending(kept).getAttachTime());
+        sink.release.countDown();
+
+        writeBehind.shutdown();
+        assertEquals(1, sink.written.size());
+        assertEquals(kept, sink.written.get(0).getIdentity());
+        assertFalse(writeBehind.setAttachTime(deleted, 30));
+    }
+
+    //forgetAll returns only once the batch in flight is committed and what was queued meanwhile is written
+    @Test
+    public void forgetAllWritesEverythingBeforeReturning() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        sink.release = new CountDownLatch(1);
+        final DeviceWriteBehind writeBehind = new DeviceWriteBehind(sink, 64, NEVER);
+        DeviceIdentity first = identity(1);
+        DeviceIdentity second = identity(2);
+        writeBehind.markStored(first);
+        writeBehind.markStored(second);
+        writeBehind.setAttachTime(first, 10);
+
+        writeBehind.requestFlush();
+        assertTrue(sink.entered.await(5, TimeUnit.SECONDS));
+        writeBehind.setAttachTime(second, 20);
+
+        final CountDownLatch forgotten = new CountDownLatch(1);
+        Thread deleter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind.forgetAll();
+                forgotten.countDown();
+            }
+        });
+        deleter.start();
+        assertFalse(forgotten.await(200, TimeUnit.MILLISECONDS));
+
+        sink.release.countDown();
+        assertTrue(forgotten.await(5, TimeUnit.SECONDS));
+        assertFalse(writeBehind.hasPending());
+        assertEquals(2, sink.written.size());
+        assertEquals(2, writeBehind.getCommitCount());
+        assertFalse(writeBehind.isStored(first));
+        writeBehind.shutdown();
+    }
+
+    @Test
+    public void failedBatchIsRetriedWithNewerValues() {
+        RecordingSink sink = new RecordingSink();
+        sink.failures = 1;
+        DeviceWriteBehind writeBehind = new DeviceWriteBehind(sink, 64, NEVER);
+        DeviceIdentity identity = identity(1);
+        writeBehind.markStored(identity);
+        writeBehind.setDeviceType(identity, DeviceType.ANDROID);
+
+        writeBehind.flush();
+        assertEquals(0, writeBehind.getCommitCount());
+        assertEquals(DeviceType.ANDROID, writeBehind.getPending(identity).getDeviceType());
+
+        writeBehind.setAttachTime(identity, 5);
+        writeBehind.shutdown();
+        assertEquals(1, sink.written.size());
+        assertEquals(5, sink.written.get(0).getAttachTime());
+        assertEquals(DeviceType.ANDROID, sink.written.get(0).getDeviceType());
+    }
+
+    @Test
+    public void fullBatchFlushesWithoutWaiting() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        DeviceWriteBehind writeBehind = new DeviceWriteBehind(sink, 4, NEVER);
+        for (int i = 0; i < 4; i++) {
+            writeBehind.markStored(identity(i));
+            writeBehind.setAttachTime(identity(i), 1 + i);
+        }
+        assertTrue(sink.entered.await(5, TimeUnit.SECONDS));
+        writeBehind.shutdown();
+        assertEquals(4, writeBehind.getRowWriteCount());
+    }
+}
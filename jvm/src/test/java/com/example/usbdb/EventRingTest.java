@@ -0,0 +1,127 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class EventRingTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new EventRing<Integer>(1).capacity());
+        assertEquals(8, new EventRing<Integer>(5).capacity());
+        assertEquals(8, new EventRing<Integer>(8).capacity());
+        assertEquals(1024, new EventRing<Integer>(1000).capacity());
+    }
+
+    @Test
+    public void fullAndEmptyRing() {
+        EventRing<Integer> ring = new EventRing<>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+    }
+
+    //the positions go around the slots many times, three in and three out per round
+    @Test
+    public void wrapsAroundInOrder() {
+        EventRing<Integer> ring = new EventRing<>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(next++));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), ring.poll());
+            }
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    //every item arrives exactly once and each consumer sees the items of one producer in order
+    @Test
+    public void manyProducersAndConsumers() throws Exception {
+        final int producers = 4;
+        final int consumers = 2;
+        final int perProducer = 100000;
+        final EventRing<Long> ring = new EventRing<>(64);
+        final AtomicInteger remaining = new AtomicInteger(producers * perProducer);
+        final boolean[][] seen = new boolean[producers][perProducer];
+        final List<String> errors = new ArrayList<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        Long item = (long) producer << 32 | i;
+                        while (!ring.offer(item)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int[] last = new int[producers];
+                    Arrays.fill(last, -1);
+                    while (remaining.get() > 0) {
+                        Long item = ring.poll();
+                        if (item == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int producer = (int) (item >>> 32);
+                        int sequence = (int) (long) item;
+                        synchronized (seen) {
+                            if (sequence <= last[producer] || seen[producer][sequence]) {
+                                errors.add(producer + ":" + sequence + " after " + last[producer]);
+                            }
+                            seen[producer][sequence] = true;
+                        }
+                        last[producer] = sequence;
+                        remaining.decrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, remaining.get());
+        assertTrue(ring.isEmpty());
+        for (boolean[] producer : seen) {
+            for (boolean item : producer) {
+                assertTrue(item);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import org.junit.Test;
+
+//1000 stored devices flap 20 times on a hub: every flap is an attach and a classification, two row
+//writes each before the write-behind queue. The queue merges them into a few batched commits.
+public class FlappingWriteBehindTest {
+
+    private static final int DEVICES = 1000;
+    private static final int FLAPS = 20;
+
+    @Test
+    public void flappingCostsFewCommits() {
+        JvmContext context = new JvmContext();
+        USBDevicesDatabaseHelper helper = USBDevicesDatabaseHelper.getInstance(context);
+        DeviceWriteBehind writeBehind = helper.getWriteBehind();
+
+        UsbDevice[] devices = new UsbDevice[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            devices[i] = JvmContext.device(i);
+            assertEquals(USBDevicesDatabaseHelper.UPSERT_INSERTED, USBDevicesDatabaseHelper.upsertUSBDevice(context, devices[i]));
+        }
+        long commitsBefore = writeBehind.getCommitCount();
+        long updatesBefore = writeBehind.getUpdateCount();
+
+        long lastAttach = 0;
+        for (int flap = 0; flap < FLAPS; flap++) {
+            for (int i = 0; i < DEVICES; i++) {
+                assertEquals(USBDevicesDatabaseHelper.UPSERT_UPDATED, USBDevicesDatabaseHelper.upsertUSBDevice(context, devices[i]));
+                USBDevicesDatabaseHelper.UpdateUSBDeviceType(context, devices[i], flap % 2 == 0 ? DeviceType.ANDROID : DeviceType.UNKNOWN);
+            }
+            //read-your-writes: the latest attach time is seen before it is written
+            long attach = helper.getAttachmentTime(devices[DEVICES - 1]);
+            assertTrue(attach >= lastAttach);
+            lastAttach = attach;
+        }
+        helper.flushPendingWrites();
+
+        long updates = writeBehind.getUpdateCount() - updatesBefore;
+        long commits = writeBehind.getCommitCount() - commitsBefore;
+        System.out.println("FlappingWriteBehindTest: " + updates + " updates, " + 2L * DEVICES * FLAPS +
+                " commits without the queue, " + commits + " with it, " + writeBehind.getRowWriteCount() + " row writes");
+
+        assertEquals(2L * DEVICES * FLAPS, updates);
+        assertTrue("commits " + commits, commits * 50 < updates);
+        assertFalse(writeBehind.hasPending());
+
+        //the table holds the last values of every device
+        DeviceType last = (FLAPS - 1) % 2 == 0 ? DeviceType.ANDROID : DeviceType.UNKNOWN;
+        int checked = 0;
+        for (StoredDevice row : helper.getAllStoredDevices()) {
+            assertEquals(last.getLabel(), row.getDeviceType());
+            checked++;
+        }
+        assertEquals(DEVICES, checked);
+        assertEquals(lastAttach, helper.getAttachmentTime(devices[DEVICES - 1]));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//handshake classification, request 52 payloads and timestamp formatting, the work done for every attach
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+
+    private final UsbDevice accessory = new UsbDevice("/dev/bus/usb/1/2", AOAP.ANDROID_VENDOR_ID,
+            AOAP.ANDROID_PRODUCT_ID_ACCESSORY_ADB, "Google", "Pixel", "SN1");
+    private final UsbDevice other = JvmContext.device(7);
+    private long epochMillis = 1700000000000L;
+
+    @Benchmark
+    public boolean isDeviceInAOAPModeAccessory() {
+        return AOAP.isDeviceInAOAPMode(accessory);
+    }
+
+    @Benchmark
+    public boolean isDeviceInAOAPModeOther() {
+        return AOAP.isDeviceInAOAPMode(other);
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return AOAP.encodeString("Android Open Accessory demo");
+    }
+
+    //a new second every call, so the cached second never matches and SimpleDateFormat formats the whole string
+    @Benchmark
+    public String formatTimestamp() {
+        epochMillis += 1000;
+        return TimestampFormatter.format(epochMillis);
+    }
+
+    @Benchmark
+    public String currentTimestamp() {
+        return USBDevicesDatabaseHelper.getCurrentTimestamp();
+    }
+}
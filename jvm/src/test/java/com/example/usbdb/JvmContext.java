@@ -0,0 +1,57 @@
+package com.example.usbdb;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+//Context of the tests and benchmarks: databases and files go to a fresh temporary directory,
+//USB_SERVICE is a UsbManager the test attaches devices to
+public class JvmContext extends Context {
+
+    private final File dir;
+    private final UsbManager usbManager = new UsbManager();
+
+    public JvmContext() {
+        try {
+            dir = Files.createTempDirectory("usbdb").toFile();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Cannot create the test directory", e);
+        }
+        dir.deleteOnExit();
+    }
+
+    //a serial numbered device, distinct for every index
+    public static UsbDevice device(int index) {
+        return new UsbDevice("/dev/bus/usb/" + (1 + index / 128) + "/" + index, 0x1000 + index % 16, 0x2000 + index % 64,
+                "Vendor", "Product " + index, "SN" + index);
+    }
+
+    //a device whose serial number is not readable, stored under its bus path
+    public static UsbDevice pathDevice(int index) {
+        return new UsbDevice("/dev/bus/usb/9/" + index, 0x1000 + index % 16, 0x2000 + index % 64,
+                "Vendor", "Product " + index, null);
+    }
+
+    public UsbManager getUsbManager() {
+        return usbManager;
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        return USB_SERVICE.equals(name) ? usbManager : null;
+    }
+
+    @Override
+    public File getDatabasePath(String name) {
+        return new File(new File(dir, "databases"), name);
+    }
+
+    @Override
+    public File getFilesDir() {
+        return dir;
+    }
+}
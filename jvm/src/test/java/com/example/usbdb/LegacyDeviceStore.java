@@ -0,0 +1,116 @@
+package com.example.usbdb;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.hardware.usb.UsbDevice;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+//the device table as USBDevicesDatabaseHelper kept it before the shared connection: a new helper and
+//an open and close of the database for every call, ContentValues instead of compiled statements, and
+//serial number OR device name lookups that no index can serve. The benchmarks use it as the baseline,
+//the migration test to write a version 1 database.
+class LegacyDeviceStore extends SQLiteOpenHelper {
+
+    private static final String TABLE_NAME = "usb_devices";
+
+    private LegacyDeviceStore(Context context) {
+        this(context, "usb_devices_legacy.db");
+    }
+
+    LegacyDeviceStore(Context context, String name) {
+        super(context, name, null, 1);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " (" +
+                "sr_no INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "device_name TEXT, " +
+                "vendor_id INTEGER, " +
+                "product_id INTEGER, " +
+                "serial_number TEXT, " +
+                "manufacturer TEXT, " +
+                "product_name TEXT," +
+                "device_type TEXT," +
+                "date_time TEXT" +
+                ") ");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+        onCreate(db);
+    }
+
+    static boolean insert(Context context, UsbDevice device) {
+        SQLiteDatabase db = new LegacyDeviceStore(context).getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put("device_name", device.getDeviceName());
+        values.put("vendor_id", device.getVendorId());
+        values.put("product_id", device.getProductId());
+        values.put("serial_number", device.getSerialNumber());
+        values.put("manufacturer", device.getManufacturerName());
+        values.put("product_name", device.getProductName());
+        values.put("device_type", "NA");
+        values.put("date_time", timestamp());
+
+        long newRowId = db.insert(TABLE_NAME, null, values);
+        db.close();
+        return newRowId != -1;
+    }
+
+    //query, then update of the attach time with the same selection
+    static boolean check(Context context, UsbDevice device) {
+        SQLiteDatabase db = new LegacyDeviceStore(context).getReadableDatabase();
+
+        String selection = "serial_number=? OR device_name=?";
+        String[] selectionArgs = {device.getSerialNumber(), device.getDeviceName()};
+
+        Cursor cursor = db.query(TABLE_NAME,
+                new String[]{"device_name", "serial_number", "vendor_id", "product_id", "product_name", "manufacturer"},
+                selection, selectionArgs, null, null, null, null);
+        boolean known = cursor.getCount() > 0;
+        if (known) {
+            cursor.moveToFirst();
+            ContentValues values = new ContentValues();
+            values.put("date_time", timestamp());
+            db.update(TABLE_NAME, values, selection, selectionArgs);
+        }
+        cursor.close();
+        //the old code left this database open and to the finalizer; closed here so runs do not run out of files
+        db.close();
+        return known;
+    }
+
+    static void updateType(Context context, UsbDevice device, String deviceType) {
+        SQLiteDatabase db = new LegacyDeviceStore(context).getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put("device_type", deviceType);
+        db.update(TABLE_NAME, values, "serial_number=? OR device_name=?",
+                new String[]{device.getSerialNumber(), device.getDeviceName()});
+        db.close();
+    }
+
+    static String getAttachmentTimestamp(Context context, UsbDevice device) {
+        SQLiteDatabase db = new LegacyDeviceStore(context).getReadableDatabase();
+
+        Cursor cursor = db.query(TABLE_NAME, new String[]{"date_time"},
+                "device_name = ? AND vendor_id = ? AND product_id = ?",
+                new String[]{device.getDeviceName(), String.valueOf(device.getVendorId()), String.valueOf(device.getProductId())},
+                null, null, null);
+        String timestamp = cursor.moveToFirst() ? cursor.getString(cursor.getColumnIndexOrThrow("date_time")) : null;
+        cursor.close();
+        db.close();
+        return timestamp;
+    }
+
+    private static String timestamp() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.usbdb;
+
+import android.hardware.usb.UsbDevice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//latency of one call of the device table, the shared helper against the open/close per call of
+//LegacyDeviceStore. Both tables hold the same rows; SampleTime reports the percentiles per call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerCallLatencyBenchmark {
+
+    @Param({"1000"})
+    public int rows;
+
+    private JvmContext context;
+    private USBDevicesDatabaseHelper helper;
+    private UsbDevice known;
+
+    @Setup(Level.Trial)
+    public void createTables() {
+        context = new JvmContext();
+        helper = USBDevicesDatabaseHelper.getInstance(context);
+        for (int i = 0; i < rows; i++) {
+            UsbDevice device = JvmContext.device(i);
+            USBDevicesDatabaseHelper.insertUSBDevicestoDB(context, device);
+            LegacyDeviceStore.insert(context, device);
+        }
+        known = JvmContext.device(rows / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        helper.getWriteBehind().shutdown();
+        helper.close();
+    }
+
+    //attach of a known device: the old query plus update, the upsert that queues the attach time
+    @Benchmark
+    public boolean attachLegacy() {
+        return LegacyDeviceStore.check(context, known);
+    }
+
+    @Benchmark
+    public int attachShared() {
+        return USBDevicesDatabaseHelper.upsertUSBDevice(context, known);
+    }
+
+    //the indexed UPDATE the upsert does when nothing is queued, i.e. the row write itself
+    @Benchmark
+    public boolean attachSharedWritten() {
+        return USBDevicesDatabaseHelper.checkUSBDeviceinDB(context, known);
+    }
+
+    @Benchmark
+    public void updateTypeLegacy() {
+        LegacyDeviceStore.updateType(context, known, "Android");
+    }
+
+    @Benchmark
+    public void updateTypeShared() {
+        USBDevicesDatabaseHelper.UpdateUSBDeviceType(context, known, DeviceType.ANDROID);
+    }
+
+    @Benchmark
+    public String lookupLegacy() {
+        return LegacyDeviceStore.getAttachmentTimestamp(context, known);
+    }
+
+    @Benchmark
+    public String lookupShared() {
+        return helper.getAttachmentTimestamp(context, known);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.database.sqlite.SQLiteDatabase;
+import java.util.List;
+import org.junit.Test;
+
+//a version 1 database is upgraded in place: rows are kept, duplicates of an identity merged
+public class SchemaMigrationTest {
+
+    @Test
+    public void upgradeFromVersion1KeepsHistory() {
+        JvmContext context = new JvmContext();
+
+        LegacyDeviceStore legacy = new LegacyDeviceStore(context, "usb_devices.db");
+        SQLiteDatabase db = legacy.getWritableDatabase();
+        String insert = "INSERT INTO usb_devices (device_name, vendor_id, product_id, serial_number, manufacturer," +
+                " product_name, device_type, date_time) VALUES (?, ?, ?, ?, 'Vendor', 'Product', ?, ?)";
+        db.execSQL(insert, new Object[]{"/dev/bus/usb/1/2", 0x18D1, 0x4EE7, "SN1", "NA", "2023-01-02 03:04:05"});
+        db.execSQL(insert, new Object[]{"/dev/bus/usb/1/3", 0x18D1, 0x4EE7, "SN1", "Android", "2023-01-03 03:04:05"});
+        db.execSQL(insert, new Object[]{"/dev/bus/usb/1/4", 0x05AC, 0x12A8, "SN2", "iPhone", "2023-01-04 03:04:05"});
+        db.execSQL(insert, new Object[]{"/dev/bus/usb/1/5", 0x1000, 0x2000, null, "NA", "2023-01-05 03:04:05"});
+        legacy.close();
+
+        USBDevicesDatabaseHelper helper = USBDevicesDatabaseHelper.getInstance(context);
+        List<StoredDevice> rows = helper.getAllStoredDevices();
+
+        assertEquals(3, rows.size());
+        StoredDevice merged = rows.get(0);
+        assertEquals("/dev/bus/usb/1/3", merged.getDeviceName());
+        assertEquals("Android", merged.getDeviceType());
+        assertTrue(merged.getAttachTime() > 0);
+        assertEquals("2023-01-03 03:04:05", TimestampFormatter.format(merged.getAttachTime()));
+        assertEquals("SN2", rows.get(1).getSerialNumber());
+        assertEquals(null, rows.get(2).getSerialNumber());
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.usbdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//time to the first device list of MainActivity: the snapshot read in onCreate against what onResume
+//used to do, open SQLite, query the first page and join it with UsbManager. Every iteration is one
+//cold start, the database is closed before it, and no warmup, so the JIT has not seen either path.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 10)
+@Fork(3)
+public class StartupBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+
+    //rows in the table
+    @Param({"1000"})
+    public int rows;
+
+    private JvmContext context;
+    private USBDevicesDatabaseHelper helper;
+    private File snapshotFile;
+
+    @Setup(Level.Trial)
+    public void createTable() throws IOException {
+        context = new JvmContext();
+        helper = USBDevicesDatabaseHelper.getInstance(context);
+        for (int i = 0; i < rows; i++) {
+            USBDevicesDatabaseHelper.insertUSBDevicestoDB(context, JvmContext.device(i));
+            if (i % 10 == 0) {
+                context.getUsbManager().attach(JvmContext.device(i));
+            }
+        }
+        List<StoredDevice> page = helper.getDevicesPage(new DeviceQuery(), 0, PAGE_SIZE);
+        snapshotFile = new File(context.getFilesDir(), "device_list.snapshot");
+        new DeviceListSnapshot(snapshotFile).write(DeviceReconciler.reconcile(page, context.getUsbManager().getDeviceList().values()));
+    }
+
+    //the next call opens the database again
+    @Setup(Level.Iteration)
+    public void closeDatabase() {
+        helper.flushPendingWrites();
+        helper.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        helper.getWriteBehind().shutdown();
+        helper.close();
+    }
+
+    @Benchmark
+    public List<DeviceListItem> snapshotFirstList() {
+        return new DeviceListSnapshot(snapshotFile).read();
+    }
+
+    @Benchmark
+    public List<DeviceListItem> databaseFirstList() {
+        List<StoredDevice> page = helper.getDevicesPage(new DeviceQuery(), 0, PAGE_SIZE);
+        return DeviceReconciler.reconcile(page, context.getUsbManager().getDeviceList().values());
+    }
+}
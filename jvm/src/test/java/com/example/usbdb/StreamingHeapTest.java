@@ -0,0 +1,82 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+//live heap of reading usbdb.heapRows rows (100k by default, 1M in the bench profile): streaming holds
+//one page whatever the size of the table, the full load holds every row
+public class StreamingHeapTest {
+
+    private static final int ROWS = Integer.getInteger("usbdb.heapRows", 100000);
+    private static final int PAGE_SIZE = 50;
+    //a page of rows and the garbage of the query that read it, far below the full table
+    private static final long MAX_STREAMING_BYTES = 4L * 1024 * 1024;
+    private static final int SAMPLES = 10;
+
+    private static USBDevicesDatabaseHelper helper;
+
+    @BeforeClass
+    public static void fillTable() {
+        helper = USBDevicesDatabaseHelper.getInstance(new JvmContext());
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO usb_devices (device_name, vendor_id, product_id," +
+                " serial_number, manufacturer, product_name, device_type, date_time) VALUES (?, ?, ?, ?, 'Vendor', ?, 'NA', ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                insert.bindString(1, "/dev/bus/usb/" + (1 + i / 128) + "/" + i);
+                insert.bindLong(2, 0x1000 + i % 16);
+                insert.bindLong(3, 0x2000 + i % 64);
+                insert.bindString(4, "SN" + i);
+                insert.bindString(5, "Product " + i);
+                insert.bindLong(6, 1700000000000L + i);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    @Test
+    public void streamingHeapIsBounded() {
+        long baseline = liveHeap();
+        long peak = 0;
+        int count = 0;
+        for (StoredDevice row : helper.streamDevices(new DeviceQuery(), PAGE_SIZE)) {
+            count++;
+            if (count % (ROWS / SAMPLES) == 0) {
+                peak = Math.max(peak, liveHeap() - baseline);
+            }
+        }
+
+        List<StoredDevice> all = helper.getAllStoredDevices();
+        long full = liveHeap() - baseline;
+
+        System.out.println("StreamingHeapTest: " + ROWS + " rows, streaming " + peak + " bytes live, full load "
+                + full + " bytes live");
+        assertEquals(ROWS, count);
+        assertEquals(ROWS, all.size());
+        assertTrue("streaming held " + peak + " bytes", peak < MAX_STREAMING_BYTES);
+        assertTrue("streaming held " + peak + " bytes, the full load " + full, peak * 10 < full);
+    }
+
+    //heap still reachable after a full collection
+    private static long liveHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
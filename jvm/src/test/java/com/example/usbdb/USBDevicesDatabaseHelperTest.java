@@ -0,0 +1,163 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+//the helper against a real SQLite database, through the JDBC stand-ins
+public class USBDevicesDatabaseHelperTest {
+
+    private static JvmContext context;
+    private static USBDevicesDatabaseHelper helper;
+
+    @BeforeClass
+    public static void openDatabase() {
+        context = new JvmContext();
+        helper = USBDevicesDatabaseHelper.getInstance(context);
+    }
+
+    @Test
+    public void upsertInsertsOnceThenUpdates() {
+        UsbDevice device = JvmContext.device(1);
+
+        assertEquals(USBDevicesDatabaseHelper.UPSERT_INSERTED, USBDevicesDatabaseHelper.upsertUSBDevice(context, device));
+        assertEquals(USBDevicesDatabaseHelper.UPSERT_UPDATED, USBDevicesDatabaseHelper.upsertUSBDevice(context, device));
+        helper.flushPendingWrites();
+
+        assertEquals(1, count(device));
+        assertTrue(helper.getAttachmentTime(device) > 0);
+        assertTrue(USBDevicesDatabaseHelper.checkUSBDeviceinDB(context, device));
+    }
+
+    @Test
+    public void deviceTypeIsWrittenBehindAndReadBack() {
+        UsbDevice device = JvmContext.device(2);
+        USBDevicesDatabaseHelper.upsertUSBDevice(context, device);
+
+        USBDevicesDatabaseHelper.UpdateUSBDeviceType(context, device, DeviceType.ANDROID);
+        helper.flushPendingWrites();
+
+        assertEquals(DeviceType.ANDROID.getLabel(), find(device).getDeviceType());
+    }
+
+    @Test
+    public void pathRowAdoptsSerialNumber() {
+        UsbDevice withoutSerial = JvmContext.pathDevice(3);
+        UsbDevice withSerial = new UsbDevice(withoutSerial.getDeviceName(), withoutSerial.getVendorId(),
+                withoutSerial.getProductId(), "Vendor", "Product", "LATE-SERIAL");
+
+        assertEquals(USBDevicesDatabaseHelper.UPSERT_INSERTED, USBDevicesDatabaseHelper.upsertUSBDevice(context, withoutSerial));
+        assertEquals(USBDevicesDatabaseHelper.UPSERT_UPDATED, USBDevicesDatabaseHelper.upsertUSBDevice(context, withSerial));
+        helper.flushPendingWrites();
+
+        assertNull(find(withoutSerial));
+        assertEquals("LATE-SERIAL", find(withSerial).getSerialNumber());
+    }
+
+    @Test
+    public void deleteRemovesRowAndPendingWrite() {
+        UsbDevice device = JvmContext.device(4);
+        USBDevicesDatabaseHelper.upsertUSBDevice(context, device);
+        USBDevicesDatabaseHelper.upsertUSBDevice(context, device);
+
+        USBDevicesDatabaseHelper.deleteUSBDeviceFromDB(context, device);
+        helper.flushPendingWrites();
+
+        assertNull(find(device));
+        assertEquals(0, helper.getAttachmentTime(device));
+        assertFalse(USBDevicesDatabaseHelper.checkUSBDeviceinDB(context, device));
+    }
+
+    //from Android 10 the serial number throws once permission is gone, the queued write still finds its row
+    @Test
+    public void pendingWriteSurvivesRevokedPermission() {
+        final AtomicBoolean revoked = new AtomicBoolean();
+        UsbDevice stored = JvmContext.device(5);
+        UsbDevice device = new UsbDevice(stored.getDeviceName(), stored.getVendorId(), stored.getProductId(),
+                "Vendor", "Product 5", "SN5") {
+            @Override
+            public String getSerialNumber() {
+                if (revoked.get()) {
+                    throw new SecurityException("User has not given permission");
+                }
+                return super.getSerialNumber();
+            }
+        };
+        USBDevicesDatabaseHelper.upsertUSBDevice(context, device);
+        USBDevicesDatabaseHelper.upsertUSBDevice(context, device);
+        USBDevicesDatabaseHelper.UpdateUSBDeviceType(context, device, DeviceType.ANDROID);
+        long attachTime = helper.getAttachmentTime(stored);
+
+        revoked.set(true);
+        helper.flushPendingWrites();
+
+        StoredDevice row = find(stored);
+        assertEquals(DeviceType.ANDROID.getLabel(), row.getDeviceType());
+        assertEquals(attachTime, row.getAttachTime());
+    }
+
+    @Test
+    public void pagesFollowSrNo() {
+        for (int i = 100; i < 110; i++) {
+            USBDevicesDatabaseHelper.upsertUSBDevice(context, JvmContext.device(i));
+        }
+        DeviceQuery query = new DeviceQuery();
+
+        List<StoredDevice> first = helper.getDevicesPage(query, 0, 4);
+        List<StoredDevice> second = helper.getDevicesPage(query, first.get(3).getSrNo(), 4);
+
+        assertEquals(4, first.size());
+        assertTrue(second.get(0).getSrNo() > first.get(3).getSrNo());
+    }
+
+    //rules saved through the classifier survive a restart and keep the base rules underneath
+    @Test
+    public void classifierRulesAreStored() {
+        DeviceClassifier classifier = new DeviceClassifier();
+        classifier.setStore(helper);
+        List<DeviceClassifier.Rule> rules = new ArrayList<>();
+        rules.add(DeviceClassifier.Rule.vendor(0x0BDA, DeviceType.NOT_CLASSIFIED));
+        rules.add(new DeviceClassifier.Rule(0x18D1, 0x4E00, 0x4EFF, DeviceType.ANDROID));
+
+        int base = DeviceClassifier.defaultRules().size();
+        assertEquals(base + 2, classifier.replaceStoredRules(rules));
+
+        DeviceClassifier restarted = new DeviceClassifier();
+        restarted.setStore(helper);
+        assertEquals(base + 2, restarted.load(DeviceClassifier.defaultRules()));
+        assertEquals(DeviceType.ANDROID, restarted.classify(0x18D1, 0x4EE1));
+        assertEquals(DeviceType.NOT_CLASSIFIED, restarted.classify(0x0BDA, 0x0001));
+        assertEquals(DeviceType.IPHONE, restarted.classify(1452, 4776));
+
+        assertEquals(base, restarted.replaceStoredRules(new ArrayList<DeviceClassifier.Rule>()));
+        assertNull(restarted.classify(0x18D1, 0x4EE1));
+        assertTrue(helper.loadClassifierRules().isEmpty());
+    }
+
+    private static int count(UsbDevice device) {
+        int count = 0;
+        for (StoredDevice row : helper.getAllStoredDevices()) {
+            if (row.getIdentity().equals(DeviceIdentity.of(device))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static StoredDevice find(UsbDevice device) {
+        for (StoredDevice row : helper.getAllStoredDevices()) {
+            if (row.getIdentity().equals(DeviceIdentity.of(device))) {
+                return row;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,317 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class UsbDeviceEventBusTest {
+
+    private static final String PERMISSION = "com.example.usbdb.USB_PERMISSION";
+    private static final long DEBOUNCE_MS = 250;
+
+    //runs the drain tasks only when asked, so the rings can be filled first
+    private static class ManualExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static class Recorder implements UsbDeviceEventBus.Subscriber {
+
+        final List<UsbDeviceEvent> events = new ArrayList<>();
+        final List<Long> receivedAt = new ArrayList<>();
+
+        @Override
+        public synchronized void onEvent(UsbDeviceEvent event) {
+            events.add(event);
+            receivedAt.add(System.nanoTime());
+        }
+
+        synchronized List<String> names() {
+            List<String> names = new ArrayList<>();
+            for (UsbDeviceEvent event : events) {
+                names.add(event.getType() + " " + event.getDevice().getDeviceName());
+            }
+            return names;
+        }
+    }
+
+    private static UsbDeviceEvent event(UsbDeviceEvent.Type type, UsbDevice device) {
+        return new UsbDeviceEvent(type, device, System.currentTimeMillis());
+    }
+
+    private static UsbDeviceEvent attached(int port) {
+        return event(UsbDeviceEvent.Type.ATTACHED, JvmContext.device(port));
+    }
+
+    private static String name(UsbDeviceEvent.Type type, int port) {
+        return type + " " + JvmContext.device(port).getDeviceName();
+    }
+
+    @Test
+    public void dropNewestKeepsWhatIsQueued() {
+        UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, 0);
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        UsbDeviceEventBus.Subscription subscription = bus.subscribe("newest", recorder, executor,
+                UsbDeviceEventBus.OverflowPolicy.DROP_NEWEST, 4);
+
+        for (int port = 0; port < 6; port++) {
+            bus.publish(attached(port));
+        }
+        executor.runAll();
+
+        assertEquals(4, recorder.events.size());
+        for (int port = 0; port < 4; port++) {
+            assertEquals(name(UsbDeviceEvent.Type.ATTACHED, port), recorder.names().get(port));
+        }
+        assertEquals(4, subscription.getDeliveredCount());
+        assertEquals(2, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestMakesRoom() {
+        UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, 0);
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        UsbDeviceEventBus.Subscription subscription = bus.subscribe("oldest", recorder, executor,
+                UsbDeviceEventBus.OverflowPolicy.DROP_OLDEST, 4);
+
+        for (int port = 0; port < 6; port++) {
+            bus.publish(attached(port));
+        }
+        executor.runAll();
+
+        assertEquals(4, recorder.events.size());
+        for (int port = 2; port < 6; port++) {
+            assertEquals(name(UsbDeviceEvent.Type.ATTACHED, port), recorder.names().get(port - 2));
+        }
+        assertEquals(2, subscription.getDroppedCount());
+    }
+
+    //the ring of two is full after ports 0 and 1, the rest waits per port and is merged
+    @Test
+    public void coalesceMergesEachPortIntoItsNetChange() {
+        UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, 0);
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        UsbDeviceEventBus.Subscription subscription = bus.subscribe("state", recorder, executor,
+                UsbDeviceEventBus.OverflowPolicy.COALESCE, 2);
+
+        bus.publish(attached(0));
+        bus.publish(attached(1));
+
+        //attached, answered and gone again: nothing reaches the subscriber
+        UsbDevice flapping = JvmContext.device(2);
+        bus.publish(event(UsbDeviceEvent.Type.ATTACHED, flapping));
+        bus.publish(event(UsbDeviceEvent.Type.PERMISSION_GRANTED, flapping));
+        bus.publish(event(UsbDeviceEvent.Type.DETACHED, flapping));
+
+        //replugged twice: the detach and the last attach
+        bus.publish(event(UsbDeviceEvent.Type.DETACHED, JvmContext.device(3)));
+        bus.publish(attached(3));
+        UsbDeviceEvent replugged = attached(3);
+        bus.publish(replugged);
+
+        //the later permission answer wins
+        UsbDevice asked = JvmContext.device(4);
+        bus.publish(event(UsbDeviceEvent.Type.PERMISSION_DENIED, asked));
+        bus.publish(event(UsbDeviceEvent.Type.PERMISSION_GRANTED, asked));
+
+        executor.runAll();
+
+        List<String> expected = new ArrayList<>();
+        expected.add(name(UsbDeviceEvent.Type.ATTACHED, 0));
+        expected.add(name(UsbDeviceEvent.Type.ATTACHED, 1));
+        expected.add(name(UsbDeviceEvent.Type.DETACHED, 3));
+        expected.add(name(UsbDeviceEvent.Type.ATTACHED, 3));
+        expected.add(name(UsbDeviceEvent.Type.PERMISSION_GRANTED, 4));
+        assertEquals(expected, recorder.names());
+        assertSame(replugged, recorder.events.get(3));
+        assertEquals(5, subscription.getDeliveredCount());
+        assertEquals(5, subscription.getDroppedCount());
+
+        //with the overflow empty new events go through the ring again
+        bus.publish(attached(5));
+        executor.runAll();
+        assertEquals(name(UsbDeviceEvent.Type.ATTACHED, 5), recorder.names().get(5));
+    }
+
+    //a slow subscriber drops its own events, the others still get every one
+    @Test
+    public void subscribersAreIndependent() {
+        UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, 0);
+        ManualExecutor slow = new ManualExecutor();
+        Recorder slowRecorder = new Recorder();
+        Recorder fastRecorder = new Recorder();
+        bus.subscribe("slow", slowRecorder, slow, UsbDeviceEventBus.OverflowPolicy.DROP_NEWEST, 2);
+        bus.subscribe("fast", fastRecorder, DIRECT, UsbDeviceEventBus.OverflowPolicy.DROP_NEWEST, 2);
+
+        for (int port = 0; port < 10; port++) {
+            bus.publish(attached(port));
+        }
+        slow.runAll();
+
+        assertEquals(2, slowRecorder.events.size());
+        assertEquals(10, fastRecorder.events.size());
+    }
+
+    //events of every producer arrive exactly once and in the order the producer published them
+    @Test
+    public void manyPublishersAreDeliveredInOrder() throws Exception {
+        final int publishers = 4;
+        final int perPublisher = 20000;
+        final UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch done = new CountDownLatch(publishers * perPublisher);
+        final Map<String, Long> last = new HashMap<>();
+        final List<String> errors = new ArrayList<>();
+        UsbDeviceEventBus.Subscription subscription = bus.subscribe("all", new UsbDeviceEventBus.Subscriber() {
+            @Override
+            public void onEvent(UsbDeviceEvent event) {
+                String port = event.getDevice().getDeviceName();
+                Long previous = last.get(port);
+                if (previous != null && event.getTimestamp() != previous + 1) {
+                    errors.add(port + " " + event.getTimestamp() + " after " + previous);
+                }
+                last.put(port, event.getTimestamp());
+                done.countDown();
+            }
+        }, executor, UsbDeviceEventBus.OverflowPolicy.DROP_NEWEST, publishers * perPublisher);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            final UsbDevice device = JvmContext.device(p);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perPublisher; i++) {
+                        bus.publish(new UsbDeviceEvent(UsbDeviceEvent.Type.PERMISSION_GRANTED, device, i));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        //the count is taken after the subscriber returns
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(publishers, last.size());
+        assertEquals(publishers * perPublisher, subscription.getDeliveredCount());
+        assertEquals(0, subscription.getDroppedCount());
+        assertEquals(publishers * perPublisher, bus.getPublishedCount());
+    }
+
+    private static boolean awaitEvents(Recorder recorder, int count, long millis) throws InterruptedException {
+        long until = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < until) {
+            synchronized (recorder) {
+                if (recorder.events.size() >= count) {
+                    return true;
+                }
+            }
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    @Test
+    public void debounceWindowMergesAPortBurst() throws Exception {
+        UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, DEBOUNCE_MS);
+        Recorder recorder = new Recorder();
+        bus.subscribe("state", recorder, DIRECT, UsbDeviceEventBus.OverflowPolicy.COALESCE, 16);
+
+        //flapping: attached and detached within the window
+        UsbDevice flapping = JvmContext.device(0);
+        bus.publish(event(UsbDeviceEvent.Type.ATTACHED, flapping));
+        bus.publish(event(UsbDeviceEvent.Type.DETACHED, flapping));
+        //replugged: the old device goes, the new one comes
+        bus.publish(event(UsbDeviceEvent.Type.DETACHED, JvmContext.device(1)));
+        UsbDeviceEvent replugged = attached(1);
+        bus.publish(replugged);
+        //repeated broadcast: the last one
+        bus.publish(attached(2));
+        UsbDeviceEvent repeated = attached(2);
+        bus.publish(repeated);
+        //permission answers are never held back
+        bus.publish(event(UsbDeviceEvent.Type.PERMISSION_GRANTED, JvmContext.device(3)));
+        assertEquals(1, recorder.events.size());
+
+        assertTrue(awaitEvents(recorder, 4, 5000));
+        Thread.sleep(DEBOUNCE_MS);
+
+        List<String> names = recorder.names();
+        assertEquals(names.toString(), 4, names.size());
+        assertEquals(name(UsbDeviceEvent.Type.PERMISSION_GRANTED, 3), names.get(0));
+        assertTrue(names.toString(), names.indexOf(name(UsbDeviceEvent.Type.DETACHED, 1)) < names.indexOf(name(UsbDeviceEvent.Type.ATTACHED, 1)));
+        assertTrue(recorder.events.contains(replugged));
+        assertTrue(recorder.events.contains(repeated));
+        //attach+detach of port 0, the second event of ports 1 and 2, and the burst of port 0 dropped
+        assertEquals(4, bus.getCoalescedCount());
+    }
+
+    //every port has its own window of DEBOUNCE_MS from its first event
+    @Test
+    public void debounceWindowIsPerPort() throws Exception {
+        UsbDeviceEventBus bus = new UsbDeviceEventBus(PERMISSION, DEBOUNCE_MS);
+        Recorder recorder = new Recorder();
+        bus.subscribe("state", recorder, DIRECT, UsbDeviceEventBus.OverflowPolicy.COALESCE, 16);
+
+        long firstAt = System.nanoTime();
+        bus.publish(attached(0));
+        Thread.sleep(DEBOUNCE_MS / 2);
+        long secondAt = System.nanoTime();
+        bus.publish(attached(1));
+
+        assertTrue(awaitEvents(recorder, 2, 5000));
+        assertEquals(name(UsbDeviceEvent.Type.ATTACHED, 0), recorder.names().get(0));
+        assertTrue(recorder.receivedAt.get(0) - firstAt >= TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS));
+        assertTrue(recorder.receivedAt.get(1) - secondAt >= TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS));
+
+        //a closed window does not swallow the next event of its port
+        long detachAt = System.nanoTime();
+        bus.publish(event(UsbDeviceEvent.Type.DETACHED, JvmContext.device(0)));
+        assertTrue(awaitEvents(recorder, 3, 5000));
+        assertEquals(name(UsbDeviceEvent.Type.DETACHED, 0), recorder.names().get(2));
+        assertTrue(recorder.receivedAt.get(2) - detachAt >= TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MS));
+        bus.shutdown();
+    }
+}
@@ -0,0 +1,322 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+public class UsbDeviceExecutorTest {
+
+    private UsbDeviceExecutor executor;
+
+    @After
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    //a task that blocks until the latch opens and notes whether it was interrupted
+    private static Callable<String> blocking(final CountDownLatch started, final CountDownLatch release,
+                                             final AtomicBoolean interrupted) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                }
+                return "released";
+            }
+        };
+    }
+
+    private static Callable<String> value(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+    //callback that remembers what it got and on which thread
+    private static class Recorder<T> implements UsbDeviceExecutor.Callback<T> {
+
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicReference<Object> outcome = new AtomicReference<>();
+        volatile String thread;
+
+        @Override
+        public void onResult(T result) {
+            outcome.set(result);
+            thread = Thread.currentThread().getName();
+            called.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            outcome.set(e);
+            thread = Thread.currentThread().getName();
+            called.countDown();
+        }
+
+        Object await() throws InterruptedException {
+            assertTrue("no callback", called.await(10, TimeUnit.SECONDS));
+            return outcome.get();
+        }
+    }
+
+    @Test
+    public void tasksOfOneDeviceRunInSubmissionOrder() throws Exception {
+        executor = new UsbDeviceExecutor(4, 256);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final int index = i;
+            futures.add(executor.submit("SN1", "persist", new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    if (running.incrementAndGet() > 1) {
+                        overlapped.set(true);
+                    }
+                    order.add(index);
+                    running.decrementAndGet();
+                    return index;
+                }
+            }, null));
+        }
+        for (Future<Integer> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        assertFalse(overlapped.get());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    //three devices only get past the barrier if their tasks run at the same time
+    @Test
+    public void devicesRunInParallel() throws Exception {
+        executor = new UsbDeviceExecutor(3, 16);
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int device = 0; device < 3; device++) {
+            futures.add(executor.submit("SN" + device, "probe", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return barrier.await(10, TimeUnit.SECONDS);
+                }
+            }, null));
+        }
+        for (Future<Integer> future : futures) {
+            future.get(15, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void resultsArePostedToTheMainThread() throws Exception {
+        executor = new UsbDeviceExecutor(2, 16);
+
+        Recorder<String> success = new Recorder<>();
+        executor.submit("SN1", "probe", value("done"), success);
+        assertEquals("done", success.await());
+        assertEquals("main", success.thread);
+
+        Recorder<String> failure = new Recorder<>();
+        executor.submit("SN1", "probe", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new IllegalStateException("probe failed");
+            }
+        }, failure);
+        Object error = failure.await();
+        assertTrue(String.valueOf(error), error instanceof IllegalStateException);
+        assertEquals("main", failure.thread);
+    }
+
+    @Test
+    public void cancelDropsQueuedTasksAndInterruptsTheRunningOne() throws Exception {
+        executor = new UsbDeviceExecutor(2, 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicInteger ranAfterCancel = new AtomicInteger();
+
+        Recorder<String> runningCallback = new Recorder<>();
+        Future<String> running = executor.submit("SN1", "probe", blocking(started, release, interrupted), runningCallback);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        List<Future<Integer>> queued = new ArrayList<>();
+        List<Recorder<Integer>> queuedCallbacks = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Recorder<Integer> callback = new Recorder<>();
+            queuedCallbacks.add(callback);
+            queued.add(executor.submit("SN1", "persist", new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return ranAfterCancel.incrementAndGet();
+                }
+            }, callback));
+        }
+        assertEquals(3, executor.getQueueDepth());
+
+        executor.cancel("SN1");
+        assertEquals(0, executor.getQueueDepth());
+        assertTrue(running.isCancelled());
+        for (Future<Integer> future : queued) {
+            assertTrue(future.isCancelled());
+        }
+
+        //the lane is free again, a new task runs and its callback comes after anything the cancelled ones posted
+        Recorder<String> next = new Recorder<>();
+        executor.submit("SN1", "probe", value("next"), next);
+        assertEquals("next", next.await());
+
+        long until = System.currentTimeMillis() + 5000;
+        while (!interrupted.get() && System.currentTimeMillis() < until) {
+            Thread.sleep(5);
+        }
+        assertTrue(interrupted.get());
+        assertEquals(0, ranAfterCancel.get());
+        assertEquals(1, runningCallback.called.getCount());
+        for (Recorder<Integer> callback : queuedCallbacks) {
+            assertEquals(1, callback.called.getCount());
+        }
+        try {
+            running.get();
+            fail("cancelled task returned a result");
+        }
+        catch (CancellationException expected) {
+        }
+    }
+
+    //a task handed to the pool but not picked up by a worker yet is cancelled too
+    @Test
+    public void cancelReachesATaskWaitingForAWorker() throws Exception {
+        executor = new UsbDeviceExecutor(1, 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("SN1", "probe", blocking(started, release, new AtomicBoolean()), null);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        Future<Boolean> waiting = executor.submit("SN2", "probe", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                ran.set(true);
+                return true;
+            }
+        }, null);
+        assertEquals(1, executor.getQueueDepth());
+
+        executor.cancel("SN2");
+        release.countDown();
+        assertEquals("after", executor.submit("SN2", "probe", value("after"), null).get(10, TimeUnit.SECONDS));
+
+        assertTrue(waiting.isCancelled());
+        assertFalse(ran.get());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    //one worker busy and one task in the pool queue, the next device is rejected
+    @Test
+    public void fullQueueRejects() throws Exception {
+        executor = new UsbDeviceExecutor(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("SN1", "probe", blocking(started, release, new AtomicBoolean()), null);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<String> queued = executor.submit("SN2", "probe", value("queued"), null);
+
+        Recorder<String> rejectedCallback = new Recorder<>();
+        Future<String> rejected = executor.submit("SN3", "probe", value("rejected"), rejectedCallback);
+
+        Object error = rejectedCallback.await();
+        assertTrue(String.valueOf(error), error instanceof RejectedExecutionException);
+        try {
+            rejected.get();
+            fail("rejected task returned a result");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(1, executor.getQueueDepth());
+
+        //the lane of the rejected device is not stuck
+        release.countDown();
+        assertEquals("queued", queued.get(10, TimeUnit.SECONDS));
+        assertEquals("again", executor.submit("SN3", "probe", value("again"), null).get(10, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void queueDepthAndStageStats() throws Exception {
+        executor = new UsbDeviceExecutor(1, 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit("SN1", "probe", blocking(started, release, new AtomicBoolean()), null);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueueDepth());
+
+        List<Future<String>> futures = new ArrayList<>();
+        futures.add(executor.submit("SN1", "persist", value("a"), null));
+        futures.add(executor.submit("SN2", "persist", value("b"), null));
+        futures.add(executor.submit("SN3", "persist", value("c"), null));
+        futures.add(executor.submit("SN2", "probe", value("d"), null));
+        assertEquals(4, executor.getQueueDepth());
+
+        Thread.sleep(50);
+        release.countDown();
+        assertEquals("released", first.get(10, TimeUnit.SECONDS));
+        for (Future<String> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(0, executor.getQueueDepth());
+
+        Map<String, UsbDeviceExecutor.StageStats> stats = executor.getStageStats();
+        assertEquals(2, stats.size());
+        UsbDeviceExecutor.StageStats probe = stats.get("probe");
+        UsbDeviceExecutor.StageStats persist = stats.get("persist");
+        //a task is recorded after its result is set, so the last one may still be on its way
+        long until = System.currentTimeMillis() + 5000;
+        while (probe.getCount() + persist.getCount() < 5 && System.currentTimeMillis() < until) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, probe.getCount());
+        assertEquals(3, persist.getCount());
+        //the first probe ran while the others waited for the single worker
+        assertTrue(probe.getMaxRunMillis() >= 50);
+        assertTrue(persist.getAverageWaitMillis() >= 50);
+        assertTrue(persist.getMaxRunMillis() < 50);
+        assertNull(stats.get("other"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.usbdb;
+
+import android.util.Log;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//cost of recording one event, the budget is 50 ns (UsbMetricsOverheadTest checks it).
+//Latencies vary so the histograms see different buckets, as they do in the app.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UsbMetricsBenchmark {
+
+    private static final String TAG = "USB_SQLite_DB";
+
+    private final AtomicLong counter = UsbMetrics.counter("benchmark");
+    private final LatencyHistogram upsertTimer = UsbMetrics.database(UsbMetrics.DB_UPSERT);
+    private long nanos;
+    private int request;
+    private long start;
+
+    @Setup
+    public void enable() {
+        UsbMetrics.setEnabled(true);
+        UsbLog.setInfoEnabled(false);
+        start = System.nanoTime();
+    }
+
+    //one of the AOAP control requests 51 to 53 with its latency
+    @Benchmark
+    public void recordControlRequest() {
+        nanos = (nanos + 7919) & 0xFFFFF;
+        request = request == 2 ? 0 : request + 1;
+        UsbMetrics.recordControlRequest(AOAP.ACCESSORY_GET_PROTOCOL + request, nanos, true);
+    }
+
+    //a database timing into the histogram the helper holds, including the System.nanoTime() the call
+    //makes to end it. The start is read when the operation starts and is not part of recording
+    @Benchmark
+    public void recordDatabase() {
+        UsbMetrics.recordDatabase(upsertTimer, start);
+    }
+
+    //the clock read every timed operation starts and ends with, for comparison
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void recordDispatchToUi() {
+        nanos = (nanos + 7919) & 0xFFFFF;
+        UsbMetrics.recordDispatchToUi(nanos);
+    }
+
+    @Benchmark
+    public void incrementCounter() {
+        UsbMetrics.increment(counter);
+    }
+
+    //an info log of a per-device path while info logs are off, the message is never built
+    @Benchmark
+    public void guardedLog() {
+        if (UsbLog.isInfoEnabled()) {
+            Log.i(TAG, "Attachment time updated successfully: " + nanos);
+        }
+    }
+}
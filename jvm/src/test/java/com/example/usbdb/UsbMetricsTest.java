@@ -0,0 +1,85 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class UsbMetricsTest {
+
+    //percentiles are the upper bound of their bucket, never below the exact value and a few percent above it
+    @Test
+    public void percentilesAreCloseToExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(3);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextGaussian() * 2 + 10);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = snapshot.getPercentileNanos(percentile);
+            assertTrue("p" + percentile + " " + estimate + " below " + exact, estimate >= exact);
+            assertTrue("p" + percentile + " " + estimate + " too far above " + exact, estimate <= exact * 1.07 + 1);
+        }
+        assertEquals(values[values.length - 1], snapshot.getMaxNanos());
+        assertEquals(values.length, snapshot.getCount());
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        UsbMetrics.reset();
+        UsbMetrics.setEnabled(false);
+        try {
+            UsbMetrics.recordControlRequest(AOAP.ACCESSORY_START, 1000, false);
+            UsbMetrics.recordDatabase(UsbMetrics.database(UsbMetrics.DB_DELETE), System.nanoTime());
+        }
+        finally {
+            UsbMetrics.setEnabled(true);
+        }
+        assertEquals(0, UsbMetrics.controlRequest(AOAP.ACCESSORY_START).snapshot().getCount());
+        assertEquals(0, UsbMetrics.getControlRequestFailures(AOAP.ACCESSORY_START));
+        assertEquals(0, UsbMetrics.database(UsbMetrics.DB_DELETE).snapshot().getCount());
+    }
+
+    @Test
+    public void exportHasEveryRecordedMetric() throws Exception {
+        UsbMetrics.reset();
+        UsbMetrics.recordControlRequest(AOAP.ACCESSORY_GET_PROTOCOL, 2000, true);
+        UsbMetrics.recordControlRequest(AOAP.ACCESSORY_SEND_STRING, 3000, false);
+        UsbMetrics.recordDatabase(UsbMetrics.database(UsbMetrics.DB_UPSERT), System.nanoTime() - 5000);
+        UsbMetrics.increment(UsbMetrics.counter("attaches"));
+
+        File file = File.createTempFile("metrics", ".json");
+        file.deleteOnExit();
+        UsbMetrics.writeJson(file);
+        String json = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+
+        assertTrue(json, json.startsWith("{\"started_at\":") && json.endsWith("}}"));
+        assertTrue(json, json.contains("\"51\":{"));
+        assertTrue(json, json.contains("\"failures\":1}"));
+        assertTrue(json, !json.contains("\"53\":"));
+        assertTrue(json, json.contains("\"upsert\":{"));
+        assertTrue(json, json.contains("\"attaches\":1"));
+        assertEquals(count(json, '{'), count(json, '}'));
+        assertTrue(!new File(file.getPath() + ".tmp").exists());
+    }
+
+    private static int count(String text, char c) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
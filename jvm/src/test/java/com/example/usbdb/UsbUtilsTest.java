@@ -0,0 +1,69 @@
+package com.example.usbdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.usb.UsbDevice;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+//the whole checkDeviceType flow on the JVM, the connection is a SimulatedAoapDevice
+public class UsbUtilsTest {
+
+    //a Service like context, the alerts of checkDeviceType are collected instead of shown
+    static class AlertContext extends JvmContext implements UsbUtils.AlertSink {
+
+        final List<String> alerts = new ArrayList<>();
+
+        @Override
+        public void onAlert(String message) {
+            alerts.add(message);
+        }
+    }
+
+    @Test
+    public void unknownDeviceIsSwitchedToAccessoryMode() {
+        AlertContext context = new AlertContext();
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+
+        assertEquals(DeviceType.UNKNOWN, UsbUtils.checkDeviceType(context, phone, JvmContext.device(1)));
+        assertTrue(phone.isAccessoryStarted());
+        assertEquals(AccessoryIdentification.DEFAULT.getString(0), phone.getReceivedString(0));
+        assertTrue(phone.isClosed());
+        assertTrue(context.alerts.isEmpty());
+    }
+
+    @Test
+    public void deviceWithoutAccessoryModeIsAndroid() {
+        SimulatedAoapDevice device = new SimulatedAoapDevice(0);
+
+        assertEquals(DeviceType.ANDROID, UsbUtils.checkDeviceType(new AlertContext(), device, JvmContext.device(2)));
+        assertFalse(device.isAccessoryStarted());
+        assertTrue(device.isClosed());
+    }
+
+    @Test
+    public void failedHandshakeKeepsTheStoredType() {
+        SimulatedAoapDevice phone = new SimulatedAoapDevice(2);
+        phone.setFailAtTransfer(3);
+
+        assertNull(UsbUtils.checkDeviceType(new AlertContext(), phone, JvmContext.device(3)));
+        assertFalse(phone.isAccessoryStarted());
+        assertTrue(phone.isClosed());
+    }
+
+    @Test
+    public void ruleClassifiedDevicesAreNotProbed() {
+        AlertContext context = new AlertContext();
+        SimulatedAoapDevice iphone = new SimulatedAoapDevice(2);
+        UsbDevice device = new UsbDevice("/dev/bus/usb/001/4", 1452, 4776, "Apple", "iPhone", "SN4");
+
+        assertEquals(DeviceType.IPHONE, UsbUtils.checkDeviceType(context, iphone, device));
+        assertEquals(0, iphone.getTransferCount());
+        assertEquals(1, context.alerts.size());
+        assertTrue(context.alerts.get(0), context.alerts.get(0).startsWith("iPhone"));
+    }
+}